@@ -2,27 +2,87 @@ package com.tenduke.client.android.security;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
+import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
 
 
 /** Container for secret key and cipher -pair.
  * 
- *  WARNING: This class is not thread safe.
+ *  By default, the cipher is {@link #DEFAULT_CIPHER_TYPE}. A context with an authenticated cipher, e.g.
+ *  {@link #AUTHENTICATED_CIPHER_TYPE}, provides both confidentiality and integrity in one pass, so values
+ *  encrypted with it need not be signed separately:
+ *  <pre>
+ *  new EncryptionContext ("AES", 256, EncryptionContext.AUTHENTICATED_CIPHER_TYPE, null);
+ *  </pre>
+ *  AES-GCM requires API level 19.
+ * 
+ *  Generating keys may be slow on low-end devices. To keep it off the startup path, the key can be generated in
+ *  the background with {@link #generateInBackground(Executor)}, or loaded from a file with {@link KeyStoreFile}.
+ * 
+ *  A context constructed with a {@link KeyRing} encrypts with the current key of the ring, and decrypts with
+ *  any key of the ring by key id, so the key can be rotated without making earlier values unreadable.
+ * 
+ *  {@link #encrypt(ByteBuffer, ByteBuffer)} and {@link #decrypt(ByteBuffer, ByteBuffer)} work on buffers given by
+ *  the caller, e.g. reused direct buffers, without allocating arrays in proportion to the data.
+ * 
+ *  The contained cipher ({@link #getCipher()}, {@link #initForEncryption()}, {@link #initForDecryption()})
+ *  is not thread safe. For concurrent use, {@link #getThreadCipher()} and {@link #initThreadCipher(int)}
+ *  return a cipher of the calling thread, with the same algorithm, provider and key as the contained one.
+ *  Used that way, a context can be shared by several threads and stores, which encrypt in parallel
+ *  without locking.
  */
 public class EncryptionContext {
 
-    private final SecretKey _secretKey;
+    /** Cipher type of the contexts constructed with default parameters. */
+    public static final String DEFAULT_CIPHER_TYPE = "AES/ECB/PKCS5Padding";
+
+    /** Authenticated cipher type: AES in Galois/Counter Mode. */
+    public static final String AUTHENTICATED_CIPHER_TYPE = "AES/GCM/NoPadding";
+
+    /** Length in bytes of the initialization vectors for GCM. */
+    public static final int GCM_IV_BYTES = 12;
+
+    /** Length in bits of the authentication tags of GCM. */
+    public static final int GCM_TAG_BITS = 128;
+
+    // Length of the data passed through the scratch array at a time, see doFinal():
+    private static final int SCRATCH_BYTES = 8 * 1024;
+
+    /** Key id of contexts without a {@link KeyRing}. */
+    public static final int NO_KEY_ID = -1;
+
+    /** Length of the header written by {@link #encrypt(ByteBuffer, ByteBuffer)}, without the initialization vector. */
+    public static final int BUFFER_HEADER_BYTES = 4 + 1;
+
+    private volatile SecretKey _secretKey;
+    private final Future<SecretKey> _pendingSecretKey;
+    private final KeyRing _keyRing;
+    private final ThreadLocal<Integer> _threadKeyIds = new ThreadLocal<>();
     private final Cipher _cipher;
+    private final ThreadLocal<Cipher> _threadCiphers = new ThreadLocal<>();
+    private final ThreadLocal<byte[]> _threadScratch = new ThreadLocal<>();
+    private final SecureRandom _random = new SecureRandom();
 
 
-    /** Constructs a new instance with given secret key and cipher.
+    /** Constructs a new instance with given secret key and cipher.
      * 
      * @param secretKey the secret key
      * @param cipher the cipher
@@ -30,6 +90,37 @@ public class EncryptionContext {
     public EncryptionContext (@NonNull final SecretKey secretKey, @NonNull final Cipher cipher) {
         //
         _secretKey = secretKey;
+        _pendingSecretKey = null;
+        _keyRing = null;
+        _cipher = cipher;
+    }
+
+
+    /** Constructs a new instance with a secret key produced in the background, e.g. by
+     *  {@link KeyStoreFile#secretKey(String, String, int, SecureRandom, Executor)}. The methods needing the
+     *  key wait for it, and throw {@link IllegalStateException} if producing it failed.
+     * 
+     * @param secretKey future of the secret key
+     * @param cipher the cipher
+     */
+    public EncryptionContext (@NonNull final Future<SecretKey> secretKey, @NonNull final Cipher cipher) {
+        //
+        _pendingSecretKey = secretKey;
+        _keyRing = null;
+        _cipher = cipher;
+    }
+
+
+    /** Constructs a new instance with a key ring. The context encrypts with the current key of the ring,
+     *  see {@link #initThreadCipher(int)}, and {@link #getSecretKey()} returns the current key.
+     * 
+     * @param keyRing the key ring
+     * @param cipher the cipher
+     */
+    public EncryptionContext (@NonNull final KeyRing keyRing, @NonNull final Cipher cipher) {
+        //
+        _pendingSecretKey = null;
+        _keyRing = keyRing;
         _cipher = cipher;
     }
 
@@ -68,7 +159,7 @@ public class EncryptionContext {
      *  @throws NoSuchPaddingException  -
      */
     public EncryptionContext (@Nullable final SecureRandom random) throws NoSuchAlgorithmException, NoSuchPaddingException {
-        this ("AES", 256, "AES/ECB/PKCS5Padding", random);
+        this ("AES", 256, DEFAULT_CIPHER_TYPE, random);
     }
 
 
@@ -82,6 +173,52 @@ public class EncryptionContext {
     }
 
     
+    /** Constructs a new instance, which generates a new secret key with given parameters in the background.
+     *  Returns without waiting for the key, so e.g. application startup can continue while the key is generated.
+     *  The methods needing the key wait for it.
+     * 
+     *  @param keyType Type of key
+     *  @param keyBits Bits in key
+     *  @param cipherType Cipher type to generate.
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @param executor executor to run the key generation with
+     *  @return the new context
+     *  @throws NoSuchAlgorithmException -
+     *  @throws NoSuchPaddingException -
+     */
+    public static @NonNull EncryptionContext generateInBackground (
+            @NonNull final String keyType,
+            final int keyBits,
+            @NonNull final String cipherType,
+            @Nullable final SecureRandom random,
+            @NonNull final Executor executor) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        //
+        // Unknown algorithms are reported right away:
+        final KeyGenerator secretKeyGenerator = KeyGenerator.getInstance(keyType);
+        final Cipher cipher = Cipher.getInstance(cipherType);
+        return new EncryptionContext(KeyFutures.submit(new Callable<SecretKey>() {
+            @Override
+            public SecretKey call() throws Exception {
+                secretKeyGenerator.init(keyBits, (random == null ? new SecureRandom() : random));
+                return secretKeyGenerator.generateKey();
+            }
+        }, executor), cipher);
+    }
+
+
+    /** As {@link #generateInBackground(String, int, String, SecureRandom, Executor)}, with the parameters
+     *  of {@link #EncryptionContext()}.
+     * 
+     *  @param executor executor to run the key generation with
+     *  @return the new context
+     *  @throws NoSuchAlgorithmException -
+     *  @throws NoSuchPaddingException -
+     */
+    public static @NonNull EncryptionContext generateInBackground (@NonNull final Executor executor) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return generateInBackground ("AES", 256, DEFAULT_CIPHER_TYPE, null, executor);
+    }
+
+
     /** Generates a new {@link SecretKey} with given parameters.
      * 
      *  For key types, see {@link javax.crypto.KeyGenerator}.
@@ -110,7 +247,7 @@ public class EncryptionContext {
      *  @throws InvalidKeyException -
      */
     public void initForEncryption () throws InvalidKeyException {
-        _cipher.init (Cipher.ENCRYPT_MODE, _secretKey);
+        _cipher.init (Cipher.ENCRYPT_MODE, getSecretKey());
     }
 
 
@@ -119,7 +256,293 @@ public class EncryptionContext {
      *  @throws InvalidKeyException -
      */
     public void initForDecryption () throws InvalidKeyException {
-        _cipher.init (Cipher.DECRYPT_MODE, _secretKey);
+        _cipher.init (Cipher.DECRYPT_MODE, getSecretKey());
+    }
+
+
+    /** Initializes the context for decryption with an initialization vector, e.g. one returned by
+     *  {@link Cipher#getIV()} after {@link #initForEncryption()}. Required by ciphers using a vector.
+     * 
+     *  @param iv the initialization vector
+     *  @throws InvalidAlgorithmParameterException -
+     *  @throws InvalidKeyException -
+     */
+    public void initForDecryption (@NonNull final byte[] iv) throws InvalidAlgorithmParameterException, InvalidKeyException {
+        _cipher.init (Cipher.DECRYPT_MODE, getSecretKey(), parameterSpecFor(_cipher, iv));
+    }
+
+
+    /** Constructs a new cipher of the same algorithm and provider as the contained cipher. Use for ciphers,
+     *  which must not be shared, e.g. ones held by streams.
+     * 
+     *  @return a new, uninitialized cipher
+     */
+    public @NonNull Cipher newCipher () {
+        //
+        try {
+            return Cipher.getInstance(_cipher.getAlgorithm(), _cipher.getProvider());
+        }
+        catch (final NoSuchAlgorithmException | NoSuchPaddingException e) {
+            // The context already has a cipher of the same algorithm, so this should not happen:
+            throw new IllegalStateException ("Unable to construct cipher " + _cipher.getAlgorithm(), e);
+        }
+    }
+
+
+    /** Returns the cipher of the calling thread, see {@link #newCipher()}. The cipher is constructed on first use
+     *  and reused by later calls from the same thread, whatever state they leave it in.
+     * 
+     *  @return the cipher of the calling thread, not necessarily initialized
+     */
+    public @NonNull Cipher getThreadCipher () {
+        //
+        Cipher cipher = _threadCiphers.get();
+        if (cipher == null) {
+            cipher = newCipher();
+            _threadCiphers.set(cipher);
+        }
+        return cipher;
+    }
+
+
+    /** Initializes the cipher of the calling thread with the secret key, the current key of the key ring if set.
+     *  The id of the key is available from {@link #getThreadKeyId()}.
+     * 
+     *  An authenticated cipher is initialized for encryption with a fresh random initialization vector,
+     *  available from {@link Cipher#getIV()}. For decryption, ciphers using a vector must be initialized
+     *  with {@link #initThreadCipher(int, byte[])}.
+     * 
+     *  @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     *  @return the initialized cipher of the calling thread
+     *  @throws InvalidKeyException -
+     */
+    public @NonNull Cipher initThreadCipher (final int mode) throws InvalidKeyException {
+        //
+        final int keyId = (_keyRing == null ? NO_KEY_ID : _keyRing.getCurrentKeyId());
+        byte[] iv = null;
+        if (mode == Cipher.ENCRYPT_MODE && isAuthenticated (_cipher)) {
+            // Reusing a vector with the same key breaks GCM, so the vector is not left to the provider:
+            iv = new byte[GCM_IV_BYTES];
+            _random.nextBytes(iv);
+        }
+        try {
+            return initThreadCipher (mode, keyId, iv);
+        }
+        catch (final InvalidAlgorithmParameterException e) {
+            throw new InvalidKeyException ("Unable to initialize cipher", e);
+        }
+    }
+
+
+    /** Initializes the cipher of the calling thread with a key of the key ring and an optional initialization vector.
+     * 
+     *  @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     *  @param keyId id of the key, see {@link #getSecretKey(int)}
+     *  @param iv the initialization vector, {@code null} if the cipher does not use one
+     *  @return the initialized cipher of the calling thread
+     *  @throws InvalidAlgorithmParameterException -
+     *  @throws InvalidKeyException if the key ring has no key with the id
+     */
+    public @NonNull Cipher initThreadCipher (final int mode, final int keyId, @Nullable final byte[] iv) throws InvalidAlgorithmParameterException, InvalidKeyException {
+        //
+        final Cipher cipher = getThreadCipher();
+        final SecretKey key = getSecretKey (keyId);
+        // Key id is cleared first, so a failed initialization does not leave a stale id:
+        _threadKeyIds.remove();
+        if (iv == null) {
+            cipher.init(mode, key);
+        }
+        else {
+            cipher.init(mode, key, parameterSpecFor(cipher, iv));
+        }
+        _threadKeyIds.set(keyId);
+        return cipher;
+    }
+
+
+    /** Returns the id of the key, which the cipher of the calling thread was last initialized with by this context.
+     * 
+     *  @return the key id, {@link #NO_KEY_ID} if the context has no key ring or the cipher has not been initialized
+     */
+    public int getThreadKeyId () {
+        //
+        final Integer keyId = _threadKeyIds.get();
+        return (keyId == null ? NO_KEY_ID : keyId);
+    }
+
+
+    /** Initializes the cipher of the calling thread with the secret key and an initialization vector.
+     * 
+     *  @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     *  @param iv the initialization vector
+     *  @return the initialized cipher of the calling thread
+     *  @throws InvalidAlgorithmParameterException -
+     *  @throws InvalidKeyException -
+     */
+    public @NonNull Cipher initThreadCipher (final int mode, @NonNull final byte[] iv) throws InvalidAlgorithmParameterException, InvalidKeyException {
+        return initThreadCipher (mode, (_keyRing == null ? NO_KEY_ID : _keyRing.getCurrentKeyId()), iv);
+    }
+
+
+    /** Encrypts the remaining bytes of a buffer into another buffer with the cipher of the calling thread.
+     *  The buffers may be direct or heap buffers, and are used as they are: the data is not copied
+     *  to intermediate arrays, so an output buffer can be reused for encrypting any number of values.
+     * 
+     *  The output is the key id ({@link #NO_KEY_ID} without a key ring, 4 bytes), the length of the
+     *  initialization vector (1 byte, 0 if the cipher uses none), the vector, and the encrypted data.
+     *  It is decrypted with {@link #decrypt(ByteBuffer, ByteBuffer)}.
+     * 
+     *  @param in the data, from the position to the limit. The position is advanced to the limit.
+     *  @param out buffer to write to, from the position. The position is advanced by the bytes written.
+     *  @return number of bytes written
+     *  @throws BadPaddingException -
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws ShortBufferException if the output buffer is too small, see {@link #getMaxEncryptedBytes(int)}.
+     *  Neither buffer is changed.
+     */
+    public int encrypt (@NonNull final ByteBuffer in, @NonNull final ByteBuffer out) throws BadPaddingException, IllegalBlockSizeException, InvalidKeyException, ShortBufferException {
+        //
+        final Cipher cipher = initThreadCipher (Cipher.ENCRYPT_MODE);
+        final byte[] iv = cipher.getIV();
+        final int headerBytes = BUFFER_HEADER_BYTES + (iv == null ? 0 : iv.length);
+        if (out.remaining() < headerBytes + cipher.getOutputSize(in.remaining())) {
+            throw new ShortBufferException ("Output buffer too small: " + out.remaining() + " bytes");
+        }
+        out.putInt(getThreadKeyId()).put((byte) (iv == null ? 0 : iv.length));
+        if (iv != null) {
+            out.put(iv);
+        }
+        return headerBytes + doFinal (cipher, in, out);
+    }
+
+
+    /** Decrypts the remaining bytes of a buffer written by {@link #encrypt(ByteBuffer, ByteBuffer)} into
+     *  another buffer, with the key of its key id. As with encryption, the buffers are used as they are.
+     *  With an authenticated cipher, tampered data fails with {@link BadPaddingException}; other ciphers
+     *  do not detect tampering, so such data should be signed, e.g. with {@link SigningContext#sign(ByteBuffer)}.
+     * 
+     *  @param in the encrypted data, from the position to the limit. The position is advanced to the limit.
+     *  @param out buffer to write to, from the position. The position is advanced by the bytes written.
+     *  A buffer of the size of the encrypted data is always large enough.
+     *  @return number of bytes written
+     *  @throws BadPaddingException -
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidAlgorithmParameterException -
+     *  @throws InvalidKeyException if the key ring has no key with the key id of the data, or the data is truncated
+     *  @throws ShortBufferException if the output buffer is too small. Neither buffer is changed.
+     */
+    public int decrypt (@NonNull final ByteBuffer in, @NonNull final ByteBuffer out) throws BadPaddingException, IllegalBlockSizeException, InvalidAlgorithmParameterException, InvalidKeyException, ShortBufferException {
+        //
+        if (in.remaining() < BUFFER_HEADER_BYTES || in.remaining() < BUFFER_HEADER_BYTES + (in.get(in.position() + 4) & 0xff)) {
+            throw new InvalidKeyException ("Encrypted data truncated: " + in.remaining() + " bytes");
+        }
+        // The header is read with absolute gets, so that the input is advanced only once the output fits:
+        final int start = in.position();
+        int keyId = in.getInt(start);
+        if (keyId == NO_KEY_ID && _keyRing != null) {
+            // Written before the key ring was used:
+            keyId = KeyRing.INITIAL_KEY_ID;
+        }
+        final int ivBytes = in.get(start + 4) & 0xff;
+        byte[] iv = null;
+        if (ivBytes > 0) {
+            iv = new byte[ivBytes];
+            final ByteBuffer ivBuffer = in.duplicate();
+            ivBuffer.position(start + BUFFER_HEADER_BYTES);
+            ivBuffer.get(iv);
+        }
+        final int headerBytes = BUFFER_HEADER_BYTES + ivBytes;
+        final Cipher cipher = initThreadCipher (Cipher.DECRYPT_MODE, keyId, iv);
+        if (out.remaining() < cipher.getOutputSize(in.remaining() - headerBytes)) {
+            throw new ShortBufferException ("Output buffer too small: " + out.remaining() + " bytes");
+        }
+        in.position(start + headerBytes);
+        return doFinal (cipher, in, out);
+    }
+
+
+    /** Encrypts or decrypts from a buffer to another. The output buffer must be large enough.
+     * 
+     *  Providers process heap buffers in place, but may copy direct buffers to temporary arrays of the size
+     *  of the data. Ciphers other than authenticated ones process data as it arrives, so direct buffers are
+     *  passed through the scratch array of the calling thread instead. Authenticated ciphers hold back the data
+     *  until the end for decryption, and are left to the provider.
+     */
+    private int doFinal (@NonNull final Cipher cipher, @NonNull final ByteBuffer in, @NonNull final ByteBuffer out) throws BadPaddingException, IllegalBlockSizeException, ShortBufferException {
+        //
+        if ((in.hasArray() && out.hasArray()) || isAuthenticated (cipher)) {
+            return cipher.doFinal(in, out);
+        }
+        final int blockBytes = Math.max(1, cipher.getBlockSize());
+        // Input in the first half, output in the second: overlapping input and output would be copied by the provider.
+        // The output is at most the input and the buffered data, i.e. less than two blocks more than the input:
+        byte[] scratch = _threadScratch.get();
+        if (scratch == null || scratch.length < 2 * SCRATCH_BYTES + 2 * blockBytes) {
+            scratch = new byte[2 * SCRATCH_BYTES + 2 * blockBytes];
+            _threadScratch.set(scratch);
+        }
+        int written = 0;
+        while (in.hasRemaining()) {
+            final int length = Math.min(in.remaining(), SCRATCH_BYTES);
+            in.get(scratch, 0, length);
+            final int produced = cipher.update(scratch, 0, length, scratch, SCRATCH_BYTES);
+            out.put(scratch, SCRATCH_BYTES, produced);
+            written += produced;
+        }
+        final int produced = cipher.doFinal(scratch, SCRATCH_BYTES);
+        out.put(scratch, SCRATCH_BYTES, produced);
+        return written + produced;
+    }
+
+
+    /** Returns the size of the output buffer, which is large enough for {@link #encrypt(ByteBuffer, ByteBuffer)}.
+     * 
+     *  @param plaintextBytes length of the data to encrypt
+     *  @return upper bound of the bytes written by encryption
+     */
+    public int getMaxEncryptedBytes (final int plaintextBytes) {
+        //
+        // Vector of at most one block, or the GCM vector; padding of at most one block, or the GCM tag:
+        final int blockBytes = _cipher.getBlockSize();
+        return BUFFER_HEADER_BYTES + Math.max(blockBytes, GCM_IV_BYTES) + plaintextBytes + blockBytes + GCM_TAG_BITS / 8;
+    }
+
+
+    /** Checks if the cipher of the context is authenticated, see {@link #isAuthenticated(Cipher)}.
+     * 
+     *  @return {@code true} if the cipher is authenticated
+     */
+    public boolean isAuthenticated () {
+        return isAuthenticated (_cipher);
+    }
+
+
+    /** Checks if a cipher is authenticated, i.e. provides integrity in addition to confidentiality.
+     *  Decrypting tampered data with an authenticated cipher fails with a {@link javax.crypto.BadPaddingException}.
+     * 
+     *  @param cipher the cipher
+     *  @return {@code true} if the cipher uses Galois/Counter Mode
+     */
+    public static boolean isAuthenticated (@NonNull final Cipher cipher) {
+        //
+        final String[] transformation = cipher.getAlgorithm().toUpperCase(Locale.US).split("/");
+        return (transformation.length > 1 && "GCM".equals(transformation[1]));
+    }
+
+
+    /** Returns the parameters for initializing a cipher with an initialization vector.
+     * 
+     *  @param cipher the cipher
+     *  @param iv the initialization vector
+     *  @return {@link GCMParameterSpec} for authenticated ciphers, {@link IvParameterSpec} for others
+     */
+    public static @NonNull AlgorithmParameterSpec parameterSpecFor (@NonNull final Cipher cipher, @NonNull final byte[] iv) {
+        //
+        if (isAuthenticated (cipher)) {
+            return new GCMParameterSpec(GCM_TAG_BITS, iv);
+        }
+        return new IvParameterSpec(iv);
     }
 
 
@@ -132,11 +555,59 @@ public class EncryptionContext {
     }
 
 
-    /** Returns the contained secret key.
+    /** Returns the contained secret key, waiting for it if it is produced in the background.
+     *  With a key ring, returns the current key of the ring.
      * 
      * @return the contained secret key
+     * @throws IllegalStateException if producing the key in the background failed
      */
     public SecretKey getSecretKey() {
-        return _secretKey;
+        //
+        if (_keyRing != null) {
+            return _keyRing.getCurrentKey();
+        }
+        SecretKey secretKey = _secretKey;
+        if (secretKey == null) {
+            secretKey = KeyFutures.get(_pendingSecretKey);
+            _secretKey = secretKey;
+        }
+        return secretKey;
+    }
+
+
+    /** Checks if the secret key is available without waiting.
+     * 
+     * @return {@code false} if the key is still being produced in the background
+     */
+    public boolean isKeyAvailable () {
+        return (_pendingSecretKey == null || _secretKey != null || _pendingSecretKey.isDone());
+    }
+
+
+    /** Returns a key by key id.
+     * 
+     * @param keyId id of the key in the key ring. Ignored without a key ring, {@link #NO_KEY_ID} for the current key.
+     * @return the key
+     * @throws InvalidKeyException if the key ring has no key with the id, e.g. it has been retired
+     */
+    public @NonNull SecretKey getSecretKey (final int keyId) throws InvalidKeyException {
+        //
+        if (_keyRing == null || keyId == NO_KEY_ID) {
+            return getSecretKey();
+        }
+        final SecretKey key = _keyRing.getKey(keyId);
+        if (key == null) {
+            throw new InvalidKeyException ("No key with id " + keyId + " in the key ring, it may have been retired");
+        }
+        return key;
+    }
+
+
+    /** Returns the key ring.
+     * 
+     * @return the key ring, {@code null} if the context has a single key
+     */
+    public @Nullable KeyRing getKeyRing () {
+        return _keyRing;
     }
 }
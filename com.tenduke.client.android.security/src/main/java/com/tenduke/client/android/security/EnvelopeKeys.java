@@ -0,0 +1,363 @@
+package com.tenduke.client.android.security;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/** Envelope encryption: data keys per namespace, wrapped with the master key of an {@link EncryptionContext}.
+ *
+ *  Bulk data is encrypted with the data key of its namespace, e.g. one per store. Only the wrapped data keys
+ *  are persisted, as small key records in {@link KeyRecords}. The master key thus encrypts a few bytes per
+ *  namespace, and rotating it with a {@link KeyRing} only re-wraps the key records, see {@link #rewrap()}:
+ *  the data encrypted with the data keys is not touched.
+ *
+ *  Unwrapped data keys are kept in a bounded in-memory cache, least recently used keys evicted first. A key
+ *  is held in plain form at most for the time-to-live of the cache; after that, it is unwrapped again from its
+ *  record when next needed. {@link #clear()} drops all unwrapped keys, e.g. when the application goes to the
+ *  background.
+ *
+ *  The data keys are AES keys, used with ciphers of the same transformation as the master context, see
+ *  {@link #initThreadCipher(String, int)}. Instances are thread safe.
+ */
+public class EnvelopeKeys {
+
+    /** Persistent storage of the key records, i.e. the wrapped data keys by namespace.
+     */
+    public interface KeyRecords {
+
+        /** Reads the key record of a namespace.
+         *
+         *  @param namespace the namespace
+         *  @return the record, {@code null} if the namespace has no record
+         *  @throws IOException -
+         */
+        @Nullable byte[] read (@NonNull String namespace) throws IOException;
+
+
+        /** Writes the key record of a namespace, replacing the previous record.
+         *
+         *  @param namespace the namespace
+         *  @param record the record
+         *  @throws IOException -
+         */
+        void write (@NonNull String namespace, @NonNull byte[] record) throws IOException;
+
+
+        /** Returns the namespaces with a key record.
+         *
+         *  @return the namespaces
+         *  @throws IOException -
+         */
+        @NonNull Collection<String> namespaces () throws IOException;
+
+    }
+
+
+    /** Default time-to-live of unwrapped data keys in milliseconds. */
+    public static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** Default maximum number of unwrapped data keys. */
+    public static final int DEFAULT_MAX_KEYS = 16;
+
+    /** Bits in the generated data keys. */
+    public static final int DATA_KEY_BITS = 256;
+
+    private static final String DATA_KEY_TYPE = "AES";
+    private static final byte RECORD_VERSION = 1;
+    private static final int MAX_DATA_KEY_BYTES = 64;
+
+    private final EncryptionContext _masterContext;
+    private final KeyRecords _records;
+    private final long _timeToLiveMillis;
+    private final int _maxKeys;
+    private final ThreadLocal<Cipher> _threadCiphers = new ThreadLocal<>();
+    private final SecureRandom _random = new SecureRandom();
+
+    // Guarded by _entries:
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Serializes creating and re-wrapping the key records, so a namespace never gets two data keys:
+    private final Object _recordLock = new Object();
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+
+    /** Constructs a new instance.
+     *
+     *  @param masterContext context of the master key, which wraps the data keys
+     *  @param records storage of the key records
+     *  @param timeToLive time-to-live of unwrapped data keys in the cache
+     *  @param unit unit of the time-to-live
+     *  @param maxKeys maximum number of unwrapped data keys in the cache
+     */
+    public EnvelopeKeys (
+            @NonNull final EncryptionContext masterContext,
+            @NonNull final KeyRecords records,
+            final long timeToLive,
+            @NonNull final TimeUnit unit,
+            final int maxKeys) {
+        //
+        if (timeToLive < 1) {
+            throw new IllegalArgumentException ("timeToLive must be at least 1, was " + timeToLive);
+        }
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException ("maxKeys must be at least 1, was " + maxKeys);
+        }
+        _masterContext = masterContext;
+        _records = records;
+        _timeToLiveMillis = unit.toMillis(timeToLive);
+        _maxKeys = maxKeys;
+    }
+
+
+    /** Constructs a new instance with {@link #DEFAULT_TIME_TO_LIVE_MILLIS} and {@link #DEFAULT_MAX_KEYS}.
+     *
+     *  @param masterContext context of the master key, which wraps the data keys
+     *  @param records storage of the key records
+     */
+    public EnvelopeKeys (@NonNull final EncryptionContext masterContext, @NonNull final KeyRecords records) {
+        this (masterContext, records, DEFAULT_TIME_TO_LIVE_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_KEYS);
+    }
+
+
+    /** Returns the data key of a namespace: from the cache, unwrapped from the key record of the namespace,
+     *  or, if the namespace has no record yet, generated and saved as a new record.
+     *
+     *  @param namespace the namespace
+     *  @return the data key
+     *  @throws GeneralSecurityException if unwrapping fails, e.g. the master key of the record has been retired
+     *  @throws IOException if reading or writing the key record fails
+     */
+    public @NonNull SecretKey getDataKey (@NonNull final String namespace) throws GeneralSecurityException, IOException {
+        //
+        final SecretKey cached = getCached (namespace);
+        if (cached != null) {
+            _hits.incrementAndGet();
+            return cached;
+        }
+        _misses.incrementAndGet();
+
+        final SecretKey dataKey;
+        synchronized (_recordLock) {
+            final byte[] record = _records.read(namespace);
+            if (record != null) {
+                dataKey = unwrap (record);
+            }
+            else {
+                dataKey = EncryptionContext.generateSecretKey(DATA_KEY_TYPE, DATA_KEY_BITS, _random);
+                _records.write(namespace, wrap (dataKey));
+            }
+        }
+        put (namespace, dataKey);
+        return dataKey;
+    }
+
+
+    /** Initializes the cipher of the calling thread with the data key of a namespace. The cipher has the same
+     *  transformation and provider as the cipher of the master context. An authenticated cipher is initialized
+     *  for encryption with a fresh random initialization vector, as by {@link EncryptionContext#initThreadCipher(int)}.
+     *
+     *  @param namespace the namespace
+     *  @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     *  @return the initialized cipher of the calling thread
+     *  @throws GeneralSecurityException -
+     *  @throws IOException if reading or writing the key record fails
+     */
+    public @NonNull Cipher initThreadCipher (@NonNull final String namespace, final int mode) throws GeneralSecurityException, IOException {
+        //
+        byte[] iv = null;
+        if (mode == Cipher.ENCRYPT_MODE && EncryptionContext.isAuthenticated(_masterContext.getCipher())) {
+            iv = new byte[EncryptionContext.GCM_IV_BYTES];
+            _random.nextBytes(iv);
+        }
+        return initThreadCipher (namespace, mode, iv);
+    }
+
+
+    /** Initializes the cipher of the calling thread with the data key of a namespace and an optional initialization vector.
+     *
+     *  @param namespace the namespace
+     *  @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     *  @param iv the initialization vector, {@code null} if the cipher does not use one
+     *  @return the initialized cipher of the calling thread
+     *  @throws GeneralSecurityException -
+     *  @throws IOException if reading or writing the key record fails
+     */
+    public @NonNull Cipher initThreadCipher (@NonNull final String namespace, final int mode, @Nullable final byte[] iv) throws GeneralSecurityException, IOException {
+        //
+        final SecretKey dataKey = getDataKey (namespace);
+        Cipher cipher = _threadCiphers.get();
+        if (cipher == null) {
+            cipher = _masterContext.newCipher();
+            _threadCiphers.set(cipher);
+        }
+        if (iv == null) {
+            cipher.init(mode, dataKey);
+        }
+        else {
+            cipher.init(mode, dataKey, EncryptionContext.parameterSpecFor(cipher, iv));
+        }
+        return cipher;
+    }
+
+
+    /** Re-wraps the key records wrapped with other keys than the current key of the master context's {@link KeyRing},
+     *  e.g. after rotating the master key. Only the key records are rewritten, the data encrypted with the data keys
+     *  stays valid. Once done, the earlier master keys can be retired.
+     *
+     *  @return number of key records re-wrapped, always 0 if the master context has no key ring
+     *  @throws GeneralSecurityException if unwrapping fails, e.g. the master key of a record has been retired
+     *  @throws IOException if reading or writing the key records fails
+     */
+    public int rewrap () throws GeneralSecurityException, IOException {
+        //
+        final KeyRing keyRing = _masterContext.getKeyRing();
+        if (keyRing == null) {
+            return 0;
+        }
+        int rewrapped = 0;
+        synchronized (_recordLock) {
+            for (final String namespace : _records.namespaces()) {
+                final byte[] record = _records.read(namespace);
+                if (record != null && masterKeyIdOf (record) != keyRing.getCurrentKeyId()) {
+                    _records.write(namespace, wrap (unwrap (record)));
+                    rewrapped++;
+                }
+            }
+        }
+        return rewrapped;
+    }
+
+
+    /** Drops all unwrapped data keys from the cache. */
+    public void clear () {
+        //
+        synchronized (_entries) {
+            _entries.clear();
+        }
+    }
+
+
+    /** Returns the number of data keys served from the cache.
+     *
+     *  @return number of cache hits
+     */
+    public long getHitCount () {
+        return _hits.get();
+    }
+
+
+    /** Returns the number of data keys read from the key records or generated.
+     *
+     *  @return number of cache misses
+     */
+    public long getMissCount () {
+        return _misses.get();
+    }
+
+
+    private @Nullable SecretKey getCached (@NonNull final String namespace) {
+        //
+        final long now = System.currentTimeMillis();
+        synchronized (_entries) {
+            final Entry entry = _entries.get(namespace);
+            if (entry == null) {
+                return null;
+            }
+            if (entry._expiresAt <= now) {
+                _entries.remove(namespace);
+                return null;
+            }
+            return entry._dataKey;
+        }
+    }
+
+
+    private void put (@NonNull final String namespace, @NonNull final SecretKey dataKey) {
+        //
+        final long now = System.currentTimeMillis();
+        final long expiresAt = (_timeToLiveMillis < Long.MAX_VALUE - now ? now + _timeToLiveMillis : Long.MAX_VALUE);
+        synchronized (_entries) {
+            _entries.put(namespace, new Entry(dataKey, expiresAt));
+            // Expired keys first, then least recently used ones:
+            final Iterator<Map.Entry<String, Entry>> iterator = _entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, Entry> next = iterator.next();
+                if (_entries.size() > _maxKeys || next.getValue()._expiresAt <= now) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+
+    /** Wraps a data key with the current master key. The record is the format version (1 byte) followed
+     *  by the encoded key encrypted with {@link EncryptionContext#encrypt(ByteBuffer, ByteBuffer)}, which
+     *  records the id of the master key.
+     */
+    private @NonNull byte[] wrap (@NonNull final SecretKey dataKey) throws GeneralSecurityException {
+        //
+        final byte[] encoded = dataKey.getEncoded();
+        final ByteBuffer record = ByteBuffer.allocate(1 + _masterContext.getMaxEncryptedBytes(encoded.length));
+        record.put(RECORD_VERSION);
+        _masterContext.encrypt(ByteBuffer.wrap(encoded), record);
+        final byte[] bytes = new byte[record.position()];
+        record.flip();
+        record.get(bytes);
+        return bytes;
+    }
+
+
+    private @NonNull SecretKey unwrap (@NonNull final byte[] record) throws GeneralSecurityException {
+        //
+        final ByteBuffer in = ByteBuffer.wrap(record);
+        if (record.length < 1 || in.get() != RECORD_VERSION) {
+            throw new InvalidKeyException ("Unknown key record format");
+        }
+        final ByteBuffer encoded = ByteBuffer.allocate(Math.max(in.remaining(), MAX_DATA_KEY_BYTES));
+        _masterContext.decrypt(in, encoded);
+        encoded.flip();
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return new SecretKeySpec(bytes, DATA_KEY_TYPE);
+    }
+
+
+    private static int masterKeyIdOf (@NonNull final byte[] record) throws InvalidKeyException {
+        //
+        if (record.length < 1 + EncryptionContext.BUFFER_HEADER_BYTES) {
+            throw new InvalidKeyException ("Truncated key record");
+        }
+        return ByteBuffer.wrap(record, 1, 4).getInt();
+    }
+
+
+    private static final class Entry {
+
+        private final SecretKey _dataKey;
+        private final long _expiresAt;
+
+        private Entry (@NonNull final SecretKey dataKey, final long expiresAt) {
+            _dataKey = dataKey;
+            _expiresAt = expiresAt;
+        }
+    }
+
+}
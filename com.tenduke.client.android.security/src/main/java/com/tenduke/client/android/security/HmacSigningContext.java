@@ -0,0 +1,193 @@
+package com.tenduke.client.android.security;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+
+/** Signing context, which signs with a message authentication code (HMAC) and a secret key instead of a key pair.
+ *
+ *  Computing an HMAC is orders of magnitude cheaper than a private-key RSA operation, and a store, which only
+ *  verifies its own data, gains nothing from an asymmetric signature. The signatures can only be verified with
+ *  the same secret key, and {@link #getKeyPair()} and {@link #getSignature()} return {@code null}: values written
+ *  by earlier versions as {@link java.security.SignedObject} cannot be verified with this context.
+ */
+public class HmacSigningContext extends SigningContext {
+
+    private final SecretKey _secretKey;
+    private final Mac _mac;
+
+
+    /** Constructs a new instance with given secret key and MAC engine.
+     *
+     *  @param secretKey the secret key
+     *  @param mac the MAC engine, used as a template for the engines of the signers
+     */
+    public HmacSigningContext(@NonNull final SecretKey secretKey, @NonNull final Mac mac) {
+        //
+        super ((KeyPair) null, (Signature) null);
+        _secretKey = secretKey;
+        _mac = mac;
+    }
+
+
+    /** Constructs a new instance by generating a new secret key for given MAC algorithm.
+     *
+     *  For MAC types, see {@link javax.crypto.Mac}.
+     *
+     *  @param macType Type of MAC, also used as the type of the key
+     *  @param keyBits Bits in key
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @throws NoSuchAlgorithmException -
+     */
+    public HmacSigningContext(
+            @NonNull final String macType,
+            final int keyBits,
+            @Nullable final SecureRandom random) throws NoSuchAlgorithmException {
+        //
+        this (
+                EncryptionContext.generateSecretKey(macType, keyBits, random),
+                Mac.getInstance(macType)
+        );
+    }
+
+
+    /** Constructs a new instance by generating a new 256-bit secret key for HMAC-SHA256.
+     *
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @throws NoSuchAlgorithmException -
+     */
+    public HmacSigningContext(@Nullable final SecureRandom random) throws NoSuchAlgorithmException {
+        this ("HmacSHA256", 256, random);
+    }
+
+
+    /** Constructs a new instance by generating a new 256-bit secret key for HMAC-SHA256.
+     *
+     *  @throws NoSuchAlgorithmException -
+     */
+    public HmacSigningContext() throws NoSuchAlgorithmException {
+        this ((SecureRandom) null);
+    }
+
+
+    /** Returns a new signer, which computes and verifies the MAC with the secret key. The signer uses a MAC
+     *  engine of the same algorithm and provider as the contained engine.
+     *
+     *  @return a new signer
+     */
+    @Override
+    public @NonNull Signer newSigner() {
+        //
+        try {
+            return new MacSigner(Mac.getInstance(_mac.getAlgorithm(), _mac.getProvider()), _secretKey);
+        }
+        catch (final NoSuchAlgorithmException e) {
+            // The context already has a MAC engine of the same algorithm, so this should not happen:
+            throw new IllegalStateException ("Unable to construct MAC " + _mac.getAlgorithm(), e);
+        }
+    }
+
+
+    /** Returns the contained secret key.
+     *
+     *  @return the contained secret key
+     */
+    public @NonNull SecretKey getSecretKey() {
+        return _secretKey;
+    }
+
+
+    /** Returns the contained MAC engine.
+     *
+     *  @return the contained MAC engine
+     */
+    public @NonNull Mac getMac() {
+        return _mac;
+    }
+
+
+    /** Signer using a MAC engine and a secret key.
+     */
+    private static final class MacSigner implements Signer {
+
+        private final Mac _mac;
+        private final SecretKey _secretKey;
+        private boolean _initialized = false;
+
+        private MacSigner(@NonNull final Mac mac, @NonNull final SecretKey secretKey) {
+            _mac = mac;
+            _secretKey = secretKey;
+        }
+
+        @Override
+        public void initSign() throws InvalidKeyException {
+            init ();
+        }
+
+        @Override
+        public void initVerify() throws InvalidKeyException {
+            init ();
+        }
+
+        @Override
+        public void update(@NonNull final byte[] bytes, final int offset, final int length) throws SignatureException {
+            //
+            ensureInitialized ();
+            _mac.update(bytes, offset, length);
+        }
+
+        @Override
+        public void update(@NonNull final ByteBuffer data) throws SignatureException {
+            //
+            ensureInitialized ();
+            _mac.update(data);
+        }
+
+        @Override
+        public @NonNull byte[] sign() throws SignatureException {
+            //
+            ensureInitialized ();
+            return _mac.doFinal();
+        }
+
+        @Override
+        public boolean verify(@NonNull final byte[] signature) throws SignatureException {
+            //
+            ensureInitialized ();
+            final byte[] expected = _mac.doFinal();
+            if (expected.length != signature.length) {
+                return false;
+            }
+            // Constant time comparison, so that the time taken does not reveal the matching prefix:
+            int difference = 0;
+            for (int i = 0; i < expected.length; i++) {
+                difference |= expected[i] ^ signature[i];
+            }
+            return (difference == 0);
+        }
+
+        private void init () throws InvalidKeyException {
+            //
+            _mac.init(_secretKey);
+            _initialized = true;
+        }
+
+        private void ensureInitialized () throws SignatureException {
+            //
+            if (! _initialized) {
+                throw new SignatureException ("Signer not initialized");
+            }
+        }
+    }
+}
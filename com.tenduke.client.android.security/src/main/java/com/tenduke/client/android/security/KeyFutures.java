@@ -0,0 +1,55 @@
+package com.tenduke.client.android.security;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/** Utilities for key material produced in the background.
+ */
+final class KeyFutures {
+
+    private KeyFutures () {
+    }
+
+
+    /** Runs a task with given executor.
+     *
+     *  @param <T> Type of the result
+     *  @param task the task, e.g. key generation
+     *  @param executor the executor to run the task with
+     *  @return future of the result of the task
+     */
+    static @NonNull <T> Future<T> submit (@NonNull final Callable<T> task, @NonNull final Executor executor) {
+        //
+        final FutureTask<T> future = new FutureTask<>(task);
+        executor.execute(future);
+        return future;
+    }
+
+
+    /** Waits for the key material, if not yet available.
+     *
+     *  @param <T> Type of the key material
+     *  @param future the future of the key material
+     *  @return the key material
+     *  @throws IllegalStateException if producing the key material failed, or the calling thread was interrupted while waiting
+     */
+    static @NonNull <T> T get (@NonNull final Future<T> future) {
+        //
+        try {
+            return future.get();
+        }
+        catch (final ExecutionException e) {
+            throw new IllegalStateException ("Unable to produce key material", e.getCause());
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException ("Interrupted while waiting for key material", e);
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.tenduke.client.android.security;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.SecretKey;
+
+
+/** Secret keys identified by key ids, one of which is the current key used for encryption.
+ *
+ *  The stores record the id of the key with each encrypted value, so after {@link #rotate(SecretKey)} the values
+ *  encrypted with earlier keys are still decrypted with the right key, without trial decryption. A key is
+ *  {@link #retire(int) retired} once no values use it any more, e.g. after re-encrypting them with the current key.
+ *
+ *  Values written without a key id, i.e. before a key ring was used, are decrypted with {@link #INITIAL_KEY_ID}.
+ *
+ *  Instances are thread safe. The keys are not persisted: to keep using a ring between application runs,
+ *  store its keys and ids, and restore the ring with {@link #KeyRing(Map, int)}.
+ */
+public class KeyRing {
+
+    /** Id of the key the ring is constructed with, see {@link #KeyRing(SecretKey)}. */
+    public static final int INITIAL_KEY_ID = 0;
+
+    // Replaced as a whole on changes, so the current key id and the keys are always read consistently:
+    private volatile State _state;
+
+
+    /** Constructs a new instance with given key as the current key, with id {@link #INITIAL_KEY_ID}.
+     *
+     *  @param initialKey the initial key
+     */
+    public KeyRing (@NonNull final SecretKey initialKey) {
+        this (Collections.singletonMap(INITIAL_KEY_ID, initialKey), INITIAL_KEY_ID);
+    }
+
+
+    /** Constructs a new instance with given keys, e.g. keys restored from storage.
+     *
+     *  @param keys the keys by key id, key ids must not be negative
+     *  @param currentKeyId id of the current key
+     *  @throws IllegalArgumentException if there is no key with the current key id, or a key id is negative
+     */
+    public KeyRing (@NonNull final Map<Integer, SecretKey> keys, final int currentKeyId) {
+        //
+        for (final Integer keyId : keys.keySet()) {
+            if (keyId < 0) {
+                throw new IllegalArgumentException ("Key id must not be negative, was " + keyId);
+            }
+        }
+        if (! keys.containsKey(currentKeyId)) {
+            throw new IllegalArgumentException ("No key with current key id " + currentKeyId);
+        }
+        _state = new State (new HashMap<>(keys), currentKeyId);
+    }
+
+
+    /** Adds a new key and makes it the current key. Values are encrypted with the new key from now on.
+     *
+     *  @param newKey the new key
+     *  @return id of the new key
+     */
+    public synchronized int rotate (@NonNull final SecretKey newKey) {
+        //
+        final State state = _state;
+        int newKeyId = 0;
+        for (final Integer keyId : state._keys.keySet()) {
+            newKeyId = Math.max (newKeyId, keyId + 1);
+        }
+        final Map<Integer, SecretKey> keys = new HashMap<>(state._keys);
+        keys.put(newKeyId, newKey);
+        _state = new State (keys, newKeyId);
+        return newKeyId;
+    }
+
+
+    /** Removes a key from the ring. Values encrypted with the key cannot be decrypted any more.
+     *
+     *  @param keyId id of the key
+     *  @return {@code true} if the key was removed, {@code false} if the ring had no such key
+     *  @throws IllegalArgumentException if the key is the current key
+     */
+    public synchronized boolean retire (final int keyId) {
+        //
+        final State state = _state;
+        if (keyId == state._currentKeyId) {
+            throw new IllegalArgumentException ("Current key " + keyId + " cannot be retired");
+        }
+        if (! state._keys.containsKey(keyId)) {
+            return false;
+        }
+        final Map<Integer, SecretKey> keys = new HashMap<>(state._keys);
+        keys.remove(keyId);
+        _state = new State (keys, state._currentKeyId);
+        return true;
+    }
+
+
+    /** Returns the id of the current key.
+     *
+     *  @return the id of the current key
+     */
+    public int getCurrentKeyId () {
+        return _state._currentKeyId;
+    }
+
+
+    /** Returns the current key.
+     *
+     *  @return the current key
+     */
+    public @NonNull SecretKey getCurrentKey () {
+        //
+        final State state = _state;
+        return state._keys.get(state._currentKeyId);
+    }
+
+
+    /** Returns a key by id.
+     *
+     *  @param keyId id of the key
+     *  @return the key, {@code null} if the ring has no such key, e.g. it has been retired
+     */
+    public @Nullable SecretKey getKey (final int keyId) {
+        return _state._keys.get(keyId);
+    }
+
+
+    /** Returns the ids of the keys in the ring.
+     *
+     *  @return unmodifiable set of key ids
+     */
+    public @NonNull Set<Integer> getKeyIds () {
+        return Collections.unmodifiableSet(_state._keys.keySet());
+    }
+
+
+    private static final class State {
+
+        private final Map<Integer, SecretKey> _keys;
+        private final int _currentKeyId;
+
+        private State (@NonNull final Map<Integer, SecretKey> keys, final int currentKeyId) {
+            _keys = keys;
+            _currentKeyId = currentKeyId;
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+package com.tenduke.client.android.security;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/** Key material persisted in a {@link KeyStore} file, e.g. PKCS12, so that keys are generated only on the
+ *  first start of the application and loaded on later starts.
+ *
+ *  The file is read on first use, not when constructing the instance. Keys missing from the file are
+ *  generated and the file is saved, replacing it atomically. The asynchronous variants, e.g.
+ *  {@link #secretKey(String, String, int, SecureRandom, Executor)}, do the loading and generation in the
+ *  background, for constructing contexts without blocking, e.g.:
+ *  <pre>
+ *  new EncryptionContext (keyStoreFile.secretKey ("storage", "AES", 256, null, executor), Cipher.getInstance (...));
+ *  </pre>
+ *
+ *  A private key with a certificate chain is read from a private key entry as usual. Key pairs generated by this
+ *  class have no certificate, so they are saved as two secret key entries holding the encoded private and public
+ *  key. The keystore type must thus support secret key entries, e.g. BKS on Android, or PKCS12 on Java 8 and later.
+ *
+ *  The file is protected with a password only. Instances are thread safe.
+ */
+public class KeyStoreFile {
+
+    /** Suffix of the alias of the entry holding the public key of a generated key pair. */
+    public static final String PUBLIC_KEY_ALIAS_SUFFIX = ".public";
+
+    private final File _file;
+    private final String _type;
+    private final char[] _password;
+
+    // Guarded by this, loaded on first use:
+    private KeyStore _keyStore;
+
+
+    /** Constructs a new instance with given file, keystore type and password.
+     *
+     *  @param file the keystore file, need not exist
+     *  @param type type of the keystore, see {@link KeyStore#getInstance(String)}
+     *  @param password password of the keystore and its entries
+     */
+    public KeyStoreFile (@NonNull final File file, @NonNull final String type, @NonNull final char[] password) {
+        //
+        _file = file;
+        _type = type;
+        _password = password.clone();
+    }
+
+
+    /** Constructs a new instance with given file and password, using the default keystore type of the platform.
+     *
+     *  @param file the keystore file, need not exist
+     *  @param password password of the keystore and its entries
+     */
+    public KeyStoreFile (@NonNull final File file, @NonNull final char[] password) {
+        this (file, KeyStore.getDefaultType(), password);
+    }
+
+
+    /** Loads a secret key from the file, or generates and saves one, if the file has no key with the alias.
+     *
+     *  @param alias alias of the key
+     *  @param keyType type of the key to generate, see {@link EncryptionContext#generateSecretKey(String, int, SecureRandom)}
+     *  @param keyBits bits in the key to generate
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @return the secret key
+     *  @throws GeneralSecurityException -
+     *  @throws IOException -
+     */
+    public synchronized @NonNull SecretKey getSecretKey (
+            @NonNull final String alias,
+            @NonNull final String keyType,
+            final int keyBits,
+            @Nullable final SecureRandom random) throws GeneralSecurityException, IOException {
+        //
+        final KeyStore keyStore = load ();
+        final Key key = keyStore.getKey(alias, _password);
+        if (key instanceof SecretKey) {
+            return (SecretKey) key;
+        }
+
+        final SecretKey secretKey = EncryptionContext.generateSecretKey(keyType, keyBits, random);
+        setKey (keyStore, alias, secretKey);
+        save (keyStore);
+        return secretKey;
+    }
+
+
+    /** As {@link #getSecretKey(String, String, int, SecureRandom)}, but in the background.
+     *
+     *  @param alias alias of the key
+     *  @param keyType type of the key to generate
+     *  @param keyBits bits in the key to generate
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @param executor executor to run the loading and generation with
+     *  @return future of the secret key
+     */
+    public @NonNull Future<SecretKey> secretKey (
+            @NonNull final String alias,
+            @NonNull final String keyType,
+            final int keyBits,
+            @Nullable final SecureRandom random,
+            @NonNull final Executor executor) {
+        //
+        return KeyFutures.submit(new Callable<SecretKey>() {
+            @Override
+            public SecretKey call() throws Exception {
+                return getSecretKey (alias, keyType, keyBits, random);
+            }
+        }, executor);
+    }
+
+
+    /** Loads a key pair from the file, or generates and saves one, if the file has no key pair with the alias.
+     *
+     *  @param alias alias of the key pair
+     *  @param keyType type of the key pair to generate, see {@link SigningContext#generateKeyPair(String, int, SecureRandom)}
+     *  @param keyBits bits in the key pair to generate
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @return the key pair
+     *  @throws GeneralSecurityException -
+     *  @throws IOException -
+     */
+    public synchronized @NonNull KeyPair getKeyPair (
+            @NonNull final String alias,
+            @NonNull final String keyType,
+            final int keyBits,
+            @Nullable final SecureRandom random) throws GeneralSecurityException, IOException {
+        //
+        final KeyStore keyStore = load ();
+        final Key key = keyStore.getKey(alias, _password);
+        if (key instanceof PrivateKey) {
+            final Certificate certificate = keyStore.getCertificate(alias);
+            if (certificate != null) {
+                return new KeyPair(certificate.getPublicKey(), (PrivateKey) key);
+            }
+        }
+        final Key publicKey = keyStore.getKey(alias + PUBLIC_KEY_ALIAS_SUFFIX, _password);
+        if (key instanceof SecretKey && publicKey instanceof SecretKey) {
+            final KeyFactory keyFactory = KeyFactory.getInstance(key.getAlgorithm());
+            return new KeyPair(
+                    keyFactory.generatePublic(new X509EncodedKeySpec(publicKey.getEncoded())),
+                    keyFactory.generatePrivate(new PKCS8EncodedKeySpec(key.getEncoded()))
+            );
+        }
+
+        final KeyPair keyPair = SigningContext.generateKeyPair(keyType, keyBits, random);
+        setKey (keyStore, alias, encode (keyPair.getPrivate()));
+        setKey (keyStore, alias + PUBLIC_KEY_ALIAS_SUFFIX, encode (keyPair.getPublic()));
+        save (keyStore);
+        return keyPair;
+    }
+
+
+    /** As {@link #getKeyPair(String, String, int, SecureRandom)}, but in the background.
+     *
+     *  @param alias alias of the key pair
+     *  @param keyType type of the key pair to generate
+     *  @param keyBits bits in the key pair to generate
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @param executor executor to run the loading and generation with
+     *  @return future of the key pair
+     */
+    public @NonNull Future<KeyPair> keyPair (
+            @NonNull final String alias,
+            @NonNull final String keyType,
+            final int keyBits,
+            @Nullable final SecureRandom random,
+            @NonNull final Executor executor) {
+        //
+        return KeyFutures.submit(new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() throws Exception {
+                return getKeyPair (alias, keyType, keyBits, random);
+            }
+        }, executor);
+    }
+
+
+    /** Returns the keystore file.
+     *
+     *  @return the keystore file
+     */
+    public @NonNull File getFile () {
+        return _file;
+    }
+
+
+    private @NonNull KeyStore load () throws GeneralSecurityException, IOException {
+        //
+        if (_keyStore != null) {
+            return _keyStore;
+        }
+
+        final KeyStore keyStore = KeyStore.getInstance(_type);
+        if (! _file.exists()) {
+            keyStore.load(null, _password);
+        }
+        else {
+            final FileInputStream in = new FileInputStream(_file);
+            try {
+                keyStore.load(in, _password);
+            }
+            finally {
+                in.close();
+            }
+        }
+        _keyStore = keyStore;
+        return keyStore;
+    }
+
+
+    private void save (@NonNull final KeyStore keyStore) throws GeneralSecurityException, IOException {
+        //
+        // If saving fails, the keys generated in memory are discarded, so they are never used unsaved:
+        boolean saved = false;
+        try {
+            final File temp = new File(_file.getPath() + "~");
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                keyStore.store(out, _password);
+                out.getFD().sync();
+            }
+            finally {
+                out.close();
+            }
+            if (! temp.renameTo(_file)) {
+                temp.delete();
+                throw new IOException ("Unable to rename " + temp + " to " + _file);
+            }
+            saved = true;
+        }
+        finally {
+            if (! saved) {
+                _keyStore = null;
+            }
+        }
+    }
+
+
+    private void setKey (@NonNull final KeyStore keyStore, @NonNull final String alias, @NonNull final SecretKey key) throws GeneralSecurityException {
+        keyStore.setEntry(alias, new KeyStore.SecretKeyEntry(key), new KeyStore.PasswordProtection(_password));
+    }
+
+
+    private static @NonNull SecretKey encode (@NonNull final Key key) {
+        return new SecretKeySpec(key.getEncoded(), key.getAlgorithm());
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.tenduke.client.android.security;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+
+/** Signs data and verifies signatures with the key material of a {@link SigningContext}.
+ *
+ *  The data is given in parts, like with {@link java.security.Signature}: initialize, update with the data,
+ *  and sign or verify. A signer can be re-initialized and reused.
+ *
+ *  WARNING: Signers are not thread safe.
+ */
+public interface Signer {
+
+
+    /** Initializes the signer for signing.
+     *
+     *  @throws InvalidKeyException -
+     */
+    void initSign () throws InvalidKeyException;
+
+
+    /** Initializes the signer for verification.
+     *
+     *  @throws InvalidKeyException -
+     */
+    void initVerify () throws InvalidKeyException;
+
+
+    /** Updates the data to be signed or verified.
+     *
+     *  @param bytes the data
+     *  @param offset offset of the data
+     *  @param length length of the data
+     *  @throws SignatureException if the signer is not initialized
+     */
+    void update (@NonNull byte[] bytes, int offset, int length) throws SignatureException;
+
+
+    /** Updates the data to be signed or verified with the remaining bytes of a buffer.
+     *
+     *  @param data the data, from the position to the limit. The position is advanced to the limit.
+     *  @throws SignatureException if the signer is not initialized
+     */
+    void update (@NonNull ByteBuffer data) throws SignatureException;
+
+
+    /** Returns the signature of the data, and resets the signer for signing more data.
+     *
+     *  @return the signature
+     *  @throws SignatureException if the signer is not initialized for signing
+     */
+    @NonNull byte[] sign () throws SignatureException;
+
+
+    /** Verifies the signature of the data, and resets the signer for verifying more data.
+     *
+     *  @param signature the signature
+     *  @return {@code true} if the signature is valid
+     *  @throws SignatureException if the signer is not initialized for verification
+     */
+    boolean verify (@NonNull byte[] signature) throws SignatureException;
+
+}
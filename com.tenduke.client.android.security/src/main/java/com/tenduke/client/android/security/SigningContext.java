@@ -1,19 +1,135 @@
 package com.tenduke.client.android.security;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 
 /** Container for key-pair and signature -pair.
  * 
+ *  The stores sign and verify with {@link Signer}s from {@link #newSigner()}. Subclasses may sign with other
+ *  key material, see {@link HmacSigningContext}.
+ * 
+ *  The contained signature engine is not thread safe. For concurrent use, {@link #getThreadSigner()} and
+ *  {@link #getThreadSignature()} return a signer and an engine of the calling thread, so a context can be
+ *  shared by several threads and stores, which sign in parallel without locking.
+ * 
+ *  {@link #sign(ByteBuffer)} and {@link #verify(ByteBuffer, byte[])} sign buffers given by the caller, e.g. reused
+ *  direct buffers, with the signer of the calling thread.
+ * 
+ *  Generating a key pair, especially RSA, may take hundreds of milliseconds on low-end devices. To keep it off the
+ *  startup path, the key pair can be generated in the background with {@link #generateInBackground(Executor)},
+ *  or loaded from a file with {@link KeyStoreFile}.
+ * 
+ *  The default key pair, RSA-1024, is kept for compatibility. {@link Preset} lists stronger alternatives:
+ *  the elliptic-curve presets, e.g. {@link Preset#EC_P256_SHA256}, give the strength of 3072-bit RSA with
+ *  much faster key generation and faster signing than RSA of comparable strength. Verifying ECDSA is slower
+ *  than verifying RSA, so for values read far more often than written, measure before switching.
  */
 public class SigningContext {
 
-    private final KeyPair _keyPair;
+    /** Presets of key pair and signature algorithms.
+     */
+    public enum Preset {
+
+        /** RSA with 1024-bit keys and SHA-256, the default. Weak, kept for compatibility. */
+        RSA_1024_SHA256 ("RSA", 1024, null, "SHA256withRSA"),
+
+        /** RSA with 2048-bit keys and SHA-256. */
+        RSA_2048_SHA256 ("RSA", 2048, null, "SHA256withRSA"),
+
+        /** ECDSA on curve P-256 (secp256r1) with SHA-256. */
+        EC_P256_SHA256 ("EC", 256, "secp256r1", "SHA256withECDSA"),
+
+        /** ECDSA on curve P-384 (secp384r1) with SHA-384. */
+        EC_P384_SHA384 ("EC", 384, "secp384r1", "SHA384withECDSA");
+
+        private final String _keyType;
+        private final int _keyBits;
+        private final String _curve;
+        private final String _signatureType;
+
+        Preset (final String keyType, final int keyBits, final String curve, final String signatureType) {
+            _keyType = keyType;
+            _keyBits = keyBits;
+            _curve = curve;
+            _signatureType = signatureType;
+        }
+
+        /** Generates a new key pair of the preset.
+         * 
+         *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+         *  @return the generated key pair
+         *  @throws NoSuchAlgorithmException if the key type or curve is not supported
+         */
+        public /*@NonNull*/ KeyPair generateKeyPair (/*@Nullable*/ final SecureRandom random) throws NoSuchAlgorithmException {
+            //
+            if (_curve == null) {
+                return SigningContext.generateKeyPair(_keyType, _keyBits, random);
+            }
+            final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(_keyType);
+            try {
+                keyPairGenerator.initialize(new ECGenParameterSpec(_curve), (random == null ? new SecureRandom() : random));
+            }
+            catch (final InvalidAlgorithmParameterException e) {
+                throw new NoSuchAlgorithmException ("Curve " + _curve + " not supported", e);
+            }
+            return keyPairGenerator.genKeyPair();
+        }
+
+        /** Returns the key type, see {@link KeyPairGenerator}.
+         * 
+         *  @return the key type
+         */
+        public /*@NonNull*/ String getKeyType () {
+            return _keyType;
+        }
+
+        /** Returns the key size in bits.
+         * 
+         *  @return the key size
+         */
+        public int getKeyBits () {
+            return _keyBits;
+        }
+
+        /** Returns the signature type, see {@link Signature}.
+         * 
+         *  @return the signature type
+         */
+        public /*@NonNull*/ String getSignatureType () {
+            return _signatureType;
+        }
+    }
+
+    // Version of the format of encodeKeyPair():
+    private static final int KEY_PAIR_FORMAT_VERSION = 1;
+    private static final int MAX_ENCODED_KEY_BYTES = 64 * 1024;
+
+    private volatile KeyPair _keyPair;
+    private final Future<KeyPair> _pendingKeyPair;
     private final Signature _signature;
+    private final ThreadLocal<Signer> _threadSigners = new ThreadLocal<>();
+    private final ThreadLocal<Signature> _threadSignatures = new ThreadLocal<>();
 
     
     /** Constructs a new instance with given key-pair and signature engine.
@@ -24,6 +140,21 @@ public class SigningContext {
 
     public SigningContext(/*@NonNull*/ final KeyPair keyPair, /*@NonNull*/ final Signature signature) {
         this._keyPair = keyPair;
+        this._pendingKeyPair = null;
+        this._signature = signature;
+    }
+
+
+    /** Constructs a new instance with a key pair produced in the background, e.g. by
+     *  {@link KeyStoreFile#keyPair(String, String, int, SecureRandom, Executor)}. The methods needing the
+     *  key pair wait for it, and throw {@link IllegalStateException} if producing it failed.
+     * 
+     *  @param keyPair future of the key pair
+     *  @param signature -
+     */
+    public SigningContext(/*@NonNull*/ final Future<KeyPair> keyPair, /*@NonNull*/ final Signature signature) {
+        this._keyPair = null;
+        this._pendingKeyPair = keyPair;
         this._signature = signature;
     }
 
@@ -49,13 +180,27 @@ public class SigningContext {
     }
 
 
+    /** Constructs a new instance by generating a new key pair of given preset.
+     * 
+     *  @param preset the preset
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @throws NoSuchAlgorithmException  -
+     */
+    public SigningContext (/*@NonNull*/ final Preset preset, /*@Nullable*/ final SecureRandom random) throws NoSuchAlgorithmException {
+        this (
+                preset.generateKeyPair(random),
+                Signature.getInstance(preset.getSignatureType())
+        );
+    }
+
+
     /** Constructs a new instance by generating a new secret key and using suitable signature engine.
      * 
      *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
      *  @throws NoSuchAlgorithmException  -
      */
     public SigningContext (/*@Nullable*/ final SecureRandom random) throws NoSuchAlgorithmException {
-        this ("RSA", 1024, "SHA256withRSA", random);
+        this (Preset.RSA_1024_SHA256, random);
     }
 
 
@@ -68,6 +213,140 @@ public class SigningContext {
     }
 
     
+    /** Constructs a new instance, which generates a new signing key-pair in the background. Returns without
+     *  waiting for the key pair, so e.g. application startup can continue while it is generated. The methods
+     *  needing the key pair wait for it.
+     * 
+     *  @param signingKeyType -
+     *  @param signingKeyBits -
+     *  @param signatureType -
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @param executor executor to run the key generation with
+     *  @return the new context
+     *  @throws NoSuchAlgorithmException -
+     */
+    public static /*@NonNull*/ SigningContext generateInBackground (
+            /*@NonNull*/ final String signingKeyType,
+            final int signingKeyBits,
+            /*@NonNull*/ final String signatureType,
+            /*@Nullable*/ final SecureRandom random,
+            /*@NonNull*/ final Executor executor) throws NoSuchAlgorithmException {
+        //
+        // Unknown algorithms are reported right away:
+        final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(signingKeyType);
+        final Signature signature = Signature.getInstance(signatureType);
+        return new SigningContext(KeyFutures.submit(new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() throws Exception {
+                keyPairGenerator.initialize(signingKeyBits, (random == null ? new SecureRandom() : random));
+                return keyPairGenerator.genKeyPair();
+            }
+        }, executor), signature);
+    }
+
+
+    /** As {@link #generateInBackground(String, int, String, SecureRandom, Executor)}, with the parameters
+     *  of {@link #SigningContext()}.
+     * 
+     *  @param executor executor to run the key generation with
+     *  @return the new context
+     *  @throws NoSuchAlgorithmException -
+     */
+    public static /*@NonNull*/ SigningContext generateInBackground (/*@NonNull*/ final Executor executor) throws NoSuchAlgorithmException {
+        return generateInBackground (Preset.RSA_1024_SHA256, null, executor);
+    }
+
+
+    /** As {@link #generateInBackground(String, int, String, SecureRandom, Executor)}, with a preset.
+     * 
+     *  @param preset the preset
+     *  @param random Random generator to be used with key generation. If {@code null}, a new SecureRandom is constructed.
+     *  @param executor executor to run the key generation with
+     *  @return the new context
+     *  @throws NoSuchAlgorithmException -
+     */
+    public static /*@NonNull*/ SigningContext generateInBackground (
+            /*@NonNull*/ final Preset preset,
+            /*@Nullable*/ final SecureRandom random,
+            /*@NonNull*/ final Executor executor) throws NoSuchAlgorithmException {
+        //
+        // Unknown algorithms are reported right away:
+        KeyPairGenerator.getInstance(preset.getKeyType());
+        final Signature signature = Signature.getInstance(preset.getSignatureType());
+        return new SigningContext(KeyFutures.submit(new Callable<KeyPair>() {
+            @Override
+            public KeyPair call() throws Exception {
+                return preset.generateKeyPair(random);
+            }
+        }, executor), signature);
+    }
+
+
+    /** Encodes a key pair to bytes, e.g. for storing it between application runs. The result contains
+     *  the private key in cleartext, so it must be protected, e.g. encrypted.
+     * 
+     *  @param keyPair the key pair
+     *  @return the encoded key pair, see {@link #decodeKeyPair(byte[])}
+     */
+    public static /*@NonNull*/ byte[] encodeKeyPair (/*@NonNull*/ final KeyPair keyPair) {
+        //
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            final byte[] publicKey = keyPair.getPublic().getEncoded();
+            final byte[] privateKey = keyPair.getPrivate().getEncoded();
+            out.writeByte(KEY_PAIR_FORMAT_VERSION);
+            out.writeUTF(keyPair.getPrivate().getAlgorithm());
+            out.writeInt(publicKey.length);
+            out.write(publicKey);
+            out.writeInt(privateKey.length);
+            out.write(privateKey);
+            out.flush();
+        }
+        catch (final IOException e) {
+            // Writing to memory, so this should not happen:
+            throw new IllegalStateException ("Unable to encode key pair", e);
+        }
+        return bytes.toByteArray();
+    }
+
+
+    /** Decodes a key pair encoded by {@link #encodeKeyPair(KeyPair)}.
+     * 
+     *  @param encoded the encoded key pair
+     *  @return the key pair
+     *  @throws GeneralSecurityException if the key type is not supported, or the keys are invalid
+     *  @throws IOException if the bytes are not an encoded key pair
+     */
+    public static /*@NonNull*/ KeyPair decodeKeyPair (/*@NonNull*/ final byte[] encoded) throws GeneralSecurityException, IOException {
+        //
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        final int version = in.readUnsignedByte();
+        if (version != KEY_PAIR_FORMAT_VERSION) {
+            throw new IOException ("Unsupported key pair format version " + version);
+        }
+        final KeyFactory keyFactory = KeyFactory.getInstance(in.readUTF());
+        final byte[] publicKey = readKey (in);
+        final byte[] privateKey = readKey (in);
+        return new KeyPair(
+                keyFactory.generatePublic(new X509EncodedKeySpec(publicKey)),
+                keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKey))
+        );
+    }
+
+
+    private static /*@NonNull*/ byte[] readKey (/*@NonNull*/ final DataInputStream in) throws IOException {
+        //
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_ENCODED_KEY_BYTES) {
+            throw new IOException ("Invalid key length " + length);
+        }
+        final byte[] key = new byte[length];
+        in.readFully(key);
+        return key;
+    }
+
+
     /** Generates a new key-pair with given characteristics.
      * 
      *  @param keyType Type of key
@@ -89,20 +368,179 @@ public class SigningContext {
     }
 
     
-    /** Returns the contained key pair.
+    /** Returns a new signer, which signs with the private key and verifies with the public key of the key pair.
+     *  The signer uses a signature engine of the same algorithm and provider as the contained engine.
+     *
+     *  @return a new signer
+     */
+    public /*@NonNull*/ Signer newSigner() {
+        return new KeyPairSigner(newSignature(), getKeyPair());
+    }
+
+
+    /** Returns the signer of the calling thread, see {@link #newSigner()}. The signer is constructed on first use
+     *  and reused by later calls from the same thread.
+     *
+     *  @return the signer of the calling thread
+     */
+    public /*@NonNull*/ Signer getThreadSigner() {
+        //
+        Signer signer = _threadSigners.get();
+        if (signer == null) {
+            signer = newSigner();
+            _threadSigners.set(signer);
+        }
+        return signer;
+    }
+
+
+    /** Constructs a new signature engine of the same algorithm and provider as the contained engine.
+     *  Use for engines, which must not be shared.
+     *
+     *  @return a new, uninitialized signature engine
+     *  @throws IllegalStateException if the context does not sign with a key pair
+     */
+    public /*@NonNull*/ Signature newSignature() {
+        //
+        if (_signature == null) {
+            throw new IllegalStateException ("Signing context has no signature engine");
+        }
+        try {
+            return Signature.getInstance(_signature.getAlgorithm(), _signature.getProvider());
+        }
+        catch (final NoSuchAlgorithmException e) {
+            // The context already has a signature engine of the same algorithm, so this should not happen:
+            throw new IllegalStateException ("Unable to construct signature " + _signature.getAlgorithm(), e);
+        }
+    }
+
+
+    /** Returns the signature engine of the calling thread, see {@link #newSignature()}, e.g. for
+     *  {@link java.security.SignedObject}s.
+     *
+     *  @return the signature engine of the calling thread
+     *  @throws IllegalStateException if the context does not sign with a key pair
+     */
+    public /*@NonNull*/ Signature getThreadSignature() {
+        //
+        Signature signature = _threadSignatures.get();
+        if (signature == null) {
+            signature = newSignature();
+            _threadSignatures.set(signature);
+        }
+        return signature;
+    }
+
+
+    /** Signs the remaining bytes of a buffer with the signer of the calling thread. The buffer may be
+     *  a direct or a heap buffer, and the data is not copied, so e.g. a reused direct buffer can be signed
+     *  without allocating in proportion to the data.
+     * 
+     *  @param data the data, from the position to the limit. The position is advanced to the limit.
+     *  @return the signature
+     *  @throws InvalidKeyException -
+     *  @throws SignatureException -
+     */
+    public /*@NonNull*/ byte[] sign(/*@NonNull*/ final ByteBuffer data) throws InvalidKeyException, SignatureException {
+        //
+        final Signer signer = getThreadSigner();
+        signer.initSign();
+        signer.update(data);
+        return signer.sign();
+    }
+
+
+    /** Verifies the signature of the remaining bytes of a buffer, see {@link #sign(ByteBuffer)}.
+     * 
+     *  @param data the data, from the position to the limit. The position is advanced to the limit.
+     *  @param signature the signature
+     *  @return {@code true} if the signature is valid
+     *  @throws InvalidKeyException -
+     *  @throws SignatureException -
+     */
+    public boolean verify(/*@NonNull*/ final ByteBuffer data, /*@NonNull*/ final byte[] signature) throws InvalidKeyException, SignatureException {
+        //
+        final Signer signer = getThreadSigner();
+        signer.initVerify();
+        signer.update(data);
+        return signer.verify(signature);
+    }
+
+
+    /** Returns the contained key pair, waiting for it if it is produced in the background.
      * 
-     *  @return  -
+     *  @return  the key pair, {@code null} if the context does not sign with a key pair
+     *  @throws IllegalStateException if producing the key pair in the background failed
      */
     public KeyPair getKeyPair() {
-        return _keyPair;
+        //
+        KeyPair keyPair = _keyPair;
+        if (keyPair == null && _pendingKeyPair != null) {
+            keyPair = KeyFutures.get(_pendingKeyPair);
+            _keyPair = keyPair;
+        }
+        return keyPair;
+    }
+
+
+    /** Checks if the key pair is available without waiting.
+     * 
+     *  @return {@code false} if the key pair is still being produced in the background
+     */
+    public boolean isKeyAvailable() {
+        return (_pendingKeyPair == null || _keyPair != null || _pendingKeyPair.isDone());
     }
 
 
     /** Returns the contained signature engine.
      * 
-     *  @return  -
+     *  @return  the signature engine, {@code null} if the context does not sign with a key pair
      */
     public Signature getSignature() {
         return _signature;
     }
+
+
+    /** Signer using a signature engine and a key pair.
+     */
+    private static final class KeyPairSigner implements Signer {
+
+        private final Signature _signature;
+        private final KeyPair _keyPair;
+
+        private KeyPairSigner(/*@NonNull*/ final Signature signature, /*@NonNull*/ final KeyPair keyPair) {
+            _signature = signature;
+            _keyPair = keyPair;
+        }
+
+        @Override
+        public void initSign() throws InvalidKeyException {
+            _signature.initSign(_keyPair.getPrivate());
+        }
+
+        @Override
+        public void initVerify() throws InvalidKeyException {
+            _signature.initVerify(_keyPair.getPublic());
+        }
+
+        @Override
+        public void update(/*@NonNull*/ final byte[] bytes, final int offset, final int length) throws SignatureException {
+            _signature.update(bytes, offset, length);
+        }
+
+        @Override
+        public void update(/*@NonNull*/ final ByteBuffer data) throws SignatureException {
+            _signature.update(data);
+        }
+
+        @Override
+        public byte[] sign() throws SignatureException {
+            return _signature.sign();
+        }
+
+        @Override
+        public boolean verify(/*@NonNull*/ final byte[] signature) throws SignatureException {
+            return _signature.verify(signature);
+        }
+    }
 }
@@ -5,24 +5,120 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 import com.tenduke.client.android.security.SignatureVerificationException;
 import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.EnvelopeKeys;
+import com.tenduke.client.android.security.KeyRing;
+import com.tenduke.client.android.security.Signer;
 import com.tenduke.client.android.security.SigningContext;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
 import java.security.SignatureException;
 import java.security.SignedObject;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SealedObject;
+import javax.crypto.ShortBufferException;
 
 
 /** Abstract base class for key value stores, providing some utilities for storage providers.
+ *
+ *  {@link #encodeValue(Serializable, Cipher)} and {@link #decodeValue(ByteBuffer, Cipher)} implement
+ *  the value format of the stores: the object is encoded to bytes with a {@link Codec}, optionally
+ *  compressed with a {@link Compression}, the bytes are encrypted, and the result is signed, each step
+ *  once and on raw bytes. A value consists of:
+ *  <ul>
+ *  <li>magic (2 bytes), format version (1 byte), flags (1 byte) and codec id (1 byte)</li>
+ *  <li>if the value expires: expiration time (8 bytes, milliseconds since the epoch)</li>
+ *  <li>if the value is compressed: compression id (1 byte)</li>
+ *  <li>if the encryption context has a {@link KeyRing}: id of the encryption key (4 bytes)</li>
+ *  <li>if the cipher uses one: length (1 byte) and initialization vector of the cipher</li>
+ *  <li>signature length (2 bytes) and signature of the preceding header and the payload</li>
+ *  <li>payload: the encoded object, encrypted if an encryption context is set</li>
+ *  </ul>
+ *  The expiration time is in cleartext, so {@link #isExpired(ByteBuffer, long)} can check it without
+ *  verifying or decrypting the value. It is covered by the signature, which is checked when the value
+ *  is decoded.
+ *
+ *  If the cipher of the encryption context is authenticated (see {@link EncryptionContext#isAuthenticated()}),
+ *  each value is encrypted with a fresh random initialization vector, and the header is authenticated as
+ *  additional data of the cipher. Such values are not signed even if a signing context is set: the cipher
+ *  provides integrity in the same pass as confidentiality. Tampering is reported as with signatures, by
+ *  {@link SignatureVerificationException}. Values encrypted without an initialization vector, i.e. with
+ *  the default ECB cipher, are still read with the key of the encryption context.
+ *
+ *  With a key ring, each value is decrypted with the key of its key id, so rotating the key does not make
+ *  earlier values unreadable. {@link #isEncryptedWithEarlierKey(ByteBuffer)} tells from the header, which
+ *  values should be re-encrypted with the current key before their key is retired. Values written before
+ *  the ring was used have no key id, and are decrypted with {@link KeyRing#INITIAL_KEY_ID}.
+ *
+ *  With {@link #setEnvelopeKeys(EnvelopeKeys, String) envelope keys}, values are encrypted with the data key
+ *  of the store instead, flagged in the header in place of the key id. Rotating the master key then only
+ *  re-wraps the data keys with {@link EnvelopeKeys#rewrap()}, the values are not re-encrypted.
+ *
+ *  Values written as Java-serialized {@link SignedObject} / {@link SealedObject} by earlier versions
+ *  are still read, except with signing contexts not based on a key pair.
+ *
+ *  The values are signed and verified with {@link Signer}s of the signing context, so e.g. an
+ *  {@link com.tenduke.client.android.security.HmacSigningContext} replaces the RSA signatures with a much
+ *  cheaper HMAC without changes to the value format.
+ *
+ *  The encryption and signing contexts wrap single {@link Cipher} and {@link Signature}
+ *  instances, which are not thread safe. Instead of sharing those, the utilities in this class use
+ *  the {@link Cipher} and the {@link Signer} of the calling thread from the contexts (see
+ *  {@link EncryptionContext#getThreadCipher()} and {@link SigningContext#getThreadSigner()}), so they
+ *  can be called concurrently from several threads without locking. Stores sharing the contexts share
+ *  the per-thread instances, too.
  */
 public abstract class AbstractEncryptingStore {
 
+    /** Expiration time of values, which do not expire. */
+    protected static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    /** Number of bytes at the start of a value needed by {@link #expiryOf(ByteBuffer)}. */
+    protected static final int EXPIRY_HEADER_BYTES = 5 + 8;
+
+    /** Length of the beginning of a value, which {@link #isEncryptedWithEarlierKey(ByteBuffer)} needs. */
+    protected static final int KEY_ID_HEADER_BYTES = 5 + 8 + 1 + 4;
+
+    /** Default size in bytes of the encoded objects, below which they are not compressed. */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 256;
+
+    // Flags of the value header:
+    private static final int FLAG_ENCRYPTED = 0x01;
+    private static final int FLAG_SIGNED = 0x02;
+    private static final int FLAG_IV = 0x04;
+    private static final int FLAG_EXPIRES = 0x08;
+    private static final int FLAG_COMPRESSED = 0x10;
+    private static final int FLAG_AUTHENTICATED = 0x20;
+    private static final int FLAG_KEY_ID = 0x40;
+    private static final int FLAG_DATA_KEY = 0x80;
+
+    private static final byte MAGIC_0 = 0x1D;
+    private static final byte MAGIC_1 = (byte) 0xB5;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int MAX_SIGNATURE_BYTES = 0xffff;
+
+    // First bytes of Java serialization stream, i.e. values written by earlier versions:
+    private static final byte SERIALIZATION_MAGIC_0 = (byte) 0xAC;
+    private static final byte SERIALIZATION_MAGIC_1 = (byte) 0xED;
+
     private final EncryptionContext _encryptionContext;
     private final SigningContext _signingContext;
+    private final ThreadLocal<Cipher> _legacyCiphers = new ThreadLocal<>();
+    private volatile Codec _codec = BinaryCodec.INSTANCE;
+    private volatile Compression _compression = null;
+    private volatile int _compressionThresholdBytes = DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+    private volatile DataKeys _dataKeys = null;
 
 
     /** Protected constructor.
@@ -39,6 +135,426 @@ public abstract class AbstractEncryptingStore {
     }
 
 
+    /** Encodes, encrypts and signs an object into the value format of the stores. The value does not expire.
+     *
+     *  @param object the object to encode
+     *  @param cipher cipher initialized for encryption with {@link #initThreadCipher(int)}, {@code null} if no encryption context is set
+     *  @return the value
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    protected @NonNull byte[] encodeValue (@NonNull final Serializable object, @Nullable final Cipher cipher) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        return encodeValue (object, cipher, NO_EXPIRY);
+    }
+
+
+    /** Encodes, encrypts and signs an object into the value format of the stores, with an expiration time.
+     *
+     *  @param object the object to encode
+     *  @param cipher cipher initialized for encryption with {@link #initThreadCipher(int)}, {@code null} if no encryption context is set
+     *  @param expiresAt expiration time in milliseconds since the epoch, {@link #NO_EXPIRY} if the value does not expire
+     *  @return the value
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    protected @NonNull byte[] encodeValue (@NonNull final Serializable object, @Nullable final Cipher cipher, final long expiresAt) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        //
+        final Codec codec = _codec;
+        byte[] payload = codec.encode(object);
+
+        int flags = 0;
+        final Compression compression = _compression;
+        if (compression != null && payload.length >= _compressionThresholdBytes) {
+            final byte[] compressed = compression.compress(payload);
+            // Incompressible data is stored as it is:
+            if (compressed.length < payload.length) {
+                payload = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        byte[] iv = null;
+        final boolean authenticated = (cipher != null && EncryptionContext.isAuthenticated(cipher));
+        int keyId = EncryptionContext.NO_KEY_ID;
+        if (cipher != null) {
+            flags |= FLAG_ENCRYPTED;
+            iv = cipher.getIV();
+            if (iv != null) {
+                flags |= FLAG_IV;
+            }
+            if (_dataKeys != null) {
+                // Encrypted with the data key of the namespace, see initThreadCipher():
+                flags |= FLAG_DATA_KEY;
+            }
+            else if (_encryptionContext.getKeyRing() != null) {
+                keyId = _encryptionContext.getThreadKeyId();
+                if (keyId == EncryptionContext.NO_KEY_ID) {
+                    throw new InvalidKeyException ("Cipher has not been initialized with initThreadCipher()");
+                }
+                flags |= FLAG_KEY_ID;
+            }
+        }
+        if (authenticated) {
+            flags |= FLAG_AUTHENTICATED;
+        }
+        else if (_signingContext != null) {
+            flags |= FLAG_SIGNED;
+        }
+        if (expiresAt != NO_EXPIRY) {
+            flags |= FLAG_EXPIRES;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(
+                5 + (expiresAt == NO_EXPIRY ? 0 : 8) + ((flags & FLAG_COMPRESSED) == 0 ? 0 : 1) + ((flags & FLAG_KEY_ID) == 0 ? 0 : 4) + (iv == null ? 0 : 1 + iv.length));
+        header.put(MAGIC_0).put(MAGIC_1).put(FORMAT_VERSION).put((byte) flags).put((byte) codec.getId());
+        if (expiresAt != NO_EXPIRY) {
+            header.putLong(expiresAt);
+        }
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            header.put((byte) compression.getId());
+        }
+        if ((flags & FLAG_KEY_ID) != 0) {
+            header.putInt(keyId);
+        }
+        if (iv != null) {
+            header.put((byte) iv.length).put(iv);
+        }
+
+        if (cipher != null) {
+            if (authenticated) {
+                cipher.updateAAD(header.array());
+            }
+            try {
+                payload = cipher.doFinal(payload);
+            }
+            catch (final BadPaddingException e) {
+                // Padding is only checked when decrypting
+                throw new IllegalStateException ("Unexpected padding error while encrypting", e);
+            }
+        }
+
+        byte[] signature = new byte[0];
+        if ((flags & FLAG_SIGNED) != 0) {
+            final Signer signer = getThreadSigner();
+            signer.initSign();
+            signer.update(header.array(), 0, header.capacity());
+            signer.update(payload, 0, payload.length);
+            signature = signer.sign();
+            if (signature.length > MAX_SIGNATURE_BYTES) {
+                throw new SignatureException ("Signature too long: " + signature.length + " bytes");
+            }
+        }
+
+        final ByteBuffer value = ByteBuffer.allocate(header.capacity() + 2 + signature.length + payload.length);
+        value.put(header.array()).putShort((short) signature.length).put(signature).put(payload);
+        return value.array();
+    }
+
+
+    /** Verifies, decrypts and decodes a value written with {@link #encodeValue(Serializable, Cipher)},
+     *  or a Java-serialized value written by earlier versions.
+     *
+     *  The value is processed straight from the given buffer, which may e.g. be a memory-mapped file.
+     *  Signature verification and decryption follow the rules of {@link #retrieveSignedObject(Object)}
+     *  and {@link #decryptSealedObject(Object)}: if the value is signed but no signing context is set,
+     *  the signature is not verified. Values encrypted with an authenticated cipher are verified by decryption.
+     *  The expiration time is not checked, see {@link #isExpired(ByteBuffer, long)}.
+     *
+     *  @param value the value, from the position to the limit of the buffer. The position is not changed.
+     *  @param cipher cipher initialized for decryption with {@link #initThreadCipher(int)}, {@code null} if no encryption context is set
+     *  @return the object
+     *  @throws BadPaddingException -
+     *  @throws ClassNotFoundException -
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException if the value is encrypted, but no cipher is given
+     *  @throws IOException if the value is not in a known format
+     *  @throws SignatureException -
+     *  @throws SignatureVerificationException if the signature verification failed.
+     */
+    protected @NonNull Object decodeValue (@NonNull final ByteBuffer value, @Nullable final Cipher cipher) throws BadPaddingException, ClassNotFoundException, IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        //
+        final ByteBuffer buffer = value.duplicate();
+        if (isSerializedValue (buffer)) {
+            return decryptSealedObject(retrieveSignedObject(JavaSerializationCodec.INSTANCE.decode(buffer)), cipher);
+        }
+
+        final int start = buffer.position();
+        final int flags;
+        final Codec codec;
+        final Compression compression;
+        final int keyId;
+        final byte[] iv;
+        final byte[] signature;
+        final ByteBuffer header = value.duplicate();
+        try {
+            if (buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1) {
+                throw new IOException ("Unknown value format");
+            }
+            final byte version = buffer.get();
+            if (version != FORMAT_VERSION) {
+                throw new IOException ("Unsupported value format version " + version);
+            }
+            flags = buffer.get() & 0xff;
+            codec = codecFor (buffer.get() & 0xff);
+            if ((flags & FLAG_EXPIRES) != 0) {
+                buffer.getLong();
+            }
+            compression = ((flags & FLAG_COMPRESSED) != 0 ? compressionFor (buffer.get() & 0xff) : null);
+            keyId = ((flags & FLAG_KEY_ID) != 0 ? buffer.getInt() : EncryptionContext.NO_KEY_ID);
+            iv = ((flags & FLAG_IV) != 0 ? new byte[buffer.get() & 0xff] : null);
+            if (iv != null) {
+                buffer.get(iv);
+            }
+            header.limit(buffer.position());
+            header.position(start);
+            signature = new byte[buffer.getShort() & 0xffff];
+            buffer.get(signature);
+
+            if ((flags & FLAG_SIGNED) != 0) {
+                verify (header.duplicate(), buffer.duplicate(), signature);
+            }
+        }
+        catch (final BufferUnderflowException e) {
+            throw new IOException ("Truncated value", e);
+        }
+
+        final ByteBuffer payload = buffer.slice();
+        if ((flags & FLAG_ENCRYPTED) == 0) {
+            return codec.decode(decompress (payload, compression));
+        }
+        final boolean authenticated = ((flags & FLAG_AUTHENTICATED) != 0);
+        final Cipher decrypter;
+        if ((flags & FLAG_DATA_KEY) != 0) {
+            decrypter = dataKeyDecrypterFor (iv, authenticated);
+        }
+        else if (cipher == null) {
+            throw new InvalidKeyException ("Value is encrypted, but no encryption context is set");
+        }
+        else {
+            decrypter = decrypterFor (cipher, keyIdFor (keyId), iv, authenticated);
+        }
+        final ByteBuffer plaintext = ByteBuffer.allocate(decrypter.getOutputSize(payload.remaining()));
+        try {
+            if (authenticated) {
+                decrypter.updateAAD(header);
+            }
+            decrypter.doFinal(payload, plaintext);
+        }
+        catch (final ShortBufferException e) {
+            // The buffer is sized by the cipher
+            throw new IllegalStateException ("Unexpected short buffer while decrypting", e);
+        }
+        catch (final BadPaddingException e) {
+            if (authenticated) {
+                // Authentication tag does not match, i.e. the header or the payload has been tampered with:
+                throw new SignatureVerificationException();
+            }
+            throw e;
+        }
+        plaintext.flip();
+        return codec.decode(decompress (plaintext, compression));
+    }
+
+
+    /** Returns the expiration time of a value, without verifying or decrypting the value.
+     *
+     *  @param value the value or at least its first {@link #EXPIRY_HEADER_BYTES} bytes, from the position
+     *  to the limit of the buffer. The position is not changed.
+     *  @return expiration time in milliseconds since the epoch, {@link #NO_EXPIRY} if the value does not expire
+     *  or is not in the value format of the stores
+     */
+    protected static long expiryOf (@NonNull final ByteBuffer value) {
+        //
+        final int start = value.position();
+        if (value.remaining() < EXPIRY_HEADER_BYTES
+                || value.get(start) != MAGIC_0
+                || value.get(start + 1) != MAGIC_1
+                || value.get(start + 2) != FORMAT_VERSION
+                || (value.get(start + 3) & FLAG_EXPIRES) == 0) {
+            return NO_EXPIRY;
+        }
+        return value.getLong(start + 5);
+    }
+
+
+    /** Checks if a value has expired, without verifying or decrypting the value. The expiration time
+     *  is not authenticated until the value is decoded: tampering can make a value look expired,
+     *  but not make an expired value readable.
+     *
+     *  @param value the value or at least its first {@link #EXPIRY_HEADER_BYTES} bytes, see {@link #expiryOf(ByteBuffer)}
+     *  @param now current time in milliseconds since the epoch
+     *  @return {@code true} if the value has expired
+     */
+    protected static boolean isExpired (@NonNull final ByteBuffer value, final long now) {
+        return expiryOf (value) <= now;
+    }
+
+
+    /** Checks if a value, or a streamed value, is encrypted with another key of the key ring than the current key,
+     *  without verifying or decrypting the value. Such values should be re-encrypted with the current key,
+     *  before their key is retired.
+     *
+     *  @param value the value or at least its first {@link #KEY_ID_HEADER_BYTES} bytes, from the position
+     *  to the limit of the buffer. The position is not changed.
+     *  @return {@code true} if the value is encrypted with an earlier key, {@code false} if with the current key,
+     *  or the value is not encrypted, or the encryption context has no key ring
+     */
+    protected boolean isEncryptedWithEarlierKey (@NonNull final ByteBuffer value) {
+        //
+        final KeyRing keyRing = (_encryptionContext == null ? null : _encryptionContext.getKeyRing());
+        if (keyRing == null) {
+            return false;
+        }
+        final int start = value.position();
+        if (isSerializedValue (value)) {
+            // Sealed objects are encrypted with the initial key, and are not in the value format of the stores:
+            return true;
+        }
+        if (value.remaining() < 4 || value.get(start) != MAGIC_0 || value.get(start + 2) != FORMAT_VERSION) {
+            return false;
+        }
+        final int flags = value.get(start + 3) & 0xff;
+        final int keyIdOffset;
+        if (value.get(start + 1) == MAGIC_1) {
+            if ((flags & FLAG_ENCRYPTED) == 0 || (flags & FLAG_DATA_KEY) != 0) {
+                return false;
+            }
+            keyIdOffset = ((flags & FLAG_KEY_ID) == 0 ? -1 : start + 5 + ((flags & FLAG_EXPIRES) == 0 ? 0 : 8) + ((flags & FLAG_COMPRESSED) == 0 ? 0 : 1));
+        }
+        else if (value.get(start + 1) == ChunkedValueOutputStream.MAGIC_1) {
+            if ((flags & ChunkedValueOutputStream.FLAG_ENCRYPTED) == 0) {
+                return false;
+            }
+            keyIdOffset = ((flags & ChunkedValueOutputStream.FLAG_KEY_ID) == 0 ? -1 : start + ChunkedValueOutputStream.HEADER_BYTES);
+        }
+        else {
+            return false;
+        }
+        if (keyIdOffset >= 0 && keyIdOffset + 4 > value.limit()) {
+            return false;
+        }
+        final int keyId = (keyIdOffset < 0 ? KeyRing.INITIAL_KEY_ID : value.getInt(keyIdOffset));
+        return keyId != keyRing.getCurrentKeyId();
+    }
+
+
+    /** Wraps a stream for writing a streamed value: the data written to the returned stream is encrypted
+     *  and signed in chunks of given size, so memory use does not depend on the size of the value.
+     *  Closing the returned stream writes the signature and closes the given stream.
+     *
+     *  @param out the stream to write the value to
+     *  @param chunkBytes chunk size in bytes
+     *  @return the stream to write the data to
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     */
+    protected @NonNull OutputStream openValueWriter (@NonNull final OutputStream out, final int chunkBytes) throws InvalidKeyException, IOException {
+        //
+        final KeyRing keyRing = (_encryptionContext == null ? null : _encryptionContext.getKeyRing());
+        final int keyId = (keyRing == null ? EncryptionContext.NO_KEY_ID : keyRing.getCurrentKeyId());
+        return new ChunkedValueOutputStream(
+                out,
+                (_encryptionContext == null ? null : newCipher()),
+                (_encryptionContext == null ? null : _encryptionContext.getSecretKey(keyId)),
+                keyId,
+                (_signingContext == null ? null : _signingContext.newSigner()),
+                chunkBytes
+        );
+    }
+
+
+    /** Wraps a stream for reading a streamed value written by {@link #openValueWriter(OutputStream, int)}.
+     *  The signature is verified when the end of the value is reached, see {@link ChunkedValueInputStream}.
+     *
+     *  @param in the stream to read the value from
+     *  @return the stream to read the data from
+     *  @throws InvalidKeyException -
+     *  @throws IOException if the stream does not contain a streamed value
+     */
+    protected @NonNull InputStream openValueReader (@NonNull final InputStream in) throws InvalidKeyException, IOException {
+        //
+        return new ChunkedValueInputStream(
+                in,
+                (_encryptionContext == null ? null : newCipher()),
+                _encryptionContext,
+                (_signingContext == null ? null : _signingContext.newSigner())
+        );
+    }
+
+
+    /** Sets the codec used by {@link #encodeValue(Serializable, Cipher)}. Values written with the built-in
+     *  codecs can always be read, values written with other codecs only while the codec is set.
+     *
+     *  @param codec the codec, {@link BinaryCodec} by default
+     */
+    protected void setCodec (@NonNull final Codec codec) {
+        _codec = codec;
+    }
+
+
+    /** Returns the codec used by {@link #encodeValue(Serializable, Cipher)}.
+     *
+     *  @return the codec
+     */
+    protected @NonNull Codec getCodec () {
+        return _codec;
+    }
+
+
+    /** Sets envelope encryption: values are encrypted by {@link #initThreadCipher(int)}, and objects sealed by
+     *  {@link #sealObject(Serializable)}, with the data key of the namespace instead of the key of the encryption
+     *  context, which then only wraps the data keys, see {@link EnvelopeKeys}. Values written before are still
+     *  read with the encryption context, objects sealed before are not readable. Streams are encrypted with the
+     *  encryption context.
+     *
+     *  @param envelopeKeys the envelope keys, {@code null} to seal with the encryption context
+     *  @param namespace namespace of the data key, e.g. name of the store
+     */
+    protected void setEnvelopeKeys (@Nullable final EnvelopeKeys envelopeKeys, @NonNull final String namespace) {
+        _dataKeys = (envelopeKeys == null ? null : new DataKeys(envelopeKeys, namespace));
+    }
+
+
+    /** Returns the envelope keys.
+     *
+     *  @return the envelope keys, {@code null} if not set
+     */
+    protected @Nullable EnvelopeKeys getEnvelopeKeys () {
+        //
+        final DataKeys dataKeys = _dataKeys;
+        return (dataKeys == null ? null : dataKeys._envelopeKeys);
+    }
+
+
+    /** Sets the compression used by {@link #encodeValue(Serializable, Cipher)}. Encoded objects smaller than
+     *  the threshold, and objects which do not get smaller, are stored uncompressed. Values compressed with the
+     *  built-in compressions can always be read, values compressed with others only while the compression is set.
+     *
+     *  @param compression the compression, {@code null} (the default) to store the values uncompressed
+     *  @param thresholdBytes size of the encoded object in bytes, below which it is not compressed
+     */
+    protected void setCompression (@Nullable final Compression compression, final int thresholdBytes) {
+        //
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException ("thresholdBytes must not be negative, was " + thresholdBytes);
+        }
+        _compressionThresholdBytes = thresholdBytes;
+        _compression = compression;
+    }
+
+
+    /** Returns the compression used by {@link #encodeValue(Serializable, Cipher)}.
+     *
+     *  @return the compression, {@code null} if the values are not compressed
+     */
+    protected @Nullable Compression getCompression () {
+        return _compression;
+    }
+
+
     /** If the object given as parameter is {@link SealedObject}, decrypts the object
      *  and returns the contained object.
      *
@@ -59,12 +575,14 @@ public abstract class AbstractEncryptingStore {
         //
         if (object instanceof SealedObject) {
 
+            if (_dataKeys != null) {
+                return decryptSealedObject(object, null);
+            }
             if (_encryptionContext == null) {
                 return object;
             }
 
-            _encryptionContext.initForDecryption();
-            return ((SealedObject) object).getObject(_encryptionContext.getCipher());
+            return decryptSealedObject(object, initThreadCipher(Cipher.DECRYPT_MODE));
         }
 
         // Object is not SealedObject, return it as it is.
@@ -72,6 +590,46 @@ public abstract class AbstractEncryptingStore {
     }
 
 
+    /** As {@link #decryptSealedObject(Object)}, but uses a cipher already initialized for decryption
+     *  with {@link #initThreadCipher(int)}. Allows decrypting several objects with one initialization.
+     *
+     *  @param object The object to decrypt. If the object is not {@link SealedObject}, returns the same object.
+     *  @param cipher The cipher initialized for decryption, {@code null} if no encryption context is set.
+     *  @return Either the decrypted object or the object passed as parameter.
+     *  @throws javax.crypto.BadPaddingException -
+     *  @throws java.lang.ClassNotFoundException -
+     *  @throws javax.crypto.IllegalBlockSizeException -
+     *  @throws java.io.IOException -
+     */
+    protected Object decryptSealedObject (@NonNull final Object object, @Nullable final Cipher cipher) throws BadPaddingException, ClassNotFoundException, IllegalBlockSizeException, IOException {
+        //
+        final DataKeys dataKeys = _dataKeys;
+        if (object instanceof SealedObject && dataKeys != null) {
+            // Sealed with the data key of the namespace, the cipher of the encryption context is not used:
+            try {
+                return ((SealedObject) object).getObject(dataKeys._envelopeKeys.getDataKey(dataKeys._namespace));
+            }
+            catch (final GeneralSecurityException e) {
+                throw new IOException ("Unable to decrypt sealed object with the data key of " + dataKeys._namespace, e);
+            }
+        }
+        if (object instanceof SealedObject && cipher != null) {
+            if (EncryptionContext.isAuthenticated(cipher) || _encryptionContext.getKeyRing() != null) {
+                // Cipher is not initialized, see initThreadCipher(), or is initialized with the current key of the ring,
+                // while sealed objects were written before the ring was used. The object knows its own algorithm:
+                try {
+                    return ((SealedObject) object).getObject(_encryptionContext.getSecretKey(keyIdFor (EncryptionContext.NO_KEY_ID)));
+                }
+                catch (final InvalidKeyException | NoSuchAlgorithmException e) {
+                    throw new IOException ("Unable to decrypt sealed object", e);
+                }
+            }
+            return ((SealedObject) object).getObject(cipher);
+        }
+        return object;
+    }
+
+
     /** If the object given as parameter is {@link java.security.SignedObject}, verifies the
      *  signature of the object and returns the contained object (as returned by {@link SignedObject#getObject()}.
      *
@@ -86,7 +644,7 @@ public abstract class AbstractEncryptingStore {
      *  @return the object given as parameter, or, if the object given as parameter was a
      *  {@link SignedObject}, then the value returned by {@link SignedObject#getObject()}.
      *  @throws java.lang.ClassNotFoundException -
-     *  @throws java.security.InvalidKeyException -
+     *  @throws java.security.InvalidKeyException if the signing context is not based on a key pair
      *  @throws java.io.IOException -
      *  @throws SignatureVerificationException if the signature verification failed.
      */
@@ -101,9 +659,10 @@ public abstract class AbstractEncryptingStore {
                 Log.w (TAG, "retrieveSignedObject(): Object is SignedObject, but no signature settings configured. Returning the object without verifying the signature!");
                 return signedObject.getObject();
             }
+            ensureKeyPair ();
 
             // Signature verification succeeded:
-            if (signedObject.verify(_signingContext.getKeyPair().getPublic(), _signingContext.getSignature())) {
+            if (signedObject.verify(_signingContext.getKeyPair().getPublic(), getThreadSignature())) {
                 return signedObject.getObject();
             }
             else {
@@ -124,17 +683,90 @@ public abstract class AbstractEncryptingStore {
      *  Otherwise the object given as parameter is returned as it is.
      *  @throws IllegalBlockSizeException -
      *  @throws IOException -
-     *  @throws InvalidKeyException -
+     *  @throws InvalidKeyException if the encryption context has a key ring, and its key has been rotated: sealed objects
+     *  carry no key id, so they are always decrypted with the initial key of the ring
      */
     protected @NonNull Serializable sealObject (@NonNull Serializable object) throws IllegalBlockSizeException, IOException, InvalidKeyException {
         //
+        if (_dataKeys != null) {
+            return new SealedObject(object, initThreadCipher(Cipher.ENCRYPT_MODE));
+        }
         if (_encryptionContext == null) {
             return object;
         }
+        final KeyRing keyRing = _encryptionContext.getKeyRing();
+        if (keyRing != null && keyRing.getCurrentKeyId() != KeyRing.INITIAL_KEY_ID) {
+            throw new InvalidKeyException ("Sealed objects cannot be written after the key has been rotated");
+        }
+
+        return new SealedObject(object, initThreadCipher(Cipher.ENCRYPT_MODE));
+    }
+
+
+    /** As {@link #sealObject(Serializable)}, but uses a cipher already initialized for encryption
+     *  with {@link #initThreadCipher(int)}. Allows encrypting several objects with one initialization,
+     *  as long as the cipher does not use an initialization vector (see {@link #isReusable(Cipher)}).
+     *
+     *  @param object the object to encrypt
+     *  @param cipher The cipher initialized for encryption, {@code null} if no encryption context is set.
+     *  @return if cipher is given, a new {@link SealedObject} containing the object.
+     *  Otherwise the object given as parameter is returned as it is.
+     *  @throws IllegalBlockSizeException -
+     *  @throws IOException -
+     */
+    protected @NonNull Serializable sealObject (@NonNull final Serializable object, @Nullable final Cipher cipher) throws IllegalBlockSizeException, IOException {
+        //
+        if (cipher == null) {
+            return object;
+        }
+
+        return new SealedObject(object, cipher);
+    }
+
+
+    /** Initializes the cipher of the calling thread with the key of the encryption context.
+     *
+     *  An authenticated cipher is initialized for encryption with a fresh random initialization vector.
+     *  For decryption, it is returned uninitialized: {@link #decodeValue(ByteBuffer, Cipher)} initializes
+     *  it with the vector of each value.
+     *
+     *  @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}
+     *  @return the initialized cipher, {@code null} if no encryption context is set
+     *  @throws InvalidKeyException -
+     */
+    protected @Nullable Cipher initThreadCipher (final int mode) throws InvalidKeyException {
+        //
+        final DataKeys dataKeys = _dataKeys;
+        if (mode == Cipher.ENCRYPT_MODE && dataKeys != null) {
+            try {
+                return dataKeys._envelopeKeys.initThreadCipher(dataKeys._namespace, mode);
+            }
+            catch (final InvalidKeyException e) {
+                throw e;
+            }
+            catch (final GeneralSecurityException | IOException e) {
+                throw new InvalidKeyException ("Unable to initialize the data key of " + dataKeys._namespace, e);
+            }
+        }
+        if (_encryptionContext == null) {
+            return null;
+        }
+
+        if (mode == Cipher.DECRYPT_MODE && _encryptionContext.isAuthenticated()) {
+            return getThreadCipher();
+        }
+        return _encryptionContext.initThreadCipher(mode);
+    }
 
-        _encryptionContext.initForEncryption();
 
-        return new SealedObject(object, _encryptionContext.getCipher());
+    /** Checks if an initialized cipher can encrypt several objects without re-initialization.
+     *  Ciphers using an initialization vector must be re-initialized to get a fresh vector for each object.
+     *
+     *  @param cipher the initialized cipher, may be {@code null}
+     *  @return {@code true} if the cipher can be reused
+     */
+    protected static boolean isReusable (@Nullable final Cipher cipher) {
+        return (cipher == null || cipher.getIV() == null);
     }
 
 
@@ -145,7 +777,7 @@ public abstract class AbstractEncryptingStore {
      *  @return if signing context is set, a new {@link SignedObject} containing the object.
      *  Otherwise the object given parameter is returned as it is.
      *  @throws IOException -
-     *  @throws InvalidKeyException -
+     *  @throws InvalidKeyException if the signing context is not based on a key pair
      *  @throws SignatureException -
      */
     protected @NonNull Serializable signObject (@NonNull Serializable object) throws IOException, InvalidKeyException, SignatureException {
@@ -153,8 +785,248 @@ public abstract class AbstractEncryptingStore {
         if (_signingContext == null) {
             return object;
         }
+        ensureKeyPair ();
+
+        return new SignedObject(object, _signingContext.getKeyPair().getPrivate(), getThreadSignature());
+    }
+
+
+    /** Returns the cipher of the calling thread, see {@link EncryptionContext#getThreadCipher()}.
+     *
+     *  @return the cipher of the calling thread
+     */
+    protected @NonNull Cipher getThreadCipher () {
+        return _encryptionContext.getThreadCipher();
+    }
+
+
+    /** Constructs a new cipher, see {@link EncryptionContext#newCipher()}. Use for ciphers, which must not
+     *  be shared, e.g. ones held by streams.
+     *
+     *  @return a new, uninitialized cipher
+     */
+    protected @NonNull Cipher newCipher () {
+        return _encryptionContext.newCipher();
+    }
+
+
+    /** Returns the signer of the calling thread, see {@link SigningContext#getThreadSigner()}.
+     *
+     *  @return the signer of the calling thread
+     */
+    protected @NonNull Signer getThreadSigner () {
+        return _signingContext.getThreadSigner();
+    }
+
+
+    /** Returns the signature engine of the calling thread for {@link SignedObject}s, see
+     *  {@link SigningContext#getThreadSignature()}.
+     *
+     *  @return the signature engine of the calling thread
+     */
+    protected @NonNull Signature getThreadSignature () {
+        return _signingContext.getThreadSignature();
+    }
+
+
+    /** Constructs a new signature engine, see {@link SigningContext#newSignature()}. Use for engines,
+     *  which must not be shared.
+     *
+     *  @return a new, uninitialized signature engine
+     */
+    protected @NonNull Signature newSignature () {
+        return _signingContext.newSignature();
+    }
+
+
+    /** Returns the cipher for decrypting a value, initialized for the value.
+     *
+     *  @param cipher the cipher from {@link #initThreadCipher(int)}
+     *  @param keyId id of the key of the value, see {@link #keyIdFor(int)}
+     *  @param iv initialization vector of the value, {@code null} if none
+     *  @param authenticated {@code true} if the value is encrypted with an authenticated cipher
+     *  @return the cipher to decrypt the value with
+     *  @throws InvalidKeyException if the value cannot be decrypted with the encryption context, e.g. its key has been retired
+     */
+    private @NonNull Cipher decrypterFor (@NonNull final Cipher cipher, final int keyId, @Nullable final byte[] iv, final boolean authenticated) throws InvalidKeyException {
+        //
+        if (authenticated && iv == null) {
+            throw new InvalidKeyException ("Value is encrypted with an authenticated cipher, but has no initialization vector");
+        }
+        if (authenticated != EncryptionContext.isAuthenticated(cipher)) {
+            if (authenticated || iv != null) {
+                throw new InvalidKeyException ("Value is encrypted with a different cipher than " + cipher.getAlgorithm());
+            }
+            // Value written with the default ECB cipher, before the context was switched to an authenticated one:
+            final Cipher legacyCipher = getThreadLegacyCipher();
+            legacyCipher.init(Cipher.DECRYPT_MODE, _encryptionContext.getSecretKey(keyId));
+            return legacyCipher;
+        }
+        if (iv != null) {
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, _encryptionContext.getSecretKey(keyId), EncryptionContext.parameterSpecFor(cipher, iv));
+            }
+            catch (final InvalidAlgorithmParameterException e) {
+                throw new InvalidKeyException ("Unable to initialize decryption", e);
+            }
+        }
+        else if (keyId != EncryptionContext.NO_KEY_ID && keyId != _encryptionContext.getThreadKeyId()) {
+            // Cipher is initialized with the current key, value is encrypted with an earlier key of the ring:
+            try {
+                return _encryptionContext.initThreadCipher(Cipher.DECRYPT_MODE, keyId, null);
+            }
+            catch (final InvalidAlgorithmParameterException e) {
+                throw new InvalidKeyException ("Unable to initialize decryption", e);
+            }
+        }
+        return cipher;
+    }
+
+
+    /** Returns the cipher of the envelope keys for decrypting a value encrypted with the data key of the namespace,
+     *  initialized for the value.
+     *
+     *  @param iv initialization vector of the value, {@code null} if none
+     *  @param authenticated {@code true} if the value is encrypted with an authenticated cipher
+     *  @return the cipher to decrypt the value with
+     *  @throws InvalidKeyException if no envelope keys are set, or the data key is not available
+     */
+    private @NonNull Cipher dataKeyDecrypterFor (@Nullable final byte[] iv, final boolean authenticated) throws InvalidKeyException {
+        //
+        final DataKeys dataKeys = _dataKeys;
+        if (dataKeys == null) {
+            throw new InvalidKeyException ("Value is encrypted with a data key, but no envelope keys are set");
+        }
+        if (authenticated && iv == null) {
+            throw new InvalidKeyException ("Value is encrypted with an authenticated cipher, but has no initialization vector");
+        }
+        try {
+            return dataKeys._envelopeKeys.initThreadCipher(dataKeys._namespace, Cipher.DECRYPT_MODE, iv);
+        }
+        catch (final InvalidKeyException e) {
+            throw e;
+        }
+        catch (final GeneralSecurityException | IOException e) {
+            throw new InvalidKeyException ("Unable to initialize the data key of " + dataKeys._namespace, e);
+        }
+    }
+
+
+    /** Returns the id of the key to decrypt a value with. Values written before the key ring was used
+     *  have no key id, and are decrypted with the initial key of the ring.
+     *
+     *  @param keyId key id recorded in the value, {@link EncryptionContext#NO_KEY_ID} if none
+     *  @return the key id, {@link EncryptionContext#NO_KEY_ID} if the encryption context has no key ring
+     */
+    private int keyIdFor (final int keyId) {
+        //
+        if (keyId != EncryptionContext.NO_KEY_ID || _encryptionContext.getKeyRing() == null) {
+            return keyId;
+        }
+        return KeyRing.INITIAL_KEY_ID;
+    }
+
+
+    private @NonNull Cipher getThreadLegacyCipher () {
+        //
+        Cipher cipher = _legacyCiphers.get();
+        if (cipher == null) {
+            final String algorithm = _encryptionContext.getSecretKey().getAlgorithm() + "/ECB/PKCS5Padding";
+            try {
+                cipher = Cipher.getInstance(algorithm);
+            }
+            catch (final NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new IllegalStateException ("Unable to construct cipher " + algorithm, e);
+            }
+            _legacyCiphers.set(cipher);
+        }
+        return cipher;
+    }
+
+
+    private void verify (@NonNull final ByteBuffer header, @NonNull final ByteBuffer payload, @NonNull final byte[] signature) throws InvalidKeyException, SignatureException {
+        //
+        if (_signingContext == null) {
+            Log.w (TAG, "decodeValue(): Value is signed, but no signature settings configured. Returning the value without verifying the signature!");
+            return;
+        }
+
+        final Signer verifier = getThreadSigner();
+        verifier.initVerify();
+        verifier.update(header);
+        verifier.update(payload);
+        if (! verifier.verify(signature)) {
+            throw new SignatureVerificationException();
+        }
+    }
+
+
+    private void ensureKeyPair () throws InvalidKeyException {
+        //
+        if (_signingContext.getKeyPair() == null) {
+            throw new InvalidKeyException ("SignedObject requires a signing context with a key pair");
+        }
+    }
+
+
+    private @NonNull Codec codecFor (final int id) throws IOException {
+        //
+        final Codec codec = _codec;
+        if (codec.getId() == id) {
+            return codec;
+        }
+        switch (id) {
+            case BinaryCodec.ID:
+                return BinaryCodec.INSTANCE;
+            case JavaSerializationCodec.ID:
+                return JavaSerializationCodec.INSTANCE;
+            default:
+                throw new IOException ("Value written with unknown codec " + id);
+        }
+    }
+
+
+    private @NonNull Compression compressionFor (final int id) throws IOException {
+        //
+        final Compression compression = _compression;
+        if (compression != null && compression.getId() == id) {
+            return compression;
+        }
+        switch (id) {
+            case DeflateCompression.ID:
+                return DeflateCompression.INSTANCE;
+            case LzCompression.ID:
+                return LzCompression.INSTANCE;
+            default:
+                throw new IOException ("Value written with unknown compression " + id);
+        }
+    }
+
+
+    private static @NonNull ByteBuffer decompress (@NonNull final ByteBuffer payload, @Nullable final Compression compression) throws IOException {
+        return (compression == null ? payload : ByteBuffer.wrap(compression.decompress(payload)));
+    }
+
+
+    /** Checks if a value is a streamed value, written with {@link #openValueWriter(OutputStream, int)}.
+     *
+     *  @param value the value or at least its first 2 bytes, from the position to the limit of the buffer.
+     *  The position is not changed.
+     *  @return {@code true} if the value is a streamed value
+     */
+    protected static boolean isStreamedValue (@NonNull final ByteBuffer value) {
+        //
+        return value.remaining() >= 2
+                && value.get(value.position()) == ChunkedValueOutputStream.MAGIC_0
+                && value.get(value.position() + 1) == ChunkedValueOutputStream.MAGIC_1;
+    }
+
 
-        return new SignedObject(object, _signingContext.getKeyPair().getPrivate(), _signingContext.getSignature());
+    private static boolean isSerializedValue (@NonNull final ByteBuffer value) {
+        //
+        return value.remaining() >= 2
+                && value.get(value.position()) == SERIALIZATION_MAGIC_0
+                && value.get(value.position() + 1) == SERIALIZATION_MAGIC_1;
     }
 
 
@@ -176,6 +1048,19 @@ public abstract class AbstractEncryptingStore {
     }
 
     
+    /** Envelope keys and the namespace of the data key, set together. */
+    private static final class DataKeys {
+
+        private final EnvelopeKeys _envelopeKeys;
+        private final String _namespace;
+
+        private DataKeys (@NonNull final EnvelopeKeys envelopeKeys, @NonNull final String namespace) {
+            _envelopeKeys = envelopeKeys;
+            _namespace = namespace;
+        }
+    }
+
+
     private static final String TAG = AbstractEncryptingStore.class.getSimpleName();
 
 }
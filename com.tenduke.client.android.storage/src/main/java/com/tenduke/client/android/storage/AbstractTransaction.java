@@ -0,0 +1,80 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Base class for transactions, which buffers the changes until committed.
+ */
+public abstract class AbstractTransaction implements Transaction {
+
+    // Deleted keys are mapped to null:
+    private final Map<String, Serializable> _changes = new LinkedHashMap<>();
+    private boolean _committed = false;
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param object {@inheritDoc }
+     *  @return {@inheritDoc }
+     */
+    @Override
+    public @NonNull <T extends Serializable> Transaction put (@NonNull final String key, @NonNull final T object) {
+        //
+        ensureNotCommitted ();
+        _changes.put(key, object);
+        return this;
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param key {@inheritDoc }
+     *  @return {@inheritDoc }
+     */
+    @Override
+    public @NonNull Transaction delete (@NonNull final String key) {
+        //
+        ensureNotCommitted ();
+        _changes.put(key, null);
+        return this;
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  The transaction cannot be committed again, even if committing fails.
+     *
+     *  @throws Exception -
+     */
+    @Override
+    public void commit () throws Exception {
+        //
+        ensureNotCommitted ();
+        _committed = true;
+        if (! _changes.isEmpty()) {
+            commit (_changes);
+        }
+    }
+
+
+    /** Applies the changes atomically.
+     *
+     *  @param changes the changes in the order made, deleted keys mapped to {@code null}. Not empty.
+     *  @throws Exception -
+     */
+    protected abstract void commit (@NonNull Map<String, Serializable> changes) throws Exception;
+
+
+    private void ensureNotCommitted () {
+        //
+        if (_committed) {
+            throw new IllegalStateException ("Transaction has been committed");
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Serializable;
+import java.util.concurrent.Future;
+
+/** Asynchronous companion of {@link KeyValueStore}.
+ *
+ *  The operations return immediately. The result is available through the returned {@link Future}, and
+ *  is also passed to the optional {@link Callback}. Callbacks are called on a background thread: to
+ *  update UI, post the result to the main thread.
+ */
+public interface AsyncKeyValueStore {
+
+
+    /** Callback receiving the result of an asynchronous operation.
+     *
+     *  @param <T> Type of the result
+     */
+    interface Callback<T> {
+
+        /** Called when the operation succeeded.
+         *
+         *  @param result the result. {@code null} for {@link #store(String, Serializable, Callback)} and
+         *  {@link #delete(String, Callback)}, and for {@link #read(String, Class, Callback)} when the object was not found.
+         */
+        void onSuccess (@Nullable T result);
+
+
+        /** Called when the operation failed.
+         *
+         *  @param error the error
+         */
+        void onFailure (@NonNull Exception error);
+
+    }
+
+
+    /** Deletes the stored object by key.
+     *
+     *  @param key key
+     *  @param callback optional callback
+     *  @return future completing when the object has been deleted
+     */
+    @NonNull Future<Void> delete (@NonNull String key, @Nullable Callback<Void> callback);
+
+
+    /** Reads stored object by key. Reads see the objects of preceding stores and deletes, even if they
+     *  are still pending.
+     *
+     *  @param <T> Type of the object
+     *  @param key key
+     *  @param objectClass class of stored object
+     *  @param callback optional callback
+     *  @return future of the object. The object is {@code null} if it was not found.
+     */
+    @NonNull <T extends Serializable> Future<T> read (@NonNull String key, @NonNull Class<T> objectClass, @Nullable Callback<T> callback);
+
+
+    /** Stores object by key.
+     *
+     *  @param <T> Type of the object
+     *  @param key key
+     *  @param object object to store
+     *  @param callback optional callback
+     *  @return future completing when the object has been stored
+     */
+    @NonNull <T extends Serializable> Future<Void> store (@NonNull String key, @NonNull T object, @Nullable Callback<Void> callback);
+
+}
@@ -0,0 +1,43 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+
+/** Key-value store, which reads and writes several keys at once.
+ *
+ *  Implementations amortize per-operation costs, like locking and initializing the encryption, over the objects.
+ */
+public interface BatchKeyValueStore extends KeyValueStore {
+
+
+    /** Deletes several stored objects by key.
+     *
+     *  Does not throw exceptions. Keys, which are not found, are ignored.
+     *
+     *  @param keys keys
+     */
+    void deleteAll (@NonNull Collection<String> keys);
+
+
+    /** Reads several stored objects by key.
+     *
+     * @param <T> Type of the objects
+     * @param keys keys
+     * @param objectClass class of stored objects
+     * @return the objects by key. Objects not found are not included in the map.
+     * @throws Exception -
+     */
+    @NonNull <T extends Serializable> Map<String, T> readAll (@NonNull Collection<String> keys, @NonNull Class<T> objectClass) throws Exception;
+
+
+    /** Stores several objects by key.
+     *
+     * @param objects objects to store by key
+     * @throws Exception -
+     */
+    void storeAll (@NonNull Map<String, ? extends Serializable> objects) throws Exception;
+
+}
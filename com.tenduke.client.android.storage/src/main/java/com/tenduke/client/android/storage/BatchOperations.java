@@ -0,0 +1,78 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/** Batch operations on any {@link KeyValueStore}, for the decorators: a {@link BatchKeyValueStore} is called
+ *  once per batch, other stores once per key.
+ */
+final class BatchOperations {
+
+    private BatchOperations () {
+    }
+
+
+    /** Deletes several objects, see {@link BatchKeyValueStore#deleteAll(Collection)}.
+     *
+     *  @param store the store
+     *  @param keys keys
+     */
+    static void deleteAll (@NonNull final KeyValueStore store, @NonNull final Collection<String> keys) {
+        //
+        if (store instanceof BatchKeyValueStore) {
+            ((BatchKeyValueStore) store).deleteAll(keys);
+            return;
+        }
+        for (final String key : keys) {
+            store.delete(key);
+        }
+    }
+
+
+    /** Reads several objects, see {@link BatchKeyValueStore#readAll(Collection, Class)}.
+     *
+     *  @param <T> Type of the objects
+     *  @param store the store
+     *  @param keys keys
+     *  @param objectClass class of stored objects
+     *  @return the objects by key
+     *  @throws Exception -
+     */
+    static @NonNull <T extends Serializable> Map<String, T> readAll (@NonNull final KeyValueStore store, @NonNull final Collection<String> keys, @NonNull final Class<T> objectClass) throws Exception {
+        //
+        if (store instanceof BatchKeyValueStore) {
+            return ((BatchKeyValueStore) store).readAll(keys, objectClass);
+        }
+        final Map<String, T> objects = new LinkedHashMap<>();
+        for (final String key : keys) {
+            final T object = store.read(key, objectClass);
+            if (object != null) {
+                objects.put(key, object);
+            }
+        }
+        return objects;
+    }
+
+
+    /** Stores several objects, see {@link BatchKeyValueStore#storeAll(Map)}.
+     *
+     *  @param store the store
+     *  @param objects objects to store by key
+     *  @throws Exception -
+     */
+    static void storeAll (@NonNull final KeyValueStore store, @NonNull final Map<String, ? extends Serializable> objects) throws Exception {
+        //
+        if (store instanceof BatchKeyValueStore) {
+            ((BatchKeyValueStore) store).storeAll(objects);
+            return;
+        }
+        for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+            store.store(entry.getKey(), entry.getValue());
+        }
+    }
+
+}
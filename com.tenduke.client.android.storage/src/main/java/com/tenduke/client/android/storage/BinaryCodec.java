@@ -0,0 +1,264 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/** Compact binary {@link Codec}.
+ *
+ *  Each value is written as a one byte type tag followed by the value. Lengths and counts are written
+ *  as variable length integers (7 bits per byte). Natively supported are {@link String}, {@code byte[]},
+ *  the primitive wrappers, and {@link ArrayList}, {@link HashMap} and {@link LinkedHashMap} of supported
+ *  values. Other objects, including subclasses of the supported collections, are embedded with Java
+ *  serialization, so any {@link Serializable} object can be encoded, and decodes to the same class.
+ */
+public final class BinaryCodec implements Codec {
+
+    /** Id of the codec. */
+    public static final int ID = 2;
+
+    /** The instance. */
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_BYTES = 2;
+    private static final byte TAG_BOOLEAN = 3;
+    private static final byte TAG_BYTE = 4;
+    private static final byte TAG_SHORT = 5;
+    private static final byte TAG_CHARACTER = 6;
+    private static final byte TAG_INTEGER = 7;
+    private static final byte TAG_LONG = 8;
+    private static final byte TAG_FLOAT = 9;
+    private static final byte TAG_DOUBLE = 10;
+    private static final byte TAG_ARRAY_LIST = 11;
+    private static final byte TAG_HASH_MAP = 12;
+    private static final byte TAG_LINKED_HASH_MAP = 13;
+    private static final byte TAG_SERIALIZED = 14;
+
+
+    private BinaryCodec() {
+    }
+
+
+    @Override
+    public int getId () {
+        return ID;
+    }
+
+
+    @Override
+    public @NonNull byte[] encode (@NonNull final Serializable object) throws IOException {
+        //
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream stream = new DataOutputStream(bytes);
+        write (stream, object);
+        stream.flush();
+        return bytes.toByteArray();
+    }
+
+
+    @Override
+    public @NonNull Serializable decode (@NonNull final ByteBuffer bytes) throws ClassNotFoundException, IOException {
+        //
+        final ByteBuffer buffer = bytes.duplicate();
+        try {
+            final Object object = read (buffer);
+            if (! (object instanceof Serializable)) {
+                throw new StreamCorruptedException ("Decoded value is not Serializable: " + object);
+            }
+            return (Serializable) object;
+        }
+        catch (final BufferUnderflowException | IllegalArgumentException e) {
+            throw new StreamCorruptedException ("Truncated or corrupted value: " + e);
+        }
+    }
+
+
+    private static void write (@NonNull final DataOutputStream stream, @Nullable final Object object) throws IOException {
+        //
+        if (object == null) {
+            stream.writeByte(TAG_NULL);
+            return;
+        }
+
+        final Class<?> objectClass = object.getClass();
+        if (objectClass == String.class) {
+            stream.writeByte(TAG_STRING);
+            writeBytes (stream, ((String) object).getBytes(UTF8));
+        }
+        else if (objectClass == byte[].class) {
+            stream.writeByte(TAG_BYTES);
+            writeBytes (stream, (byte[]) object);
+        }
+        else if (objectClass == Boolean.class) {
+            stream.writeByte(TAG_BOOLEAN);
+            stream.writeBoolean((Boolean) object);
+        }
+        else if (objectClass == Byte.class) {
+            stream.writeByte(TAG_BYTE);
+            stream.writeByte((Byte) object);
+        }
+        else if (objectClass == Short.class) {
+            stream.writeByte(TAG_SHORT);
+            stream.writeShort((Short) object);
+        }
+        else if (objectClass == Character.class) {
+            stream.writeByte(TAG_CHARACTER);
+            stream.writeChar((Character) object);
+        }
+        else if (objectClass == Integer.class) {
+            stream.writeByte(TAG_INTEGER);
+            stream.writeInt((Integer) object);
+        }
+        else if (objectClass == Long.class) {
+            stream.writeByte(TAG_LONG);
+            stream.writeLong((Long) object);
+        }
+        else if (objectClass == Float.class) {
+            stream.writeByte(TAG_FLOAT);
+            stream.writeFloat((Float) object);
+        }
+        else if (objectClass == Double.class) {
+            stream.writeByte(TAG_DOUBLE);
+            stream.writeDouble((Double) object);
+        }
+        else if (objectClass == ArrayList.class) {
+            final List<?> list = (List<?>) object;
+            stream.writeByte(TAG_ARRAY_LIST);
+            writeLength (stream, list.size());
+            for (final Object element : list) {
+                write (stream, element);
+            }
+        }
+        else if (objectClass == HashMap.class || objectClass == LinkedHashMap.class) {
+            final Map<?, ?> map = (Map<?, ?>) object;
+            stream.writeByte(objectClass == HashMap.class ? TAG_HASH_MAP : TAG_LINKED_HASH_MAP);
+            writeLength (stream, map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                write (stream, entry.getKey());
+                write (stream, entry.getValue());
+            }
+        }
+        else {
+            stream.writeByte(TAG_SERIALIZED);
+            writeBytes (stream, JavaSerializationCodec.INSTANCE.encode((Serializable) object));
+        }
+    }
+
+
+    private static @Nullable Object read (@NonNull final ByteBuffer buffer) throws ClassNotFoundException, IOException {
+        //
+        final byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return new String(readBytes (buffer), UTF8);
+            case TAG_BYTES:
+                return readBytes (buffer);
+            case TAG_BOOLEAN:
+                return buffer.get() != 0;
+            case TAG_BYTE:
+                return buffer.get();
+            case TAG_SHORT:
+                return buffer.getShort();
+            case TAG_CHARACTER:
+                return buffer.getChar();
+            case TAG_INTEGER:
+                return buffer.getInt();
+            case TAG_LONG:
+                return buffer.getLong();
+            case TAG_FLOAT:
+                return buffer.getFloat();
+            case TAG_DOUBLE:
+                return buffer.getDouble();
+            case TAG_ARRAY_LIST: {
+                final int size = readLength (buffer);
+                final ArrayList<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read (buffer));
+                }
+                return list;
+            }
+            case TAG_HASH_MAP:
+            case TAG_LINKED_HASH_MAP: {
+                final int size = readLength (buffer);
+                final Map<Object, Object> map = (tag == TAG_HASH_MAP ? new HashMap<>(2 * size) : new LinkedHashMap<>(2 * size));
+                for (int i = 0; i < size; i++) {
+                    final Object key = read (buffer);
+                    map.put(key, read (buffer));
+                }
+                return map;
+            }
+            case TAG_SERIALIZED: {
+                final int length = readLength (buffer);
+                final ByteBuffer serialized = buffer.slice();
+                serialized.limit(length);
+                buffer.position(buffer.position() + length);
+                return JavaSerializationCodec.INSTANCE.decode(serialized);
+            }
+            default:
+                throw new StreamCorruptedException ("Unknown type tag " + tag);
+        }
+    }
+
+
+    private static void writeBytes (@NonNull final DataOutputStream stream, @NonNull final byte[] bytes) throws IOException {
+        //
+        writeLength (stream, bytes.length);
+        stream.write(bytes);
+    }
+
+
+    private static @NonNull byte[] readBytes (@NonNull final ByteBuffer buffer) throws StreamCorruptedException {
+        //
+        final byte[] bytes = new byte[readLength (buffer)];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+
+    private static void writeLength (@NonNull final DataOutputStream stream, final int length) throws IOException {
+        //
+        int remaining = length;
+        while ((remaining & ~0x7f) != 0) {
+            stream.writeByte((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        stream.writeByte(remaining);
+    }
+
+
+    private static int readLength (@NonNull final ByteBuffer buffer) throws StreamCorruptedException {
+        //
+        int length = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = buffer.get();
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (length < 0 || length > buffer.remaining()) {
+                    // Every encoded element takes at least one byte
+                    throw new StreamCorruptedException ("Invalid length " + length);
+                }
+                return length;
+            }
+        }
+        throw new StreamCorruptedException ("Invalid length");
+    }
+}
@@ -0,0 +1,82 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/** InputStream reading the remaining bytes of a {@link ByteBuffer}, e.g. a memory-mapped file,
+ *  without copying them to an intermediate buffer.
+ *
+ *  The stream reads its own view of the buffer: the position of the given buffer is not changed.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer _buffer;
+    private int _mark;
+
+
+    /** Constructs new instance.
+     *
+     *  @param buffer the buffer to read, from its position to its limit
+     */
+    ByteBufferInputStream(@NonNull final ByteBuffer buffer) {
+        //
+        _buffer = buffer.duplicate();
+        _mark = _buffer.position();
+    }
+
+
+    @Override
+    public int read () {
+        return (_buffer.hasRemaining() ? _buffer.get() & 0xff : -1);
+    }
+
+
+    @Override
+    public int read (@NonNull final byte[] bytes, final int offset, final int length) {
+        //
+        if (length == 0) {
+            return 0;
+        }
+        if (! _buffer.hasRemaining()) {
+            return -1;
+        }
+        final int count = Math.min(length, _buffer.remaining());
+        _buffer.get(bytes, offset, count);
+        return count;
+    }
+
+
+    @Override
+    public long skip (final long count) {
+        //
+        final int skipped = (int) Math.max(0, Math.min(count, _buffer.remaining()));
+        _buffer.position(_buffer.position() + skipped);
+        return skipped;
+    }
+
+
+    @Override
+    public int available () {
+        return _buffer.remaining();
+    }
+
+
+    @Override
+    public boolean markSupported () {
+        return true;
+    }
+
+
+    @Override
+    public void mark (final int readLimit) {
+        _mark = _buffer.position();
+    }
+
+
+    @Override
+    public void reset () {
+        _buffer.position(_mark);
+    }
+}
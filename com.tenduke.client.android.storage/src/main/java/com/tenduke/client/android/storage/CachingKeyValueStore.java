@@ -0,0 +1,463 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+
+/** A {@link KeyValueStore} decorator, which keeps recently used objects in a bounded in-memory cache.
+ *
+ *  Reads are served from the cache when possible, skipping the deserialization, signature verification
+ *  and decryption of the underlying store. Writes go through to the underlying store and then update the
+ *  cache, deletes remove the object from the cache. When the cache exceeds its budget, least recently
+ *  used objects are evicted.
+ *
+ *  The cache returns the same object instance to every reader, callers must not modify objects read from
+ *  the store. The cache sees only changes made through it: do not modify the underlying store directly.
+ *
+ *  The store is thread safe if the underlying store is thread safe.
+ */
+public class CachingKeyValueStore implements BatchKeyValueStore {
+
+    /** Computes the cost of an object with respect to the budget of the cache.
+     */
+    public interface Weigher {
+
+        /** Returns the weight of the object.
+         *
+         *  @param key the key
+         *  @param object the object
+         *  @return the weight, must not be negative
+         */
+        long weigh (@NonNull String key, @NonNull Serializable object);
+
+    }
+
+
+    /** Weigher, which weighs every object as 1, i.e. the budget is the maximum number of entries.
+     */
+    public static final Weigher ENTRY_COUNT_WEIGHER = new Weigher() {
+        @Override
+        public long weigh(@NonNull final String key, @NonNull final Serializable object) {
+            return 1;
+        }
+    };
+
+
+    /** Weigher, which weighs the objects by their Java-serialized size in bytes, i.e. the budget is in bytes.
+     *  The object is serialized once when it is inserted to the cache.
+     */
+    public static final Weigher SERIALIZED_SIZE_WEIGHER = new Weigher() {
+        @Override
+        public long weigh(@NonNull final String key, @NonNull final Serializable object) {
+            //
+            final CountingOutputStream counter = new CountingOutputStream();
+            try {
+                final ObjectOutputStream stream = new ObjectOutputStream(counter);
+                stream.writeObject(object);
+                stream.flush();
+            }
+            catch (final IOException e) {
+                throw new IllegalArgumentException ("Unable to serialize object of key " + key, e);
+            }
+            return key.length() * 2 + counter._count;
+        }
+    };
+
+
+    private final KeyValueStore _store;
+    private final long _maxWeight;
+    private final Weigher _weigher;
+    // Serializes the writes of a key:
+    private final StripedLocks _writeLocks = new StripedLocks();
+
+    // Guarded by _entries:
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long _weight = 0;
+    private long _generation = 0;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+
+    /** Constructs new instance with given budget.
+     *
+     *  @param store the underlying store
+     *  @param maxWeight maximum total weight of the cached objects
+     *  @param weigher the weigher, for example {@link #ENTRY_COUNT_WEIGHER} or {@link #SERIALIZED_SIZE_WEIGHER}
+     */
+    public CachingKeyValueStore(
+            @NonNull final KeyValueStore store,
+            final long maxWeight,
+            @NonNull final Weigher weigher) {
+        //
+        if (maxWeight < 1) {
+            throw new IllegalArgumentException ("maxWeight must be at least 1, was " + maxWeight);
+        }
+        _store = store;
+        _maxWeight = maxWeight;
+        _weigher = weigher;
+    }
+
+
+    /** Constructs new instance, which caches at most {@code maxEntries} objects.
+     *
+     *  @param store the underlying store
+     *  @param maxEntries maximum number of cached objects
+     */
+    public CachingKeyValueStore(@NonNull final KeyValueStore store, final int maxEntries) {
+        this (store, maxEntries, ENTRY_COUNT_WEIGHER);
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param key {@inheritDoc }
+     */
+    @Override
+    public void delete (@NonNull final String key) {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(Collections.singleton(key), true);
+        try {
+            _store.delete(key);
+            invalidate(key);
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public @Nullable <T extends Serializable> T read (@NonNull final String key, @NonNull final Class<T> objectClass) throws Exception {
+        //
+        final long generation;
+        synchronized (_entries) {
+            final Entry entry = _entries.get(key);
+            if (entry != null) {
+                _hits.incrementAndGet();
+                return objectClass.cast(entry._object);
+            }
+            generation = _generation;
+        }
+
+        _misses.incrementAndGet();
+        final T object = _store.read(key, objectClass);
+
+        if (object != null) {
+            final long weight = _weigher.weigh(key, object);
+            synchronized (_entries) {
+                // Cache only if no write has happened meanwhile, the read value may already be stale:
+                if (generation == _generation) {
+                    put(key, object, weight);
+                }
+            }
+        }
+        return object;
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param object {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public <T extends Serializable> void store (@NonNull final String key, @NonNull final T object) throws Exception {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(Collections.singleton(key), true);
+        try {
+            try {
+                _store.store(key, object);
+            }
+            catch (final Exception e) {
+                // State of the underlying store is unknown:
+                invalidate(key);
+                throw e;
+            }
+
+            final long weight = _weigher.weigh(key, object);
+            synchronized (_entries) {
+                _generation++;
+                put(key, object, weight);
+            }
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param keys {@inheritDoc }
+     */
+    @Override
+    public void deleteAll (@NonNull final Collection<String> keys) {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(keys, true);
+        try {
+            BatchOperations.deleteAll (_store, keys);
+            for (final String key : keys) {
+                invalidate(key);
+            }
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  Objects not found in the cache are read from the underlying store with a single
+     *  {@link BatchKeyValueStore#readAll(Collection, Class)}, if the store is a {@link BatchKeyValueStore}.
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param keys {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public @NonNull <T extends Serializable> Map<String, T> readAll (@NonNull final Collection<String> keys, @NonNull final Class<T> objectClass) throws Exception {
+        //
+        final Map<String, T> objects = new LinkedHashMap<>();
+        final List<String> missing = new ArrayList<>();
+        final long generation;
+        synchronized (_entries) {
+            for (final String key : keys) {
+                final Entry entry = _entries.get(key);
+                if (entry == null) {
+                    missing.add(key);
+                }
+                else {
+                    objects.put(key, objectClass.cast(entry._object));
+                }
+            }
+            generation = _generation;
+        }
+        _hits.addAndGet(keys.size() - missing.size());
+
+        if (missing.isEmpty()) {
+            return objects;
+        }
+
+        _misses.addAndGet(missing.size());
+        final Map<String, T> read = BatchOperations.readAll (_store, missing, objectClass);
+        final Map<String, Long> weights = weighAll(read);
+        synchronized (_entries) {
+            if (generation == _generation) {
+                for (final Map.Entry<String, T> entry : read.entrySet()) {
+                    put(entry.getKey(), entry.getValue(), weights.get(entry.getKey()));
+                }
+            }
+        }
+        objects.putAll(read);
+        return objects;
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param objects {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public void storeAll (@NonNull final Map<String, ? extends Serializable> objects) throws Exception {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(objects.keySet(), true);
+        try {
+            try {
+                BatchOperations.storeAll (_store, objects);
+            }
+            catch (final Exception e) {
+                // State of the underlying store is unknown:
+                for (final String key : objects.keySet()) {
+                    invalidate(key);
+                }
+                throw e;
+            }
+
+            final Map<String, Long> weights = weighAll(objects);
+            synchronized (_entries) {
+                _generation++;
+                for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+                    put(entry.getKey(), entry.getValue(), weights.get(entry.getKey()));
+                }
+            }
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    /** Removes an object from the cache, without touching the underlying store.
+     *
+     *  @param key the key
+     */
+    public void invalidate (@NonNull final String key) {
+        //
+        synchronized (_entries) {
+            _generation++;
+            final Entry entry = _entries.remove(key);
+            if (entry != null) {
+                _weight -= entry._weight;
+            }
+        }
+    }
+
+
+    /** Removes all objects from the cache, without touching the underlying store.
+     */
+    public void invalidateAll () {
+        //
+        synchronized (_entries) {
+            _generation++;
+            _entries.clear();
+            _weight = 0;
+        }
+    }
+
+
+    /** Returns number of reads served from the cache.
+     *
+     *  @return number of cache hits
+     */
+    public long getHitCount() {
+        return _hits.get();
+    }
+
+
+    /** Returns number of reads served from the underlying store.
+     *
+     *  @return number of cache misses
+     */
+    public long getMissCount() {
+        return _misses.get();
+    }
+
+
+    /** Returns number of objects evicted to keep the cache within its budget.
+     *
+     *  @return number of evictions
+     */
+    public long getEvictionCount() {
+        return _evictions.get();
+    }
+
+
+    /** Returns the number of cached objects.
+     *
+     *  @return the number of cached objects
+     */
+    public int size() {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+
+    /** Returns the total weight of the cached objects.
+     *
+     *  @return the total weight
+     */
+    public long getWeight() {
+        synchronized (_entries) {
+            return _weight;
+        }
+    }
+
+
+    /** Returns the underlying store.
+     *
+     *  @return the underlying store
+     */
+    public @NonNull KeyValueStore getStore() {
+        return _store;
+    }
+
+
+    // Must be called while holding _entries
+    private void put (@NonNull final String key, @NonNull final Serializable object, final long weight) {
+        //
+        final Entry previous = _entries.remove(key);
+        if (previous != null) {
+            _weight -= previous._weight;
+        }
+        if (weight > _maxWeight) {
+            // Would evict everything else and still not fit:
+            return;
+        }
+        _entries.put(key, new Entry(object, weight));
+        _weight += weight;
+
+        final Iterator<Map.Entry<String, Entry>> eldest = _entries.entrySet().iterator();
+        while (_weight > _maxWeight && eldest.hasNext()) {
+            _weight -= eldest.next().getValue()._weight;
+            eldest.remove();
+            _evictions.incrementAndGet();
+        }
+    }
+
+
+    private @NonNull Map<String, Long> weighAll (@NonNull final Map<String, ? extends Serializable> objects) {
+        //
+        final Map<String, Long> weights = new HashMap<>();
+        for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+            weights.put(entry.getKey(), _weigher.weigh(entry.getKey(), entry.getValue()));
+        }
+        return weights;
+    }
+
+
+    private static final class Entry {
+        private final Serializable _object;
+        private final long _weight;
+
+        private Entry(final Serializable object, final long weight) {
+            _object = object;
+            _weight = weight;
+        }
+    }
+
+
+    private static final class CountingOutputStream extends OutputStream {
+        private long _count = 0;
+
+        @Override
+        public void write(final int b) {
+            _count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            _count += len;
+        }
+    }
+}
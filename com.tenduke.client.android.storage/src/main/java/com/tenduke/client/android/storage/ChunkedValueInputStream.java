@@ -0,0 +1,274 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.KeyRing;
+import com.tenduke.client.android.security.SignatureVerificationException;
+import com.tenduke.client.android.security.Signer;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+
+/** InputStream reading a streamed value written by {@link ChunkedValueOutputStream}, one chunk at a time.
+ *
+ *  The signature covers the whole value, so it can only be verified at the end of the value: data
+ *  returned before the end has not been authenticated yet. When the end is reached, a failed verification
+ *  throws an {@link IOException} caused by {@link SignatureVerificationException}, as does a value
+ *  truncated before its terminator.
+ */
+final class ChunkedValueInputStream extends InputStream {
+
+    private final InputStream _in;
+    private final Cipher _cipher;
+    private final SecretKey _key;
+    private final Signer _verifier;
+    private final int _flags;
+    private final byte[] _data;
+    private final byte[] _plaintext;
+    private final byte[] _word = new byte[4];
+    private int _position = 0;
+    private int _limit = 0;
+    private boolean _end = false;
+
+
+    /** Constructs new instance and reads the header.
+     *
+     *  @param in the stream to read from
+     *  @param cipher cipher to decrypt the chunks with, not shared with other users. {@code null} if no encryption context is set.
+     *  @param encryptionContext context to get the key from, by the key id of the value if it has one.
+     *         {@code null} if no encryption context is set.
+     *  @param verifier signer, not shared with other users. {@code null} if no signing context is set.
+     *  @throws InvalidKeyException if the value is encrypted, but no cipher is given
+     *  @throws IOException if the stream does not contain a streamed value
+     */
+    ChunkedValueInputStream(
+            @NonNull final InputStream in,
+            @Nullable final Cipher cipher,
+            @Nullable final EncryptionContext encryptionContext,
+            @Nullable final Signer verifier) throws InvalidKeyException, IOException {
+        //
+        _in = in;
+        _cipher = cipher;
+
+        final byte[] headerBytes = new byte[ChunkedValueOutputStream.HEADER_BYTES];
+        readFully (headerBytes, 0, headerBytes.length);
+        final ByteBuffer header = ByteBuffer.wrap(headerBytes);
+        if (header.get() != ChunkedValueOutputStream.MAGIC_0 || header.get() != ChunkedValueOutputStream.MAGIC_1) {
+            throw new IOException ("Not a streamed value");
+        }
+        final byte version = header.get();
+        if (version != ChunkedValueOutputStream.FORMAT_VERSION) {
+            throw new IOException ("Unsupported streamed value format version " + version);
+        }
+        _flags = header.get() & 0xff;
+        final int chunkBytes = header.getInt();
+        if (chunkBytes < 1 || chunkBytes > ChunkedValueOutputStream.MAX_CHUNK_BYTES) {
+            throw new IOException ("Invalid chunk size " + chunkBytes);
+        }
+        final byte[] keyIdBytes = new byte[(_flags & ChunkedValueOutputStream.FLAG_KEY_ID) == 0 ? 0 : ChunkedValueOutputStream.KEY_ID_BYTES];
+        readFully (keyIdBytes, 0, keyIdBytes.length);
+
+        if ((_flags & ChunkedValueOutputStream.FLAG_SIGNED) != 0 && verifier == null) {
+            Log.w (TAG, "Value is signed, but no signature settings configured. Returning the value without verifying the signature!");
+        }
+        _verifier = ((_flags & ChunkedValueOutputStream.FLAG_SIGNED) != 0 ? verifier : null);
+        if (_verifier != null) {
+            _verifier.initVerify();
+            update (headerBytes, 0, headerBytes.length);
+            update (keyIdBytes, 0, keyIdBytes.length);
+        }
+
+        if ((_flags & ChunkedValueOutputStream.FLAG_ENCRYPTED) != 0) {
+            if (cipher == null || encryptionContext == null) {
+                throw new InvalidKeyException ("Value is encrypted, but no encryption context is set");
+            }
+            _key = encryptionContext.getSecretKey(keyIdOf (encryptionContext, keyIdBytes));
+            if ((_flags & ChunkedValueOutputStream.FLAG_IV) == 0) {
+                cipher.init(Cipher.DECRYPT_MODE, _key);
+            }
+            // Encrypted chunk may be longer than the plaintext by padding, authentication tag etc.
+            _data = new byte[chunkBytes + 1024];
+            _plaintext = new byte[chunkBytes + 1024];
+        }
+        else {
+            _key = null;
+            _data = new byte[chunkBytes];
+            _plaintext = _data;
+        }
+    }
+
+
+    @Override
+    public int read () throws IOException {
+        //
+        if (! ensureData ()) {
+            return -1;
+        }
+        return _plaintext[_position++] & 0xff;
+    }
+
+
+    @Override
+    public int read (@NonNull final byte[] bytes, final int offset, final int length) throws IOException {
+        //
+        if (length == 0) {
+            return 0;
+        }
+        if (! ensureData ()) {
+            return -1;
+        }
+        final int count = Math.min(length, _limit - _position);
+        System.arraycopy(_plaintext, _position, bytes, offset, count);
+        _position += count;
+        return count;
+    }
+
+
+    @Override
+    public int available () {
+        return _limit - _position;
+    }
+
+
+    @Override
+    public void close () throws IOException {
+        _in.close();
+    }
+
+
+    /** Makes sure there is data to read, reading the next chunk if needed.
+     *
+     *  @return {@code false} at the end of the value
+     */
+    private boolean ensureData () throws IOException {
+        //
+        while (_position == _limit) {
+            if (_end) {
+                return false;
+            }
+            readChunk ();
+        }
+        return true;
+    }
+
+
+    private void readChunk () throws IOException {
+        //
+        final int length = readInt ();
+        if (length == 0) {
+            readSignature ();
+            _end = true;
+            return;
+        }
+        if (length < 0 || length > _data.length) {
+            throw new IOException ("Invalid chunk length " + length);
+        }
+
+        AlgorithmParameterSpec iv = null;
+        if ((_flags & ChunkedValueOutputStream.FLAG_IV) != 0) {
+            readFully (_word, 0, 1);
+            update (_word, 0, 1);
+            final byte[] vector = new byte[_word[0] & 0xff];
+            readFully (vector, 0, vector.length);
+            update (vector, 0, vector.length);
+            iv = EncryptionContext.parameterSpecFor(_cipher, vector);
+        }
+        readFully (_data, 0, length);
+        update (_data, 0, length);
+
+        _position = 0;
+        if ((_flags & ChunkedValueOutputStream.FLAG_ENCRYPTED) == 0) {
+            _limit = length;
+            return;
+        }
+        try {
+            if (iv != null) {
+                _cipher.init(Cipher.DECRYPT_MODE, _key, iv);
+            }
+            _limit = _cipher.doFinal(_data, 0, length, _plaintext, 0);
+        }
+        catch (final GeneralSecurityException e) {
+            throw new IOException ("Unable to decrypt chunk", e);
+        }
+    }
+
+
+    private void readSignature () throws IOException {
+        //
+        readFully (_word, 0, 2);
+        final byte[] signature = new byte[((_word[0] & 0xff) << 8) | (_word[1] & 0xff)];
+        readFully (signature, 0, signature.length);
+        if (_verifier == null) {
+            return;
+        }
+        try {
+            if (! _verifier.verify(signature)) {
+                throw new IOException ("Signature verification failed", new SignatureVerificationException());
+            }
+        }
+        catch (final SignatureException e) {
+            throw new IOException ("Signature verification failed", e);
+        }
+    }
+
+
+    private int readInt () throws IOException {
+        //
+        readFully (_word, 0, 4);
+        update (_word, 0, 4);
+        return ByteBuffer.wrap(_word).getInt();
+    }
+
+
+    private void update (@NonNull final byte[] bytes, final int offset, final int length) throws IOException {
+        //
+        if (_verifier != null) {
+            try {
+                _verifier.update(bytes, offset, length);
+            }
+            catch (final SignatureException e) {
+                throw new IOException ("Unable to verify value", e);
+            }
+        }
+    }
+
+
+    private void readFully (@NonNull final byte[] bytes, final int offset, final int length) throws IOException {
+        //
+        int position = offset;
+        final int end = offset + length;
+        while (position < end) {
+            final int read = _in.read(bytes, position, end - position);
+            if (read < 0) {
+                throw new EOFException ("Truncated streamed value");
+            }
+            position += read;
+        }
+    }
+
+
+    /** Returns the id of the key to decrypt with. Values written before the key ring was used have no key id,
+     *  and are decrypted with the initial key of the ring.
+     */
+    private static int keyIdOf (@NonNull final EncryptionContext encryptionContext, @NonNull final byte[] keyIdBytes) {
+        //
+        if (keyIdBytes.length > 0) {
+            return ByteBuffer.wrap(keyIdBytes).getInt();
+        }
+        return (encryptionContext.getKeyRing() == null ? EncryptionContext.NO_KEY_ID : KeyRing.INITIAL_KEY_ID);
+    }
+
+
+    private static final String TAG = ChunkedValueInputStream.class.getSimpleName();
+
+}
@@ -0,0 +1,251 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.Signer;
+import com.tenduke.client.io.IOUtil;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+
+/** OutputStream writing a streamed value in chunks, so that memory use is bounded by the chunk size
+ *  regardless of the size of the value.
+ *
+ *  A streamed value consists of:
+ *  <ul>
+ *  <li>header: magic (2 bytes), format version (1 byte), flags (1 byte), chunk size (4 bytes) and
+ *      the id of the encryption key (4 bytes, only if the encryption context has a key ring)</li>
+ *  <li>chunks: each chunk is the length of the data (4 bytes), the initialization vector (length byte and
+ *      the vector, only if the cipher uses one) and up to chunk size bytes of data, encrypted separately
+ *      if encryption is used</li>
+ *  <li>terminator: length 0 (4 bytes)</li>
+ *  <li>signature length (2 bytes) and signature of all the preceding bytes</li>
+ *  </ul>
+ *  Ciphers using an initialization vector are re-initialized for each chunk, to get a fresh vector.
+ */
+final class ChunkedValueOutputStream extends OutputStream {
+
+    /** Default chunk size in bytes. */
+    static final int DEFAULT_CHUNK_BYTES = 64 * 1024;
+
+    /** Maximum chunk size in bytes. */
+    static final int MAX_CHUNK_BYTES = 16 * 1024 * 1024;
+
+    // Header of streamed values:
+    static final byte MAGIC_0 = 0x1D;
+    static final byte MAGIC_1 = (byte) 0xB6;
+    static final byte FORMAT_VERSION = 1;
+    static final int FLAG_ENCRYPTED = 0x01;
+    static final int FLAG_SIGNED = 0x02;
+    static final int FLAG_IV = 0x04;
+    static final int FLAG_KEY_ID = 0x08;
+    static final int HEADER_BYTES = 8;
+    static final int KEY_ID_BYTES = 4;
+
+    private final OutputStream _out;
+    private final Cipher _cipher;
+    private final SecretKey _key;
+    private final Signer _signer;
+    private final byte[] _chunk;
+    private final byte[] _encrypted;
+    private final boolean _chunkIv;
+    private int _count = 0;
+    private int _chunks = 0;
+    private boolean _finished = false;
+
+
+    /** Constructs new instance and writes the header.
+     *
+     *  @param out the stream to write to
+     *  @param cipher cipher to encrypt the chunks with, not shared with other users. {@code null} if no encryption.
+     *  @param key key to encrypt with, {@code null} if no encryption
+     *  @param keyId id of the key in the key ring, {@link EncryptionContext#NO_KEY_ID} if no key ring
+     *  @param signer signer, not shared with other users. {@code null} if the value is not signed.
+     *  @param chunkBytes chunk size in bytes
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     */
+    ChunkedValueOutputStream(
+            @NonNull final OutputStream out,
+            @Nullable final Cipher cipher,
+            @Nullable final SecretKey key,
+            final int keyId,
+            @Nullable final Signer signer,
+            final int chunkBytes) throws InvalidKeyException, IOException {
+        //
+        if (chunkBytes < 1 || chunkBytes > MAX_CHUNK_BYTES) {
+            throw new IllegalArgumentException ("chunkBytes must be between 1 and " + MAX_CHUNK_BYTES + ", was " + chunkBytes);
+        }
+        _out = out;
+        _cipher = cipher;
+        _key = key;
+        _signer = signer;
+        _chunk = new byte[chunkBytes];
+
+        int flags = 0;
+        if (cipher != null) {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            _chunkIv = (cipher.getIV() != null);
+            _encrypted = new byte[cipher.getOutputSize(chunkBytes)];
+            flags |= FLAG_ENCRYPTED | (_chunkIv ? FLAG_IV : 0) | (keyId == EncryptionContext.NO_KEY_ID ? 0 : FLAG_KEY_ID);
+        }
+        else {
+            _chunkIv = false;
+            _encrypted = null;
+        }
+        if (signer != null) {
+            signer.initSign();
+            flags |= FLAG_SIGNED;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + ((flags & FLAG_KEY_ID) == 0 ? 0 : KEY_ID_BYTES));
+        header.put(MAGIC_0).put(MAGIC_1).put(FORMAT_VERSION).put((byte) flags).putInt(chunkBytes);
+        if ((flags & FLAG_KEY_ID) != 0) {
+            header.putInt(keyId);
+        }
+        emit (header.array(), 0, header.capacity());
+    }
+
+
+    @Override
+    public void write (final int b) throws IOException {
+        //
+        ensureNotFinished ();
+        _chunk[_count++] = (byte) b;
+        if (_count == _chunk.length) {
+            writeChunk ();
+        }
+    }
+
+
+    @Override
+    public void write (@NonNull final byte[] bytes, final int offset, final int length) throws IOException {
+        //
+        ensureNotFinished ();
+        int position = offset;
+        final int end = offset + length;
+        while (position < end) {
+            final int count = Math.min(end - position, _chunk.length - _count);
+            System.arraycopy(bytes, position, _chunk, _count, count);
+            _count += count;
+            position += count;
+            if (_count == _chunk.length) {
+                writeChunk ();
+            }
+        }
+    }
+
+
+    @Override
+    public void flush () throws IOException {
+        _out.flush();
+    }
+
+
+    /** Writes the last chunk, the terminator and the signature, without closing the underlying stream.
+     *
+     *  @throws IOException -
+     */
+    void finish () throws IOException {
+        //
+        if (_finished) {
+            return;
+        }
+        if (_count > 0) {
+            writeChunk ();
+        }
+        emit (new byte[4], 0, 4);
+
+        byte[] signature = new byte[0];
+        if (_signer != null) {
+            try {
+                signature = _signer.sign();
+            }
+            catch (final SignatureException e) {
+                throw new IOException ("Unable to sign value", e);
+            }
+        }
+        _out.write(ByteBuffer.allocate(2).putShort((short) signature.length).array());
+        _out.write(signature);
+        _out.flush();
+        _finished = true;
+    }
+
+
+    @Override
+    public void close () throws IOException {
+        //
+        Throwable mainException = null;
+        try {
+            finish ();
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (_out, mainException);
+        }
+    }
+
+
+    private void writeChunk () throws IOException {
+        //
+        byte[] data = _chunk;
+        int length = _count;
+        byte[] iv = null;
+        if (_cipher != null) {
+            try {
+                if (_chunkIv) {
+                    if (_chunks > 0) {
+                        // Fresh initialization vector for each chunk:
+                        _cipher.init(Cipher.ENCRYPT_MODE, _key);
+                    }
+                    iv = _cipher.getIV();
+                }
+                length = _cipher.doFinal(_chunk, 0, _count, _encrypted, 0);
+                data = _encrypted;
+            }
+            catch (final GeneralSecurityException e) {
+                throw new IOException ("Unable to encrypt chunk", e);
+            }
+        }
+        emit (ByteBuffer.allocate(4).putInt(length).array(), 0, 4);
+        if (iv != null) {
+            emit (new byte[] {(byte) iv.length}, 0, 1);
+            emit (iv, 0, iv.length);
+        }
+        emit (data, 0, length);
+        _count = 0;
+        _chunks++;
+    }
+
+
+    private void emit (@NonNull final byte[] bytes, final int offset, final int length) throws IOException {
+        //
+        if (_signer != null) {
+            try {
+                _signer.update(bytes, offset, length);
+            }
+            catch (final SignatureException e) {
+                throw new IOException ("Unable to sign value", e);
+            }
+        }
+        _out.write(bytes, offset, length);
+    }
+
+
+    private void ensureNotFinished () throws IOException {
+        //
+        if (_finished) {
+            throw new IOException ("Stream has been closed");
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/** Converts stored objects to bytes and back.
+ *
+ *  The stores encrypt and sign the bytes produced by the codec, and record the {@link #getId() id}
+ *  of the codec with each value, so that values written with a codec can be read back after the
+ *  store has been configured with another codec.
+ *
+ *  Implementations must be thread safe.
+ */
+public interface Codec {
+
+    /** Returns the id of the codec, recorded with the encoded values. Ids 0 - 15 are reserved for the
+     *  codecs of this library, custom codecs must use ids 16 - 255.
+     *
+     *  @return the id of the codec
+     */
+    int getId ();
+
+
+    /** Encodes an object.
+     *
+     *  @param object the object to encode
+     *  @return the encoded object
+     *  @throws IOException if the object cannot be encoded
+     */
+    @NonNull byte[] encode (@NonNull Serializable object) throws IOException;
+
+
+    /** Decodes an object.
+     *
+     *  @param bytes the encoded object, from the position to the limit of the buffer
+     *  @return the decoded object
+     *  @throws ClassNotFoundException if the class of the object is not found
+     *  @throws IOException if the bytes cannot be decoded
+     */
+    @NonNull Serializable decode (@NonNull ByteBuffer bytes) throws ClassNotFoundException, IOException;
+
+}
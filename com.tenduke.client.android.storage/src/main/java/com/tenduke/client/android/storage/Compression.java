@@ -0,0 +1,41 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Compresses the encoded objects before they are encrypted.
+ *
+ *  Encrypted bytes do not compress, so compression must happen before encryption. The stores record the
+ *  {@link #getId() id} of the compression with each compressed value, so that reads know how to decompress it.
+ *
+ *  Implementations must be thread safe.
+ */
+public interface Compression {
+
+    /** Returns the id of the compression, recorded with the compressed values. Ids 0 - 15 are reserved for
+     *  the compressions of this library, custom compressions must use ids 16 - 255.
+     *
+     *  @return the id of the compression
+     */
+    int getId ();
+
+
+    /** Compresses bytes.
+     *
+     *  @param bytes the bytes to compress
+     *  @return the compressed bytes, which may be longer than the input for incompressible data
+     */
+    @NonNull byte[] compress (@NonNull byte[] bytes);
+
+
+    /** Decompresses bytes compressed with {@link #compress(byte[])}.
+     *
+     *  @param bytes the compressed bytes, from the position to the limit of the buffer
+     *  @return the decompressed bytes
+     *  @throws IOException if the bytes are corrupted
+     */
+    @NonNull byte[] decompress (@NonNull ByteBuffer bytes) throws IOException;
+
+}
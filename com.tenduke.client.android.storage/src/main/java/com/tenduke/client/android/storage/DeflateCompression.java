@@ -0,0 +1,139 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/** {@link Compression} using deflate (zlib). Gives good compression ratios, at a higher cost than
+ *  {@link LzCompression}, especially when compressing.
+ *
+ *  The compressed bytes are the length of the original bytes (4 bytes) followed by the zlib stream.
+ *  The native deflater and inflater are reused per calling thread.
+ */
+public final class DeflateCompression implements Compression {
+
+    /** Id of the compression. */
+    public static final int ID = 1;
+
+    /** Instance using the default compression level. */
+    public static final DeflateCompression INSTANCE = new DeflateCompression(Deflater.DEFAULT_COMPRESSION);
+
+    // Maximum compression ratio of deflate, bounds the length of corrupted values:
+    private static final int MAX_RATIO = 1032;
+
+    private final ThreadLocal<Deflater> _deflaters;
+    private final ThreadLocal<Inflater> _inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+
+    /** Constructs new instance.
+     *
+     *  @param level compression level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION},
+     *  or {@link Deflater#DEFAULT_COMPRESSION}. Values written with any level are read by every instance.
+     */
+    public DeflateCompression(final int level) {
+        //
+        if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException ("Invalid compression level " + level);
+        }
+        _deflaters = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(level);
+            }
+        };
+    }
+
+
+    @Override
+    public int getId () {
+        return ID;
+    }
+
+
+    @Override
+    public @NonNull byte[] compress (@NonNull final byte[] bytes) {
+        //
+        final Deflater deflater = _deflaters.get();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            byte[] compressed = new byte[4 + bytes.length / 2 + 64];
+            ByteBuffer.wrap(compressed).putInt(bytes.length);
+            int length = 4;
+            while (! deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            return Arrays.copyOf(compressed, length);
+        }
+        finally {
+            deflater.reset();
+        }
+    }
+
+
+    @Override
+    public @NonNull byte[] decompress (@NonNull final ByteBuffer bytes) throws IOException {
+        //
+        final ByteBuffer buffer = bytes.duplicate();
+        if (buffer.remaining() < 4) {
+            throw new StreamCorruptedException ("Truncated compressed value");
+        }
+        final int length = buffer.getInt();
+        final int inputLength = buffer.remaining();
+        if (length < 0 || length > (long) inputLength * MAX_RATIO + 64) {
+            throw new StreamCorruptedException ("Invalid length " + length);
+        }
+
+        final byte[] input;
+        final int offset;
+        if (buffer.hasArray()) {
+            input = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+        }
+        else {
+            // E.g. memory-mapped value, the inflater needs an array:
+            input = new byte[inputLength];
+            buffer.get(input);
+            offset = 0;
+        }
+
+        final Inflater inflater = _inflaters.get();
+        try {
+            inflater.setInput(input, offset, inputLength);
+            final byte[] decompressed = new byte[length];
+            int position = 0;
+            while (position < length) {
+                final int count = inflater.inflate(decompressed, position, length - position);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new StreamCorruptedException ("Truncated compressed value");
+                }
+                position += count;
+            }
+            if (! inflater.finished() && inflater.inflate(new byte[1]) != 0) {
+                throw new StreamCorruptedException ("Compressed value longer than " + length + " bytes");
+            }
+            return decompressed;
+        }
+        catch (final DataFormatException e) {
+            throw new StreamCorruptedException ("Corrupted compressed value: " + e.getMessage());
+        }
+        finally {
+            inflater.reset();
+        }
+    }
+}
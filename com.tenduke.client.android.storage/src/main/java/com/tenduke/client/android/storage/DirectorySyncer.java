@@ -0,0 +1,148 @@
+package com.tenduke.client.android.storage;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+
+/** Flushes directory entries (created, renamed and deleted files) of a directory to disk, with optional
+ *  group commit.
+ *
+ *  Callers of {@link #sync()} block until a directory fsync, which started after their call, has
+ *  completed. Concurrent callers share a single fsync: one caller (the leader) waits for the group
+ *  commit window to collect more callers, and then syncs on behalf of all of them.
+ *
+ *  Syncing a directory requires API level 21, on older platforms {@link #sync()} does nothing.
+ */
+final class DirectorySyncer {
+
+    private final File _directory;
+    private volatile long _groupCommitWindowMillis;
+
+    // Guarded by "this":
+    private long _requested = 0;
+    private long _completed = 0;
+    private boolean _syncing = false;
+
+
+    /** Constructs new instance.
+     *
+     *  @param directory the directory to sync
+     *  @param groupCommitWindowMillis how long the leader waits for more callers before syncing, 0 to sync immediately.
+     */
+    DirectorySyncer(@NonNull final File directory, final long groupCommitWindowMillis) {
+        //
+        _directory = directory;
+        setGroupCommitWindowMillis(groupCommitWindowMillis);
+    }
+
+
+    /** Blocks until the directory has been synced.
+     *
+     *  @throws IOException if the sync failed
+     */
+    void sync () throws IOException {
+        //
+        final long ticket;
+        boolean leader = false;
+        boolean interrupted = false;
+        synchronized (this) {
+            ticket = ++_requested;
+            while (_completed < ticket) {
+                if (! _syncing) {
+                    _syncing = true;
+                    leader = true;
+                    break;
+                }
+                try {
+                    wait();
+                }
+                catch (final InterruptedException e) {
+                    // The sync must complete anyway, restore the interrupt status after that:
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (! leader) {
+            // Another thread synced on behalf of this one
+            return;
+        }
+
+        long target = ticket;
+        boolean succeeded = false;
+        try {
+            final long window = _groupCommitWindowMillis;
+            if (window > 0) {
+                sleepWindow (window);
+            }
+            synchronized (this) {
+                target = _requested;
+            }
+            fsyncDirectory();
+            succeeded = true;
+        }
+        finally {
+            synchronized (this) {
+                _syncing = false;
+                if (succeeded && target > _completed) {
+                    _completed = target;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+
+    /** Sets the group commit window.
+     *
+     *  @param groupCommitWindowMillis how long the leader waits for more callers before syncing, 0 to sync immediately.
+     */
+    void setGroupCommitWindowMillis (final long groupCommitWindowMillis) {
+        //
+        if (groupCommitWindowMillis < 0) {
+            throw new IllegalArgumentException ("groupCommitWindowMillis must not be negative, was " + groupCommitWindowMillis);
+        }
+        _groupCommitWindowMillis = groupCommitWindowMillis;
+    }
+
+
+    private void fsyncDirectory () throws IOException {
+        //
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        try {
+            final FileDescriptor descriptor = Os.open(_directory.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(descriptor);
+            }
+            finally {
+                Os.close(descriptor);
+            }
+        }
+        catch (final ErrnoException e) {
+            throw new IOException ("Unable to sync directory " + _directory.getAbsolutePath(), e);
+        }
+    }
+
+
+    private static void sleepWindow (final long millis) {
+        //
+        try {
+            Thread.sleep(millis);
+        }
+        catch (final InterruptedException e) {
+            // Cut the window short, but let the caller see the interrupt:
+            Thread.currentThread().interrupt();
+        }
+    }
+}
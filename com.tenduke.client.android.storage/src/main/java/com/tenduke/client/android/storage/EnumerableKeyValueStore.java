@@ -0,0 +1,43 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/** Key-value store, which can list its keys.
+ *
+ *  The keys are kept in an index maintained by the writes, so listing the keys does not scan the storage.
+ */
+public interface EnumerableKeyValueStore extends KeyValueStore {
+
+
+    /** Returns the keys of the store.
+     *
+     * @return the keys in ascending order
+     * @throws Exception -
+     */
+    @NonNull List<String> keys () throws Exception;
+
+
+    /** Returns the keys starting with a prefix.
+     *
+     * @param prefix the prefix
+     * @return the keys starting with the prefix, in ascending order
+     * @throws Exception -
+     */
+    @NonNull List<String> keys (@NonNull String prefix) throws Exception;
+
+
+    /** Reads the objects, whose keys start with a prefix.
+     *
+     * @param <T> Type of the objects
+     * @param prefix the prefix
+     * @param objectClass class of stored objects
+     * @return the objects by key, in ascending order of the keys
+     * @throws Exception -
+     */
+    @NonNull <T extends Serializable> Map<String, T> scan (@NonNull String prefix, @NonNull Class<T> objectClass) throws Exception;
+
+}
@@ -0,0 +1,345 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/** {@link AsyncKeyValueStore}, which runs the operations of a {@link KeyValueStore} with an {@link Executor}.
+ *
+ *  Writes (stores and deletes) of a key are executed in order, one at a time. Writes of a key, which are
+ *  still waiting for execution, are coalesced: a new write replaces the waiting one, so that only the
+ *  last value is serialized, encrypted and written. The futures and callbacks of the coalesced writes
+ *  complete when the write replacing them completes.
+ *
+ *  Callbacks are called on the threads of the executor. Futures of reads can be cancelled, futures of
+ *  writes cannot, as they may be shared by several coalesced writes.
+ */
+public class ExecutorKeyValueStore implements AsyncKeyValueStore {
+
+    private final KeyValueStore _store;
+    private final Executor _executor;
+
+    // The write of a key currently running or waiting for execution. Guarded by itself.
+    private final Map<String, Write> _writes = new HashMap<>();
+
+
+    /** Constructs new instance.
+     *
+     *  @param store the store to run the operations against
+     *  @param executor the executor to run the operations with
+     */
+    public ExecutorKeyValueStore(@NonNull final KeyValueStore store, @NonNull final Executor executor) {
+        //
+        _store = store;
+        _executor = executor;
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param key {@inheritDoc }
+     *  @param callback {@inheritDoc }
+     *  @return {@inheritDoc }
+     */
+    @Override
+    public @NonNull Future<Void> delete (@NonNull final String key, @Nullable final Callback<Void> callback) {
+        return write (key, null, callback);
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @param callback {@inheritDoc }
+     *  @return {@inheritDoc }
+     */
+    @Override
+    public @NonNull <T extends Serializable> Future<T> read (
+            @NonNull final String key,
+            @NonNull final Class<T> objectClass,
+            @Nullable final Callback<T> callback) {
+        //
+        final Callable<T> operation;
+        synchronized (_writes) {
+            final Write write = _writes.get(key);
+            if (write == null) {
+                operation = new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return _store.read(key, objectClass);
+                    }
+                };
+            }
+            else {
+                // Read your writes: The last pending write defines the value
+                final Serializable pending = write.last()._object;
+                operation = new Callable<T>() {
+                    @Override
+                    public T call() {
+                        return objectClass.cast(pending);
+                    }
+                };
+            }
+        }
+
+        final Task<T> task = new Task<>(operation, true);
+        task.addCallback(callback);
+        execute (task);
+        return task;
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param object {@inheritDoc }
+     *  @param callback {@inheritDoc }
+     *  @return {@inheritDoc }
+     */
+    @Override
+    public @NonNull <T extends Serializable> Future<Void> store (
+            @NonNull final String key,
+            @NonNull final T object,
+            @Nullable final Callback<Void> callback) {
+        //
+        return write (key, object, callback);
+    }
+
+
+    /** Returns the underlying store.
+     *
+     *  @return the underlying store
+     */
+    public @NonNull KeyValueStore getStore() {
+        return _store;
+    }
+
+
+    /** Schedules a write, or coalesces it to a waiting one.
+     *
+     *  @param key key
+     *  @param object object to store, {@code null} to delete
+     *  @param callback optional callback
+     *  @return future of the write
+     */
+    private @NonNull Future<Void> write (
+            @NonNull final String key,
+            @Nullable final Serializable object,
+            @Nullable final Callback<Void> callback) {
+        //
+        final Write write;
+        synchronized (_writes) {
+            final Write current = _writes.get(key);
+            if (current != null) {
+                final Write last = current.last();
+                if (! last._started) {
+                    last._object = object;
+                    last._task.addCallback(callback);
+                    return last._task;
+                }
+                // The current write is running, queue a new one after it:
+                current._next = new Write(key, object);
+                current._next._task.addCallback(callback);
+                return current._next._task;
+            }
+
+            write = new Write(key, object);
+            write._task.addCallback(callback);
+            _writes.put(key, write);
+        }
+
+        executeWrite (write);
+        return write._task;
+    }
+
+
+    /** Called when a write has completed, schedules the next write of the key.
+     *
+     *  @param write the completed write
+     */
+    private void completed (@NonNull final Write write) {
+        //
+        final Write next;
+        synchronized (_writes) {
+            next = write._next;
+            if (next == null) {
+                _writes.remove(write._key);
+            }
+            else {
+                _writes.put(write._key, next);
+            }
+        }
+
+        if (next != null) {
+            executeWrite (next);
+        }
+    }
+
+
+    private void executeWrite (@NonNull final Write write) {
+        //
+        if (! execute (write._task)) {
+            // Not going to run, let the next write of the key proceed
+            completed (write);
+        }
+    }
+
+
+    private boolean execute (@NonNull final Task<?> task) {
+        //
+        try {
+            _executor.execute(task);
+            return true;
+        }
+        catch (final RejectedExecutionException e) {
+            task.fail(e);
+            return false;
+        }
+    }
+
+
+    /** A store or delete of a key.
+     */
+    private final class Write implements Callable<Void> {
+
+        private final String _key;
+        private final Task<Void> _task;
+
+        // Guarded by _writes:
+        private Serializable _object;
+        private boolean _started = false;
+        private Write _next = null;
+
+
+        private Write(@NonNull final String key, @Nullable final Serializable object) {
+            _key = key;
+            _object = object;
+            _task = new Task<>(this, false);
+        }
+
+
+        @Override
+        public Void call() throws Exception {
+            //
+            final Serializable object;
+            synchronized (_writes) {
+                _started = true;
+                object = _object;
+            }
+            try {
+                if (object == null) {
+                    _store.delete(_key);
+                }
+                else {
+                    _store.store(_key, object);
+                }
+            }
+            finally {
+                completed (this);
+            }
+            return null;
+        }
+
+
+        // Must be called while holding _writes:
+        private @NonNull Write last () {
+            return (_next == null ? this : _next);
+        }
+    }
+
+
+    /** FutureTask calling callbacks on completion.
+     */
+    private static final class Task<T> extends FutureTask<T> {
+
+        private final List<Callback<T>> _callbacks = new ArrayList<>(1);
+        private final boolean _cancellable;
+
+
+        private Task(@NonNull final Callable<T> callable, final boolean cancellable) {
+            super (callable);
+            _cancellable = cancellable;
+        }
+
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return _cancellable && super.cancel(mayInterruptIfRunning);
+        }
+
+
+        private void addCallback (@Nullable final Callback<T> callback) {
+            //
+            if (callback != null) {
+                synchronized (_callbacks) {
+                    _callbacks.add(callback);
+                }
+            }
+        }
+
+
+        private void fail (@NonNull final Exception error) {
+            setException(error);
+        }
+
+
+        @Override
+        protected void done() {
+            //
+            final List<Callback<T>> callbacks;
+            synchronized (_callbacks) {
+                callbacks = new ArrayList<>(_callbacks);
+            }
+            if (callbacks.isEmpty() || isCancelled()) {
+                return;
+            }
+
+            T result = null;
+            Exception error = null;
+            try {
+                result = get();
+            }
+            catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                error = (cause instanceof Exception ? (Exception) cause : e);
+            }
+            catch (final InterruptedException e) {
+                // Cannot happen, the task is done
+                error = e;
+            }
+
+            for (final Callback<T> callback : callbacks) {
+                try {
+                    if (error == null) {
+                        callback.onSuccess(result);
+                    }
+                    else {
+                        callback.onFailure(error);
+                    }
+                }
+                catch (final RuntimeException e) {
+                    Log.e (TAG, "Callback failed", e);
+                }
+            }
+        }
+    }
+
+
+    private static final String TAG = ExecutorKeyValueStore.class.getSimpleName();
+
+}
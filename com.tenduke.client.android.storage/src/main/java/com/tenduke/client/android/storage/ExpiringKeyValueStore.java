@@ -0,0 +1,36 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/** Key-value store, which can store objects with a time-to-live.
+ *
+ *  The expiration time is stored in cleartext with the value, so expired objects are recognized without
+ *  verifying or decrypting them: reads return {@code null} for expired objects. Expired objects take
+ *  storage space until they are deleted with {@link #deleteExpired()}, e.g. by an {@link ExpirySweeper}.
+ */
+public interface ExpiringKeyValueStore extends KeyValueStore {
+
+
+    /** Stores object by key, with a time-to-live.
+     *
+     * @param <T> Type of the object
+     * @param key key
+     * @param object object to store
+     * @param timeToLive time after which the object expires, must not be negative
+     * @param unit unit of {@code timeToLive}
+     * @throws Exception -
+     */
+    <T extends Serializable> void store (@NonNull String key, @NonNull T object, long timeToLive, @NonNull TimeUnit unit) throws Exception;
+
+
+    /** Deletes the expired objects.
+     *
+     * @return number of objects deleted
+     * @throws Exception -
+     */
+    int deleteExpired () throws Exception;
+
+}
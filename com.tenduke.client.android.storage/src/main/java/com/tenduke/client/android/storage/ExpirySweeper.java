@@ -0,0 +1,76 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/** Deletes the expired objects of an {@link ExpiringKeyValueStore} periodically on a background thread.
+ *
+ *  The sweeps run on a low-priority daemon thread, with the given delay between the end of a sweep and the
+ *  start of the next one. A failed sweep is logged, and the sweeping continues. Close the sweeper to stop it.
+ */
+public class ExpirySweeper implements Closeable {
+
+    private final ExpiringKeyValueStore _store;
+    private final ScheduledExecutorService _executor;
+
+
+    /** Constructs new instance and starts sweeping. The first sweep runs after one period.
+     *
+     *  @param store the store to sweep
+     *  @param period delay between the sweeps, must be positive
+     *  @param unit unit of {@code period}
+     */
+    public ExpirySweeper(@NonNull final ExpiringKeyValueStore store, final long period, @NonNull final TimeUnit unit) {
+        //
+        if (period <= 0) {
+            throw new IllegalArgumentException ("period must be positive, was " + period);
+        }
+        _store = store;
+        _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                final Thread thread = new Thread (runnable, TAG);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        _executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep ();
+            }
+        }, period, period, unit);
+    }
+
+
+    /** Stops sweeping. A sweep already running is completed.
+     */
+    @Override
+    public void close () {
+        _executor.shutdown();
+    }
+
+
+    private void sweep () {
+        //
+        try {
+            final int deleted = _store.deleteExpired();
+            Log.d (TAG, "sweep(), deleted = " + deleted);
+        }
+        catch (final Exception e) {
+            // Keep sweeping, the next sweep may succeed:
+            Log.w (TAG, "sweep(): Deleting expired objects failed", e);
+        }
+    }
+
+
+    private static final String TAG = ExpirySweeper.class.getSimpleName();
+
+}
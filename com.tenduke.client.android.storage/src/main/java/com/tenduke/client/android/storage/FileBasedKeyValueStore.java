@@ -5,48 +5,151 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.EnvelopeKeys;
 import com.tenduke.client.android.security.SigningContext;
 import com.tenduke.client.io.IOUtil;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.zip.CRC32;
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 
 
 /** A key-value store, which uses file system.
  * 
+ *  Each value is written to a temporary sibling file, which then atomically replaces the previous
+ *  value, so a process dying in the middle of a write never leaves a partially written value behind.
+ *  With {@link #withDurableWrites(boolean) durable writes} the data is also flushed to disk before
+ *  {@link #store(String, Serializable)} returns, making the write survive power loss. With
+ *  {@link ReadMode#MEMORY_MAPPED} the values are decoded straight from memory-mapped files.
+ *
+ *  Values are encoded with the {@link #withCodec(Codec) codec}, optionally {@link #withCompression(Compression, int) compressed},
+ *  encrypted and signed as raw bytes, see {@link AbstractEncryptingStore}. Files written by earlier versions with
+ *  Java serialization are still read.
+ *  Large values can be written and read as streams with {@link #openWriter(String)} and {@link #openReader(String)}.
+ *  Objects stored with a {@link #store(String, Serializable, long, TimeUnit) time-to-live} read as {@code null}
+ *  once expired, and their files are deleted by {@link #deleteExpired()}. {@link #peek(String, Class)} returns the
+ *  metadata of an object without verifying or decrypting it.
+ *
+ *  With an encryption context based on a {@link com.tenduke.client.android.security.KeyRing}, the key can be rotated
+ *  without migrating the values: each value records the id of its key. A value encrypted with an earlier key is
+ *  re-encrypted with the current key when first read, or by {@link #reencryptAll()} e.g. in the background.
+ *
+ *  Several keys are changed atomically with a {@link #begin() transaction}. A committed transaction is first
+ *  appended to a journal file ({@link #JOURNAL_FILE_NAME}), and then applied to the files of the keys. If the
+ *  process dies while applying, the journal is replayed when the store is opened next. With durable writes,
+ *  the journal is synced once per commit, and the files of the keys are synced in a checkpoint: before a key
+ *  changed by a transaction is written outside a transaction, or when the journal grows large.
+ *
+ *  The store is thread safe. Operations on different keys may run in parallel (see {@link #lockFor(String)}).
+ *  Operations on the same key are serialized as defined by the {@link LockMode}.
  */
-public class FileBasedKeyValueStore extends AbstractEncryptingStore implements KeyValueStore {
+public class FileBasedKeyValueStore extends AbstractEncryptingStore implements BatchKeyValueStore, EnumerableKeyValueStore, ExpiringKeyValueStore, StreamingKeyValueStore, TransactionalKeyValueStore {
+
+    /** Default number of lock stripes. */
+    public static final int DEFAULT_LOCK_STRIPES = StripedLocks.DEFAULT_STRIPES;
+
+    /** Suffix of the temporary files, which are written before atomically renaming them over the target file.
+     *  Keys ending with the suffix are reserved, they cannot be written. */
+    public static final String TEMP_FILE_SUFFIX = ".tmp~";
+
+    /** Name of the transaction journal file. The name is reserved, it cannot be written as a key. */
+    public static final String JOURNAL_FILE_NAME = "transactions.journal~";
+
+    /** Number of keys {@link #deleteExpired()} locks at a time. */
+    private static final int EXPIRY_BATCH_SIZE = 64;
+
+    /** Size of the journal, which triggers a checkpoint with durable writes. */
+    private static final long JOURNAL_CHECKPOINT_BYTES = 256L * 1024L;
+
+    /** Length and checksum preceding each transaction in the journal. */
+    private static final int JOURNAL_HEADER_BYTES = 4 + 4;
 
     private final Context _context;
-    private final Object _lock = new Object ();
+    private final StripedLocks _locks;
+    private final LockMode _lockMode;
     private final File _directory;
+    private final DirectorySyncer _directorySyncer;
+    private final File _journalFile;
+    private volatile boolean _durableWrites = false;
+    private volatile ReadMode _readMode = ReadMode.STREAM;
+    private volatile int _streamChunkBytes = ChunkedValueOutputStream.DEFAULT_CHUNK_BYTES;
+
+    // Updated while holding the lock of the key, loaded while holding all locks:
+    private final KeyIndex _keyIndex = new KeyIndex();
+    private volatile boolean _keyIndexLoaded = false;
+
+    // Keys changed by the transactions in the journal, guarded by _journalLock:
+    private final Object _journalLock = new Object ();
+    private final Set<String> _journaledKeys = new HashSet<>();
+    private boolean _replayNeeded = false;
+    private volatile boolean _journalPending = false;
 
 
     /** Constructs a new instance.
+     *
+     *  Operations on different keys may run in parallel. Keys are mapped to {@code lockStripes}
+     *  locks by key hash, so two different keys may occasionally share a lock. Operations on the
+     *  same key are serialized according to {@code lockMode}.
      *
      * @param context -
      * @param encryptionContext Encryption to use. Optional, if {@code null}, the data is not encrypted.
      * @param signingContext Signing to use. Optional, if {@code null}, the data is not signed.
      * @param directory Directory to store the files in. Optional. If not given, the default directory is returned by {@link Context#getFilesDir() } is used.
+     * @param lockStripes Number of locks the keys are distributed to. Must be at least 1; 1 serializes all operations.
+     * @param lockMode How operations on the same key are serialized.
      * @throws java.io.IOException -
      */
     public FileBasedKeyValueStore(
             @NonNull final Context context,
             @Nullable final EncryptionContext encryptionContext,
             @Nullable final SigningContext signingContext,
-            @Nullable final String directory) throws IOException {
+            @Nullable final String directory,
+            final int lockStripes,
+            @NonNull final LockMode lockMode) throws IOException {
         //
         super (encryptionContext, signingContext);
+        if (lockStripes < 1) {
+            throw new IllegalArgumentException ("lockStripes must be at least 1, was " + lockStripes);
+        }
         _context = context;
+        _lockMode = lockMode;
+        _locks = new StripedLocks(lockStripes);
         if (directory == null) {
             _directory = context.getFilesDir();
         }
@@ -61,6 +164,53 @@ public class FileBasedKeyValueStore extends AbstractEncryptingStore implements K
                 throw new IOException ("Unable to created directory " + _directory.getAbsolutePath());
             }
         }
+        _directorySyncer = new DirectorySyncer(_directory, 0);
+        _journalFile = new File (_directory, JOURNAL_FILE_NAME);
+        if (_journalFile.length() > 0) {
+            synchronized (_journalLock) {
+                Log.d (TAG, "Replayed " + replayJournal () + " transactions");
+                // The journal may have been written with durable writes:
+                checkpoint (true);
+            }
+        }
+    }
+
+
+    /** Constructs a new instance with {@link LockMode#EXCLUSIVE} locking.
+     *
+     * @param context -
+     * @param encryptionContext Encryption to use. Optional, if {@code null}, the data is not encrypted.
+     * @param signingContext Signing to use. Optional, if {@code null}, the data is not signed.
+     * @param directory Directory to store the files in. Optional. If not given, the default directory is returned by {@link Context#getFilesDir() } is used.
+     * @param lockStripes Number of locks the keys are distributed to. Must be at least 1; 1 serializes all operations.
+     * @throws java.io.IOException -
+     */
+    public FileBasedKeyValueStore(
+            @NonNull final Context context,
+            @Nullable final EncryptionContext encryptionContext,
+            @Nullable final SigningContext signingContext,
+            @Nullable final String directory,
+            final int lockStripes) throws IOException {
+        //
+        this (context, encryptionContext, signingContext, directory, lockStripes, LockMode.EXCLUSIVE);
+    }
+
+
+    /** Constructs a new instance with {@link #DEFAULT_LOCK_STRIPES} lock stripes.
+     *
+     * @param context -
+     * @param encryptionContext Encryption to use. Optional, if {@code null}, the data is not encrypted.
+     * @param signingContext Signing to use. Optional, if {@code null}, the data is not signed.
+     * @param directory Directory to store the files in. Optional. If not given, the default directory is returned by {@link Context#getFilesDir() } is used.
+     * @throws java.io.IOException -
+     */
+    public FileBasedKeyValueStore(
+            @NonNull final Context context,
+            @Nullable final EncryptionContext encryptionContext,
+            @Nullable final SigningContext signingContext,
+            @Nullable final String directory) throws IOException {
+        //
+        this (context, encryptionContext, signingContext, directory, DEFAULT_LOCK_STRIPES);
     }
 
 
@@ -98,12 +248,41 @@ public class FileBasedKeyValueStore extends AbstractEncryptingStore implements K
     @Override
     public void delete (@NonNull final String key) {
 
-        synchronized (_lock) {
+        checkKey (key);
+        try {
+            replayBeforeAccess (Collections.singleton(key));
+        }
+        catch (final IOException e) {
+            Log.w (TAG, "delete(): Unable to replay the journal, not deleted", e);
+            return;
+        }
+        final Lock lock = writeLockFor (key);
+        lock.lock();
+        try {
+            try {
+                checkpointBeforeWrite (Collections.singleton(key));
+            }
+            catch (final IOException e) {
+                // Replaying the journal would bring the value back:
+                Log.w (TAG, "delete(): Unable to checkpoint the journal, not deleted", e);
+                return;
+            }
 
             final boolean deleted = new File (_directory, key).delete();
+            _keyIndex.remove(key);
 
             Log.d (TAG, "delete(), deleted = " + deleted);
 
+            if (deleted && _durableWrites) {
+                _directorySyncer.sync();
+            }
+        }
+        catch (final IOException e) {
+            // Deletion itself succeeded, only flushing it to disk failed:
+            Log.w (TAG, "delete(): Unable to sync directory", e);
+        }
+        finally {
+            lock.unlock();
         }
 
     }
@@ -126,18 +305,127 @@ public class FileBasedKeyValueStore extends AbstractEncryptingStore implements K
     @Override
     public <T extends Serializable> T read (@NonNull final String key, @NonNull final Class<T> objectClass) throws BadPaddingException, ClassCastException, ClassNotFoundException, IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
 
-        synchronized (_lock) {
+        replayBeforeAccess (Collections.singleton(key));
+        final T object;
+        final boolean earlierKey;
+        final Lock lock = readLockFor (key);
+        lock.lock();
+        try {
+            // An expired value costs only the read of its header:
+            if (isExpired(readHeader(new File (_directory, key), new byte[EXPIRY_HEADER_BYTES]), System.currentTimeMillis())) {
+                return (null);
+            }
+            final ByteBuffer value = readValue(key);
+            object = objectClass.cast(decodeValue(value, initThreadCipher(Cipher.DECRYPT_MODE)));
+            earlierKey = isEncryptedWithEarlierKey(value);
+        }
+        catch (final FileNotFoundException e) {
+            return (null);
+        }
+        finally {
+            lock.unlock();
+        }
 
+        if (earlierKey) {
+            // Re-encrypted on first read after rotation, the read itself succeeds regardless:
             try {
-                Object object = readObject(key);
-                object = retrieveSignedObject(object);
-                object = decryptSealedObject(object);
+                reencrypt (key);
+            }
+            catch (final ClassNotFoundException | GeneralSecurityException | IOException e) {
+                Log.w (TAG, "read(): Unable to re-encrypt " + key + " with the current key", e);
+            }
+        }
+        return object;
+    }
 
-                return objectClass.cast(object);
+
+    /** Re-encrypts a value with the current key of the {@link com.tenduke.client.android.security.KeyRing},
+     *  if it is encrypted with an earlier key. Values are also re-encrypted when first read with
+     *  {@link #read(String, Class)}; use {@link #reencryptAll()} before retiring a key.
+     *
+     *  Streamed values are re-encrypted as streams. Expired values are not re-encrypted.
+     *
+     *  @param key key
+     *  @return {@code true} if the value was re-encrypted, {@code false} if the value is not found, is not
+     *  encrypted with an earlier key, or the encryption context has no key ring
+     *  @throws ClassNotFoundException -
+     *  @throws GeneralSecurityException if decrypting or verifying the value fails, e.g. its key has been retired
+     *  @throws IOException -
+     */
+    public boolean reencrypt (@NonNull final String key) throws ClassNotFoundException, GeneralSecurityException, IOException {
+        //
+        replayBeforeAccess (Collections.singleton(key));
+        final File file = new File (_directory, key);
+        final Lock lock = writeLockFor (key);
+        lock.lock();
+        try {
+            final ByteBuffer header = readHeader(file, new byte[KEY_ID_HEADER_BYTES]);
+            if (! isEncryptedWithEarlierKey(header) || isExpired(header, System.currentTimeMillis())) {
+                return false;
             }
-            catch (final FileNotFoundException e) {
-                return (null);
+            if (isStreamedValue (header)) {
+                reencryptStream (key, file);
+            }
+            else {
+                final ByteBuffer value = readValue(key);
+                final Serializable object = (Serializable) decodeValue(value, initThreadCipher(Cipher.DECRYPT_MODE));
+                // Cipher is initialized for encryption only after decoding, which may re-initialize it:
+                writeValue(key, encodeValue(object, initThreadCipher(Cipher.ENCRYPT_MODE), expiryOf(value)));
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** Re-encrypts all values encrypted with earlier keys of the key ring, see {@link #reencrypt(String)}.
+     *  Once done, the earlier keys can be retired. Meant to be run in the background, e.g. after rotating the key:
+     *  other operations on the store proceed meanwhile, each key is locked only while re-encrypting its value.
+     *
+     *  @return number of values re-encrypted
+     *  @throws ClassNotFoundException -
+     *  @throws GeneralSecurityException -
+     *  @throws IOException -
+     */
+    public int reencryptAll () throws ClassNotFoundException, GeneralSecurityException, IOException {
+        //
+        int reencrypted = 0;
+        for (final String key : keys ()) {
+            if (reencrypt (key)) {
+                reencrypted++;
+            }
+        }
+        return reencrypted;
+    }
+
+
+    /** Returns a handle to a stored object. The size, modification time and expiration time are read from the
+     *  file system and the header of the value; the object is read, verified and decrypted only when
+     *  {@link ValueHandle#get()} is called. {@code get()} reads the object stored at the time of the call.
+     *
+     *  @param <T> Type of the object
+     *  @param key key
+     *  @param objectClass class of stored object
+     *  @return the handle, {@code null} if the object is not found
+     *  @throws IOException -
+     */
+    public @Nullable <T extends Serializable> ValueHandle<T> peek (@NonNull final String key, @NonNull final Class<T> objectClass) throws IOException {
+        //
+        replayBeforeAccess (Collections.singleton(key));
+        final Lock lock = readLockFor (key);
+        lock.lock();
+        try {
+            final File file = new File (_directory, key);
+            if (! file.isFile()) {
+                return null;
             }
+            final long expiresAt = expiryOf (readHeader(file, new byte[EXPIRY_HEADER_BYTES]));
+            return new FileValueHandle<>(key, objectClass, file.length(), file.lastModified(), expiresAt);
+        }
+        finally {
+            lock.unlock();
         }
     }
 
@@ -155,92 +443,1498 @@ public class FileBasedKeyValueStore extends AbstractEncryptingStore implements K
     @Override
     public <T extends Serializable> void store (@NonNull final String key, @NonNull final T object) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
 
-        synchronized (_lock) {
+        checkKey (key);
+        replayBeforeAccess (Collections.singleton(key));
+        final Lock lock = writeLockFor (key);
+        lock.lock();
+        try {
+
+            writeValue(key, encodeValue(object, initThreadCipher(Cipher.ENCRYPT_MODE)));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-            final Serializable objectToWrite = signObject(sealObject(object));
 
-            Throwable mainException = null;
-            final ObjectOutputStream stream = openOutputStream(key);
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param object {@inheritDoc }
+     *  @param timeToLive {@inheritDoc }
+     *  @param unit {@inheritDoc }
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    @Override
+    public <T extends Serializable> void store (@NonNull final String key, @NonNull final T object, final long timeToLive, @NonNull final TimeUnit unit) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        //
+        checkKey (key);
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException ("timeToLive must not be negative, was " + timeToLive);
+        }
+        final long now = System.currentTimeMillis();
+        final long timeToLiveMillis = unit.toMillis(timeToLive);
+        final long expiresAt = (timeToLiveMillis < NO_EXPIRY - now ? now + timeToLiveMillis : NO_EXPIRY);
+
+        replayBeforeAccess (Collections.singleton(key));
+        final Lock lock = writeLockFor (key);
+        lock.lock();
+        try {
+            writeValue(key, encodeValue(object, initThreadCipher(Cipher.ENCRYPT_MODE), expiresAt));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  Only the headers of the files are read. The keys are processed in batches: the locks of a batch are held
+     *  while checking and deleting its files, and with durable writes the directory is flushed once per batch.
+     *
+     *  @return {@inheritDoc }
+     *  @throws IOException -
+     */
+    @Override
+    public int deleteExpired () throws IOException {
+        //
+        final List<String> keys = keys ();
+        final byte[] header = new byte[EXPIRY_HEADER_BYTES];
+        int deleted = 0;
+        for (int from = 0; from < keys.size(); from += EXPIRY_BATCH_SIZE) {
+            final List<String> batch = keys.subList(from, Math.min(keys.size(), from + EXPIRY_BATCH_SIZE));
+            final long now = System.currentTimeMillis();
+            final List<Lock> locks = lockAll (batch, true);
             try {
-                stream.writeObject(objectToWrite);
-            }
-            catch (final Throwable t) {
-                mainException = t;
-                throw t;
+                checkpointBeforeWrite (batch);
+                boolean batchDeleted = false;
+                for (final String key : batch) {
+                    final File file = new File (_directory, key);
+                    if (isExpired(readHeader(file, header), now) && file.delete()) {
+                        _keyIndex.remove(key);
+                        batchDeleted = true;
+                        deleted++;
+                    }
+                }
+                if (batchDeleted && _durableWrites) {
+                    _directorySyncer.sync();
+                }
             }
             finally {
-                IOUtil.close (stream, mainException);
+                unlockAll (locks);
             }
         }
+
+        Log.d (TAG, "deleteExpired(), deleted = " + deleted);
+        return deleted;
     }
 
 
-    /** Reads the object from a file.
-     * 
-     *  @param key key
-     *  @return the read object
-     *  @throws ClassNotFoundException -
-     *  @throws IOException -
+    /** {@inheritDoc}
+     *
+     *  Takes the locks of all keys once, and flushes the directory once with durable writes.
+     *
+     *  @param keys {@inheritDoc }
      */
-    protected Object readObject (@NonNull final String key) throws ClassNotFoundException, IOException {
-        //
-        Throwable mainException = null;
-        final ObjectInputStream stream = openInputStream (key);
+    @Override
+    public void deleteAll (@NonNull final Collection<String> keys) {
         //
+        checkKeys (keys);
         try {
-            return stream.readObject();
+            replayBeforeAccess (keys);
         }
-        catch (final ClassNotFoundException e) {
-            mainException = e;
-            throw e;
+        catch (final IOException e) {
+            Log.w (TAG, "deleteAll(): Unable to replay the journal, not deleted", e);
+            return;
+        }
+        final List<Lock> locks = lockAll (keys, true);
+        try {
+            try {
+                checkpointBeforeWrite (keys);
+            }
+            catch (final IOException e) {
+                // Replaying the journal would bring the values back:
+                Log.w (TAG, "deleteAll(): Unable to checkpoint the journal, not deleted", e);
+                return;
+            }
+
+            boolean deleted = false;
+            for (final String key : keys) {
+                deleted |= new File (_directory, key).delete();
+            }
+            _keyIndex.removeAll(keys);
+
+            Log.d (TAG, "deleteAll(), deleted = " + deleted);
+
+            if (deleted && _durableWrites) {
+                _directorySyncer.sync();
+            }
         }
         catch (final IOException e) {
-            mainException = e;
-            throw e;
+            // Deletion itself succeeded, only flushing it to disk failed:
+            Log.w (TAG, "deleteAll(): Unable to sync directory", e);
         }
         finally {
-            IOUtil.close (stream, mainException);
+            unlockAll (locks);
         }
     }
 
-    
-    /** Opens the input stream for reading the object.
-     * 
-     * @param filename Filename to open
-     * @return opened ObjectInputStream
-     * @throws IOException -
+
+    /** {@inheritDoc}
+     *
+     *  Takes the locks of all keys once and initializes the decryption once. Reading a streamed value, written with
+     *  {@link #openWriter(String)}, fails: {@link #scan(String, Class)} leaves them out.
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param keys {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws BadPaddingException -
+     *  @throws ClassCastException -
+     *  @throws ClassNotFoundException -
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
      */
-    protected @NonNull ObjectInputStream openInputStream (@NonNull final String filename) throws IOException {
-        //
-        final FileInputStream fileStream = new FileInputStream(new File (_directory, filename));
+    @Override
+    public @NonNull <T extends Serializable> Map<String, T> readAll (@NonNull final Collection<String> keys, @NonNull final Class<T> objectClass) throws BadPaddingException, ClassCastException, ClassNotFoundException, IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        return readAll (keys, objectClass, false);
+    }
 
+
+    /** Reads several objects, see {@link #readAll(Collection, Class)}.
+     *
+     *  @param <T> Type of the objects
+     *  @param keys keys
+     *  @param objectClass class of stored objects
+     *  @param skipStreamed {@code true} to leave out streamed values, {@code false} to fail reading them
+     *  @return the objects by key
+     *  @throws BadPaddingException -
+     *  @throws ClassCastException -
+     *  @throws ClassNotFoundException -
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    private @NonNull <T extends Serializable> Map<String, T> readAll (@NonNull final Collection<String> keys, @NonNull final Class<T> objectClass, final boolean skipStreamed) throws BadPaddingException, ClassCastException, ClassNotFoundException, IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        //
+        replayBeforeAccess (keys);
+        final Map<String, T> objects = new LinkedHashMap<>();
+        final List<Lock> locks = lockAll (keys, _lockMode == LockMode.EXCLUSIVE);
         try {
-            return new ObjectInputStream(fileStream);
+            final Cipher cipher = initThreadCipher(Cipher.DECRYPT_MODE);
+            final byte[] header = new byte[EXPIRY_HEADER_BYTES];
+            for (final String key : keys) {
+                final ByteBuffer valueHeader = readHeader(new File (_directory, key), header);
+                if (isExpired(valueHeader, System.currentTimeMillis()) || (skipStreamed && isStreamedValue (valueHeader))) {
+                    continue;
+                }
+                final ByteBuffer value;
+                try {
+                    value = readValue(key);
+                }
+                catch (final FileNotFoundException e) {
+                    continue;
+                }
+                objects.put (key, objectClass.cast(decodeValue(value, cipher)));
+            }
         }
-        catch (final Throwable t) {
-            IOUtil.close (fileStream, t);
-            throw t;
+        finally {
+            unlockAll (locks);
         }
+        return objects;
     }
 
 
-    /** Opens the input stream for writing the object.
-     * 
-     *  @param filename Filename to open
-     *  @return opened ObjectOutputStream
+    /** {@inheritDoc}
+     *
+     *  Takes the locks of all keys once, initializes the encryption once (unless the cipher uses an
+     *  initialization vector), and with durable writes flushes the directory once. The objects are
+     *  first written to temporary files, which replace the previous files only after all objects have
+     *  been written successfully.
+     *
+     *  @param objects {@inheritDoc }
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
      *  @throws IOException -
+     *  @throws SignatureException -
      */
-    protected @NonNull ObjectOutputStream openOutputStream(@NonNull final String filename) throws IOException {
+    @Override
+    public void storeAll (@NonNull final Map<String, ? extends Serializable> objects) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
         //
-        //final FileOutputStream fileStream = _context.openFileOutput(filename, Context.MODE_PRIVATE);
-        final FileOutputStream fileStream = new FileOutputStream(new File (_directory, filename));
-
+        checkKeys (objects.keySet());
+        replayBeforeAccess (objects.keySet());
+        final List<Lock> locks = lockAll (objects.keySet(), true);
+        final Map<String, File> tempFiles = new LinkedHashMap<>();
         try {
-            return new ObjectOutputStream(fileStream);
+            Cipher cipher = initThreadCipher(Cipher.ENCRYPT_MODE);
+            for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+                if (! isReusable(cipher)) {
+                    cipher = initThreadCipher(Cipher.ENCRYPT_MODE);
+                }
+                final byte[] value = encodeValue(entry.getValue(), cipher);
+                tempFiles.put(entry.getKey(), writeTempFile(entry.getKey(), value));
+            }
+
+            checkpointBeforeWrite (objects.keySet());
+            for (final Iterator<Map.Entry<String, File>> iterator = tempFiles.entrySet().iterator(); iterator.hasNext(); ) {
+                final Map.Entry<String, File> entry = iterator.next();
+                renameTempFile(entry.getValue(), entry.getKey());
+                iterator.remove();
+            }
+
+            if (_durableWrites) {
+                _directorySyncer.sync();
+            }
         }
-        catch (final Throwable t) {
-            IOUtil.close (fileStream, t);
-            throw t;
+        finally {
+            // Clean up leftovers of a failed batch:
+            for (final File tempFile : tempFiles.values()) {
+                if (! tempFile.delete()) {
+                    Log.w (TAG, "storeAll(): Unable to delete temporary file " + tempFile.getName());
+                }
+            }
+            unlockAll (locks);
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  Committing encodes the objects without holding locks, takes the locks of all keys once, appends the
+     *  transaction to the journal and then applies it. With durable writes, the journal is synced once per commit.
+     *  If applying fails after the transaction has been appended to the journal, the transaction is
+     *  replayed from the journal: right away, and if that fails too, before the next read or write of its keys,
+     *  at the latest when the store is opened next. Reads and writes of the keys fail while the replay fails, so a
+     *  partially applied transaction is never read or overwritten. An exception from {@link Transaction#commit()} thus does not mean
+     *  that the transaction was rolled back: once appended to the journal, it is committed.
+     *
+     *  @return {@inheritDoc }
+     */
+    @Override
+    public @NonNull Transaction begin () {
+        //
+        return new AbstractTransaction() {
+            @Override
+            public @NonNull <T extends Serializable> Transaction put (@NonNull final String key, @NonNull final T object) {
+                checkKey (key);
+                return super.put(key, object);
+            }
+
+            @Override
+            public @NonNull Transaction delete (@NonNull final String key) {
+                checkKey (key);
+                return super.delete(key);
+            }
+
+            @Override
+            protected void commit (@NonNull final Map<String, Serializable> changes) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+                commitTransaction (changes);
+            }
+        };
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  The value is written to a temporary file without holding the lock of the key, and the file
+     *  atomically replaces the previous value when the stream is closed.
+     *
+     *  @param key {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     */
+    @Override
+    public @NonNull OutputStream openWriter (@NonNull final String key) throws InvalidKeyException, IOException {
+        //
+        checkKey (key);
+        final File tempFile = File.createTempFile(key + ".stream", TEMP_FILE_SUFFIX, _directory);
+        final FileOutputStream fileStream = new FileOutputStream(tempFile);
+        try {
+            final OutputStream valueStream = openValueWriter(new SyncingOutputStream(fileStream), _streamChunkBytes);
+            return new ValueWriter(valueStream, key, tempFile);
+        }
+        catch (final Throwable t) {
+            IOUtil.close (fileStream, t);
+            if (! tempFile.delete()) {
+                Log.w (TAG, "openWriter(): Unable to delete temporary file " + tempFile.getName());
+            }
+            throw t;
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  The lock of the key is held only while opening the file: a value replacing the value being read
+     *  does not affect the reader.
+     *
+     *  @param key {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     */
+    @Override
+    public @Nullable InputStream openReader (@NonNull final String key) throws InvalidKeyException, IOException {
+        //
+        replayBeforeAccess (Collections.singleton(key));
+        final FileInputStream fileStream;
+        final Lock lock = readLockFor (key);
+        lock.lock();
+        try {
+            fileStream = new FileInputStream(new File (_directory, key));
+        }
+        catch (final FileNotFoundException e) {
+            return null;
+        }
+        finally {
+            lock.unlock();
+        }
+
+        try {
+            return openValueReader(new BufferedInputStream(fileStream));
+        }
+        catch (final Throwable t) {
+            IOUtil.close (fileStream, t);
+            throw t;
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  The keys are loaded from the directory once, on the first call to one of the key methods, and
+     *  after that maintained by the writes of this instance. Files written to the directory by other
+     *  means after that are not included.
+     *
+     *  @return {@inheritDoc }
+     *  @throws IOException if listing the directory fails
+     */
+    @Override
+    public @NonNull List<String> keys () throws IOException {
+        return keys ("");
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param prefix {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws IOException if listing the directory fails
+     *  @see #keys()
+     */
+    @Override
+    public @NonNull List<String> keys (@NonNull final String prefix) throws IOException {
+        //
+        loadKeyIndex ();
+        // The keys of a transaction not fully applied may be missing or deleted:
+        replayBeforeAccess (null);
+        return _keyIndex.keys(prefix);
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  Streamed values, written with {@link #openWriter(String)}, are left out: read them with {@link #openReader(String)}.
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param prefix {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws BadPaddingException -
+     *  @throws ClassCastException -
+     *  @throws ClassNotFoundException -
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    @Override
+    public @NonNull <T extends Serializable> Map<String, T> scan (@NonNull final String prefix, @NonNull final Class<T> objectClass) throws BadPaddingException, ClassCastException, ClassNotFoundException, IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        return readAll (keys (prefix), objectClass, true);
+    }
+
+
+    /** Configures the chunk size of streamed values written with {@link #openWriter(String)}.
+     *  Memory use of a stream is about twice the chunk size. Configure before using the store.
+     *
+     *  @param chunkBytes chunk size in bytes, 64 KB by default
+     *  @return this instance
+     */
+    public @NonNull FileBasedKeyValueStore withStreamChunkSize (final int chunkBytes) {
+        //
+        if (chunkBytes < 1 || chunkBytes > ChunkedValueOutputStream.MAX_CHUNK_BYTES) {
+            throw new IllegalArgumentException ("chunkBytes must be between 1 and " + ChunkedValueOutputStream.MAX_CHUNK_BYTES + ", was " + chunkBytes);
+        }
+        _streamChunkBytes = chunkBytes;
+        return this;
+    }
+
+
+    /** Configures durable writes. When enabled, {@link #store(String, Serializable)} and {@link #delete(String)}
+     *  return only after the file and the directory entry have been flushed to disk.
+     *  Configure before using the store.
+     *
+     *  @param durableWrites {@code true} to flush writes to disk
+     *  @return this instance
+     */
+    public @NonNull FileBasedKeyValueStore withDurableWrites (final boolean durableWrites) {
+        //
+        _durableWrites = durableWrites;
+        return this;
+    }
+
+
+    /** Configures the group commit window of durable writes. Writes completing within the window share a
+     *  single directory flush, which trades write latency for throughput with bursts of writes.
+     *  Has effect only with {@link #withDurableWrites(boolean) durable writes}. Configure before using the store.
+     *
+     *  @param groupCommitWindowMillis the window in milliseconds, 0 (the default) to flush immediately
+     *  @return this instance
+     */
+    public @NonNull FileBasedKeyValueStore withGroupCommitWindow (final long groupCommitWindowMillis) {
+        //
+        _directorySyncer.setGroupCommitWindowMillis(groupCommitWindowMillis);
+        return this;
+    }
+
+
+    /** Configures the codec used to encode the stored objects. Configure before using the store.
+     *
+     *  @param codec the codec, {@link BinaryCodec} by default
+     *  @return this instance
+     */
+    public @NonNull FileBasedKeyValueStore withCodec (@NonNull final Codec codec) {
+        //
+        setCodec (codec);
+        return this;
+    }
+
+
+    /** Configures envelope encryption: the objects are encrypted with a data key of the namespace, wrapped with
+     *  the key of the encryption context, see {@link EnvelopeKeys}. Objects stored before are still read.
+     *  Configure before using the store.
+     *
+     *  @param envelopeKeys the envelope keys, {@code null} (the default) to encrypt with the encryption context
+     *  @param namespace namespace of the data key, e.g. name of the store
+     *  @return this instance
+     */
+    public @NonNull FileBasedKeyValueStore withEnvelopeKeys (@Nullable final EnvelopeKeys envelopeKeys, @NonNull final String namespace) {
+        //
+        setEnvelopeKeys (envelopeKeys, namespace);
+        return this;
+    }
+
+
+    /** Configures compression of the stored objects, which runs before encryption. Configure before using the store.
+     *
+     *  @param compression the compression, e.g. {@link LzCompression} or {@link DeflateCompression}. {@code null}
+     *  (the default) to store the objects uncompressed.
+     *  @param thresholdBytes size of an encoded object in bytes, below which it is not compressed,
+     *  e.g. {@link #DEFAULT_COMPRESSION_THRESHOLD_BYTES}
+     *  @return this instance
+     */
+    public @NonNull FileBasedKeyValueStore withCompression (@Nullable final Compression compression, final int thresholdBytes) {
+        //
+        setCompression (compression, thresholdBytes);
+        return this;
+    }
+
+
+    /** Configures how the values are read. Configure before using the store.
+     *
+     *  @param readMode the read mode, {@link ReadMode#STREAM} by default
+     *  @return this instance
+     */
+    public @NonNull FileBasedKeyValueStore withReadMode (@NonNull final ReadMode readMode) {
+        //
+        _readMode = readMode;
+        return this;
+    }
+
+
+    /** Returns the lock to hold while reading given key.
+     *
+     *  With {@link LockMode#READ_WRITE} this is the shared read lock, otherwise the exclusive write lock.
+     *
+     *  @param key key
+     *  @return the lock
+     */
+    protected @NonNull Lock readLockFor (@NonNull final String key) {
+        //
+        final ReadWriteLock lock = lockFor (key);
+        return (_lockMode == LockMode.READ_WRITE ? lock.readLock() : lock.writeLock());
+    }
+
+
+    /** Returns the lock to hold while modifying given key.
+     *
+     *  @param key key
+     *  @return the lock
+     */
+    protected @NonNull Lock writeLockFor (@NonNull final String key) {
+        return lockFor (key).writeLock();
+    }
+
+
+    /** Returns the lock guarding given key.
+     *
+     *  @param key key
+     *  @return the lock stripe the key maps to
+     */
+    protected @NonNull ReadWriteLock lockFor (@NonNull final String key) {
+        return _locks.get(key);
+    }
+
+
+    /** Locks the locks of several keys. Each lock stripe is locked once, in a fixed order to avoid deadlocks.
+     *
+     *  @param keys the keys
+     *  @param exclusive {@code true} to lock the write locks, {@code false} to lock the read locks
+     *  @return the locked locks, to be passed to {@link #unlockAll(List)}
+     */
+    protected @NonNull List<Lock> lockAll (@NonNull final Collection<String> keys, final boolean exclusive) {
+        return _locks.lockAll(keys, exclusive);
+    }
+
+
+    /** Unlocks locks locked with {@link #lockAll(Collection, boolean)}.
+     *
+     *  @param locks the locks
+     */
+    protected void unlockAll (@NonNull final List<Lock> locks) {
+        StripedLocks.unlockAll(locks);
+    }
+
+
+    /** Checks that a key can be written: the names of the temporary files and the journal are reserved.
+     *
+     *  @param key key
+     *  @throws IllegalArgumentException if the key is reserved
+     */
+    private static void checkKey (@NonNull final String key) {
+        //
+        if (key.endsWith(TEMP_FILE_SUFFIX)) {
+            throw new IllegalArgumentException ("Key \"" + key + "\" is reserved: keys must not end with " + TEMP_FILE_SUFFIX);
+        }
+        if (key.equals(JOURNAL_FILE_NAME)) {
+            throw new IllegalArgumentException ("Key \"" + key + "\" is reserved for the transaction journal");
+        }
+    }
+
+
+    private static void checkKeys (@NonNull final Collection<String> keys) {
+        //
+        for (final String key : keys) {
+            checkKey (key);
+        }
+    }
+
+
+    /** Returns the lock mode.
+     *
+     *  @return the lock mode
+     */
+    public @NonNull LockMode getLockMode() {
+        return _lockMode;
+    }
+
+
+    /** Returns the read mode.
+     *
+     *  @return the read mode
+     */
+    public @NonNull ReadMode getReadMode() {
+        return _readMode;
+    }
+
+
+    /** Reads the object from a file.
+     * 
+     *  @param key key
+     *  @return the read object
+     *  @throws ClassNotFoundException -
+     *  @throws IOException -
+     */
+    protected Object readObject (@NonNull final String key) throws ClassNotFoundException, IOException {
+        //
+        Throwable mainException = null;
+        final ObjectInputStream stream = openInputStream (key);
+        //
+        try {
+            return stream.readObject();
+        }
+        catch (final ClassNotFoundException e) {
+            mainException = e;
+            throw e;
+        }
+        catch (final IOException e) {
+            mainException = e;
+            throw e;
+        }
+        finally {
+            IOUtil.close (stream, mainException);
+        }
+    }
+
+    
+    /** Reads the value from a file. With {@link ReadMode#MEMORY_MAPPED} the file is mapped, otherwise read to a heap buffer.
+     *
+     *  @param key key
+     *  @return the value
+     *  @throws FileNotFoundException if the key is not found
+     *  @throws IOException -
+     */
+    protected @NonNull ByteBuffer readValue (@NonNull final String key) throws IOException {
+        //
+        Throwable mainException = null;
+        final FileInputStream stream = new FileInputStream(new File (_directory, key));
+        try {
+            final FileChannel channel = stream.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException ("Value of " + key + " too large: " + size + " bytes");
+            }
+            if (_readMode == ReadMode.MEMORY_MAPPED) {
+                // The mapping stays valid after the file has been closed:
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            final ByteBuffer value = ByteBuffer.allocate((int) size);
+            while (value.hasRemaining()) {
+                if (channel.read(value) < 0) {
+                    throw new EOFException ("Unexpected end of " + key);
+                }
+            }
+            value.flip();
+            return value;
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (stream, mainException);
+        }
+    }
+
+
+    /** Reads the beginning of a file, e.g. to check the expiration time without reading the whole value.
+     *
+     *  @param file the file
+     *  @param buffer buffer to read to
+     *  @return buffer containing the bytes read, empty if the file is not found
+     *  @throws IOException -
+     */
+    private static @NonNull ByteBuffer readHeader (@NonNull final File file, @NonNull final byte[] buffer) throws IOException {
+        //
+        final FileInputStream stream;
+        try {
+            stream = new FileInputStream(file);
+        }
+        catch (final FileNotFoundException e) {
+            return ByteBuffer.wrap(buffer, 0, 0);
+        }
+
+        Throwable mainException = null;
+        try {
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = stream.read(buffer, length, buffer.length - length)) >= 0) {
+                length += read;
+            }
+            return ByteBuffer.wrap(buffer, 0, length);
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (stream, mainException);
+        }
+    }
+
+
+    /** Re-encrypts a streamed value through a temporary file, which then replaces the file of the key.
+     *  Must be called while holding the write lock of the key.
+     *
+     *  @param key key
+     *  @param file file of the key
+     *  @throws GeneralSecurityException -
+     *  @throws IOException -
+     */
+    private void reencryptStream (@NonNull final String key, @NonNull final File file) throws GeneralSecurityException, IOException {
+        //
+        Throwable mainException = null;
+        File tempFile = null;
+        final FileInputStream fileStream = new FileInputStream(file);
+        try {
+            tempFile = File.createTempFile(key + ".stream", TEMP_FILE_SUFFIX, _directory);
+            final FileOutputStream tempStream = new FileOutputStream(tempFile);
+            try {
+                final InputStream in = openValueReader(new BufferedInputStream(fileStream));
+                final OutputStream out = openValueWriter(new SyncingOutputStream(tempStream), _streamChunkBytes);
+                final byte[] buffer = new byte[_streamChunkBytes];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+                // Writes the signature, and syncs and closes the temporary file:
+                out.close();
+            }
+            catch (final Throwable t) {
+                IOUtil.close (tempStream, t);
+                throw t;
+            }
+            checkpointBeforeWrite (Collections.singleton(key));
+            renameTempFile(tempFile, key);
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            if (tempFile != null && ! tempFile.delete()) {
+                Log.w (TAG, "reencryptStream(): Unable to delete temporary file " + tempFile.getName());
+            }
+            throw t;
+        }
+        finally {
+            IOUtil.close (fileStream, mainException);
+        }
+
+        if (_durableWrites) {
+            _directorySyncer.sync();
+        }
+    }
+
+
+    /** Writes the object to a file with Java serialization, replacing the previous file atomically.
+     *
+     *  @param key key
+     *  @param object the object to write
+     *  @throws IOException -
+     */
+    protected void writeObject (@NonNull final String key, @NonNull final Serializable object) throws IOException {
+        //
+        writeValue (key, JavaSerializationCodec.INSTANCE.encode(object));
+    }
+
+
+    /** Writes the value to a file, replacing the previous file atomically.
+     *
+     *  The value is first written to a temporary file, which is then renamed over the target file.
+     *  With durable writes the temporary file is synced before the rename and the directory after it.
+     *
+     *  @param key key
+     *  @param value the value to write
+     *  @throws IOException -
+     */
+    protected void writeValue (@NonNull final String key, @NonNull final byte[] value) throws IOException {
+        //
+        final File tempFile = writeTempFile(key, value);
+        try {
+            checkpointBeforeWrite (Collections.singleton(key));
+            renameTempFile(tempFile, key);
+        }
+        catch (final IOException e) {
+            if (! tempFile.delete()) {
+                Log.w (TAG, "writeValue(): Unable to delete temporary file " + tempFile.getName());
+            }
+            throw e;
+        }
+
+        if (_durableWrites) {
+            _directorySyncer.sync();
+        }
+    }
+
+
+    /** Writes the value to the temporary file of the key. With durable writes, the file is synced.
+     *
+     *  @param key key
+     *  @param value the value to write
+     *  @return the temporary file
+     *  @throws IOException -
+     */
+    protected @NonNull File writeTempFile (@NonNull final String key, @NonNull final byte[] value) throws IOException {
+        return writeTempFile (key, value, _durableWrites);
+    }
+
+
+    private @NonNull File writeTempFile (@NonNull final String key, @NonNull final byte[] value, final boolean sync) throws IOException {
+        //
+        final File tempFile = new File (_directory, key + TEMP_FILE_SUFFIX);
+
+        Throwable mainException = null;
+        final FileOutputStream fileStream = new FileOutputStream(tempFile);
+        try {
+            fileStream.write(value);
+            if (sync) {
+                fileStream.getFD().sync();
+            }
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (fileStream, mainException);
+            if (mainException != null && ! tempFile.delete()) {
+                Log.w (TAG, "writeTempFile(): Unable to delete temporary file " + tempFile.getName());
+            }
+        }
+        return tempFile;
+    }
+
+
+    /** Atomically replaces the file of the key with the temporary file. Must be called while holding
+     *  the write lock of the key.
+     *
+     *  @param tempFile the temporary file
+     *  @param key key
+     *  @throws IOException -
+     */
+    protected void renameTempFile (@NonNull final File tempFile, @NonNull final String key) throws IOException {
+        //
+        if (! tempFile.renameTo(new File (_directory, key))) {
+            throw new IOException ("Unable to rename " + tempFile.getAbsolutePath() + " to " + key);
+        }
+        _keyIndex.add(key);
+    }
+
+
+    /** Commits a transaction.
+     *
+     *  @param changes the changes, deleted keys mapped to {@code null}
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    private void commitTransaction (@NonNull final Map<String, Serializable> changes) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        //
+        final Map<String, byte[]> values = new LinkedHashMap<>();
+        Cipher cipher = initThreadCipher(Cipher.ENCRYPT_MODE);
+        for (final Map.Entry<String, Serializable> entry : changes.entrySet()) {
+            if (entry.getValue() == null) {
+                values.put(entry.getKey(), null);
+                continue;
+            }
+            if (! isReusable(cipher)) {
+                cipher = initThreadCipher(Cipher.ENCRYPT_MODE);
+            }
+            values.put(entry.getKey(), encodeValue(entry.getValue(), cipher));
+        }
+        final byte[] record = encodeJournalRecord(values);
+
+        boolean applied = true;
+        final List<Lock> locks = lockAll (values.keySet(), true);
+        try {
+            synchronized (_journalLock) {
+                appendToJournal (record);
+                try {
+                    applyChanges (values);
+                }
+                catch (final IOException e) {
+                    // Committed, but not applied: replayed below, with the locks of all keys of the journal.
+                    _replayNeeded = true;
+                    applied = false;
+                    Log.w (TAG, "commitTransaction(): Applying failed, replaying the journal", e);
+                }
+
+                // A checkpoint would drop a transaction not yet applied:
+                if (! _replayNeeded && (! _durableWrites || _journalFile.length() >= JOURNAL_CHECKPOINT_BYTES)) {
+                    checkpoint (_durableWrites);
+                }
+            }
+        }
+        finally {
+            unlockAll (locks);
+        }
+
+        if (! applied) {
+            replayBeforeAccess (values.keySet());
+        }
+    }
+
+
+    /** Appends an encoded transaction to the journal. With durable writes the journal is synced, and
+     *  the directory is synced when the journal is created. A failed append is truncated away.
+     *  Must be called while holding {@code _journalLock}.
+     *
+     *  @param record the encoded transaction
+     *  @throws IOException -
+     */
+    private void appendToJournal (@NonNull final byte[] record) throws IOException {
+        //
+        final boolean created = ! _journalFile.exists();
+
+        Throwable mainException = null;
+        final RandomAccessFile file = new RandomAccessFile(_journalFile, "rw");
+        try {
+            final long length = file.length();
+            try {
+                file.seek(length);
+                file.write(record);
+                if (_durableWrites) {
+                    file.getFD().sync();
+                }
+            }
+            catch (final IOException e) {
+                file.setLength(length);
+                throw e;
+            }
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (file, mainException);
+        }
+
+        if (created && _durableWrites) {
+            _directorySyncer.sync();
+        }
+    }
+
+
+    /** Applies the changes of a transaction to the files of the keys, without syncing.
+     *  Must be called while holding {@code _journalLock} and the write locks of the keys.
+     *
+     *  @param values the encoded values, deleted keys mapped to {@code null}
+     *  @throws IOException -
+     */
+    private void applyChanges (@NonNull final Map<String, byte[]> values) throws IOException {
+        //
+        _journaledKeys.addAll(values.keySet());
+        _journalPending = true;
+        for (final Map.Entry<String, byte[]> entry : values.entrySet()) {
+            final String key = entry.getKey();
+            if (entry.getValue() == null) {
+                new File (_directory, key).delete();
+                _keyIndex.remove(key);
+                continue;
+            }
+
+            final File tempFile = writeTempFile(key, entry.getValue(), false);
+            try {
+                renameTempFile(tempFile, key);
+            }
+            catch (final IOException e) {
+                if (! tempFile.delete()) {
+                    Log.w (TAG, "applyChanges(): Unable to delete temporary file " + tempFile.getName());
+                }
+                throw e;
+            }
+        }
+    }
+
+
+    /** Applies the complete transactions of the journal in order. An incomplete transaction at the end of the
+     *  journal was never committed, and is ignored. Must be called while holding {@code _journalLock}.
+     *
+     *  @return number of transactions applied
+     *  @throws IOException -
+     */
+    private int replayJournal () throws IOException {
+        //
+        final byte[] journal;
+        Throwable mainException = null;
+        final RandomAccessFile file = new RandomAccessFile(_journalFile, "r");
+        try {
+            journal = new byte[(int) file.length()];
+            file.readFully(journal);
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (file, mainException);
+        }
+
+        final CRC32 crc = new CRC32();
+        int offset = 0;
+        int transactions = 0;
+        while (journal.length - offset >= JOURNAL_HEADER_BYTES) {
+            final ByteBuffer header = ByteBuffer.wrap(journal, offset, JOURNAL_HEADER_BYTES);
+            final int length = header.getInt();
+            final int expectedCrc = header.getInt();
+            if (length < 0 || length > journal.length - offset - JOURNAL_HEADER_BYTES) {
+                break;
+            }
+            crc.reset();
+            crc.update(journal, offset + JOURNAL_HEADER_BYTES, length);
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+
+            applyChanges (decodeJournalRecord(journal, offset + JOURNAL_HEADER_BYTES, length));
+            offset += JOURNAL_HEADER_BYTES + length;
+            transactions++;
+        }
+        if (offset < journal.length) {
+            Log.w (TAG, "replayJournal(): Discarding " + (journal.length - offset) + " bytes of an incomplete transaction");
+        }
+        return transactions;
+    }
+
+
+    /** Makes the applied transactions permanent and empties the journal: with {@code sync}, the files of the
+     *  keys and the directory are synced before the journal is emptied, and the emptied journal is synced.
+     *  Must be called while holding {@code _journalLock}. A transaction not applied must be replayed first, with
+     *  {@link #replayBeforeAccess(Collection)}.
+     *
+     *  @param sync {@code true} to sync
+     *  @throws IOException if a transaction of the journal has not been applied, or writing fails
+     */
+    private void checkpoint (final boolean sync) throws IOException {
+        //
+        if (_replayNeeded) {
+            throw new IOException ("Journal has a committed transaction, which has not been applied");
+        }
+
+        if (sync) {
+            for (final String key : _journaledKeys) {
+                final File file = new File (_directory, key);
+                if (file.isFile()) {
+                    syncFile (file);
+                }
+            }
+            _directorySyncer.sync();
+        }
+
+        Throwable mainException = null;
+        final RandomAccessFile file = new RandomAccessFile(_journalFile, "rw");
+        try {
+            file.setLength(0);
+            if (sync) {
+                file.getFD().sync();
+            }
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (file, mainException);
+        }
+
+        _journaledKeys.clear();
+        _journalPending = false;
+    }
+
+
+    /** Checkpoints the journal, if a transaction in it has changed one of the keys, so that replaying the
+     *  journal cannot undo a write outside a transaction. Must be called while holding the write locks of the keys.
+     *
+     *  @param keys keys about to be written
+     *  @throws IOException -
+     */
+    private void checkpointBeforeWrite (@NonNull final Collection<String> keys) throws IOException {
+        //
+        if (! _journalPending) {
+            return;
+        }
+        synchronized (_journalLock) {
+            for (final String key : keys) {
+                if (_journaledKeys.contains(key)) {
+                    checkpoint (_durableWrites);
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /** Replays the journal, if applying a committed transaction has failed, and the transaction has changed one of
+     *  the keys, so that a partially applied transaction is never read or overwritten. Must be called without holding
+     *  the locks of the keys: the write locks of all keys of the journal are held while replaying.
+     *
+     *  @param keys keys about to be read or written, {@code null} for any keys
+     *  @throws IOException if replaying fails
+     */
+    private void replayBeforeAccess (@Nullable final Collection<String> keys) throws IOException {
+        //
+        if (! _journalPending) {
+            return;
+        }
+        final Set<String> journaledKeys;
+        synchronized (_journalLock) {
+            if (! _replayNeeded || (keys != null && Collections.disjoint(_journaledKeys, keys))) {
+                return;
+            }
+            journaledKeys = new HashSet<>(_journaledKeys);
+        }
+
+        // Same lock order as commitTransaction(), to avoid deadlocks:
+        final List<Lock> locks = lockAll (journaledKeys, true);
+        try {
+            synchronized (_journalLock) {
+                if (_replayNeeded) {
+                    Log.d (TAG, "Replayed " + replayJournal () + " transactions");
+                    _replayNeeded = false;
+                }
+            }
+        }
+        finally {
+            unlockAll (locks);
+        }
+    }
+
+
+    private static void syncFile (@NonNull final File file) throws IOException {
+        //
+        Throwable mainException = null;
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.getFD().sync();
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (randomAccessFile, mainException);
+        }
+    }
+
+
+    /** Encodes a transaction for the journal: length, CRC32 of the rest, number of changes, and for each change
+     *  the key, and the length and bytes of the value, length -1 for a delete.
+     *
+     *  @param values the encoded values, deleted keys mapped to {@code null}
+     *  @return the encoded transaction
+     *  @throws IOException -
+     */
+    private static @NonNull byte[] encodeJournalRecord (@NonNull final Map<String, byte[]> values) throws IOException {
+        //
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream stream = new DataOutputStream(bytes);
+        // Length and checksum, filled in below:
+        stream.writeInt(0);
+        stream.writeInt(0);
+        stream.writeInt(values.size());
+        for (final Map.Entry<String, byte[]> entry : values.entrySet()) {
+            stream.writeUTF(entry.getKey());
+            if (entry.getValue() == null) {
+                stream.writeInt(-1);
+            }
+            else {
+                stream.writeInt(entry.getValue().length);
+                stream.write(entry.getValue());
+            }
+        }
+        stream.flush();
+
+        final byte[] record = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(record, JOURNAL_HEADER_BYTES, record.length - JOURNAL_HEADER_BYTES);
+        ByteBuffer.wrap(record).putInt(record.length - JOURNAL_HEADER_BYTES).putInt((int) crc.getValue());
+        return record;
+    }
+
+
+    private static @NonNull Map<String, byte[]> decodeJournalRecord (@NonNull final byte[] journal, final int offset, final int length) throws IOException {
+        //
+        final DataInputStream stream = new DataInputStream(new ByteArrayInputStream(journal, offset, length));
+        final int count = stream.readInt();
+        final Map<String, byte[]> values = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            final String key = stream.readUTF();
+            final int valueLength = stream.readInt();
+            byte[] value = null;
+            if (valueLength >= 0) {
+                value = new byte[valueLength];
+                stream.readFully(value);
+            }
+            values.put(key, value);
+        }
+        return values;
+    }
+
+
+    /** Loads the key index from the directory, unless already loaded.
+     *
+     *  The directory is listed while holding all locks, so that no write is missed: writes before the
+     *  listing are seen in the directory, and writes after it update the loaded index.
+     *
+     *  @throws IOException -
+     */
+    private void loadKeyIndex () throws IOException {
+        //
+        if (_keyIndexLoaded) {
+            return;
+        }
+
+        final List<Lock> locks = _locks.lockEverything();
+        try {
+            if (! _keyIndexLoaded) {
+                final String[] names = _directory.list();
+                if (names == null) {
+                    throw new IOException ("Unable to list directory " + _directory.getAbsolutePath());
+                }
+                for (final String name : names) {
+                    if (! name.endsWith(TEMP_FILE_SUFFIX) && ! name.equals(JOURNAL_FILE_NAME) && new File (_directory, name).isFile()) {
+                        _keyIndex.add(name);
+                    }
+                }
+                _keyIndexLoaded = true;
+            }
+        }
+        finally {
+            unlockAll (locks);
+        }
+    }
+
+
+    /** Opens the input stream for reading the object.
+     * 
+     *  With {@link ReadMode#MEMORY_MAPPED} the file is mapped and the stream reads the mapping.
+     *
+     * @param filename Filename to open
+     * @return opened ObjectInputStream
+     * @throws IOException -
+     */
+    protected @NonNull ObjectInputStream openInputStream (@NonNull final String filename) throws IOException {
+        //
+        final FileInputStream fileStream = new FileInputStream(new File (_directory, filename));
+
+        try {
+            if (_readMode == ReadMode.MEMORY_MAPPED) {
+                final FileChannel channel = fileStream.getChannel();
+                final MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                // The mapping stays valid after the file has been closed:
+                fileStream.close();
+                return new ObjectInputStream(new ByteBufferInputStream(mapping));
+            }
+            return new ObjectInputStream(fileStream);
+        }
+        catch (final Throwable t) {
+            IOUtil.close (fileStream, t);
+            throw t;
+        }
+    }
+
+
+    /** Opens the input stream for writing the object.
+     * 
+     *  @param filename Filename to open
+     *  @return opened ObjectOutputStream
+     *  @throws IOException -
+     */
+    protected @NonNull ObjectOutputStream openOutputStream(@NonNull final String filename) throws IOException {
+        //
+        //final FileOutputStream fileStream = _context.openFileOutput(filename, Context.MODE_PRIVATE);
+        final FileOutputStream fileStream = new FileOutputStream(new File (_directory, filename));
+
+        try {
+            return new ObjectOutputStream(fileStream);
+        }
+        catch (final Throwable t) {
+            IOUtil.close (fileStream, t);
+            throw t;
+        }
+    }
+
+
+    /** Handle to an object in a file, reading the object on first access.
+     */
+    private final class FileValueHandle<T extends Serializable> implements ValueHandle<T> {
+
+        private final String _key;
+        private final Class<T> _objectClass;
+        private final long _size;
+        private final long _lastModified;
+        private final long _expiresAt;
+
+        // Guarded by this:
+        private boolean _loaded = false;
+        private T _object;
+
+
+        private FileValueHandle(
+                @NonNull final String key,
+                @NonNull final Class<T> objectClass,
+                final long size,
+                final long lastModified,
+                final long expiresAt) {
+            //
+            _key = key;
+            _objectClass = objectClass;
+            _size = size;
+            _lastModified = lastModified;
+            _expiresAt = expiresAt;
+        }
+
+
+        @Override
+        public @NonNull String getKey () {
+            return _key;
+        }
+
+
+        @Override
+        public long getSize () {
+            return _size;
+        }
+
+
+        @Override
+        public long getLastModified () {
+            return _lastModified;
+        }
+
+
+        @Override
+        public long getExpiryTime () {
+            return _expiresAt;
+        }
+
+
+        @Override
+        public boolean isExpired () {
+            return _expiresAt <= System.currentTimeMillis();
+        }
+
+
+        @Override
+        public synchronized @Nullable T get () throws BadPaddingException, ClassCastException, ClassNotFoundException, IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+            //
+            if (! _loaded) {
+                _object = read (_key, _objectClass);
+                _loaded = true;
+            }
+            return _object;
+        }
+    }
+
+
+    /** Stream writing a streamed value to a temporary file, which replaces the value of the key on close.
+     */
+    private final class ValueWriter extends FilterOutputStream {
+
+        private final String _key;
+        private final File _tempFile;
+        private boolean _failed = false;
+        private boolean _closed = false;
+
+
+        private ValueWriter(@NonNull final OutputStream valueStream, @NonNull final String key, @NonNull final File tempFile) {
+            super (valueStream);
+            _key = key;
+            _tempFile = tempFile;
+        }
+
+
+        @Override
+        public void write (final int b) throws IOException {
+            //
+            try {
+                out.write(b);
+            }
+            catch (final IOException | RuntimeException e) {
+                _failed = true;
+                throw e;
+            }
+        }
+
+
+        @Override
+        public void write (@NonNull final byte[] bytes, final int offset, final int length) throws IOException {
+            //
+            try {
+                out.write(bytes, offset, length);
+            }
+            catch (final IOException | RuntimeException e) {
+                _failed = true;
+                throw e;
+            }
+        }
+
+
+        @Override
+        public void close () throws IOException {
+            //
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+
+            Throwable mainException = null;
+            try {
+                if (_failed) {
+                    throw new IOException ("Writing the value of " + _key + " failed, previous value kept");
+                }
+                // Writes the signature, and syncs and closes the file:
+                out.close();
+
+                replayBeforeAccess (Collections.singleton(_key));
+                final Lock lock = writeLockFor (_key);
+                lock.lock();
+                try {
+                    checkpointBeforeWrite (Collections.singleton(_key));
+                    renameTempFile(_tempFile, _key);
+                }
+                finally {
+                    lock.unlock();
+                }
+                if (_durableWrites) {
+                    _directorySyncer.sync();
+                }
+            }
+            catch (final Throwable t) {
+                mainException = t;
+                throw t;
+            }
+            finally {
+                if (mainException != null) {
+                    IOUtil.close (out, mainException);
+                    if (! _tempFile.delete()) {
+                        Log.w (TAG, "ValueWriter.close(): Unable to delete temporary file " + _tempFile.getName());
+                    }
+                }
+            }
+        }
+    }
+
+
+    /** Stream to a file, which syncs the file on close with durable writes.
+     */
+    private final class SyncingOutputStream extends BufferedOutputStream {
+
+        private final FileOutputStream _fileStream;
+
+
+        private SyncingOutputStream(@NonNull final FileOutputStream fileStream) {
+            super (fileStream);
+            _fileStream = fileStream;
+        }
+
+
+        @Override
+        public void close () throws IOException {
+            //
+            Throwable mainException = null;
+            try {
+                flush();
+                if (_durableWrites) {
+                    _fileStream.getFD().sync();
+                }
+            }
+            catch (final Throwable t) {
+                mainException = t;
+                throw t;
+            }
+            finally {
+                IOUtil.close (_fileStream, mainException);
+            }
         }
     }
 
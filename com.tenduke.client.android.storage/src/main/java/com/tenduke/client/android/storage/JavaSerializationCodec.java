@@ -0,0 +1,67 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import com.tenduke.client.io.IOUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+
+/** {@link Codec} using Java serialization. Supports any {@link Serializable} object, with the size and
+ *  speed overhead of Java serialization (class descriptors etc.).
+ */
+public final class JavaSerializationCodec implements Codec {
+
+    /** Id of the codec. */
+    public static final int ID = 1;
+
+    /** The instance. */
+    public static final JavaSerializationCodec INSTANCE = new JavaSerializationCodec();
+
+
+    private JavaSerializationCodec() {
+    }
+
+
+    @Override
+    public int getId () {
+        return ID;
+    }
+
+
+    @Override
+    public @NonNull byte[] encode (@NonNull final Serializable object) throws IOException {
+        //
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream stream = new ObjectOutputStream(bytes);
+        stream.writeObject(object);
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+
+    @Override
+    public @NonNull Serializable decode (@NonNull final ByteBuffer bytes) throws ClassNotFoundException, IOException {
+        //
+        Throwable mainException = null;
+        final ObjectInputStream stream = new ObjectInputStream(new ByteBufferInputStream(bytes));
+        try {
+            final Object object = stream.readObject();
+            if (! (object instanceof Serializable)) {
+                throw new InvalidClassException ("Decoded object is not Serializable: " + object);
+            }
+            return (Serializable) object;
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (stream, mainException);
+        }
+    }
+}
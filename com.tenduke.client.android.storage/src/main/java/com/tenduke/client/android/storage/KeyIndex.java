@@ -0,0 +1,63 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+
+/** Sorted, thread safe set of the keys of a store, supporting prefix queries.
+ *
+ *  A prefix query costs a logarithmic search plus the number of keys returned.
+ */
+final class KeyIndex {
+
+    private final ConcurrentSkipListSet<String> _keys = new ConcurrentSkipListSet<>();
+
+
+    void add (@NonNull final String key) {
+        _keys.add(key);
+    }
+
+
+    void addAll (@NonNull final Collection<String> keys) {
+        _keys.addAll(keys);
+    }
+
+
+    void remove (@NonNull final String key) {
+        _keys.remove(key);
+    }
+
+
+    void removeAll (@NonNull final Collection<String> keys) {
+        //
+        for (final String key : keys) {
+            _keys.remove(key);
+        }
+    }
+
+
+    void clear () {
+        _keys.clear();
+    }
+
+
+    /** Returns the keys starting with a prefix.
+     *
+     *  @param prefix the prefix, empty for all keys
+     *  @return the keys in ascending order
+     */
+    @NonNull List<String> keys (@NonNull final String prefix) {
+        //
+        final List<String> keys = new ArrayList<>();
+        for (final String key : _keys.tailSet(prefix)) {
+            if (! key.startsWith(prefix)) {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+}
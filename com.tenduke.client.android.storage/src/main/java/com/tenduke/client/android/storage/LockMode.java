@@ -0,0 +1,17 @@
+package com.tenduke.client.android.storage;
+
+/** Concurrency modes of key-value stores.
+ *
+ */
+public enum LockMode {
+
+    /** Every operation on a key gets exclusive access to the key, including reads.
+     */
+    EXCLUSIVE,
+
+    /** Any number of readers may access a key at the same time, writers get exclusive access to the key.
+     *  Suits workloads where reads dominate.
+     */
+    READ_WRITE
+
+}
@@ -0,0 +1,1154 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.EnvelopeKeys;
+import com.tenduke.client.android.security.SigningContext;
+import com.tenduke.client.io.IOUtil;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+
+
+/** A key-value store, which appends the values to log segment files in a single directory.
+ *
+ *  Every store or delete appends a record to the active segment. An in-memory index maps each key to
+ *  the location of its latest record, and is rebuilt by scanning the segments when the store is opened.
+ *  When the active segment grows beyond the maximum segment size, a new segment is started. Records
+ *  made obsolete by later stores and deletes are reclaimed by compaction, which copies the live records
+ *  of a segment to the active segment and then deletes the segment. Compaction runs on a background
+ *  thread for the segments, whose share of obsolete data exceeds the compaction threshold.
+ *
+ *  Values are encoded, encrypted and signed like in {@link FileBasedKeyValueStore}. Each record is protected by
+ *  a CRC32 checksum: a partially written record at the end of the log (e.g. after a crash) is discarded
+ *  when the store is opened. Invalid records in any other segment are damage, which fails opening the store
+ *  instead of silently dropping the records after it. The records of a {@link #begin() transaction} are preceded by a begin record
+ *  holding the number of records, and are discarded unless all of them are valid. With {@link ReadMode#MEMORY_MAPPED} the values are decoded straight from
+ *  memory-mapped segments.
+ *
+ *  The store is thread safe. Serialization and cryptography run without locks, only the appends and
+ *  index updates are serialized.
+ */
+public class LogStructuredKeyValueStore extends AbstractEncryptingStore implements BatchKeyValueStore, EnumerableKeyValueStore, TransactionalKeyValueStore, Closeable {
+
+    /** Default maximum size of a segment in bytes. */
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 4L * 1024L * 1024L;
+
+    /** Default share of obsolete data, which triggers compaction. */
+    public static final float DEFAULT_COMPACTION_THRESHOLD = 0.5f;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Record layout: crc (int), type (byte), key length (int), value length (int), key, value.
+    private static final int HEADER_BYTES = 4 + 1 + 4 + 4;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    // Empty key, value is the number of records of the transaction:
+    private static final byte TYPE_BEGIN = 3;
+
+    private final File _directory;
+    private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean _compactionScheduled = new AtomicBoolean(false);
+    private final Object _compactionLock = new Object ();
+    private final ExecutorService _compactor;
+    private volatile long _maxSegmentBytes = DEFAULT_MAX_SEGMENT_BYTES;
+    private volatile float _compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private volatile boolean _durableWrites = false;
+    private volatile ReadMode _readMode = ReadMode.STREAM;
+
+    // Guarded by _lock:
+    private final TreeMap<Integer, Segment> _segments = new TreeMap<>();
+    private final Map<String, Location> _index = new HashMap<>();
+    private final KeyIndex _keyIndex = new KeyIndex();
+    private Segment _activeSegment;
+    private long _totalBytes = 0;
+    private long _liveBytes = 0;
+    private boolean _closed = false;
+
+
+    /** Constructs a new instance and opens the store, rebuilding the index from the segments.
+     *
+     * @param context -
+     * @param encryptionContext Encryption to use. Optional, if {@code null}, the data is not encrypted.
+     * @param signingContext Signing to use. Optional, if {@code null}, the data is not signed.
+     * @param directory Directory to store the segments in, relative to {@link Context#getFilesDir() }.
+     * @throws IOException -
+     */
+    public LogStructuredKeyValueStore(
+            @NonNull final Context context,
+            @Nullable final EncryptionContext encryptionContext,
+            @Nullable final SigningContext signingContext,
+            @NonNull final String directory) throws IOException {
+        //
+        super (encryptionContext, signingContext);
+        _directory = new File (context.getFilesDir (), directory);
+        if (_directory.exists() && ! _directory.isDirectory()) {
+            throw new IOException ("File " + _directory.getAbsolutePath() + " exists and is not a directory!");
+        }
+        if (! _directory.exists ()) {
+            if (! _directory.mkdirs()) {
+                throw new IOException ("Unable to created directory " + _directory.getAbsolutePath());
+            }
+        }
+        _compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                final Thread thread = new Thread (runnable, TAG + "-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            open ();
+        }
+        catch (final Throwable t) {
+            IOUtil.close (this, t);
+            throw t;
+        }
+    }
+
+
+    /** Constructs a new instance using default directory.
+     *
+     * @param context -
+     * @param encryptionContext Encryption to use. Optional, if {@code null}, the data is not encrypted.
+     * @param signingContext Signing to use. Optional, if {@code null}, the data is not signed.
+     * @throws IOException -
+     */
+    public LogStructuredKeyValueStore(
+            @NonNull final Context context,
+            @Nullable final EncryptionContext encryptionContext,
+            @Nullable final SigningContext signingContext) throws IOException {
+        //
+        this (context, encryptionContext, signingContext, LogStructuredKeyValueStore.class.getName());
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param key {@inheritDoc }
+     */
+    @Override
+    public void delete (@NonNull final String key) {
+        deleteAll (Collections.singleton(key));
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws BadPaddingException -
+     *  @throws ClassCastException -
+     *  @throws ClassNotFoundException -
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    @Override
+    public @Nullable <T extends Serializable> T read (@NonNull final String key, @NonNull final Class<T> objectClass) throws BadPaddingException, ClassCastException, ClassNotFoundException, IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        //
+        final ByteBuffer value = readValue (key);
+        if (value == null) {
+            return null;
+        }
+        return objectClass.cast(decodeValue (value, initThreadCipher(Cipher.DECRYPT_MODE)));
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param object {@inheritDoc }
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    @Override
+    public <T extends Serializable> void store (@NonNull final String key, @NonNull final T object) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        storeAll (Collections.singletonMap(key, object));
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param keys {@inheritDoc }
+     */
+    @Override
+    public void deleteAll (@NonNull final Collection<String> keys) {
+        //
+        final List<byte[]> records = new ArrayList<>(keys.size());
+        final List<String> recordKeys = new ArrayList<>(keys.size());
+        for (final String key : keys) {
+            records.add(encodeRecord(TYPE_DELETE, key, new byte[0]));
+            recordKeys.add(key);
+        }
+
+        try {
+            append (recordKeys, records);
+        }
+        catch (final IOException e) {
+            Log.e (TAG, "deleteAll(): Unable to append delete records", e);
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param keys {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws BadPaddingException -
+     *  @throws ClassCastException -
+     *  @throws ClassNotFoundException -
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    @Override
+    public @NonNull <T extends Serializable> Map<String, T> readAll (@NonNull final Collection<String> keys, @NonNull final Class<T> objectClass) throws BadPaddingException, ClassCastException, ClassNotFoundException, IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        //
+        final Map<String, T> objects = new LinkedHashMap<>();
+        final Cipher cipher = initThreadCipher(Cipher.DECRYPT_MODE);
+        for (final String key : keys) {
+            final ByteBuffer value = readValue (key);
+            if (value != null) {
+                objects.put(key, objectClass.cast(decodeValue (value, cipher)));
+            }
+        }
+        return objects;
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  All records of the batch are appended with a single write, and with durable writes flushed with a single sync.
+     *
+     *  @param objects {@inheritDoc }
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    @Override
+    public void storeAll (@NonNull final Map<String, ? extends Serializable> objects) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        //
+        final List<byte[]> records = new ArrayList<>(objects.size());
+        final List<String> recordKeys = new ArrayList<>(objects.size());
+        Cipher cipher = initThreadCipher(Cipher.ENCRYPT_MODE);
+        for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+            if (! isReusable(cipher)) {
+                cipher = initThreadCipher(Cipher.ENCRYPT_MODE);
+            }
+            records.add(encodeRecord(TYPE_PUT, entry.getKey(), encodeValue (entry.getValue(), cipher)));
+            recordKeys.add(entry.getKey());
+        }
+        append (recordKeys, records);
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  The records of the transaction are appended with a single write after a begin record, and with durable
+     *  writes flushed with a single sync. When the store is opened, the records of a transaction are discarded
+     *  unless all of them were written completely.
+     *
+     *  @return {@inheritDoc }
+     */
+    @Override
+    public @NonNull Transaction begin () {
+        //
+        return new AbstractTransaction() {
+            @Override
+            protected void commit (@NonNull final Map<String, Serializable> changes) throws IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+                //
+                final List<byte[]> records = new ArrayList<>(changes.size() + 1);
+                final List<String> recordKeys = new ArrayList<>(changes.size() + 1);
+                records.add(encodeRecord(TYPE_BEGIN, "", ByteBuffer.allocate(4).putInt(changes.size()).array()));
+                recordKeys.add("");
+                Cipher cipher = initThreadCipher(Cipher.ENCRYPT_MODE);
+                for (final Map.Entry<String, Serializable> entry : changes.entrySet()) {
+                    if (entry.getValue() == null) {
+                        records.add(encodeRecord(TYPE_DELETE, entry.getKey(), new byte[0]));
+                    }
+                    else {
+                        if (! isReusable(cipher)) {
+                            cipher = initThreadCipher(Cipher.ENCRYPT_MODE);
+                        }
+                        records.add(encodeRecord(TYPE_PUT, entry.getKey(), encodeValue (entry.getValue(), cipher)));
+                    }
+                    recordKeys.add(entry.getKey());
+                }
+                append (recordKeys, records);
+            }
+        };
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @return {@inheritDoc }
+     *  @throws IOException if the store is closed
+     */
+    @Override
+    public @NonNull List<String> keys () throws IOException {
+        return keys ("");
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param prefix {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws IOException if the store is closed
+     */
+    @Override
+    public @NonNull List<String> keys (@NonNull final String prefix) throws IOException {
+        //
+        _lock.readLock().lock();
+        try {
+            ensureOpen ();
+            return _keyIndex.keys(prefix);
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param prefix {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws BadPaddingException -
+     *  @throws ClassCastException -
+     *  @throws ClassNotFoundException -
+     *  @throws IllegalBlockSizeException -
+     *  @throws InvalidKeyException -
+     *  @throws IOException -
+     *  @throws SignatureException -
+     */
+    @Override
+    public @NonNull <T extends Serializable> Map<String, T> scan (@NonNull final String prefix, @NonNull final Class<T> objectClass) throws BadPaddingException, ClassCastException, ClassNotFoundException, IllegalBlockSizeException, InvalidKeyException, IOException, SignatureException {
+        return readAll (keys (prefix), objectClass);
+    }
+
+
+    /** Compacts the store synchronously: copies the live records of each segment, which contains obsolete
+     *  records, to the active segment, and deletes the compacted segments. The active segment is not compacted.
+     *
+     *  @throws IOException -
+     */
+    public void compact () throws IOException {
+        compact (0f);
+    }
+
+
+    /** Closes the store. Further operations fail.
+     *
+     *  @throws IOException -
+     */
+    @Override
+    public void close () throws IOException {
+        //
+        _compactor.shutdown();
+        _lock.writeLock().lock();
+        try {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            IOException failure = null;
+            for (final Segment segment : _segments.values()) {
+                try {
+                    segment.close();
+                }
+                catch (final IOException e) {
+                    failure = e;
+                }
+            }
+            _segments.clear();
+            _index.clear();
+            _keyIndex.clear();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+
+    /** Configures durable writes. When enabled, writes return only after the appended records have been
+     *  flushed to disk. Configure before using the store.
+     *
+     *  @param durableWrites {@code true} to flush writes to disk
+     *  @return this instance
+     */
+    public @NonNull LogStructuredKeyValueStore withDurableWrites (final boolean durableWrites) {
+        //
+        _durableWrites = durableWrites;
+        return this;
+    }
+
+
+    /** Configures the codec used to encode the stored objects. Configure before using the store.
+     *
+     *  @param codec the codec, {@link BinaryCodec} by default
+     *  @return this instance
+     */
+    public @NonNull LogStructuredKeyValueStore withCodec (@NonNull final Codec codec) {
+        //
+        setCodec (codec);
+        return this;
+    }
+
+
+    /** Configures envelope encryption: the objects are encrypted with a data key of the namespace, wrapped with
+     *  the key of the encryption context, see {@link EnvelopeKeys}. Objects stored before are still read.
+     *  Configure before using the store.
+     *
+     *  @param envelopeKeys the envelope keys, {@code null} (the default) to encrypt with the encryption context
+     *  @param namespace namespace of the data key, e.g. name of the store
+     *  @return this instance
+     */
+    public @NonNull LogStructuredKeyValueStore withEnvelopeKeys (@Nullable final EnvelopeKeys envelopeKeys, @NonNull final String namespace) {
+        //
+        setEnvelopeKeys (envelopeKeys, namespace);
+        return this;
+    }
+
+
+    /** Configures compression of the stored objects, which runs before encryption. Configure before using the store.
+     *
+     *  @param compression the compression, e.g. {@link LzCompression} or {@link DeflateCompression}. {@code null}
+     *  (the default) to store the objects uncompressed.
+     *  @param thresholdBytes size of an encoded object in bytes, below which it is not compressed,
+     *  e.g. {@link #DEFAULT_COMPRESSION_THRESHOLD_BYTES}
+     *  @return this instance
+     */
+    public @NonNull LogStructuredKeyValueStore withCompression (@Nullable final Compression compression, final int thresholdBytes) {
+        //
+        setCompression (compression, thresholdBytes);
+        return this;
+    }
+
+
+    /** Configures how the values are read. Configure before using the store.
+     *
+     *  @param readMode the read mode, {@link ReadMode#STREAM} by default
+     *  @return this instance
+     */
+    public @NonNull LogStructuredKeyValueStore withReadMode (@NonNull final ReadMode readMode) {
+        //
+        _readMode = readMode;
+        return this;
+    }
+
+
+    /** Configures the maximum size of a segment. Configure before using the store.
+     *
+     *  @param maxSegmentBytes maximum size of a segment in bytes
+     *  @return this instance
+     */
+    public @NonNull LogStructuredKeyValueStore withMaxSegmentBytes (final long maxSegmentBytes) {
+        //
+        if (maxSegmentBytes < HEADER_BYTES) {
+            throw new IllegalArgumentException ("maxSegmentBytes too small: " + maxSegmentBytes);
+        }
+        _maxSegmentBytes = maxSegmentBytes;
+        return this;
+    }
+
+
+    /** Configures the share of obsolete data in the segments, which triggers background compaction.
+     *  Configure before using the store.
+     *
+     *  @param compactionThreshold share of obsolete data between 0 and 1, greater than 1 disables background compaction
+     *  @return this instance
+     */
+    public @NonNull LogStructuredKeyValueStore withCompactionThreshold (final float compactionThreshold) {
+        //
+        _compactionThreshold = compactionThreshold;
+        return this;
+    }
+
+
+    /** Returns the total size of the segments in bytes.
+     *
+     *  @return total size of the segments
+     */
+    public long getTotalBytes () {
+        //
+        _lock.readLock().lock();
+        try {
+            return _totalBytes;
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+
+    /** Returns the size of the live records in bytes.
+     *
+     *  @return size of the live records
+     */
+    public long getLiveBytes () {
+        //
+        _lock.readLock().lock();
+        try {
+            return _liveBytes;
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+
+    /** Returns the number of segments.
+     *
+     *  @return number of segments
+     */
+    public int getSegmentCount () {
+        //
+        _lock.readLock().lock();
+        try {
+            return _segments.size();
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+
+    /** Reads the raw value of a key. With {@link ReadMode#MEMORY_MAPPED} the returned buffer is a view
+     *  of the mapped segment, which stays valid even if the segment is later compacted away.
+     *
+     *  @param key the key
+     *  @return the value, {@code null} if not found
+     *  @throws IOException -
+     */
+    private @Nullable ByteBuffer readValue (@NonNull final String key) throws IOException {
+        //
+        _lock.readLock().lock();
+        try {
+            ensureOpen ();
+            final Location location = _index.get(key);
+            if (location == null) {
+                return null;
+            }
+            final Segment segment = _segments.get(location._segment);
+            final int keyBytes = key.getBytes(UTF8).length;
+            final int valueBytes = location._length - HEADER_BYTES - keyBytes;
+            final long valueOffset = location._offset + HEADER_BYTES + keyBytes;
+            if (_readMode == ReadMode.MEMORY_MAPPED) {
+                return segment.map(valueOffset, valueBytes, segment != _activeSegment);
+            }
+            final ByteBuffer value = ByteBuffer.allocate(valueBytes);
+            segment.readFully(value, valueOffset);
+            value.flip();
+            return value;
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+
+    /** Appends records to the active segment and updates the index.
+     *
+     *  @param keys keys of the records
+     *  @param records the records
+     *  @throws IOException -
+     */
+    private void append (@NonNull final List<String> keys, @NonNull final List<byte[]> records) throws IOException {
+        //
+        _lock.writeLock().lock();
+        try {
+            ensureOpen ();
+            if (_activeSegment._size > 0 && _activeSegment._size >= _maxSegmentBytes) {
+                startNewSegment ();
+            }
+
+            int total = 0;
+            for (final byte[] record : records) {
+                total += record.length;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(total);
+            for (final byte[] record : records) {
+                buffer.put(record);
+            }
+            buffer.flip();
+
+            final long offset = _activeSegment.append(buffer);
+            if (_durableWrites) {
+                _activeSegment.sync();
+            }
+
+            long recordOffset = offset;
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.get(i);
+                if (record[4] == TYPE_BEGIN) {
+                    _totalBytes += record.length;
+                }
+                else {
+                    index (keys.get(i), record[4] == TYPE_PUT ? new Location(_activeSegment._id, recordOffset, record.length) : null, record.length);
+                }
+                recordOffset += record.length;
+            }
+        }
+        finally {
+            _lock.writeLock().unlock();
+        }
+
+        scheduleCompactionIfNeeded ();
+    }
+
+
+    /** Updates the index and the size accounting with a record. Must be called while holding the write lock.
+     *
+     *  @param key key of the record
+     *  @param location location of the put record, {@code null} for a delete record
+     *  @param recordBytes size of the record, added to the total size
+     */
+    private void index (@NonNull final String key, @Nullable final Location location, final int recordBytes) {
+        //
+        final Location previous = (location == null ? _index.remove(key) : _index.put(key, location));
+        if (location == null) {
+            _keyIndex.remove(key);
+        }
+        else if (previous == null) {
+            _keyIndex.add(key);
+        }
+        if (previous != null) {
+            _liveBytes -= previous._length;
+            _segments.get(previous._segment)._liveBytes -= previous._length;
+        }
+        if (location != null) {
+            _liveBytes += location._length;
+            _segments.get(location._segment)._liveBytes += location._length;
+        }
+        _totalBytes += recordBytes;
+    }
+
+
+    private void scheduleCompactionIfNeeded () {
+        //
+        final float threshold = _compactionThreshold;
+        if (_compactionScheduled.get()) {
+            return;
+        }
+
+        boolean needed = false;
+        _lock.readLock().lock();
+        try {
+            if (! _closed) {
+                for (final Segment segment : _segments.values()) {
+                    needed |= (segment != _activeSegment && segment.obsoleteShare() > threshold);
+                }
+            }
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+
+        if (needed && _compactionScheduled.compareAndSet(false, true)) {
+            try {
+                _compactor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            compact (threshold);
+                        }
+                        catch (final IOException | RuntimeException e) {
+                            Log.e (TAG, "Background compaction failed", e);
+                        }
+                        finally {
+                            _compactionScheduled.set(false);
+                        }
+                    }
+                });
+            }
+            catch (final RejectedExecutionException e) {
+                // Store has been closed
+                _compactionScheduled.set(false);
+            }
+        }
+    }
+
+
+    /** Compacts the segments except the active one, whose share of obsolete data exceeds the threshold.
+     *
+     *  @param threshold the threshold
+     *  @throws IOException -
+     */
+    private void compact (final float threshold) throws IOException {
+        //
+        synchronized (_compactionLock) {
+            final List<Segment> segments = new ArrayList<>();
+            _lock.readLock().lock();
+            try {
+                ensureOpen ();
+                for (final Segment segment : _segments.values()) {
+                    if (segment != _activeSegment && segment.obsoleteShare() > threshold) {
+                        segments.add(segment);
+                    }
+                }
+            }
+            finally {
+                _lock.readLock().unlock();
+            }
+
+            for (final Segment segment : segments) {
+                compactSegment (segment);
+            }
+        }
+    }
+
+
+    /** Copies the live records of a segment to the active segment and deletes the segment.
+     *
+     *  Delete records are copied only if the key has not been stored again, and if there are older
+     *  segments, which may contain put records of the key.
+     *
+     *  @param segment the segment to compact
+     *  @throws IOException -
+     */
+    private void compactSegment (@NonNull final Segment segment) throws IOException {
+        //
+        final boolean oldest;
+        _lock.readLock().lock();
+        try {
+            ensureOpen ();
+            oldest = (_segments.firstKey() == segment._id);
+        }
+        finally {
+            _lock.readLock().unlock();
+        }
+
+        // The segment is immutable and only deleted by compaction, so it can be scanned without locks
+        scanRecords (segment._file, new RecordVisitor() {
+            @Override
+            public void visit(final byte type, @NonNull final String key, final long offset, @NonNull final byte[] record) throws IOException {
+                //
+                _lock.writeLock().lock();
+                try {
+                    ensureOpen ();
+                    if (type == TYPE_PUT) {
+                        final Location current = _index.get(key);
+                        if (current == null || current._segment != segment._id || current._offset != offset) {
+                            // Obsolete
+                            return;
+                        }
+                    }
+                    else if (oldest || _index.containsKey(key)) {
+                        // Nothing left to mask
+                        return;
+                    }
+
+                    if (_activeSegment._size >= _maxSegmentBytes) {
+                        startNewSegment ();
+                    }
+                    final long newOffset = _activeSegment.append(ByteBuffer.wrap(record));
+                    index (key, type == TYPE_PUT ? new Location(_activeSegment._id, newOffset, record.length) : null, record.length);
+                }
+                finally {
+                    _lock.writeLock().unlock();
+                }
+            }
+        });
+
+        _lock.writeLock().lock();
+        try {
+            ensureOpen ();
+            // Copied records must be on disk before the originals are removed:
+            _activeSegment.sync();
+            _segments.remove(segment._id);
+            _totalBytes -= segment._size;
+            segment.close();
+            if (! segment._file.delete()) {
+                Log.w (TAG, "compactSegment(): Unable to delete " + segment._file.getName());
+            }
+        }
+        finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+
+    /** Opens the segments and rebuilds the index. Invalid bytes at the end of the last segment are a write
+     *  interrupted by a crash, and are truncated away. Invalid bytes in an earlier segment are damage.
+     *
+     *  @throws IOException if a segment other than the last one is damaged
+     */
+    private void open () throws IOException {
+        //
+        _lock.writeLock().lock();
+        try {
+            final String[] names = _directory.list(new FilenameFilter() {
+                @Override
+                public boolean accept(final File directory, final String name) {
+                    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                }
+            });
+            final TreeMap<Integer, File> files = new TreeMap<>();
+            if (names != null) {
+                for (final String name : names) {
+                    try {
+                        files.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), new File (_directory, name));
+                    }
+                    catch (final NumberFormatException e) {
+                        Log.w (TAG, "open(): Ignoring unexpected file " + name);
+                    }
+                }
+            }
+
+            for (final Map.Entry<Integer, File> entry : files.entrySet()) {
+                final int id = entry.getKey();
+                final Segment segment = new Segment(id, entry.getValue());
+                _segments.put(id, segment);
+
+                final long validBytes = scanRecords (segment._file, new RecordVisitor() {
+                    @Override
+                    public void visit(final byte type, @NonNull final String key, final long offset, @NonNull final byte[] record) {
+                        index (key, type == TYPE_PUT ? new Location(id, offset, record.length) : null, 0);
+                    }
+                });
+                if (segment._size > validBytes) {
+                    if (id != files.lastKey()) {
+                        // Records after the damage are unreadable: the index would serve older values of their
+                        // keys and lose their deletes, and compaction would make the loss permanent.
+                        throw new IOException ("Segment " + segment._file.getName() + " is damaged at offset " + validBytes);
+                    }
+                    Log.w (TAG, "open(): Discarding " + (segment._size - validBytes) + " invalid bytes at the end of " + segment._file.getName());
+                    segment.truncate(validBytes);
+                }
+                _totalBytes += segment._size;
+            }
+
+            if (_segments.isEmpty()) {
+                startNewSegment ();
+            }
+            else {
+                _activeSegment = _segments.lastEntry().getValue();
+            }
+        }
+        finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+
+    /** Scans the valid records of a segment file in order. Begin records are not visited, and the records
+     *  of a transaction are visited only if all of them are valid.
+     *
+     *  @param file the segment file
+     *  @param visitor visitor receiving the records
+     *  @return number of valid bytes at the start of the segment
+     *  @throws IOException -
+     */
+    private static long scanRecords (@NonNull final File file, @NonNull final RecordVisitor visitor) throws IOException {
+        //
+        Throwable mainException = null;
+        final DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        final long fileBytes = file.length();
+        long offset = 0;
+        try {
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final byte[] record = readRecord (stream, crc, fileBytes - offset);
+                if (record == null) {
+                    return offset;
+                }
+                if (record[4] != TYPE_BEGIN) {
+                    visitor.visit(record[4], keyOf (record), offset, record);
+                    offset += record.length;
+                    continue;
+                }
+
+                final int count = ByteBuffer.wrap(record, HEADER_BYTES, 4).getInt();
+                final List<byte[]> transaction = new ArrayList<>();
+                long transactionBytes = record.length;
+                for (int i = 0; i < count; i++) {
+                    final byte[] transactionRecord = readRecord (stream, crc, fileBytes - offset - transactionBytes);
+                    if (transactionRecord == null || transactionRecord[4] == TYPE_BEGIN) {
+                        return offset;
+                    }
+                    transaction.add(transactionRecord);
+                    transactionBytes += transactionRecord.length;
+                }
+
+                long recordOffset = offset + record.length;
+                for (final byte[] transactionRecord : transaction) {
+                    visitor.visit(transactionRecord[4], keyOf (transactionRecord), recordOffset, transactionRecord);
+                    recordOffset += transactionRecord.length;
+                }
+                offset += transactionBytes;
+            }
+        }
+        catch (final Throwable t) {
+            mainException = t;
+            throw t;
+        }
+        finally {
+            IOUtil.close (stream, mainException);
+        }
+    }
+
+
+    /** Reads the next record of a segment.
+     *
+     *  @param stream the segment
+     *  @param crc checksum to reuse
+     *  @param remainingBytes bytes left in the segment
+     *  @return the record, {@code null} if the rest of the segment is not a valid record
+     *  @throws IOException -
+     */
+    private static @Nullable byte[] readRecord (@NonNull final DataInputStream stream, @NonNull final CRC32 crc, final long remainingBytes) throws IOException {
+        //
+        final byte[] record;
+        try {
+            final int expectedCrc = stream.readInt();
+            final byte type = stream.readByte();
+            final int keyLength = stream.readInt();
+            final int valueLength = stream.readInt();
+            if (keyLength < 0
+                    || valueLength < 0
+                    || (type != TYPE_PUT && type != TYPE_DELETE && type != TYPE_BEGIN)
+                    || (type == TYPE_BEGIN && valueLength != 4)
+                    || (long) HEADER_BYTES + keyLength + valueLength > remainingBytes) {
+                return null;
+            }
+            record = new byte[HEADER_BYTES + keyLength + valueLength];
+            ByteBuffer.wrap(record).putInt(expectedCrc).put(type).putInt(keyLength).putInt(valueLength);
+            stream.readFully(record, HEADER_BYTES, keyLength + valueLength);
+        }
+        catch (final EOFException e) {
+            return null;
+        }
+
+        crc.reset();
+        crc.update(record, 4, record.length - 4);
+        return ((int) crc.getValue() == ByteBuffer.wrap(record).getInt() ? record : null);
+    }
+
+
+    private static @NonNull String keyOf (@NonNull final byte[] record) {
+        //
+        final int keyLength = ByteBuffer.wrap(record, 5, 4).getInt();
+        return new String(record, HEADER_BYTES, keyLength, UTF8);
+    }
+
+
+    /** Starts a new active segment. Must be called while holding the write lock.
+     *
+     *  @throws IOException -
+     */
+    private void startNewSegment () throws IOException {
+        //
+        if (_activeSegment != null) {
+            _activeSegment.sync();
+        }
+        final int id = (_segments.isEmpty() ? 1 : _segments.lastKey() + 1);
+        final Segment segment = new Segment(id, new File (_directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+        _segments.put(id, segment);
+        _activeSegment = segment;
+    }
+
+
+    private void ensureOpen () throws IOException {
+        //
+        if (_closed) {
+            throw new IOException ("Store is closed");
+        }
+    }
+
+
+    /** Encodes a record.
+     *
+     *  @param type type of the record
+     *  @param key the key
+     *  @param value the value
+     *  @return the record
+     */
+    private static @NonNull byte[] encodeRecord (final byte type, @NonNull final String key, @NonNull final byte[] value) {
+        //
+        final byte[] keyBytes = key.getBytes(UTF8);
+        final byte[] record = new byte[HEADER_BYTES + keyBytes.length + value.length];
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(value.length);
+        buffer.put(keyBytes);
+        buffer.put(value);
+
+        final CRC32 crc = new CRC32();
+        crc.update(record, 4, record.length - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        return record;
+    }
+
+
+    /** Receives records scanned from a segment.
+     */
+    private interface RecordVisitor {
+
+        /** Called for each valid record.
+         *
+         *  @param type type of the record
+         *  @param key key of the record
+         *  @param offset offset of the record in the segment
+         *  @param record the whole record
+         *  @throws IOException -
+         */
+        void visit (byte type, @NonNull String key, long offset, @NonNull byte[] record) throws IOException;
+
+    }
+
+
+    /** Location of a put record in the segments.
+     */
+    private static final class Location {
+        private final int _segment;
+        private final long _offset;
+        private final int _length;
+
+        private Location(final int segment, final long offset, final int length) {
+            _segment = segment;
+            _offset = offset;
+            _length = length;
+        }
+    }
+
+
+    /** An open segment file.
+     */
+    private static final class Segment {
+        private final int _id;
+        private final File _file;
+        private final RandomAccessFile _randomAccessFile;
+        private final FileChannel _channel;
+        private volatile long _size;
+        private volatile MappedByteBuffer _mapping;
+        private long _liveBytes = 0;
+
+        private Segment(final int id, @NonNull final File file) throws IOException {
+            _id = id;
+            _file = file;
+            _randomAccessFile = new RandomAccessFile(file, "rw");
+            _channel = _randomAccessFile.getChannel();
+            _size = _channel.size();
+        }
+
+        private long append (@NonNull final ByteBuffer buffer) throws IOException {
+            final long offset = _size;
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += _channel.write(buffer, position);
+            }
+            _size = position;
+            return offset;
+        }
+
+        private void readFully (@NonNull final ByteBuffer buffer, final long offset) throws IOException {
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                final int read = _channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException ("Unexpected end of segment " + _file.getName());
+                }
+                position += read;
+            }
+        }
+
+        /** Maps a region of the segment. Sealed segments do not change, so they are mapped as a whole
+         *  once, and the region is a slice of that mapping.
+         */
+        private @NonNull ByteBuffer map (final long offset, final int length, final boolean sealed) throws IOException {
+            //
+            if (! sealed) {
+                return _channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            MappedByteBuffer mapping = _mapping;
+            if (mapping == null) {
+                // Concurrent readers may both map the segment, the extra mapping is just garbage collected
+                mapping = _channel.map(FileChannel.MapMode.READ_ONLY, 0, _size);
+                _mapping = mapping;
+            }
+            final ByteBuffer region = mapping.duplicate();
+            region.limit((int) offset + length);
+            region.position((int) offset);
+            return region.slice();
+        }
+
+        private float obsoleteShare () {
+            return (_size == 0 ? 1f : (float) (_size - _liveBytes) / _size);
+        }
+
+        private void truncate (final long size) throws IOException {
+            _channel.truncate(size);
+            _size = size;
+        }
+
+        private void sync () throws IOException {
+            _channel.force(false);
+        }
+
+        private void close () throws IOException {
+            _randomAccessFile.close();
+        }
+    }
+
+
+    private static final String TAG = LogStructuredKeyValueStore.class.getSimpleName();
+
+}
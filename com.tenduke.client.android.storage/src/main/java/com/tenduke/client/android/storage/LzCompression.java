@@ -0,0 +1,194 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/** Fast LZ77-style {@link Compression}, trading compression ratio for speed. Compresses several times and
+ *  decompresses about twice as fast as {@link DeflateCompression} at the default level, without native code
+ *  or per-thread state.
+ *
+ *  The compressed bytes are the length of the original bytes (4 bytes) followed by a sequence of
+ *  LZ4-style blocks: a token byte (literal count in the high and match length - 4 in the low 4 bits, a
+ *  value of 15 continuing in 255-valued extension bytes), the literals, and the offset of the match
+ *  (2 bytes, little-endian). The last block has only literals. Matches are found with a single hash
+ *  table of 4-byte sequences, without searching for longer matches.
+ */
+public final class LzCompression implements Compression {
+
+    /** Id of the compression. */
+    public static final int ID = 2;
+
+    /** The instance. */
+    public static final LzCompression INSTANCE = new LzCompression();
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+    private static final int HASH_BITS = 12;
+    private static final int RUN_MASK = 15;
+
+    // Maximum compression ratio, bounds the length of corrupted values:
+    private static final int MAX_RATIO = 255;
+
+
+    private LzCompression() {
+    }
+
+
+    @Override
+    public int getId () {
+        return ID;
+    }
+
+
+    @Override
+    public @NonNull byte[] compress (@NonNull final byte[] bytes) {
+        //
+        final int length = bytes.length;
+        final byte[] compressed = new byte[4 + length + length / 255 + 16];
+        ByteBuffer.wrap(compressed).putInt(length);
+        int out = 4;
+
+        // Positions + 1 of the latest 4-byte sequences by hash, 0 if none:
+        final int[] table = new int[1 << HASH_BITS];
+        int anchor = 0;
+        int position = 0;
+        final int limit = length - MIN_MATCH;
+        while (position <= limit) {
+            final int sequence = readInt (bytes, position);
+            final int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            final int candidate = table[hash] - 1;
+            table[hash] = position + 1;
+            if (candidate < 0 || position - candidate > MAX_OFFSET || readInt (bytes, candidate) != sequence) {
+                position++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (position + matchLength < length && bytes[candidate + matchLength] == bytes[position + matchLength]) {
+                matchLength++;
+            }
+
+            final int literals = position - anchor;
+            final int token = out++;
+            compressed[token] = (byte) ((Math.min(literals, RUN_MASK) << 4) | Math.min(matchLength - MIN_MATCH, RUN_MASK));
+            out = writeRun (compressed, out, literals);
+            System.arraycopy(bytes, anchor, compressed, out, literals);
+            out += literals;
+            final int offset = position - candidate;
+            compressed[out++] = (byte) offset;
+            compressed[out++] = (byte) (offset >>> 8);
+            out = writeRun (compressed, out, matchLength - MIN_MATCH);
+
+            position += matchLength;
+            anchor = position;
+        }
+
+        final int literals = length - anchor;
+        compressed[out++] = (byte) (Math.min(literals, RUN_MASK) << 4);
+        out = writeRun (compressed, out, literals);
+        System.arraycopy(bytes, anchor, compressed, out, literals);
+        out += literals;
+        return Arrays.copyOf(compressed, out);
+    }
+
+
+    @Override
+    public @NonNull byte[] decompress (@NonNull final ByteBuffer bytes) throws IOException {
+        //
+        final ByteBuffer buffer = bytes.duplicate();
+        try {
+            final int length = buffer.getInt();
+            if (length < 0 || length > (long) buffer.remaining() * MAX_RATIO + 16) {
+                throw new StreamCorruptedException ("Invalid length " + length);
+            }
+
+            final byte[] decompressed = new byte[length];
+            int out = 0;
+            while (true) {
+                final int token = buffer.get() & 0xff;
+                final int literals = readRun (buffer, token >>> 4);
+                if (literals > length - out) {
+                    throw new StreamCorruptedException ("Compressed value longer than " + length + " bytes");
+                }
+                buffer.get(decompressed, out, literals);
+                out += literals;
+                if (! buffer.hasRemaining()) {
+                    break;
+                }
+
+                final int offset = (buffer.get() & 0xff) | ((buffer.get() & 0xff) << 8);
+                final int matchLength = readRun (buffer, token & RUN_MASK) + MIN_MATCH;
+                if (offset == 0 || offset > out) {
+                    throw new StreamCorruptedException ("Invalid match offset " + offset);
+                }
+                if (matchLength > length - out) {
+                    throw new StreamCorruptedException ("Compressed value longer than " + length + " bytes");
+                }
+                if (offset >= matchLength) {
+                    System.arraycopy(decompressed, out - offset, decompressed, out, matchLength);
+                    out += matchLength;
+                }
+                else {
+                    // The match overlaps the bytes being written, so copy byte by byte:
+                    for (int i = 0; i < matchLength; i++, out++) {
+                        decompressed[out] = decompressed[out - offset];
+                    }
+                }
+            }
+            if (out != length) {
+                throw new StreamCorruptedException ("Compressed value shorter than " + length + " bytes");
+            }
+            return decompressed;
+        }
+        catch (final BufferUnderflowException e) {
+            throw new StreamCorruptedException ("Truncated compressed value");
+        }
+    }
+
+
+    private static int writeRun (@NonNull final byte[] compressed, final int position, final int run) {
+        //
+        int out = position;
+        if (run >= RUN_MASK) {
+            int remaining = run - RUN_MASK;
+            while (remaining >= 255) {
+                compressed[out++] = (byte) 255;
+                remaining -= 255;
+            }
+            compressed[out++] = (byte) remaining;
+        }
+        return out;
+    }
+
+
+    private static int readRun (@NonNull final ByteBuffer buffer, final int nibble) throws StreamCorruptedException {
+        //
+        int run = nibble;
+        if (nibble == RUN_MASK) {
+            int b;
+            do {
+                b = buffer.get() & 0xff;
+                run += b;
+                if (run < 0) {
+                    throw new StreamCorruptedException ("Invalid run length");
+                }
+            }
+            while (b == 255);
+        }
+        return run;
+    }
+
+
+    private static int readInt (@NonNull final byte[] bytes, final int position) {
+        //
+        return (bytes[position] & 0xff)
+                | ((bytes[position + 1] & 0xff) << 8)
+                | ((bytes[position + 2] & 0xff) << 16)
+                | ((bytes[position + 3] & 0xff) << 24);
+    }
+}
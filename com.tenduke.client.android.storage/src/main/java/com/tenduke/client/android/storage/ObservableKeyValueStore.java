@@ -0,0 +1,293 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+
+
+/** A {@link KeyValueStore} decorator, which notifies registered listeners of the changes made through it,
+ *  so that readers do not need to poll the store.
+ *
+ *  Listeners are registered for a key or for a key prefix, and are notified after a successful store or
+ *  delete of a matching key. The notifications are delivered with the executor given to the constructor,
+ *  e.g. an executor posting to the main thread. Notifications of a key are handed to the executor in the
+ *  order of the writes, so a serial executor delivers them in that order.
+ *
+ *  The store holds the listeners through weak references, so a registered listener does not keep e.g.
+ *  an Activity from being garbage collected. The caller must keep a reference to the listener for as long
+ *  as it should receive notifications: a listener created as an anonymous class and not stored anywhere is
+ *  collected and silently dropped. Remove listeners with {@link #removeListener(Listener)} when done.
+ *
+ *  The listeners see only changes made through this store, like {@link CachingKeyValueStore}.
+ *  The store is thread safe if the underlying store is thread safe.
+ */
+public class ObservableKeyValueStore implements BatchKeyValueStore {
+
+    /** Listener of the changes of the store.
+     */
+    public interface Listener {
+
+        /** Called after an object has been stored or deleted.
+         *
+         *  @param key the key
+         *  @param object the stored object, {@code null} if the object was deleted. The same instance, which
+         *  was stored: do not modify it.
+         */
+        void onChanged (@NonNull String key, @Nullable Serializable object);
+
+    }
+
+
+    private final KeyValueStore _store;
+    private final Executor _executor;
+    // Serializes the writes of a key:
+    private final StripedLocks _writeLocks = new StripedLocks();
+
+    // Guarded by itself:
+    private final List<Registration> _registrations = new ArrayList<>();
+
+
+    /** Constructs new instance.
+     *
+     *  @param store the underlying store
+     *  @param executor the executor to deliver the notifications with
+     */
+    public ObservableKeyValueStore(@NonNull final KeyValueStore store, @NonNull final Executor executor) {
+        //
+        _store = store;
+        _executor = executor;
+    }
+
+
+    /** Registers a listener for the changes of a key. A listener may be registered several times.
+     *
+     *  @param key the key
+     *  @param listener the listener, held through a weak reference
+     */
+    public void addKeyListener (@NonNull final String key, @NonNull final Listener listener) {
+        addRegistration (new Registration(key, false, listener));
+    }
+
+
+    /** Registers a listener for the changes of the keys starting with a prefix. A listener may be registered several times.
+     *
+     *  @param prefix the prefix, {@code ""} for all keys
+     *  @param listener the listener, held through a weak reference
+     */
+    public void addPrefixListener (@NonNull final String prefix, @NonNull final Listener listener) {
+        addRegistration (new Registration(prefix, true, listener));
+    }
+
+
+    /** Removes all registrations of a listener. Notifications already handed to the executor may still be delivered.
+     *
+     *  @param listener the listener
+     */
+    public void removeListener (@NonNull final Listener listener) {
+        //
+        synchronized (_registrations) {
+            for (final Iterator<Registration> iterator = _registrations.iterator(); iterator.hasNext(); ) {
+                final Listener registered = iterator.next()._listener.get();
+                if (registered == null || registered == listener) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param key {@inheritDoc }
+     */
+    @Override
+    public void delete (@NonNull final String key) {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(Collections.singleton(key), true);
+        try {
+            _store.delete(key);
+            notifyListeners (key, null);
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public @Nullable <T extends Serializable> T read (@NonNull final String key, @NonNull final Class<T> objectClass) throws Exception {
+        return _store.read(key, objectClass);
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param object {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public <T extends Serializable> void store (@NonNull final String key, @NonNull final T object) throws Exception {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(Collections.singleton(key), true);
+        try {
+            _store.store(key, object);
+            notifyListeners (key, object);
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param keys {@inheritDoc }
+     */
+    @Override
+    public void deleteAll (@NonNull final Collection<String> keys) {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(keys, true);
+        try {
+            BatchOperations.deleteAll (_store, keys);
+            for (final String key : keys) {
+                notifyListeners (key, null);
+            }
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param keys {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public @NonNull <T extends Serializable> Map<String, T> readAll (@NonNull final Collection<String> keys, @NonNull final Class<T> objectClass) throws Exception {
+        return BatchOperations.readAll (_store, keys, objectClass);
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  If the batch fails, no listener is notified.
+     *
+     *  @param objects {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public void storeAll (@NonNull final Map<String, ? extends Serializable> objects) throws Exception {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(objects.keySet(), true);
+        try {
+            BatchOperations.storeAll (_store, objects);
+            for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+                notifyListeners (entry.getKey(), entry.getValue());
+            }
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    /** Returns the underlying store.
+     *
+     *  @return the underlying store
+     */
+    public @NonNull KeyValueStore getStore() {
+        return _store;
+    }
+
+
+    private void addRegistration (@NonNull final Registration registration) {
+        //
+        synchronized (_registrations) {
+            _registrations.add(registration);
+        }
+    }
+
+
+    // Called while holding the write lock of the key, so that notifications of the key are executed in order.
+    private void notifyListeners (@NonNull final String key, @Nullable final Serializable object) {
+        //
+        final List<Listener> listeners = new ArrayList<>();
+        synchronized (_registrations) {
+            for (final Iterator<Registration> iterator = _registrations.iterator(); iterator.hasNext(); ) {
+                final Registration registration = iterator.next();
+                final Listener listener = registration._listener.get();
+                if (listener == null) {
+                    // Collected, drop the registration:
+                    iterator.remove();
+                }
+                else if (registration.matches(key)) {
+                    listeners.add(listener);
+                }
+            }
+        }
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        // The listeners are referenced strongly only until delivered:
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (final Listener listener : listeners) {
+                    try {
+                        listener.onChanged(key, object);
+                    }
+                    catch (final RuntimeException e) {
+                        Log.w (TAG, "Listener of " + key + " failed", e);
+                    }
+                }
+            }
+        });
+    }
+
+
+    private static final class Registration {
+        private final String _key;
+        private final boolean _prefix;
+        private final WeakReference<Listener> _listener;
+
+        private Registration(@NonNull final String key, final boolean prefix, @NonNull final Listener listener) {
+            _key = key;
+            _prefix = prefix;
+            _listener = new WeakReference<>(listener);
+        }
+
+        private boolean matches (@NonNull final String key) {
+            return (_prefix ? key.startsWith(_key) : key.equals(_key));
+        }
+    }
+
+
+    private static final String TAG = ObservableKeyValueStore.class.getSimpleName();
+
+}
@@ -0,0 +1,18 @@
+package com.tenduke.client.android.storage;
+
+/** How key-value stores read the stored values.
+ *
+ */
+public enum ReadMode {
+
+    /** Values are read with file streams, copying the data through buffers on the heap.
+     */
+    STREAM,
+
+    /** The stored data is memory-mapped, and the values are decoded straight from the mapping.
+     *  Avoids copying the data through heap buffers, which pays off with large values. With small
+     *  values the cost of setting up the mapping may exceed the savings.
+     */
+    MEMORY_MAPPED
+
+}
@@ -0,0 +1,96 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.tenduke.client.android.security.EnvelopeKeys;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+
+/** {@link EnvelopeKeys.KeyRecords} kept in an {@link EnumerableKeyValueStore}, under keys with a prefix.
+ *
+ *  The records hold the data keys wrapped with the master key, so the store does not need an encryption context
+ *  of its own. It must not use the envelope keys it stores the records of.
+ */
+public class StoredKeyRecords implements EnvelopeKeys.KeyRecords {
+
+    /** Default prefix of the keys of the records. */
+    public static final String DEFAULT_KEY_PREFIX = "envelope-keys.";
+
+    private final EnumerableKeyValueStore _store;
+    private final String _keyPrefix;
+
+
+    /** Constructs new instance.
+     *
+     *  @param store the store to keep the records in
+     *  @param keyPrefix prefix of the keys of the records, e.g. {@link #DEFAULT_KEY_PREFIX}
+     */
+    public StoredKeyRecords (@NonNull final EnumerableKeyValueStore store, @NonNull final String keyPrefix) {
+        _store = store;
+        _keyPrefix = keyPrefix;
+    }
+
+
+    /** Constructs new instance with {@link #DEFAULT_KEY_PREFIX}.
+     *
+     *  @param store the store to keep the records in
+     */
+    public StoredKeyRecords (@NonNull final EnumerableKeyValueStore store) {
+        this (store, DEFAULT_KEY_PREFIX);
+    }
+
+
+    @Override
+    public @Nullable byte[] read (@NonNull final String namespace) throws IOException {
+        //
+        try {
+            return _store.read(_keyPrefix + namespace, byte[].class);
+        }
+        catch (final IOException e) {
+            throw e;
+        }
+        catch (final Exception e) {
+            throw new IOException ("Reading key record of " + namespace + " failed", e);
+        }
+    }
+
+
+    @Override
+    public void write (@NonNull final String namespace, @NonNull final byte[] record) throws IOException {
+        //
+        try {
+            _store.store(_keyPrefix + namespace, record);
+        }
+        catch (final IOException e) {
+            throw e;
+        }
+        catch (final Exception e) {
+            throw new IOException ("Writing key record of " + namespace + " failed", e);
+        }
+    }
+
+
+    @Override
+    public @NonNull Collection<String> namespaces () throws IOException {
+        //
+        final List<String> keys;
+        try {
+            keys = _store.keys(_keyPrefix);
+        }
+        catch (final IOException e) {
+            throw e;
+        }
+        catch (final Exception e) {
+            throw new IOException ("Listing key records failed", e);
+        }
+        final List<String> namespaces = new ArrayList<>(keys.size());
+        for (final String key : keys) {
+            namespaces.add(key.substring(_keyPrefix.length()));
+        }
+        return namespaces;
+    }
+
+}
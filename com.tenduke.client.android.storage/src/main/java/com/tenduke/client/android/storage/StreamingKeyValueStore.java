@@ -0,0 +1,40 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** Key-value store, which can also store values as streams of bytes. Streamed values are encrypted
+ *  and signed in chunks, so memory use does not depend on the size of the value.
+ *
+ *  Values written with {@link #openWriter(String)} can only be read with {@link #openReader(String)},
+ *  and objects stored with {@link #store(String, java.io.Serializable)} only read with
+ *  {@link #read(String, Class)}. {@link #delete(String)} deletes both.
+ */
+public interface StreamingKeyValueStore extends KeyValueStore {
+
+
+    /** Opens a stream for writing the value of a key. The value replaces the previous value of the key
+     *  when the stream is closed. If writing fails, the previous value is kept.
+     *
+     * @param key key
+     * @return the stream to write the value to, must be closed to store the value
+     * @throws Exception -
+     */
+    @NonNull OutputStream openWriter (@NonNull String key) throws Exception;
+
+
+    /** Opens a stream for reading the value of a key.
+     *
+     *  The signature of the value is verified when the end of the stream is reached: data returned before
+     *  that is not yet authenticated. Failed verification throws an {@link java.io.IOException}.
+     *
+     * @param key key
+     * @return the stream to read the value from, {@code null} if the key is not found
+     * @throws Exception -
+     */
+    @Nullable InputStream openReader (@NonNull String key) throws Exception;
+
+}
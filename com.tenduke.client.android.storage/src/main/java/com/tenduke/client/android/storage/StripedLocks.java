@@ -0,0 +1,130 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/** Read-write locks, to which keys are mapped by key hash, so that operations on different keys may run in
+ *  parallel without a lock per key. Two different keys may occasionally share a lock.
+ *
+ *  Locks of several keys are locked with {@link #lockAll(Collection, boolean)}, each lock once and in a fixed
+ *  order to avoid deadlocks, and unlocked with {@link #unlockAll(List)}.
+ */
+final class StripedLocks {
+
+    /** Default number of lock stripes. */
+    static final int DEFAULT_STRIPES = 16;
+
+    private final ReadWriteLock[] _locks;
+
+
+    /** Constructs new instance.
+     *
+     *  @param stripes number of locks, must be at least 1; 1 serializes all operations
+     */
+    StripedLocks (final int stripes) {
+        //
+        if (stripes < 1) {
+            throw new IllegalArgumentException ("stripes must be at least 1, was " + stripes);
+        }
+        _locks = new ReadWriteLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            _locks[i] = new ReentrantReadWriteLock ();
+        }
+    }
+
+
+    /** Constructs new instance with {@link #DEFAULT_STRIPES} locks.
+     */
+    StripedLocks () {
+        this (DEFAULT_STRIPES);
+    }
+
+
+    /** Returns the lock of a key.
+     *
+     *  @param key key
+     *  @return the lock stripe the key maps to
+     */
+    @NonNull ReadWriteLock get (@NonNull final String key) {
+        return _locks[stripeOf (key)];
+    }
+
+
+    /** Locks the locks of several keys.
+     *
+     *  @param keys the keys
+     *  @param exclusive {@code true} to lock the write locks, {@code false} to lock the read locks
+     *  @return the locked locks, to be passed to {@link #unlockAll(List)}
+     */
+    @NonNull List<Lock> lockAll (@NonNull final Collection<String> keys, final boolean exclusive) {
+        //
+        final SortedSet<Integer> stripes = new TreeSet<>();
+        for (final String key : keys) {
+            stripes.add (stripeOf (key));
+        }
+
+        final List<ReadWriteLock> locks = new ArrayList<>(stripes.size());
+        for (final Integer stripe : stripes) {
+            locks.add(_locks[stripe]);
+        }
+        return lock (locks, exclusive);
+    }
+
+
+    /** Locks the write locks of all keys, e.g. to see a consistent state of all keys.
+     *
+     *  @return the locked locks, to be passed to {@link #unlockAll(List)}
+     */
+    @NonNull List<Lock> lockEverything () {
+        return lock (Arrays.asList(_locks), true);
+    }
+
+
+    /** Unlocks locks locked with {@link #lockAll(Collection, boolean)}, in reverse order.
+     *
+     *  @param locks the locks
+     */
+    static void unlockAll (@NonNull final List<Lock> locks) {
+        //
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+
+    private static @NonNull List<Lock> lock (@NonNull final List<ReadWriteLock> readWriteLocks, final boolean exclusive) {
+        //
+        final List<Lock> locks = new ArrayList<>(readWriteLocks.size());
+        try {
+            for (final ReadWriteLock readWriteLock : readWriteLocks) {
+                final Lock lock = (exclusive ? readWriteLock.writeLock() : readWriteLock.readLock());
+                lock.lock();
+                locks.add(lock);
+            }
+        }
+        catch (final RuntimeException e) {
+            unlockAll (locks);
+            throw e;
+        }
+        return locks;
+    }
+
+
+    private int stripeOf (@NonNull final String key) {
+        //
+        // Spread the hash bits so that stripes are used evenly also with poor hashCodes
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % _locks.length;
+    }
+
+}
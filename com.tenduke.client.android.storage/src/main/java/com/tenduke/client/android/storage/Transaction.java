@@ -0,0 +1,43 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+
+import java.io.Serializable;
+
+/** Changes to a {@link TransactionalKeyValueStore}, which are applied atomically by {@link #commit()}.
+ *
+ *  The changes are buffered in memory until committed, and the store is not changed by a transaction,
+ *  which is never committed. If a key is changed several times, the last change wins.
+ *  Transactions are not thread safe.
+ */
+public interface Transaction {
+
+
+    /** Stores object by key when the transaction is committed.
+     *
+     * @param <T> Type of the object
+     * @param key key
+     * @param object object to store
+     * @return this transaction
+     * @throws IllegalStateException if the transaction has been committed
+     */
+    @NonNull <T extends Serializable> Transaction put (@NonNull String key, @NonNull T object);
+
+
+    /** Deletes the object by key when the transaction is committed.
+     *
+     * @param key key
+     * @return this transaction
+     * @throws IllegalStateException if the transaction has been committed
+     */
+    @NonNull Transaction delete (@NonNull String key);
+
+
+    /** Applies all changes of the transaction atomically: after a crash, either all or none of them are seen.
+     *
+     * @throws IllegalStateException if the transaction has already been committed
+     * @throws Exception -
+     */
+    void commit () throws Exception;
+
+}
@@ -0,0 +1,19 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+
+/** Key-value store, which can change several keys atomically with a {@link Transaction}.
+ *
+ *  E.g. the tokens and the profile of a login can be stored with a single transaction, so that a crash
+ *  in the middle does not leave a mix of old and new values.
+ */
+public interface TransactionalKeyValueStore extends KeyValueStore {
+
+
+    /** Begins a new transaction.
+     *
+     * @return the transaction
+     */
+    @NonNull Transaction begin ();
+
+}
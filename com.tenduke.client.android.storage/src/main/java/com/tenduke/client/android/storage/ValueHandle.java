@@ -0,0 +1,64 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Serializable;
+
+/** Handle to a stored object, returned by {@link FileBasedKeyValueStore#peek(String, Class)}.
+ *
+ *  The metadata is available right away, without verifying or decrypting the object. The object is
+ *  read, verified and decrypted on the first call to {@link #get()}, and the result is kept for later calls.
+ *
+ *  @param <T> Type of the object
+ */
+public interface ValueHandle<T extends Serializable> {
+
+    /** Expiration time of objects, which do not expire. */
+    long NO_EXPIRY = Long.MAX_VALUE;
+
+
+    /** Returns the key.
+     *
+     * @return the key
+     */
+    @NonNull String getKey ();
+
+
+    /** Returns the size of the stored value, in bytes.
+     *
+     * @return the size in bytes
+     */
+    long getSize ();
+
+
+    /** Returns the time the object was stored.
+     *
+     * @return the modification time in milliseconds since the epoch
+     */
+    long getLastModified ();
+
+
+    /** Returns the expiration time of the object.
+     *
+     * @return the expiration time in milliseconds since the epoch, {@link #NO_EXPIRY} if the object does not expire
+     */
+    long getExpiryTime ();
+
+
+    /** Checks if the object has expired.
+     *
+     * @return {@code true} if the object has expired
+     */
+    boolean isExpired ();
+
+
+    /** Reads, verifies and decrypts the object on the first call, and returns the same object on later calls.
+     *  If the first call fails, the next call tries again.
+     *
+     * @return the object, {@code null} if it has been deleted or has expired
+     * @throws Exception -
+     */
+    @Nullable T get () throws Exception;
+
+}
@@ -0,0 +1,451 @@
+package com.tenduke.client.android.storage;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+
+/** A {@link KeyValueStore} decorator, which buffers writes in memory and writes them to the underlying
+ *  store later, for keys rewritten frequently (sync cursors, UI state etc.).
+ *
+ *  Stores and deletes complete immediately, and reads see them right away. The first write of a key
+ *  schedules the key to be written to the underlying store after the write interval, and writes made before
+ *  that replace the buffered object. So the underlying store is written at most once per key per interval,
+ *  with only the last object. A failed background write is logged and retried after the interval.
+ *
+ *  Buffered writes are lost if the process dies before they are written: {@link #flush()} writes them
+ *  synchronously. {@link #flushAsync()} writes them on the background thread and is meant to be called from
+ *  e.g. {@code Activity.onStop()}. Registered with {@link android.content.Context#registerComponentCallbacks},
+ *  the store flushes itself when the UI of the application is hidden or memory is low. {@link #close()} flushes
+ *  and stops the background thread, after which writes go directly to the underlying store.
+ *
+ *  The store keeps the written object instances until they have been written: do not modify them after
+ *  storing. The store sees only changes made through it: do not modify the underlying store directly.
+ *  The store is thread safe if the underlying store is thread safe.
+ */
+public class WriteBehindKeyValueStore implements BatchKeyValueStore, ComponentCallbacks2, Closeable {
+
+    private final KeyValueStore _store;
+    private final long _intervalMillis;
+    private final ScheduledExecutorService _executor;
+    // Serializes the writes of a key:
+    private final StripedLocks _writeLocks = new StripedLocks();
+
+    // Guarded by _pending:
+    private final Map<String, Pending> _pending = new HashMap<>();
+    private final Set<String> _scheduled = new HashSet<>();
+    private boolean _closed = false;
+
+
+    /** Constructs new instance.
+     *
+     *  @param store the underlying store
+     *  @param interval minimum time between writes of a key to the underlying store, must be positive
+     *  @param unit unit of {@code interval}
+     */
+    public WriteBehindKeyValueStore(@NonNull final KeyValueStore store, final long interval, @NonNull final TimeUnit unit) {
+        //
+        if (interval <= 0) {
+            throw new IllegalArgumentException ("interval must be positive, was " + interval);
+        }
+        _store = store;
+        _intervalMillis = unit.toMillis(interval);
+        _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                final Thread thread = new Thread (runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param key {@inheritDoc }
+     */
+    @Override
+    public void delete (@NonNull final String key) {
+        deleteAll (Collections.singleton(key));
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public @Nullable <T extends Serializable> T read (@NonNull final String key, @NonNull final Class<T> objectClass) throws Exception {
+        //
+        synchronized (_pending) {
+            final Pending pending = _pending.get(key);
+            if (pending != null) {
+                return objectClass.cast(pending._object);
+            }
+        }
+        return _store.read(key, objectClass);
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param key {@inheritDoc }
+     *  @param object {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public <T extends Serializable> void store (@NonNull final String key, @NonNull final T object) throws Exception {
+        storeAll (Collections.singletonMap(key, object));
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param keys {@inheritDoc }
+     */
+    @Override
+    public void deleteAll (@NonNull final Collection<String> keys) {
+        //
+        final Map<String, Serializable> deletes = new LinkedHashMap<>();
+        for (final String key : keys) {
+            deletes.put(key, null);
+        }
+        try {
+            write (deletes);
+        }
+        catch (final Exception e) {
+            // Only writing through after close can fail, and deleteAll does not throw:
+            Log.w (TAG, "deleteAll(): Unable to delete", e);
+        }
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  Buffered objects are returned without reading, the others are read from the underlying store with a single
+     *  {@link BatchKeyValueStore#readAll(Collection, Class)}, if the store is a {@link BatchKeyValueStore}.
+     *
+     *  @param <T> {@inheritDoc }
+     *  @param keys {@inheritDoc }
+     *  @param objectClass {@inheritDoc }
+     *  @return {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public @NonNull <T extends Serializable> Map<String, T> readAll (@NonNull final Collection<String> keys, @NonNull final Class<T> objectClass) throws Exception {
+        //
+        final Map<String, T> objects = new LinkedHashMap<>();
+        final List<String> missing = new ArrayList<>();
+        synchronized (_pending) {
+            for (final String key : keys) {
+                final Pending pending = _pending.get(key);
+                if (pending == null) {
+                    missing.add(key);
+                }
+                else if (pending._object != null) {
+                    objects.put(key, objectClass.cast(pending._object));
+                }
+            }
+        }
+        if (! missing.isEmpty()) {
+            objects.putAll(BatchOperations.readAll (_store, missing, objectClass));
+        }
+        return objects;
+    }
+
+
+    /** {@inheritDoc}
+     *
+     *  @param objects {@inheritDoc }
+     *  @throws Exception -
+     */
+    @Override
+    public void storeAll (@NonNull final Map<String, ? extends Serializable> objects) throws Exception {
+        write (objects);
+    }
+
+
+    /** Writes the buffered writes to the underlying store, with a single {@link BatchKeyValueStore#storeAll(Map)}
+     *  and a single {@link BatchKeyValueStore#deleteAll(Collection)}, if the store is a {@link BatchKeyValueStore}.
+     *  Other stores are written one key at a time.
+     *
+     *  @throws Exception if writing to the underlying store fails. The writes stay buffered.
+     */
+    public void flush () throws Exception {
+        //
+        final List<String> keys;
+        synchronized (_pending) {
+            keys = new ArrayList<>(_pending.keySet());
+        }
+        persist (keys);
+    }
+
+
+    /** Writes the buffered writes to the underlying store on the background thread. Call e.g. from
+     *  {@code Activity.onStop()}, to write the state before the process may be killed.
+     *
+     *  @return future completing when the writes buffered at the time of the call have been written
+     *  @throws RejectedExecutionException if the store has been closed
+     */
+    public @NonNull Future<Void> flushAsync () {
+        //
+        return _executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    flush ();
+                    return null;
+                }
+                catch (final Exception e) {
+                    Log.w (TAG, "flushAsync(): Unable to flush", e);
+                    throw e;
+                }
+            }
+        });
+    }
+
+
+    /** Flushes the buffered writes and stops the background thread. After closing, writes go directly to
+     *  the underlying store.
+     *
+     *  @throws IOException if writing to the underlying store fails
+     */
+    @Override
+    public void close () throws IOException {
+        //
+        synchronized (_pending) {
+            _closed = true;
+        }
+        try {
+            flush ();
+        }
+        catch (final IOException e) {
+            throw e;
+        }
+        catch (final Exception e) {
+            throw new IOException ("Unable to flush", e);
+        }
+        finally {
+            _executor.shutdown();
+        }
+    }
+
+
+    /** Flushes in the background when the UI of the application is hidden or memory is low.
+     *
+     *  @param level {@inheritDoc }
+     */
+    @Override
+    public void onTrimMemory (final int level) {
+        //
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            flushInBackground ();
+        }
+    }
+
+
+    @Override
+    public void onLowMemory () {
+        flushInBackground ();
+    }
+
+
+    @Override
+    public void onConfigurationChanged (@NonNull final Configuration configuration) {
+    }
+
+
+    /** Returns the number of writes not yet written to the underlying store.
+     *
+     *  @return number of buffered writes
+     */
+    public int getPendingCount () {
+        synchronized (_pending) {
+            return _pending.size();
+        }
+    }
+
+
+    /** Returns the underlying store.
+     *
+     *  @return the underlying store
+     */
+    public @NonNull KeyValueStore getStore() {
+        return _store;
+    }
+
+
+    // Buffers the writes, null objects are deletes.
+    private void write (@NonNull final Map<String, ? extends Serializable> objects) throws Exception {
+        //
+        synchronized (_pending) {
+            if (! _closed) {
+                for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+                    final String key = entry.getKey();
+                    _pending.put(key, new Pending(entry.getValue()));
+                    if (_scheduled.add(key)) {
+                        schedule (key);
+                    }
+                }
+                return;
+            }
+        }
+        writeThrough (objects);
+    }
+
+
+    // Writes directly to the underlying store after close. Drops the buffered writes of the keys, so that a
+    // concurrent flush does not overwrite the objects with older ones.
+    private void writeThrough (@NonNull final Map<String, ? extends Serializable> objects) throws Exception {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(objects.keySet(), true);
+        try {
+            synchronized (_pending) {
+                _pending.keySet().removeAll(objects.keySet());
+            }
+            final Map<String, Serializable> stores = new LinkedHashMap<>();
+            final List<String> deletes = new ArrayList<>();
+            for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+                if (entry.getValue() == null) {
+                    deletes.add(entry.getKey());
+                }
+                else {
+                    stores.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (! stores.isEmpty()) {
+                BatchOperations.storeAll (_store, stores);
+            }
+            if (! deletes.isEmpty()) {
+                BatchOperations.deleteAll (_store, deletes);
+            }
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    // Must be called while holding _pending
+    private void schedule (@NonNull final String key) {
+        //
+        _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (_pending) {
+                    _scheduled.remove(key);
+                }
+                try {
+                    persist (Collections.singleton(key));
+                }
+                catch (final Exception e) {
+                    Log.w (TAG, "Unable to write " + key + ", retrying", e);
+                    synchronized (_pending) {
+                        if (! _closed && _pending.containsKey(key) && _scheduled.add(key)) {
+                            schedule (key);
+                        }
+                    }
+                }
+            }
+        }, _intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    // Writes the buffered writes of the keys. The write locks keep concurrent persists of a key in order,
+    // and a buffered write is dropped only if it has not been replaced while being written.
+    private void persist (@NonNull final Collection<String> keys) throws Exception {
+        //
+        final List<Lock> locks = _writeLocks.lockAll(keys, true);
+        try {
+            final Map<String, Pending> snapshot = new HashMap<>();
+            final Map<String, Serializable> stores = new LinkedHashMap<>();
+            final List<String> deletes = new ArrayList<>();
+            synchronized (_pending) {
+                for (final String key : keys) {
+                    final Pending pending = _pending.get(key);
+                    if (pending == null) {
+                        continue;
+                    }
+                    snapshot.put(key, pending);
+                    if (pending._object == null) {
+                        deletes.add(key);
+                    }
+                    else {
+                        stores.put(key, pending._object);
+                    }
+                }
+            }
+
+            if (! stores.isEmpty()) {
+                BatchOperations.storeAll (_store, stores);
+            }
+            if (! deletes.isEmpty()) {
+                BatchOperations.deleteAll (_store, deletes);
+            }
+
+            synchronized (_pending) {
+                for (final Map.Entry<String, Pending> entry : snapshot.entrySet()) {
+                    if (_pending.get(entry.getKey()) == entry.getValue()) {
+                        _pending.remove(entry.getKey());
+                    }
+                }
+            }
+        }
+        finally {
+            StripedLocks.unlockAll(locks);
+        }
+    }
+
+
+    private void flushInBackground () {
+        //
+        synchronized (_pending) {
+            if (_closed || _pending.isEmpty()) {
+                return;
+            }
+        }
+        flushAsync ();
+    }
+
+
+    private static final class Pending {
+        // null for delete
+        private final Serializable _object;
+
+        private Pending(@Nullable final Serializable object) {
+            _object = object;
+        }
+    }
+
+
+    private static final String TAG = WriteBehindKeyValueStore.class.getSimpleName();
+
+}
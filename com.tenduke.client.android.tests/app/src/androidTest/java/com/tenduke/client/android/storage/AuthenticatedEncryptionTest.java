@@ -0,0 +1,147 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SignatureVerificationException;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for stores using an authenticated {@link EncryptionContext}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AuthenticatedEncryptionTest {
+
+    private static final String DIRECTORY = AuthenticatedEncryptionTest.class.getName();
+    private static final String KEY = "token";
+
+    private Context _context;
+    private EncryptionContext _encryptionContext;
+    private FileBasedKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _encryptionContext = new EncryptionContext("AES", 256, EncryptionContext.AUTHENTICATED_CIPHER_TYPE, null);
+        _store = new FileBasedKeyValueStore(_context, _encryptionContext, new SigningContext(), DIRECTORY);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store.deleteAll(_store.keys());
+    }
+
+    @Test
+    @SmallTest
+    public void testReadAndStore() throws Exception {
+        //
+        assertTrue (_encryptionContext.isAuthenticated());
+        _store.store(KEY, "access token", 1, TimeUnit.HOURS);
+        assertEquals ("access token", _store.read(KEY, String.class));
+
+        // Values are not signed, so a store with another signing context reads them:
+        final FileBasedKeyValueStore otherStore = new FileBasedKeyValueStore(_context, _encryptionContext, new SigningContext(), DIRECTORY);
+        assertEquals ("access token", otherStore.read(KEY, String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testInitializationVectorIsRandomPerWrite() throws Exception {
+        //
+        _store.store(KEY, "access token");
+        final byte[] first = readFile ();
+        _store.store(KEY, "access token");
+        assertFalse (Arrays.equals(first, readFile ()));
+    }
+
+    @Test
+    @SmallTest
+    public void testTamperedValueIsDetected() throws Exception {
+        //
+        _store.store(KEY, "access token", 1, TimeUnit.HOURS);
+        final byte[] value = readFile ();
+
+        // Last byte of the payload, and the expiration time in the header:
+        for (final int offset : new int[] {value.length - 1, 5 + 7}) {
+            final byte[] tampered = value.clone();
+            tampered[offset] ^= 1;
+            writeFile (tampered);
+            try {
+                _store.read(KEY, String.class);
+                fail ("Should have thrown exception, offset " + offset);
+            }
+            catch (final SignatureVerificationException e) {
+                // Ignored intentionally: Expected exception.
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testReadValuesEncryptedWithDefaultCipher() throws Exception {
+        //
+        final EncryptionContext legacyContext = new EncryptionContext(
+                _encryptionContext.getSecretKey(),
+                Cipher.getInstance(EncryptionContext.DEFAULT_CIPHER_TYPE));
+        final SigningContext signingContext = new SigningContext();
+        final FileBasedKeyValueStore legacyStore = new FileBasedKeyValueStore(_context, legacyContext, signingContext, DIRECTORY);
+        legacyStore.store(KEY, "access token");
+        legacyStore.store("sealed", legacyStore.signObject(legacyStore.sealObject("refresh token")));
+
+        final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, _encryptionContext, signingContext, DIRECTORY);
+        assertEquals ("access token", store.read(KEY, String.class));
+        assertEquals ("refresh token", store.decryptSealedObject(store.retrieveSignedObject(store.read("sealed", Serializable.class))));
+    }
+
+
+    private File file () {
+        return new File (new File (_context.getFilesDir(), DIRECTORY), KEY);
+    }
+
+    private byte[] readFile () throws Exception {
+        //
+        final RandomAccessFile file = new RandomAccessFile(file (), "r");
+        try {
+            final byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return bytes;
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private void writeFile (final byte[] bytes) throws Exception {
+        //
+        final RandomAccessFile file = new RandomAccessFile(file (), "rw");
+        try {
+            file.setLength(0);
+            file.write(bytes);
+        }
+        finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.tenduke.client.android.storage;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for {@link BinaryCodec}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BinaryCodecTest {
+
+    @Test
+    @SmallTest
+    public void testRoundTripOfSupportedTypes() throws Exception {
+        //
+        final Serializable[] values = {
+                "Lorem ipsum \u00e4\u00f6", 42, 42L, true, (byte) 4, (short) 2, 'x', 4.2f, 4.2d,
+        };
+        for (final Serializable value : values) {
+            assertRoundTrip (value);
+        }
+        assertTrue (Arrays.equals(new byte[] {1, 2, 3}, (byte[]) roundTrip(new byte[] {1, 2, 3})));
+    }
+
+    @Test
+    @SmallTest
+    public void testRoundTripOfCollections() throws Exception {
+        //
+        final ArrayList<Object> list = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final HashMap<String, Object> entitlement = new HashMap<>();
+            entitlement.put("id", "entitlement-" + i);
+            entitlement.put("count", i);
+            entitlement.put("validUntil", 1000000L * i);
+            list.add(entitlement);
+        }
+        final LinkedHashMap<String, Object> ordered = new LinkedHashMap<>();
+        ordered.put("b", "first");
+        ordered.put("a", null);
+        list.add(ordered);
+        list.add(null);
+        assertRoundTrip (list);
+    }
+
+    @Test
+    @SmallTest
+    public void testOtherTypesAreSerialized() throws Exception {
+        //
+        final TreeMap<String, Date> map = new TreeMap<>();
+        map.put("date", new Date());
+        final Object decoded = roundTrip (map);
+        assertEquals (TreeMap.class, decoded.getClass());
+        assertEquals (map, decoded);
+    }
+
+    @Test
+    @SmallTest
+    public void testCorruptedValue() throws Exception {
+        //
+        final byte[] encoded = BinaryCodec.INSTANCE.encode("Lorem ipsum");
+        try {
+            BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(encoded, 0, encoded.length - 1));
+            fail ("Should have thrown exception");
+        }
+        catch (final StreamCorruptedException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+
+    private static void assertRoundTrip (final Serializable value) throws Exception {
+        //
+        final Object decoded = roundTrip (value);
+        assertEquals (value.getClass(), decoded.getClass());
+        assertEquals (value, decoded);
+    }
+
+    private static Object roundTrip (final Serializable value) throws Exception {
+        return BinaryCodec.INSTANCE.decode(ByteBuffer.wrap(BinaryCodec.INSTANCE.encode(value)));
+    }
+}
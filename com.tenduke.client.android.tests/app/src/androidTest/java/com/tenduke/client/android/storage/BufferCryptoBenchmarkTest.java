@@ -0,0 +1,192 @@
+package com.tenduke.client.android.storage;
+
+import android.os.Debug;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.HmacSigningContext;
+import com.tenduke.client.android.security.SigningContext;
+import com.tenduke.client.android.security.Signer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SealedObject;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/** Compares the allocation rate and the speed of encrypting and signing with reused buffers
+ *  ({@link EncryptionContext#encrypt(java.nio.ByteBuffer, java.nio.ByteBuffer)},
+ *  {@link SigningContext#sign(java.nio.ByteBuffer)}) against {@link SealedObject}s and byte arrays.
+ *
+ *  Allocations are counted per thread with {@link Debug#getThreadAllocSize()}. The results are printed,
+ *  no files are written.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BufferCryptoBenchmarkTest {
+
+    private static final int ROUNDS = 200;
+    private static final int[] SIZES = {1024, 16 * 1024, 64 * 1024};
+
+    @Test
+    @LargeTest
+    public void testEncryption() throws Exception {
+        //
+        final EncryptionContext ecb = new EncryptionContext();
+        final EncryptionContext gcm = new EncryptionContext("AES", 256, EncryptionContext.AUTHENTICATED_CIPHER_TYPE, null);
+        final Random random = new Random(42);
+        for (final int size : SIZES) {
+            final byte[] value = new byte[size];
+            random.nextBytes(value);
+
+            final Operation sealedObject = new Operation() {
+                @Override
+                public void run() throws Exception {
+                    final SealedObject sealed = new SealedObject(value, ecb.initThreadCipher(Cipher.ENCRYPT_MODE));
+                    assertEquals (size, ((byte[]) sealed.getObject(ecb.initThreadCipher(Cipher.DECRYPT_MODE))).length);
+                }
+            };
+            final Operation byteArrays = new Operation() {
+                @Override
+                public void run() throws Exception {
+                    final byte[] encrypted = gcm.initThreadCipher(Cipher.ENCRYPT_MODE).doFinal(value);
+                    final byte[] iv = gcm.getThreadCipher().getIV();
+                    assertEquals (size, gcm.initThreadCipher(Cipher.DECRYPT_MODE, iv).doFinal(encrypted).length);
+                }
+            };
+            final Operation buffers = buffers (ecb, value);
+            final Operation authenticatedBuffers = buffers (gcm, value);
+
+            // Warm up:
+            measure (sealedObject);
+            measure (byteArrays);
+            measure (buffers);
+            measure (authenticatedBuffers);
+
+            final long[] sealedResult = measure (sealedObject);
+            final long[] arraysResult = measure (byteArrays);
+            final long[] buffersResult = measure (buffers);
+            final long[] authenticatedResult = measure (authenticatedBuffers);
+            report ("AES/ECB SealedObject", size, sealedResult);
+            report ("AES/GCM byte[]", size, arraysResult);
+            report ("AES/ECB direct ByteBuffer", size, buffersResult);
+            report ("AES/GCM direct ByteBuffer", size, authenticatedResult);
+            assertTrue (buffersResult[1] < sealedResult[1]);
+            if (size >= 16 * 1024) {
+                // Allocation of the buffer methods does not grow with the value:
+                assertTrue (buffersResult[1] / ROUNDS < size);
+            }
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testSigning() throws Exception {
+        //
+        final Random random = new Random(42);
+        for (final SigningContext context : new SigningContext[] {new SigningContext(), new HmacSigningContext()}) {
+            final String algorithm = (context instanceof HmacSigningContext ? "HmacSHA256" : "SHA256withRSA");
+            for (final int size : SIZES) {
+                final byte[] value = new byte[size];
+                random.nextBytes(value);
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+                buffer.put(value).flip();
+
+                final Operation byteArray = new Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        // Copied to an array first, as callers holding the data in a buffer must without the buffer methods:
+                        final byte[] copy = new byte[buffer.remaining()];
+                        buffer.duplicate().get(copy);
+                        final Signer signer = context.getThreadSigner();
+                        signer.initSign();
+                        signer.update(copy, 0, copy.length);
+                        final byte[] signature = signer.sign();
+                        signer.initVerify();
+                        signer.update(copy, 0, copy.length);
+                        assertTrue (signer.verify(signature));
+                    }
+                };
+                final Operation directBuffer = new Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        final byte[] signature = context.sign(buffer.duplicate());
+                        assertTrue (context.verify(buffer.duplicate(), signature));
+                    }
+                };
+
+                // Warm up:
+                measure (byteArray);
+                measure (directBuffer);
+
+                final long[] arrayResult = measure (byteArray);
+                final long[] bufferResult = measure (directBuffer);
+                report (algorithm + " byte[] copy", size, arrayResult);
+                report (algorithm + " direct ByteBuffer", size, bufferResult);
+            }
+        }
+    }
+
+
+    private static Operation buffers (final EncryptionContext context, final byte[] value) {
+        //
+        final ByteBuffer plaintext = ByteBuffer.allocateDirect(value.length);
+        plaintext.put(value).flip();
+        final ByteBuffer encrypted = ByteBuffer.allocateDirect(context.getMaxEncryptedBytes(value.length));
+        final ByteBuffer decrypted = ByteBuffer.allocateDirect(encrypted.capacity());
+        return new Operation() {
+            @Override
+            public void run() throws Exception {
+                encrypted.clear();
+                decrypted.clear();
+                context.encrypt(plaintext.duplicate(), encrypted);
+                encrypted.flip();
+                assertEquals (value.length, context.decrypt(encrypted, decrypted));
+            }
+        };
+    }
+
+
+    /** Runs the operation, e.g. an encryption and a decryption, {@link #ROUNDS} times.
+     *
+     *  @return nanoseconds taken and bytes allocated by the calling thread
+     */
+    @SuppressWarnings("deprecation")
+    private static long[] measure (final Operation operation) throws Exception {
+        //
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            final long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                operation.run();
+            }
+            final long nanos = System.nanoTime() - start;
+            return new long[] {nanos, Debug.getThreadAllocSize()};
+        }
+        finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+
+    private static void report (final String algorithm, final int bytes, final long[] result) {
+        //
+        System.out.println (
+                algorithm + ": value = " + bytes + " bytes"
+                + ", round trip = " + (result[0] / ROUNDS / 1000L) + " us"
+                + ", allocated = " + (result[1] / ROUNDS) + " bytes"
+        );
+    }
+
+
+    private interface Operation {
+        void run () throws Exception;
+    }
+}
@@ -0,0 +1,185 @@
+package com.tenduke.client.android.storage;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.HmacSigningContext;
+import com.tenduke.client.android.security.KeyRing;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for the buffer methods of {@link EncryptionContext} and {@link SigningContext}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BufferCryptoTest {
+
+    private static final String[] CIPHER_TYPES = {EncryptionContext.DEFAULT_CIPHER_TYPE, EncryptionContext.AUTHENTICATED_CIPHER_TYPE};
+
+    @Test
+    @SmallTest
+    public void testEncryptAndDecrypt() throws Exception {
+        //
+        for (final String cipherType : CIPHER_TYPES) {
+            final EncryptionContext context = new EncryptionContext("AES", 256, cipherType, null);
+            for (final boolean direct : new boolean[] {false, true}) {
+                final ByteBuffer data = randomData (1000, direct);
+                final ByteBuffer encrypted = allocate (context.getMaxEncryptedBytes(data.remaining()), direct);
+                final ByteBuffer decrypted = allocate (encrypted.capacity(), direct);
+
+                final int encryptedBytes = context.encrypt(data.duplicate(), encrypted);
+                assertEquals (encryptedBytes, encrypted.position());
+                encrypted.flip();
+                assertEquals (data.remaining(), context.decrypt(encrypted, decrypted));
+                assertFalse (encrypted.hasRemaining());
+                decrypted.flip();
+                assertEquals (data, decrypted);
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testOutputBufferIsReused() throws Exception {
+        //
+        final EncryptionContext context = new EncryptionContext("AES", 256, EncryptionContext.AUTHENTICATED_CIPHER_TYPE, null);
+        final ByteBuffer encrypted = ByteBuffer.allocateDirect(context.getMaxEncryptedBytes(256));
+        final ByteBuffer decrypted = ByteBuffer.allocateDirect(256);
+        for (int size = 0; size <= 256; size += 64) {
+            final ByteBuffer data = randomData (size, false);
+            encrypted.clear();
+            decrypted.clear();
+            context.encrypt(data.duplicate(), encrypted);
+            encrypted.flip();
+            context.decrypt(encrypted, decrypted);
+            decrypted.flip();
+            assertEquals (data, decrypted);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testTamperingIsDetected() throws Exception {
+        //
+        final EncryptionContext context = new EncryptionContext("AES", 256, EncryptionContext.AUTHENTICATED_CIPHER_TYPE, null);
+        final ByteBuffer encrypted = ByteBuffer.allocate(context.getMaxEncryptedBytes(100));
+        context.encrypt(randomData (100, false), encrypted);
+        encrypted.flip();
+        final int last = encrypted.limit() - 1;
+        encrypted.put(last, (byte) (encrypted.get(last) ^ 1));
+        try {
+            context.decrypt(encrypted, ByteBuffer.allocate(100));
+            fail ("Should have thrown exception");
+        }
+        catch (final BadPaddingException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testShortOutputBuffer() throws Exception {
+        //
+        final EncryptionContext context = new EncryptionContext();
+        final ByteBuffer data = randomData (100, false);
+        final ByteBuffer encrypted = ByteBuffer.allocate(100);
+        try {
+            context.encrypt(data, encrypted);
+            fail ("Should have thrown exception");
+        }
+        catch (final ShortBufferException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        assertEquals (0, data.position());
+        assertEquals (0, encrypted.position());
+    }
+
+    @Test
+    @SmallTest
+    public void testShortDecryptOutputBuffer() throws Exception {
+        //
+        final EncryptionContext context = new EncryptionContext();
+        final ByteBuffer data = randomData (100, false);
+        final ByteBuffer encrypted = ByteBuffer.allocate(context.getMaxEncryptedBytes(100));
+        context.encrypt(data.duplicate(), encrypted);
+        encrypted.flip();
+
+        final ByteBuffer decrypted = ByteBuffer.allocate(10);
+        try {
+            context.decrypt(encrypted, decrypted);
+            fail ("Should have thrown exception");
+        }
+        catch (final ShortBufferException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        assertEquals (0, encrypted.position());
+        assertEquals (0, decrypted.position());
+
+        // Retrying with a large enough buffer decrypts the data:
+        final ByteBuffer retried = ByteBuffer.allocate(encrypted.remaining());
+        context.decrypt(encrypted, retried);
+        retried.flip();
+        assertEquals (data, retried);
+    }
+
+    @Test
+    @SmallTest
+    public void testDecryptAfterRotation() throws Exception {
+        //
+        final KeyRing keyRing = new KeyRing(EncryptionContext.generateSecretKey("AES", 256, null));
+        final EncryptionContext context = new EncryptionContext(keyRing, Cipher.getInstance(EncryptionContext.AUTHENTICATED_CIPHER_TYPE));
+        final ByteBuffer data = randomData (100, true);
+        final ByteBuffer encrypted = ByteBuffer.allocateDirect(context.getMaxEncryptedBytes(100));
+        context.encrypt(data.duplicate(), encrypted);
+        encrypted.flip();
+
+        keyRing.rotate(EncryptionContext.generateSecretKey("AES", 256, null));
+        final ByteBuffer decrypted = ByteBuffer.allocateDirect(100);
+        context.decrypt(encrypted, decrypted);
+        decrypted.flip();
+        assertEquals (data, decrypted);
+    }
+
+    @Test
+    @SmallTest
+    public void testSignAndVerify() throws Exception {
+        //
+        for (final SigningContext context : new SigningContext[] {new SigningContext(), new HmacSigningContext()}) {
+            final ByteBuffer data = randomData (1000, true);
+            final byte[] signature = context.sign(data.duplicate());
+            assertTrue (context.verify(data.duplicate(), signature));
+
+            data.put(0, (byte) (data.get(0) ^ 1));
+            assertFalse (context.verify(data, signature));
+        }
+    }
+
+
+    private static ByteBuffer randomData (final int size, final boolean direct) {
+        //
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        final ByteBuffer data = allocate (size, direct);
+        data.put(bytes).flip();
+        return data;
+    }
+
+
+    private static ByteBuffer allocate (final int capacity, final boolean direct) {
+        return (direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+    }
+}
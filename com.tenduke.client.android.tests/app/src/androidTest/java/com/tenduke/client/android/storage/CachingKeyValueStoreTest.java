@@ -0,0 +1,138 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class CachingKeyValueStoreTest {
+
+    private FileBasedKeyValueStore _fileStore;
+    private CachingKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        final Context context = InstrumentationRegistry.getTargetContext();
+        _fileStore = new FileBasedKeyValueStore(context, new EncryptionContext(), new SigningContext());
+        _store = new CachingKeyValueStore(_fileStore, 2);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        for (int i = 0; i < 3; i++) {
+            _store.delete("CachingKeyValueStoreTest-" + i);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testReadThrough() throws Exception {
+        //
+        _fileStore.store("CachingKeyValueStoreTest-0", "value");
+
+        assertEquals ("value", _store.read("CachingKeyValueStoreTest-0", String.class));
+        assertEquals ("value", _store.read("CachingKeyValueStoreTest-0", String.class));
+        assertEquals (1, _store.getMissCount());
+        assertEquals (1, _store.getHitCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteThroughAndDelete() throws Exception {
+        //
+        _store.store("CachingKeyValueStoreTest-0", "value");
+        assertEquals ("value", _fileStore.read("CachingKeyValueStoreTest-0", String.class));
+        assertEquals ("value", _store.read("CachingKeyValueStoreTest-0", String.class));
+        assertEquals (1, _store.getHitCount());
+
+        _store.delete("CachingKeyValueStoreTest-0");
+        assertNull (_store.read("CachingKeyValueStoreTest-0", String.class));
+        assertEquals (0, _store.size());
+    }
+
+    @Test
+    @SmallTest
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        //
+        _store.store("CachingKeyValueStoreTest-0", "value 0");
+        _store.store("CachingKeyValueStoreTest-1", "value 1");
+        // Touch 0, so that 1 becomes the least recently used:
+        _store.read("CachingKeyValueStoreTest-0", String.class);
+        _store.store("CachingKeyValueStoreTest-2", "value 2");
+
+        assertEquals (2, _store.size());
+        assertEquals (1, _store.getEvictionCount());
+
+        final long misses = _store.getMissCount();
+        assertEquals ("value 0", _store.read("CachingKeyValueStoreTest-0", String.class));
+        assertEquals (misses, _store.getMissCount());
+        assertEquals ("value 1", _store.read("CachingKeyValueStoreTest-1", String.class));
+        assertEquals (misses + 1, _store.getMissCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testByteBudget() throws Exception {
+        //
+        _store = new CachingKeyValueStore(_fileStore, 1024, CachingKeyValueStore.SERIALIZED_SIZE_WEIGHER);
+        _store.store("CachingKeyValueStoreTest-0", new byte[100]);
+        _store.store("CachingKeyValueStoreTest-1", new byte[2000]);
+
+        assertEquals (1, _store.size());
+        assertTrue (_store.getWeight() <= 1024);
+    }
+
+    @Test
+    @SmallTest
+    public void testBatchesOverSingleKeyStore() throws Exception {
+        //
+        // A store without the batch operations is called once per key:
+        final KeyValueStore singleKeyStore = new KeyValueStore() {
+            @Override
+            public void delete(@NonNull final String key) {
+                _fileStore.delete(key);
+            }
+
+            @Override
+            public <T extends Serializable> T read(@NonNull final String key, @NonNull final Class<T> objectClass) throws Exception {
+                return _fileStore.read(key, objectClass);
+            }
+
+            @Override
+            public <T extends Serializable> void store(@NonNull final String key, @NonNull final T object) throws Exception {
+                _fileStore.store(key, object);
+            }
+        };
+        _store = new CachingKeyValueStore(singleKeyStore, 1);
+
+        final Map<String, String> objects = new HashMap<>();
+        objects.put("CachingKeyValueStoreTest-0", "value 0");
+        objects.put("CachingKeyValueStoreTest-1", "value 1");
+        _store.storeAll(objects);
+        assertEquals ("value 0", _fileStore.read("CachingKeyValueStoreTest-0", String.class));
+        assertEquals (objects, _store.readAll(objects.keySet(), String.class));
+
+        _store.deleteAll(objects.keySet());
+        assertTrue (_fileStore.readAll(objects.keySet(), String.class).isEmpty());
+    }
+}
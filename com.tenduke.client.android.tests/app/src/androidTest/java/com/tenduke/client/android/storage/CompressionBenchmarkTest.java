@@ -0,0 +1,83 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static junit.framework.Assert.assertEquals;
+
+/** Compares the disk usage and end-to-end store and read latency of JSON responses stored uncompressed,
+ *  and compressed with {@link LzCompression} and {@link DeflateCompression}.
+ *
+ *  The results are printed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompressionBenchmarkTest {
+
+    private static final String DIRECTORY = CompressionBenchmarkTest.class.getName();
+    private static final int ROUNDS = 50;
+
+    private Context _context;
+    private FileBasedKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _store = new FileBasedKeyValueStore(_context, new EncryptionContext(), new SigningContext(), DIRECTORY);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store.deleteAll(_store.keys());
+    }
+
+    @Test
+    @LargeTest
+    public void testStoreAndRead() throws Exception {
+        //
+        for (final int entitlements : new int[] {10, 100, 1000}) {
+            final String json = CompressionTest.jsonOf(entitlements);
+            for (final Compression compression : new Compression[] {null, LzCompression.INSTANCE, DeflateCompression.INSTANCE}) {
+                _store.withCompression(compression, AbstractEncryptingStore.DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+                final String key = "response";
+
+                // Warm up:
+                _store.store(key, json);
+                assertEquals (json, _store.read(key, String.class));
+
+                long start = System.nanoTime();
+                for (int round = 0; round < ROUNDS; round++) {
+                    _store.store(key, json);
+                }
+                final long storeNanos = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int round = 0; round < ROUNDS; round++) {
+                    _store.read(key, String.class);
+                }
+                final long readNanos = System.nanoTime() - start;
+
+                System.out.println (
+                        "Compression " + (compression == null ? "none" : compression.getClass().getSimpleName())
+                        + ", JSON " + json.length() + " chars"
+                        + ": disk = " + new File (new File (_context.getFilesDir(), DIRECTORY), key).length() + " bytes"
+                        + ", store = " + (storeNanos / ROUNDS / 1000L) + " us"
+                        + ", read = " + (readNanos / ROUNDS / 1000L) + " us"
+                );
+            }
+        }
+    }
+}
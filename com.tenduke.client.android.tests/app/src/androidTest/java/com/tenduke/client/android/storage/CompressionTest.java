@@ -0,0 +1,174 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for {@link LzCompression}, {@link DeflateCompression} and compressed values of the stores.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CompressionTest {
+
+    private static final String DIRECTORY = CompressionTest.class.getName();
+    private static final Compression[] COMPRESSIONS = {LzCompression.INSTANCE, DeflateCompression.INSTANCE};
+
+    private Context _context;
+    private FileBasedKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _store = new FileBasedKeyValueStore(_context, new EncryptionContext(), new SigningContext(), DIRECTORY);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store.deleteAll(_store.keys());
+    }
+
+    @Test
+    @SmallTest
+    public void testCompressAndDecompress() throws Exception {
+        //
+        final byte[][] inputs = {
+                new byte[0],
+                "a".getBytes("UTF-8"),
+                new byte[100000],
+                randomBytes (5000),
+                jsonOf (200).getBytes("UTF-8"),
+        };
+        for (final Compression compression : COMPRESSIONS) {
+            for (final byte[] input : inputs) {
+                final byte[] compressed = compression.compress(input);
+                assertTrue (Arrays.equals(input, compression.decompress(ByteBuffer.wrap(compressed))));
+
+                // From a direct buffer, at an offset:
+                final ByteBuffer direct = ByteBuffer.allocateDirect(compressed.length + 3);
+                direct.position(3);
+                direct.put(compressed);
+                direct.position(3);
+                assertTrue (Arrays.equals(input, compression.decompress(direct)));
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testCompressionRatio() throws Exception {
+        //
+        final byte[] json = jsonOf (200).getBytes("UTF-8");
+        for (final Compression compression : COMPRESSIONS) {
+            final int compressed = compression.compress(json).length;
+            assertTrue (compression.getClass().getSimpleName() + ": " + compressed, compressed < json.length / 3);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testCorruptedInput() throws Exception {
+        //
+        for (final Compression compression : COMPRESSIONS) {
+            final byte[] compressed = compression.compress(jsonOf (50).getBytes("UTF-8"));
+            final byte[][] corrupted = {
+                    Arrays.copyOf(compressed, 2),
+                    Arrays.copyOf(compressed, compressed.length / 2),
+                    ByteBuffer.allocate(compressed.length).put(compressed).putInt(0, Integer.MAX_VALUE).array(),
+            };
+            for (final byte[] input : corrupted) {
+                try {
+                    compression.decompress(ByteBuffer.wrap(input));
+                    fail ("Should have thrown exception");
+                }
+                catch (final StreamCorruptedException e) {
+                    // Ignored intentionally: Expected exception.
+                }
+            }
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testReadAndStoreCompressed() throws Exception {
+        //
+        final String json = jsonOf (100);
+        _store.store("uncompressed", json);
+        final long uncompressedBytes = fileOf ("uncompressed").length();
+
+        for (final Compression compression : COMPRESSIONS) {
+            _store.withCompression(compression, AbstractEncryptingStore.DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+            final String key = compression.getClass().getSimpleName();
+            _store.store(key, json);
+            assertEquals (json, _store.read(key, String.class));
+            assertTrue (key + ": " + fileOf (key).length(), fileOf (key).length() < uncompressedBytes / 3);
+        }
+
+        // Compressed and uncompressed values are read regardless of the configured compression:
+        _store.withCompression(null, 0);
+        assertEquals (json, _store.read("uncompressed", String.class));
+        assertEquals (json, _store.read(LzCompression.class.getSimpleName(), String.class));
+        assertEquals (json, _store.read(DeflateCompression.class.getSimpleName(), String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testThreshold() throws Exception {
+        //
+        _store.store("plain", "short value");
+        _store.withCompression(LzCompression.INSTANCE, 1024);
+        _store.store("short", "short value");
+        assertEquals (fileOf ("plain").length(), fileOf ("short").length());
+
+        // Incompressible values are not compressed either:
+        _store.withCompression(LzCompression.INSTANCE, 0);
+        final byte[] random = randomBytes (2000);
+        _store.store("random", random);
+        assertTrue (Arrays.equals(random, _store.read("random", byte[].class)));
+        assertTrue (fileOf ("random").length() < 2000 + 300);
+    }
+
+
+    private File fileOf (final String key) {
+        return new File (new File (_context.getFilesDir(), DIRECTORY), key);
+    }
+
+    static String jsonOf (final int entitlements) {
+        //
+        final StringBuilder json = new StringBuilder("{\"entitlements\":[");
+        for (int i = 0; i < entitlements; i++) {
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"id\":\"entitlement-").append(i)
+                    .append("\",\"product\":\"Product ").append(i % 7)
+                    .append("\",\"count\":").append(i)
+                    .append(",\"validUntil\":\"2018-0").append(1 + i % 9).append("-15T00:00:00Z\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static byte[] randomBytes (final int size) {
+        //
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,179 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.EnvelopeKeys;
+import com.tenduke.client.android.security.KeyRing;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+/** Tests for stores using {@link EnvelopeKeys}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EnvelopeEncryptionTest {
+
+    private static final String DIRECTORY = EnvelopeEncryptionTest.class.getName();
+    private static final String RECORDS_DIRECTORY = DIRECTORY + ".records";
+    private static final String[] CIPHER_TYPES = {EncryptionContext.DEFAULT_CIPHER_TYPE, EncryptionContext.AUTHENTICATED_CIPHER_TYPE};
+
+    private Context _context;
+    private SigningContext _signingContext;
+    private FileBasedKeyValueStore _recordStore;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _signingContext = new SigningContext();
+        _recordStore = new FileBasedKeyValueStore(_context, null, null, RECORDS_DIRECTORY);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, null, null, DIRECTORY);
+        store.deleteAll(store.keys());
+        _recordStore.deleteAll(_recordStore.keys());
+    }
+
+    @Test
+    @SmallTest
+    public void testStoreAndRead() throws Exception {
+        //
+        for (final String cipherType : CIPHER_TYPES) {
+            final EncryptionContext masterContext = new EncryptionContext("AES", 256, cipherType, null);
+            final EnvelopeKeys envelopeKeys = new EnvelopeKeys(masterContext, new StoredKeyRecords(_recordStore));
+            final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, masterContext, _signingContext, DIRECTORY)
+                    .withEnvelopeKeys(envelopeKeys, "tokens");
+            store.store("token", "access token");
+            assertEquals ("access token", store.read("token", String.class));
+            assertFalse (store.isEncryptedWithEarlierKey(store.readValue("token")));
+
+            // Readable with the data key unwrapped again from its record:
+            final EnvelopeKeys restored = new EnvelopeKeys(masterContext, new StoredKeyRecords(_recordStore));
+            final FileBasedKeyValueStore reopened = new FileBasedKeyValueStore(_context, masterContext, _signingContext, DIRECTORY)
+                    .withEnvelopeKeys(restored, "tokens");
+            assertEquals ("access token", reopened.read("token", String.class));
+            assertEquals (Collections.singletonList("tokens"), new StoredKeyRecords(_recordStore).namespaces());
+            _recordStore.deleteAll(_recordStore.keys());
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testSealedObject() throws Exception {
+        //
+        for (final String cipherType : CIPHER_TYPES) {
+            final EncryptionContext masterContext = new EncryptionContext("AES", 256, cipherType, null);
+            final EnvelopeKeys envelopeKeys = new EnvelopeKeys(masterContext, new StoredKeyRecords(_recordStore));
+            final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, masterContext, _signingContext, DIRECTORY)
+                    .withEnvelopeKeys(envelopeKeys, "sealed");
+            assertEquals ("refresh token", store.decryptSealedObject(store.sealObject("refresh token")));
+            _recordStore.deleteAll(_recordStore.keys());
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testValuesWrittenBeforeAreRead() throws Exception {
+        //
+        final EncryptionContext masterContext = new EncryptionContext();
+        final FileBasedKeyValueStore legacyStore = new FileBasedKeyValueStore(_context, masterContext, _signingContext, DIRECTORY);
+        legacyStore.store("legacy", "id token");
+
+        final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, masterContext, _signingContext, DIRECTORY)
+                .withEnvelopeKeys(new EnvelopeKeys(masterContext, new StoredKeyRecords(_recordStore)), "tokens");
+        store.store("token", "access token");
+        assertEquals ("id token", store.read("legacy", String.class));
+        assertEquals ("access token", store.read("token", String.class));
+
+        // Values encrypted with a data key are not readable without the envelope keys:
+        try {
+            legacyStore.read("token", String.class);
+            fail ("Should have thrown exception");
+        }
+        catch (final InvalidKeyException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+    @Test
+    @MediumTest
+    public void testMasterKeyRotation() throws Exception {
+        //
+        for (final String cipherType : CIPHER_TYPES) {
+            final KeyRing keyRing = new KeyRing(newKey ());
+            final EncryptionContext masterContext = new EncryptionContext(keyRing, Cipher.getInstance(cipherType));
+            final EnvelopeKeys envelopeKeys = new EnvelopeKeys(masterContext, new StoredKeyRecords(_recordStore));
+            final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, masterContext, _signingContext, DIRECTORY)
+                    .withEnvelopeKeys(envelopeKeys, "tokens");
+            store.store("token", "access token");
+            final ByteBuffer value = store.readValue("token");
+
+            keyRing.rotate(newKey ());
+            assertEquals (1, envelopeKeys.rewrap());
+            assertEquals (0, envelopeKeys.rewrap());
+            keyRing.retire(KeyRing.INITIAL_KEY_ID);
+            envelopeKeys.clear();
+
+            // The value was not re-encrypted:
+            assertEquals ("access token", store.read("token", String.class));
+            assertEquals (value, store.readValue("token"));
+            _recordStore.deleteAll(_recordStore.keys());
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testCache() throws Exception {
+        //
+        final EncryptionContext masterContext = new EncryptionContext();
+        final EnvelopeKeys envelopeKeys = new EnvelopeKeys(masterContext, new StoredKeyRecords(_recordStore), 100, TimeUnit.MILLISECONDS, 2);
+        final SecretKey first = envelopeKeys.getDataKey("first");
+        assertSame (first, envelopeKeys.getDataKey("first"));
+        assertEquals (1, envelopeKeys.getHitCount());
+        assertEquals (1, envelopeKeys.getMissCount());
+
+        // Least recently used key is evicted:
+        envelopeKeys.getDataKey("second");
+        envelopeKeys.getDataKey("third");
+        final SecretKey unwrapped = envelopeKeys.getDataKey("first");
+        assertNotSame (first, unwrapped);
+        assertEquals (first, unwrapped);
+        assertEquals (4, envelopeKeys.getMissCount());
+
+        // Expired key is unwrapped again:
+        Thread.sleep(150);
+        assertEquals (first, envelopeKeys.getDataKey("first"));
+        assertEquals (5, envelopeKeys.getMissCount());
+        assertEquals (1, envelopeKeys.getHitCount());
+    }
+
+
+    private static SecretKey newKey () throws Exception {
+        return EncryptionContext.generateSecretKey("AES", 256, null);
+    }
+}
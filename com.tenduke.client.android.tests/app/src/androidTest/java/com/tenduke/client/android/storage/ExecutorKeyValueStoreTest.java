@@ -0,0 +1,95 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+import android.support.test.filters.SmallTest;
+
+import com.tenduke.client.android.storage.TestDoubles.CountingStore;
+import com.tenduke.client.android.storage.TestDoubles.QueueExecutor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+public class ExecutorKeyValueStoreTest {
+
+    private CountingStore _store;
+    private QueueExecutor _executor;
+    private ExecutorKeyValueStore _asyncStore;
+
+    @Before
+    public void beforeTest () {
+        //
+        _store = new CountingStore();
+        _executor = new QueueExecutor();
+        _asyncStore = new ExecutorKeyValueStore(_store, _executor);
+    }
+
+    @Test
+    @SmallTest
+    public void testPendingStoresAreCoalesced() throws Exception {
+        //
+        final AtomicInteger callbacks = new AtomicInteger();
+        final AsyncKeyValueStore.Callback<Void> callback = new AsyncKeyValueStore.Callback<Void>() {
+            @Override
+            public void onSuccess(final Void result) {
+                callbacks.incrementAndGet();
+            }
+
+            @Override
+            public void onFailure(@NonNull final Exception error) {
+                throw new AssertionError(error);
+            }
+        };
+
+        Future<Void> last = null;
+        for (int i = 0; i < 10; i++) {
+            last = _asyncStore.store("key", "value " + i, callback);
+        }
+        _executor.runAll();
+
+        assertTrue (last.isDone());
+        assertEquals (1, _store._writes.get());
+        assertEquals ("value 9", _store.read("key", String.class));
+        assertEquals (10, callbacks.get());
+    }
+
+    @Test
+    @SmallTest
+    public void testReadSeesPendingWrites() throws Exception {
+        //
+        _asyncStore.store("key", "value", null);
+        final Future<String> stored = _asyncStore.read("key", String.class, null);
+        _asyncStore.delete("key", null);
+        final Future<String> deleted = _asyncStore.read("key", String.class, null);
+        _executor.runAll();
+
+        assertEquals ("value", stored.get());
+        assertNull (deleted.get());
+        assertNull (_store.read("key", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testWritesOfKeyAreOrdered() throws Exception {
+        //
+        _asyncStore.store("key", "first", null);
+        // Start the first write, then queue another one while the first one is running:
+        _store._duringWrite = new Runnable() {
+            @Override
+            public void run() {
+                _store._duringWrite = null;
+                _asyncStore.store("key", "second", null);
+            }
+        };
+        _executor.runAll();
+
+        assertEquals (2, _store._writes.get());
+        assertEquals ("second", _store.read("key", String.class));
+    }
+}
@@ -0,0 +1,119 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/** Tests and benchmarks the batch operations of {@link FileBasedKeyValueStore}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileBasedKeyValueStoreBatchTest {
+
+    private static final int BATCH_SIZE = 20;
+    private static final int ROUNDS = 10;
+
+    private FileBasedKeyValueStore _store;
+    private Map<String, String> _objects;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        final Context context = InstrumentationRegistry.getTargetContext();
+        _store = new FileBasedKeyValueStore(context, new EncryptionContext(), new SigningContext());
+        _objects = new LinkedHashMap<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            _objects.put("BatchTest-" + i, "Value of entry number " + i);
+        }
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store.deleteAll(_objects.keySet());
+    }
+
+    @Test
+    @SmallTest
+    public void testStoreAllAndReadAll() throws Exception {
+        //
+        _store.storeAll(_objects);
+        final Map<String, String> read = _store.readAll(_objects.keySet(), String.class);
+        assertEquals (_objects, read);
+
+        _store.deleteAll(_objects.keySet());
+        assertTrue (_store.readAll(_objects.keySet(), String.class).isEmpty());
+    }
+
+    @Test
+    @LargeTest
+    public void testBatchVersusSingleOperations() throws Exception {
+        //
+        // Warm up:
+        _store.storeAll(_objects);
+        storeOneByOne(_objects);
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            storeOneByOne(_objects);
+        }
+        final long singleStores = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            _store.storeAll(_objects);
+        }
+        final long batchStores = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (final String key : _objects.keySet()) {
+                _store.read(key, String.class);
+            }
+        }
+        final long singleReads = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            _store.readAll(_objects.keySet(), String.class);
+        }
+        final long batchReads = System.nanoTime() - start;
+
+        report ("store", singleStores, batchStores);
+        report ("read", singleReads, batchReads);
+    }
+
+
+    private void storeOneByOne (final Map<String, ? extends Serializable> objects) throws Exception {
+        //
+        for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+            _store.store(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void report (final String operation, final long singleNanos, final long batchNanos) {
+        //
+        final int operations = ROUNDS * BATCH_SIZE;
+        System.out.println (
+                "FileBasedKeyValueStore " + operation + " of " + BATCH_SIZE + " entries"
+                + ": one by one = " + (singleNanos / operations / 1000) + " us/entry"
+                + ", batch = " + (batchNanos / operations / 1000) + " us/entry"
+        );
+    }
+}
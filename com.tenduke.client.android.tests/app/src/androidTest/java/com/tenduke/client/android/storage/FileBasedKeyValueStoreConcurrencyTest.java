@@ -0,0 +1,315 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.HmacSigningContext;
+import com.tenduke.client.android.security.Signer;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import javax.crypto.Cipher;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/** Multi-threaded tests for {@link FileBasedKeyValueStore}.
+ *
+ *  The throughput tests print their results. Operations on different keys are compared between striped locks
+ *  and a single lock with a store, which holds the locks for a while, so that the locking dominates the time.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileBasedKeyValueStoreConcurrencyTest {
+
+    private static final int OPERATIONS_PER_THREAD = 50;
+    private static final int MAX_THREADS = 4;
+    private static final String DIRECTORY = FileBasedKeyValueStoreConcurrencyTest.class.getName();
+
+    private Context _context;
+    private FileBasedKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _store = new FileBasedKeyValueStore(_context, new EncryptionContext(), new SigningContext());
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        for (int i = 0; i < MAX_THREADS; i++) {
+            _store.delete(keyOf(i));
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testDifferentKeysScaleWithStripes() throws Exception {
+        //
+        final FileBasedKeyValueStore striped = new SlowStore(_context, FileBasedKeyValueStore.DEFAULT_LOCK_STRIPES);
+        final FileBasedKeyValueStore singleLock = new SlowStore(_context, 1);
+        final List<String> keys = keysWithDifferentLocks (striped, MAX_THREADS);
+        try {
+            final long stripedNanos = runDifferentKeys(striped, keys);
+            final long singleLockNanos = runDifferentKeys(singleLock, keys);
+            report ("striped", keys.size(), stripedNanos);
+            report ("single lock", keys.size(), singleLockNanos);
+
+            // Writes of different keys run in parallel only with the striped locks:
+            assertTrue ("striped " + stripedNanos + " ns, single lock " + singleLockNanos + " ns", 2 * stripedNanos < singleLockNanos);
+        }
+        finally {
+            striped.deleteAll(keys);
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testThroughputOfReadersOfSameKey() throws Exception {
+        //
+        for (final LockMode lockMode : LockMode.values()) {
+            final FileBasedKeyValueStore store = new FileBasedKeyValueStore(
+                    _context,
+                    new EncryptionContext(),
+                    new SigningContext(),
+                    FileBasedKeyValueStore.class.getName(),
+                    FileBasedKeyValueStore.DEFAULT_LOCK_STRIPES,
+                    lockMode
+            );
+            store.store(keyOf(0), "shared value");
+            for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+                final long elapsedNanos = runReaders(store, keyOf(0), threads);
+                report ("readers " + lockMode, threads, elapsedNanos);
+            }
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testSameKeyIsLinearizable() throws Exception {
+        //
+        final String key = keyOf(0);
+        final ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
+        try {
+            final List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < MAX_THREADS; t++) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            _store.store(key, "thread-" + thread + "-" + i);
+                            // A concurrent write must never be observed half-written:
+                            final String value = _store.read(key, String.class);
+                            assertNotNull(value);
+                            assertTrue(value, value.startsWith("thread-"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        final String last = _store.read(key, String.class);
+        assertNotNull (last);
+        assertTrue (last, last.endsWith("-" + (OPERATIONS_PER_THREAD - 1)));
+    }
+
+    @Test
+    @LargeTest
+    public void testStoresSharingContexts() throws Exception {
+        //
+        final EncryptionContext encryptionContext = new EncryptionContext("AES", 256, EncryptionContext.AUTHENTICATED_CIPHER_TYPE, null);
+        final HmacSigningContext signingContext = new HmacSigningContext();
+        final FileBasedKeyValueStore first = new FileBasedKeyValueStore(_context, encryptionContext, signingContext);
+        final FileBasedKeyValueStore second = new FileBasedKeyValueStore(_context, new EncryptionContext(), signingContext, DIRECTORY);
+        final Set<Cipher> ciphers = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Cipher, Boolean>()));
+        final Set<Signer> signers = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Signer, Boolean>()));
+        final CyclicBarrier barrier = new CyclicBarrier(MAX_THREADS);
+        final ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
+        try {
+            final List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < MAX_THREADS; t++) {
+                final String key = keyOf(t);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        // All threads run at the same time, so each gets its own cipher and signer:
+                        barrier.await();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            final String value = key + "-" + i;
+                            first.store(key, value);
+                            second.store(key, value);
+                            assertEquals(value, first.read(key, String.class));
+                            assertEquals(value, second.read(key, String.class));
+                        }
+                        final Cipher cipher = encryptionContext.getThreadCipher();
+                        final Signer signer = signingContext.getThreadSigner();
+                        assertSame(cipher, encryptionContext.getThreadCipher());
+                        assertSame(signer, signingContext.getThreadSigner());
+                        ciphers.add(cipher);
+                        signers.add(signer);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+            for (int i = 0; i < MAX_THREADS; i++) {
+                second.delete(keyOf(i));
+            }
+        }
+        assertEquals (MAX_THREADS, ciphers.size());
+        assertEquals (MAX_THREADS, signers.size());
+    }
+
+
+    private long runDifferentKeys (final FileBasedKeyValueStore store, final List<String> keys) throws Exception {
+        //
+        final ExecutorService executor = Executors.newFixedThreadPool(keys.size());
+        try {
+            final List<Future<Void>> results = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (final String key : keys) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            final String value = key + "-" + i;
+                            store.store(key, value);
+                            assertEquals(value, store.read(key, String.class));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+            return System.nanoTime() - start;
+        }
+        finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private long runReaders (final FileBasedKeyValueStore store, final String key, final int threads) throws Exception {
+        //
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> results = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 2 * OPERATIONS_PER_THREAD; i++) {
+                            assertEquals("shared value", store.read(key, String.class));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+            return System.nanoTime() - start;
+        }
+        finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static void report (final String mode, final int threads, final long elapsedNanos) {
+        //
+        final int operations = 2 * threads * OPERATIONS_PER_THREAD;
+        final double seconds = elapsedNanos / 1e9;
+        System.out.println (
+                "FileBasedKeyValueStore " + mode + ": threads = " + threads
+                + ", operations = " + operations
+                + ", elapsed = " + (elapsedNanos / 1000000L) + " ms"
+                + ", throughput = " + Math.round (operations / seconds) + " ops/s"
+        );
+    }
+
+    private static String keyOf (final int index) {
+        return "ConcurrencyTest-" + index + ".key";
+    }
+
+    /** Returns keys, which map to different lock stripes of the store.
+     */
+    private static List<String> keysWithDifferentLocks (final FileBasedKeyValueStore store, final int count) {
+        //
+        final List<String> keys = new ArrayList<>();
+        final Set<ReadWriteLock> locks = Collections.newSetFromMap(new IdentityHashMap<ReadWriteLock, Boolean>());
+        for (int i = 0; keys.size() < count; i++) {
+            if (locks.add(store.lockFor(keyOf(i)))) {
+                keys.add(keyOf(i));
+            }
+        }
+        return keys;
+    }
+
+    /** Unprotected store, which holds the lock of a key for a while on every write, like slow storage would,
+     *  so that the throughput depends on the locking rather than on the processor.
+     */
+    private static class SlowStore extends FileBasedKeyValueStore {
+
+        private static final long WRITE_MILLIS = 2;
+
+        private SlowStore (@NonNull final Context context, final int lockStripes) throws IOException {
+            super (context, null, null, DIRECTORY, lockStripes);
+        }
+
+        @Override
+        protected void writeValue (@NonNull final String key, @NonNull final byte[] value) throws IOException {
+            //
+            try {
+                Thread.sleep(WRITE_MILLIS);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException ("Interrupted while writing " + key);
+            }
+            super.writeValue(key, value);
+        }
+    }
+}
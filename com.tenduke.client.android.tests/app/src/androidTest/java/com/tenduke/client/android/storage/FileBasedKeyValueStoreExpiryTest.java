@@ -0,0 +1,177 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SignatureVerificationException;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for the time-to-live entries of {@link FileBasedKeyValueStore} and {@link ExpirySweeper}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileBasedKeyValueStoreExpiryTest {
+
+    private static final String DIRECTORY = FileBasedKeyValueStoreExpiryTest.class.getName();
+
+    private Context _context;
+    private EncryptionContext _encryptionContext;
+    private SigningContext _signingContext;
+    private FileBasedKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _encryptionContext = new EncryptionContext();
+        _signingContext = new SigningContext();
+        _store = new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext, DIRECTORY);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store.deleteAll(_store.keys());
+    }
+
+    @Test
+    @SmallTest
+    public void testExpiredValueReadsAsNull() throws Exception {
+        //
+        _store.store("token", "access token", 200, TimeUnit.MILLISECONDS);
+        _store.store("forever", "refresh token");
+        _store.store("long", "long-lived", Long.MAX_VALUE, TimeUnit.DAYS);
+        assertEquals ("access token", _store.read("token", String.class));
+
+        Thread.sleep(300);
+        assertNull (_store.read("token", String.class));
+        assertEquals ("refresh token", _store.read("forever", String.class));
+        assertEquals ("long-lived", _store.read("long", String.class));
+        assertEquals (Arrays.asList("forever", "long"), new ArrayList<>(_store.readAll(Arrays.asList("token", "forever", "long"), String.class).keySet()));
+
+        // Storing without time-to-live replaces the expired value:
+        _store.store("token", "new access token");
+        assertEquals ("new access token", _store.read("token", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testExpiredValueIsNotDecrypted() throws Exception {
+        //
+        _store.store("token", "access token", 0, TimeUnit.MILLISECONDS);
+
+        // Reading with wrong keys would fail, if the value was verified or decrypted:
+        final FileBasedKeyValueStore otherStore = new FileBasedKeyValueStore(_context, new EncryptionContext(), new SigningContext(), DIRECTORY);
+        assertNull (otherStore.read("token", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testExpiredValueIsNotRead() throws Exception {
+        //
+        _store.store("token", "access token", 0, TimeUnit.MILLISECONDS);
+
+        // Only the header of an expired value is read:
+        final FileBasedKeyValueStore headerOnlyStore = new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext, DIRECTORY) {
+            @Override
+            protected @NonNull ByteBuffer readValue (@NonNull final String key) throws IOException {
+                throw new IOException ("Value of " + key + " should not be read");
+            }
+        };
+        assertNull (headerOnlyStore.read("token", String.class));
+        assertTrue (headerOnlyStore.readAll(Collections.singletonList("token"), String.class).isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testExtendedExpiryFailsVerification() throws Exception {
+        //
+        _store.store("token", "access token", 0, TimeUnit.MILLISECONDS);
+        final RandomAccessFile file = new RandomAccessFile(new File (new File (_context.getFilesDir(), DIRECTORY), "token"), "rw");
+        try {
+            file.seek(5);
+            file.writeLong(Long.MAX_VALUE - 1);
+        }
+        finally {
+            file.close();
+        }
+
+        try {
+            _store.read("token", String.class);
+            fail ("Should have thrown exception");
+        }
+        catch (final SignatureVerificationException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+    @Test
+    @MediumTest
+    public void testDeleteExpired() throws Exception {
+        //
+        final Map<String, String> objects = new HashMap<>();
+        for (int i = 0; i < 150; i++) {
+            _store.store("expired-" + i, "value " + i, 0, TimeUnit.MILLISECONDS);
+            objects.put("live-" + i, "value " + i);
+        }
+        _store.storeAll(objects);
+        _store.store("expiring", "value", 1, TimeUnit.HOURS);
+
+        assertEquals (150, _store.deleteExpired());
+        assertEquals (151, _store.keys().size());
+        assertEquals (0, _store.keys("expired-").size());
+        assertEquals ("value", _store.read("expiring", String.class));
+
+        // The index is maintained, a new instance sees the same files:
+        final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext, DIRECTORY);
+        assertEquals (_store.keys(), store.keys());
+        assertEquals (0, store.deleteExpired());
+    }
+
+    @Test
+    @MediumTest
+    public void testSweeper() throws Exception {
+        //
+        _store.store("token", "access token", 50, TimeUnit.MILLISECONDS);
+        _store.store("forever", "refresh token");
+
+        final ExpirySweeper sweeper = new ExpirySweeper(_store, 20, TimeUnit.MILLISECONDS);
+        try {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (_store.keys().contains("token") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        finally {
+            sweeper.close();
+        }
+        assertEquals (Arrays.asList("forever"), _store.keys());
+        assertFalse (new File (new File (_context.getFilesDir(), DIRECTORY), "token").exists());
+    }
+}
@@ -0,0 +1,107 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SignatureVerificationException;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for {@link FileBasedKeyValueStore#peek(String, Class)}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileBasedKeyValueStorePeekTest {
+
+    private static final String DIRECTORY = FileBasedKeyValueStorePeekTest.class.getName();
+
+    private Context _context;
+    private FileBasedKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _store = new FileBasedKeyValueStore(_context, new EncryptionContext(), new SigningContext(), DIRECTORY);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store.deleteAll(_store.keys());
+    }
+
+    @Test
+    @SmallTest
+    public void testMetadataIsReadWithoutDecrypting() throws Exception {
+        //
+        _store.store("token", "access token", 1, TimeUnit.HOURS);
+        final File file = new File (new File (_context.getFilesDir(), DIRECTORY), "token");
+
+        // Reading with wrong keys would fail, if the value was verified or decrypted:
+        final FileBasedKeyValueStore otherStore = new FileBasedKeyValueStore(_context, new EncryptionContext(), new SigningContext(), DIRECTORY);
+        final ValueHandle<String> handle = otherStore.peek("token", String.class);
+        assertEquals ("token", handle.getKey());
+        assertEquals (file.length(), handle.getSize());
+        assertEquals (file.lastModified(), handle.getLastModified());
+        final long remaining = handle.getExpiryTime() - System.currentTimeMillis();
+        assertTrue ("" + remaining, remaining > 0 && remaining <= TimeUnit.HOURS.toMillis(1));
+        assertFalse (handle.isExpired());
+
+        try {
+            handle.get();
+            fail ("Should have thrown exception");
+        }
+        catch (final SignatureVerificationException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testGetIsMemoized() throws Exception {
+        //
+        _store.store("session", "session key");
+        final ValueHandle<String> handle = _store.peek("session", String.class);
+        assertEquals (ValueHandle.NO_EXPIRY, handle.getExpiryTime());
+
+        final String object = handle.get();
+        assertEquals ("session key", object);
+        _store.delete("session");
+        assertSame (object, handle.get());
+
+        // Deleted before the first get:
+        _store.store("session", "session key");
+        final ValueHandle<String> deleted = _store.peek("session", String.class);
+        _store.delete("session");
+        assertNull (deleted.get());
+    }
+
+    @Test
+    @SmallTest
+    public void testMissingAndExpired() throws Exception {
+        //
+        assertNull (_store.peek("missing", String.class));
+
+        _store.store("token", "access token", 0, TimeUnit.MILLISECONDS);
+        final ValueHandle<String> handle = _store.peek("token", String.class);
+        assertTrue (handle.isExpired());
+        assertNull (handle.get());
+    }
+}
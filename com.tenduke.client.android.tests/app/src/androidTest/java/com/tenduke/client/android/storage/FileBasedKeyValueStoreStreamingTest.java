@@ -0,0 +1,248 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.HmacSigningContext;
+import com.tenduke.client.android.security.SignatureVerificationException;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for the streaming API of {@link FileBasedKeyValueStore}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileBasedKeyValueStoreStreamingTest {
+
+    private static final String KEY = "StreamingTest.key";
+    private static final int CHUNK_BYTES = 4096;
+
+    private Context _context;
+    private EncryptionContext _encryptionContext;
+    private SigningContext _signingContext;
+    private FileBasedKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _encryptionContext = new EncryptionContext();
+        _signingContext = new SigningContext();
+        _store = new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext)
+                .withStreamChunkSize(CHUNK_BYTES);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store.delete(KEY);
+    }
+
+    @Test
+    @SmallTest
+    public void testReadMissingKey() throws Exception {
+        //
+        assertNull (_store.openReader(KEY));
+    }
+
+    @Test
+    @MediumTest
+    public void testWriteAndRead() throws Exception {
+        //
+        for (final int size : new int[] {0, 1, CHUNK_BYTES, 10 * CHUNK_BYTES + 17, 5 * 1024 * 1024}) {
+            final byte[] value = valueOf(size);
+            write (value);
+            assertTrue ("size " + size, Arrays.equals(value, read ()));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteAndReadWithInitializationVector() throws Exception {
+        //
+        final EncryptionContext encryptionContext = new EncryptionContext(
+                _encryptionContext.getSecretKey(),
+                Cipher.getInstance("AES/CBC/PKCS5Padding"));
+        _store = new FileBasedKeyValueStore(_context, encryptionContext, _signingContext)
+                .withStreamChunkSize(CHUNK_BYTES);
+        final byte[] value = valueOf(3 * CHUNK_BYTES + 5);
+        write (value);
+        assertTrue (Arrays.equals(value, read ()));
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteAndReadHmacSigned() throws Exception {
+        //
+        _store = new FileBasedKeyValueStore(_context, _encryptionContext, new HmacSigningContext())
+                .withStreamChunkSize(CHUNK_BYTES);
+        final byte[] value = valueOf(3 * CHUNK_BYTES + 5);
+        write (value);
+        assertTrue (Arrays.equals(value, read ()));
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteAndReadAuthenticatedEncryption() throws Exception {
+        //
+        final EncryptionContext encryptionContext = new EncryptionContext("AES", 256, EncryptionContext.AUTHENTICATED_CIPHER_TYPE, null);
+        _store = new FileBasedKeyValueStore(_context, encryptionContext, _signingContext)
+                .withStreamChunkSize(CHUNK_BYTES);
+        final byte[] value = valueOf(3 * CHUNK_BYTES + 5);
+        write (value);
+        assertTrue (Arrays.equals(value, read ()));
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteAndReadUnprotected() throws Exception {
+        //
+        _store = new FileBasedKeyValueStore(_context, null, null).withStreamChunkSize(CHUNK_BYTES);
+        final byte[] value = valueOf(3 * CHUNK_BYTES + 5);
+        write (value);
+        assertTrue (Arrays.equals(value, read ()));
+    }
+
+    @Test
+    @SmallTest
+    public void testTamperedValueFailsAtEnd() throws Exception {
+        //
+        write (valueOf(3 * CHUNK_BYTES));
+        final RandomAccessFile file = new RandomAccessFile(new File (new File (_context.getFilesDir(), FileBasedKeyValueStore.class.getName()), KEY), "rw");
+        try {
+            // Swap the first two chunks, which decrypt fine one by one:
+            final int chunkRecord = 4 + CHUNK_BYTES + 16;
+            final byte[] first = new byte[chunkRecord];
+            final byte[] second = new byte[chunkRecord];
+            file.seek(8);
+            file.readFully(first);
+            file.readFully(second);
+            file.seek(8);
+            file.write(second);
+            file.write(first);
+        }
+        finally {
+            file.close();
+        }
+
+        try {
+            read ();
+            fail ("Should have thrown exception");
+        }
+        catch (final IOException e) {
+            assertTrue (e.getCause() instanceof SignatureVerificationException);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testFailedWriteKeepsPreviousValue() throws Exception {
+        //
+        final byte[] value = valueOf(100);
+        write (value);
+
+        final OutputStream writer = _store.openWriter(KEY);
+        writer.write(valueOf(2 * CHUNK_BYTES));
+        try {
+            writer.write(null, 0, 10);
+            fail ("Should have thrown exception");
+        }
+        catch (final NullPointerException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        try {
+            writer.close();
+            fail ("Should have thrown exception");
+        }
+        catch (final IOException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        assertTrue (Arrays.equals(value, read ()));
+    }
+
+    @Test
+    @SmallTest
+    public void testScanLeavesOutStreamedValues() throws Exception {
+        //
+        write (valueOf(100));
+        _store.store("StreamingTest.object", "object");
+        try {
+            assertEquals (Collections.singletonMap("StreamingTest.object", "object"), _store.scan("StreamingTest.", String.class));
+
+            // Reading the streamed value as an object fails:
+            try {
+                _store.readAll(Collections.singletonList(KEY), String.class);
+                fail ("Should have thrown exception");
+            }
+            catch (final IOException e) {
+                // Ignored intentionally: Expected exception.
+            }
+        }
+        finally {
+            _store.delete("StreamingTest.object");
+        }
+    }
+
+
+    private void write (final byte[] value) throws Exception {
+        //
+        final OutputStream writer = _store.openWriter(KEY);
+        try {
+            // Odd-sized writes to cross chunk boundaries:
+            for (int offset = 0; offset < value.length; offset += 1000) {
+                writer.write(value, offset, Math.min(1000, value.length - offset));
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private byte[] read () throws Exception {
+        //
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final InputStream reader = _store.openReader(KEY);
+        try {
+            final byte[] buffer = new byte[777];
+            int count;
+            while ((count = reader.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, count);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] valueOf (final int size) {
+        //
+        final byte[] value = new byte[size];
+        new Random(size).nextBytes(value);
+        return value;
+    }
+}
@@ -6,6 +6,7 @@ import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
 import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.HmacSigningContext;
 import com.tenduke.client.android.security.SigningContext;
 
 import org.junit.After;
@@ -13,13 +14,18 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
 import java.io.Serializable;
+import java.security.KeyPair;
+import java.security.Signature;
 import java.security.SignatureException;
+import java.util.Arrays;
 import java.util.Date;
 
 import javax.crypto.BadPaddingException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
@@ -118,6 +124,67 @@ public class FileBasedKeyValueStoreTest {
     }
 
 
+    @Test
+    @SmallTest
+    public void testReadAndStoreHmacSigned() throws Exception {
+        //
+        final EncryptionContext encryptionContext = new EncryptionContext();
+        final HmacSigningContext signingContext = new HmacSigningContext();
+        _provider = new FileBasedKeyValueStore(_context, encryptionContext, signingContext);
+        _provider.store(_key, _testData);
+        assertEquals (_testData, _provider.read (_key, TestData.class));
+
+        _provider = new FileBasedKeyValueStore(_context, encryptionContext, new HmacSigningContext());
+        try {
+            _provider.read(_key, TestData.class);
+            fail ("Should have thrown exception");
+        }
+        catch (final SignatureException e) {
+            // Ignored intentionally: Expected exception.
+        }
+
+        // Values signed with a key pair do not verify either:
+        _provider = new FileBasedKeyValueStore(_context, encryptionContext, new SigningContext());
+        try {
+            _provider.read(_key, TestData.class);
+            fail ("Should have thrown exception");
+        }
+        catch (final SignatureException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+
+    @Test
+    @SmallTest
+    public void testReadAndStoreEcSigned() throws Exception {
+        //
+        final EncryptionContext encryptionContext = new EncryptionContext();
+        final SigningContext signingContext = new SigningContext(SigningContext.Preset.EC_P256_SHA256, null);
+        _provider = new FileBasedKeyValueStore(_context, encryptionContext, signingContext);
+        _provider.store(_key, _testData);
+        assertEquals (_testData, _provider.read (_key, TestData.class));
+
+        // Key pair restored from its encoded form verifies the value:
+        final KeyPair keyPair = SigningContext.decodeKeyPair(SigningContext.encodeKeyPair(signingContext.getKeyPair()));
+        assertTrue (Arrays.equals(signingContext.getKeyPair().getPrivate().getEncoded(), keyPair.getPrivate().getEncoded()));
+        _provider = new FileBasedKeyValueStore(
+                _context,
+                encryptionContext,
+                new SigningContext(keyPair, Signature.getInstance(SigningContext.Preset.EC_P256_SHA256.getSignatureType())));
+        assertEquals (_testData, _provider.read (_key, TestData.class));
+
+        _provider = new FileBasedKeyValueStore(_context, encryptionContext, new SigningContext(SigningContext.Preset.EC_P256_SHA256, null));
+        try {
+            _provider.read(_key, TestData.class);
+            fail ("Should have thrown exception");
+        }
+        catch (final SignatureException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+
     @Test
     @SmallTest
     public void testReadAndStoreEncryptedSignedDecryptionFailure() throws Exception {
@@ -138,6 +205,88 @@ public class FileBasedKeyValueStoreTest {
     }
 
 
+    @Test
+    @SmallTest
+    public void testDurableWrites() throws Exception {
+        //
+        _provider = new FileBasedKeyValueStore(_context, new EncryptionContext(), new SigningContext())
+                .withDurableWrites(true)
+                .withGroupCommitWindow(5);
+        _provider.store(_key, _testData);
+        _provider.store(_key, _testData);
+        assertEquals (_testData, _provider.read (_key, TestData.class));
+
+        final File directory = new File (_context.getFilesDir(), FileBasedKeyValueStore.class.getName());
+        assertFalse (new File (directory, _key + FileBasedKeyValueStore.TEMP_FILE_SUFFIX).exists());
+    }
+
+
+    @Test
+    @SmallTest
+    public void testReadJavaSerializedValue() throws Exception {
+        //
+        // Values written by earlier versions are serialized SignedObject / SealedObject wrappers:
+        _provider = new FileBasedKeyValueStore(_context, new EncryptionContext(), new SigningContext());
+        _provider.writeObject(_key, _provider.signObject(_provider.sealObject(_testData)));
+        assertEquals (_testData, _provider.read (_key, TestData.class));
+    }
+
+
+    @Test
+    @SmallTest
+    public void testReadAndStoreWithCodecs() throws Exception {
+        //
+        final EncryptionContext encryptionContext = new EncryptionContext();
+        final SigningContext signingContext = new SigningContext();
+        _provider = new FileBasedKeyValueStore(_context, encryptionContext, signingContext)
+                .withCodec(JavaSerializationCodec.INSTANCE);
+        _provider.store(_key, _testData);
+
+        // The codec is recorded with the value:
+        _provider = new FileBasedKeyValueStore(_context, encryptionContext, signingContext)
+                .withCodec(BinaryCodec.INSTANCE);
+        assertEquals (_testData, _provider.read (_key, TestData.class));
+        _provider.store(_key, _testData);
+        assertEquals (_testData, _provider.read (_key, TestData.class));
+    }
+
+
+    @Test
+    @SmallTest
+    public void testTempFileNamesAreReserved() throws Exception {
+        //
+        final String reservedKey = "a" + FileBasedKeyValueStore.TEMP_FILE_SUFFIX;
+        try {
+            _provider.store(reservedKey, _testData);
+            fail ("Should have thrown exception");
+        }
+        catch (final IllegalArgumentException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        try {
+            _provider.openWriter(reservedKey);
+            fail ("Should have thrown exception");
+        }
+        catch (final IllegalArgumentException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        try {
+            _provider.begin().put(reservedKey, _testData);
+            fail ("Should have thrown exception");
+        }
+        catch (final IllegalArgumentException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        try {
+            _provider.deleteAll(Arrays.asList(_key, reservedKey));
+            fail ("Should have thrown exception");
+        }
+        catch (final IllegalArgumentException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+
     private <T extends Throwable> void verifyException (final Class<?> expectedClass, final T actual) {
         //
         assertNotNull (
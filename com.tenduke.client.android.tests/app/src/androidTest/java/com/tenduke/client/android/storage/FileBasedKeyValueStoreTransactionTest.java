@@ -0,0 +1,242 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for the transactions of {@link FileBasedKeyValueStore}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FileBasedKeyValueStoreTransactionTest {
+
+    private static final String DIRECTORY = FileBasedKeyValueStoreTransactionTest.class.getName();
+
+    private Context _context;
+    private EncryptionContext _encryptionContext;
+    private SigningContext _signingContext;
+    private FileBasedKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _encryptionContext = new EncryptionContext();
+        _signingContext = new SigningContext();
+        _store = new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext, DIRECTORY);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store.deleteAll(_store.keys());
+    }
+
+    @Test
+    @SmallTest
+    public void testCommit() throws Exception {
+        //
+        _store.store("profile", "old profile");
+        final Transaction transaction = _store.begin()
+                .put("token", "token")
+                .put("id token", "id token")
+                .delete("profile");
+        // Not applied before commit:
+        assertNull (_store.read("token", String.class));
+
+        transaction.commit();
+        assertEquals ("token", _store.read("token", String.class));
+        assertEquals ("id token", _store.read("id token", String.class));
+        assertNull (_store.read("profile", String.class));
+        assertEquals (2, _store.keys().size());
+        assertEquals (0, journal().length());
+
+        try {
+            transaction.commit();
+            fail ("Should have thrown exception");
+        }
+        catch (final IllegalStateException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testInterruptedCommitIsReplayedOnOpen() throws Exception {
+        //
+        _store.store("token", "old token");
+        _store.store("id token", "old id token");
+
+        final FailingStore failingStore = new FailingStore(_context, _encryptionContext, _signingContext);
+        failingStore._failingKey = "id token";
+        try {
+            failingStore.begin()
+                    .put("token", "new token")
+                    .put("id token", "new id token")
+                    .commit();
+            fail ("Should have thrown exception");
+        }
+        catch (final IOException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        // Partially applied, as seen by another instance:
+        assertEquals ("new token", _store.read("token", String.class));
+        assertEquals ("old id token", _store.read("id token", String.class));
+
+        _store = new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext, DIRECTORY);
+        assertEquals ("new token", _store.read("token", String.class));
+        assertEquals ("new id token", _store.read("id token", String.class));
+        assertEquals (0, journal().length());
+    }
+
+    @Test
+    @SmallTest
+    public void testFailedCommitIsReplayedBeforeRead() throws Exception {
+        //
+        _store.store("token", "old token");
+        _store.store("id token", "old id token");
+
+        final FailingStore failingStore = new FailingStore(_context, _encryptionContext, _signingContext);
+        failingStore._failingKey = "id token";
+        try {
+            failingStore.begin()
+                    .put("token", "new token")
+                    .put("id token", "new id token")
+                    .commit();
+            fail ("Should have thrown exception");
+        }
+        catch (final IOException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        // Replay keeps failing, so reads of the transaction's keys fail instead of seeing it partially applied:
+        try {
+            failingStore.read("token", String.class);
+            fail ("Should have thrown exception");
+        }
+        catch (final IOException e) {
+            // Ignored intentionally: Expected exception.
+        }
+
+        failingStore._failingKey = null;
+        assertEquals ("new token", failingStore.read("token", String.class));
+        assertEquals ("new id token", failingStore.read("id token", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testDeleteAfterFailedCommitIsNotUndone() throws Exception {
+        //
+        final FailingStore failingStore = new FailingStore(_context, _encryptionContext, _signingContext);
+        failingStore._failingKey = "id token";
+        try {
+            failingStore.begin()
+                    .put("token", "new token")
+                    .put("id token", "new id token")
+                    .commit();
+            fail ("Should have thrown exception");
+        }
+        catch (final IOException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        // Not deleted while the transaction cannot be replayed:
+        failingStore.delete("token");
+        failingStore._failingKey = null;
+        assertEquals ("new token", failingStore.read("token", String.class));
+
+        failingStore.delete("token");
+        assertNull (failingStore.read("token", String.class));
+
+        // Replaying the journal on open does not bring the value back:
+        final FileBasedKeyValueStore reopened = new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext, DIRECTORY);
+        assertNull (reopened.read("token", String.class));
+        assertEquals ("new id token", reopened.read("id token", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testJournalNameIsReserved() throws Exception {
+        //
+        try {
+            _store.store(FileBasedKeyValueStore.JOURNAL_FILE_NAME, "value");
+            fail ("Should have thrown exception");
+        }
+        catch (final IllegalArgumentException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        try {
+            _store.begin().delete(FileBasedKeyValueStore.JOURNAL_FILE_NAME);
+            fail ("Should have thrown exception");
+        }
+        catch (final IllegalArgumentException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testWriteAfterDurableCommitIsNotUndone() throws Exception {
+        //
+        _store.withDurableWrites(true);
+        _store.begin()
+                .put("token", "token 1")
+                .put("other", "other")
+                .commit();
+        // Checkpoint is deferred:
+        assertTrue (journal().length() > 0);
+        _store.store("unrelated", "value");
+        assertTrue (journal().length() > 0);
+
+        _store.store("token", "token 2");
+        assertEquals (0, journal().length());
+
+        _store = new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext, DIRECTORY);
+        assertEquals ("token 2", _store.read("token", String.class));
+        assertEquals ("other", _store.read("other", String.class));
+    }
+
+
+    private File journal () {
+        return new File (new File (_context.getFilesDir(), DIRECTORY), FileBasedKeyValueStore.JOURNAL_FILE_NAME);
+    }
+
+
+    /** Store, which fails to write a key, simulating a crash in the middle of applying a transaction.
+     */
+    private static class FailingStore extends FileBasedKeyValueStore {
+
+        private volatile String _failingKey;
+
+        private FailingStore(
+                @NonNull final Context context,
+                @NonNull final EncryptionContext encryptionContext,
+                @NonNull final SigningContext signingContext) throws IOException {
+            super (context, encryptionContext, signingContext, DIRECTORY);
+        }
+
+        @Override
+        protected void renameTempFile(@NonNull final File tempFile, @NonNull final String key) throws IOException {
+            //
+            if (key.equals(_failingKey)) {
+                throw new IOException ("Simulated crash");
+            }
+            super.renameTempFile(tempFile, key);
+        }
+    }
+}
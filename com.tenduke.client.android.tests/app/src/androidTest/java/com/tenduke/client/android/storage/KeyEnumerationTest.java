@@ -0,0 +1,143 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/** Tests for the key enumeration of {@link FileBasedKeyValueStore} and {@link LogStructuredKeyValueStore}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyEnumerationTest {
+
+    private static final String DIRECTORY = KeyEnumerationTest.class.getName();
+
+    private Context _context;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        deleteDirectory ();
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        deleteDirectory ();
+    }
+
+    @Test
+    @SmallTest
+    public void testFileBasedKeyValueStore() throws Exception {
+        //
+        FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, null, null, DIRECTORY);
+        populate (store);
+        verify (store);
+
+        // A new instance loads the keys from the directory:
+        store = new FileBasedKeyValueStore(_context, null, null, DIRECTORY);
+        verify (store);
+    }
+
+    @Test
+    @SmallTest
+    public void testLogStructuredKeyValueStore() throws Exception {
+        //
+        LogStructuredKeyValueStore store = new LogStructuredKeyValueStore(_context, null, null, DIRECTORY);
+        try {
+            populate (store);
+            verify (store);
+        }
+        finally {
+            store.close();
+        }
+
+        // The keys are rebuilt with the index:
+        store = new LogStructuredKeyValueStore(_context, null, null, DIRECTORY);
+        try {
+            verify (store);
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    @Test
+    @MediumTest
+    public void testPrefixQueryOf10000Keys() throws Exception {
+        //
+        final KeyIndex index = new KeyIndex();
+        for (int user = 0; user < 100; user++) {
+            for (int entry = 0; entry < 100; entry++) {
+                index.add("user-" + user + "/entry-" + entry);
+            }
+        }
+
+        // Warm up:
+        assertEquals (100, index.keys("user-42/").size());
+
+        final int rounds = 1000;
+        final long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            index.keys("user-" + (i % 100) + "/");
+        }
+        final long nanosPerQuery = (System.nanoTime() - start) / rounds;
+        System.out.println ("KeyIndex prefix query of 100 out of 10000 keys: " + (nanosPerQuery / 1000L) + " us");
+        assertTrue ("Prefix query took " + nanosPerQuery + " ns", nanosPerQuery < 1000000L);
+    }
+
+
+    private static void populate (final KeyValueStore store) throws Exception {
+        //
+        store.store("user-1.token", "token 1");
+        store.store("user-1.profile", "profile 1");
+        store.store("user-2.token", "token 2");
+        store.store("user-10.token", "token 10");
+        store.store("removed", "removed");
+        store.delete("removed");
+    }
+
+    private static <S extends EnumerableKeyValueStore & BatchKeyValueStore> void verify (final S store) throws Exception {
+        //
+        assertEquals (Arrays.asList("user-1.profile", "user-1.token", "user-10.token", "user-2.token"), store.keys());
+        assertEquals (Arrays.asList("user-1.profile", "user-1.token"), store.keys("user-1."));
+        assertEquals (Collections.<String>emptyList(), store.keys("removed"));
+
+        final Map<String, String> scanned = store.scan("user-1", String.class);
+        assertEquals (Arrays.asList("user-1.profile", "user-1.token", "user-10.token"), new java.util.ArrayList<>(scanned.keySet()));
+        assertEquals ("token 10", scanned.get("user-10.token"));
+
+        final List<String> tokens = store.keys("user-2");
+        store.deleteAll(tokens);
+        assertEquals (Collections.<String>emptyList(), store.keys("user-2"));
+        store.store("user-2.token", "token 2");
+    }
+
+    private void deleteDirectory () {
+        //
+        final File directory = new File (_context.getFilesDir(), DIRECTORY);
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
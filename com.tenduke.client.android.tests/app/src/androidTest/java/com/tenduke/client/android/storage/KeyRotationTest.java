@@ -0,0 +1,185 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.KeyRing;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for stores using an {@link EncryptionContext} with a {@link KeyRing}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyRotationTest {
+
+    private static final String DIRECTORY = KeyRotationTest.class.getName();
+    private static final String[] CIPHER_TYPES = {EncryptionContext.DEFAULT_CIPHER_TYPE, EncryptionContext.AUTHENTICATED_CIPHER_TYPE};
+
+    private Context _context;
+    private SigningContext _signingContext;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _signingContext = new SigningContext();
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, null, null, DIRECTORY);
+        store.deleteAll(store.keys());
+    }
+
+    @Test
+    @SmallTest
+    public void testReadAfterRotation() throws Exception {
+        //
+        for (final String cipherType : CIPHER_TYPES) {
+            final KeyRing keyRing = new KeyRing(newKey ());
+            final FileBasedKeyValueStore store = newStore (keyRing, cipherType);
+            store.store("old", "access token");
+            final int keyId = keyRing.rotate(newKey ());
+            store.store("new", "refresh token");
+
+            assertEquals (keyId, keyRing.getCurrentKeyId());
+            assertFalse (store.isEncryptedWithEarlierKey(store.readValue("new")));
+            assertTrue (store.isEncryptedWithEarlierKey(store.readValue("old")));
+            assertEquals ("refresh token", store.read("new", String.class));
+            assertEquals ("access token", store.read("old", String.class));
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testValueIsReencryptedOnFirstRead() throws Exception {
+        //
+        for (final String cipherType : CIPHER_TYPES) {
+            final KeyRing keyRing = new KeyRing(newKey ());
+            final FileBasedKeyValueStore store = newStore (keyRing, cipherType);
+            store.store("token", "access token", 1, TimeUnit.HOURS);
+            final long expiresAt = AbstractEncryptingStore.expiryOf(store.readValue("token"));
+            keyRing.rotate(newKey ());
+
+            assertEquals ("access token", store.read("token", String.class));
+            assertFalse (store.isEncryptedWithEarlierKey(store.readValue("token")));
+            assertEquals (expiresAt, AbstractEncryptingStore.expiryOf(store.readValue("token")));
+
+            // Earlier key is not needed any more:
+            assertTrue (keyRing.retire(KeyRing.INITIAL_KEY_ID));
+            assertEquals ("access token", store.read("token", String.class));
+        }
+    }
+
+    @Test
+    @MediumTest
+    public void testReencryptAll() throws Exception {
+        //
+        final SecretKey initialKey = newKey ();
+        final EncryptionContext singleKey = new EncryptionContext(initialKey, Cipher.getInstance(EncryptionContext.DEFAULT_CIPHER_TYPE));
+        final FileBasedKeyValueStore legacyStore = new FileBasedKeyValueStore(_context, singleKey, _signingContext, DIRECTORY);
+        legacyStore.store("legacy", "id token");
+
+        final KeyRing keyRing = new KeyRing(initialKey);
+        final FileBasedKeyValueStore store = newStore (keyRing, EncryptionContext.DEFAULT_CIPHER_TYPE);
+        store.store("token", "access token");
+        final byte[] data = new byte[3 * 1024 + 17];
+        Arrays.fill(data, (byte) 42);
+        final OutputStream out = store.withStreamChunkSize(1024).openWriter("stream");
+        out.write(data);
+        out.close();
+
+        keyRing.rotate(newKey ());
+        assertEquals (3, store.reencryptAll());
+        assertEquals (0, store.reencryptAll());
+        keyRing.retire(KeyRing.INITIAL_KEY_ID);
+
+        // Values without key id, written before the ring was used, were decrypted with the initial key:
+        assertEquals ("id token", store.read("legacy", String.class));
+        assertEquals ("access token", store.read("token", String.class));
+        final InputStream in = store.openReader("stream");
+        final byte[] read = new byte[data.length];
+        int length = 0;
+        int count;
+        while ((count = in.read(read, length, read.length - length)) > 0) {
+            length += count;
+        }
+        assertEquals (-1, in.read());
+        in.close();
+        assertTrue (Arrays.equals(data, read));
+    }
+
+    @Test
+    @SmallTest
+    public void testRetiredKeyIsReported() throws Exception {
+        //
+        final KeyRing keyRing = new KeyRing(newKey ());
+        final FileBasedKeyValueStore store = newStore (keyRing, EncryptionContext.AUTHENTICATED_CIPHER_TYPE);
+        store.store("token", "access token");
+        keyRing.rotate(newKey ());
+        keyRing.retire(KeyRing.INITIAL_KEY_ID);
+        try {
+            store.read("token", String.class);
+            fail ("Should have thrown exception");
+        }
+        catch (final InvalidKeyException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testCurrentKeyCannotBeRetired() throws Exception {
+        //
+        final KeyRing keyRing = new KeyRing(newKey ());
+        keyRing.rotate(newKey ());
+        assertFalse (keyRing.retire(7));
+        try {
+            keyRing.retire(keyRing.getCurrentKeyId());
+            fail ("Should have thrown exception");
+        }
+        catch (final IllegalArgumentException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        assertEquals (2, keyRing.getKeyIds().size());
+    }
+
+
+    private FileBasedKeyValueStore newStore (final KeyRing keyRing, final String cipherType) throws Exception {
+        //
+        return new FileBasedKeyValueStore(
+                _context,
+                new EncryptionContext(keyRing, Cipher.getInstance(cipherType)),
+                _signingContext,
+                DIRECTORY);
+    }
+
+
+    private static SecretKey newKey () throws Exception {
+        return EncryptionContext.generateSecretKey("AES", 256, null);
+    }
+}
@@ -0,0 +1,153 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.KeyStoreFile;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for {@link KeyStoreFile} and the contexts with keys produced in the background.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyStoreFileTest {
+
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    private Context _context;
+    private File _file;
+    private ExecutorService _executor;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _file = new File(_context.getFilesDir(), KeyStoreFileTest.class.getName() + ".keystore");
+        _executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _executor.shutdown();
+        _file.delete();
+    }
+
+    @Test
+    @MediumTest
+    public void testKeysAreGeneratedOnceAndLoadedLater() throws Exception {
+        //
+        final KeyStoreFile coldStart = new KeyStoreFile(_file, PASSWORD);
+        assertFalse (_file.exists());
+        final SecretKey secretKey = coldStart.getSecretKey("encryption", "AES", 256, null);
+        final KeyPair keyPair = coldStart.getKeyPair("signing", "RSA", 1024, null);
+        assertTrue (_file.exists());
+        assertTrue (Arrays.equals(secretKey.getEncoded(), coldStart.getSecretKey("encryption", "AES", 256, null).getEncoded()));
+
+        final KeyStoreFile warmStart = new KeyStoreFile(_file, PASSWORD);
+        assertTrue (Arrays.equals(secretKey.getEncoded(), warmStart.getSecretKey("encryption", "AES", 256, null).getEncoded()));
+        final KeyPair loaded = warmStart.getKeyPair("signing", "RSA", 1024, null);
+        assertTrue (Arrays.equals(keyPair.getPrivate().getEncoded(), loaded.getPrivate().getEncoded()));
+        assertTrue (Arrays.equals(keyPair.getPublic().getEncoded(), loaded.getPublic().getEncoded()));
+    }
+
+    @Test
+    @MediumTest
+    public void testStoreWithKeysFromFile() throws Exception {
+        //
+        FileBasedKeyValueStore store = newStore (new KeyStoreFile(_file, PASSWORD));
+        store.store("token", "access token");
+
+        // Warm start reads the value with the same keys:
+        store = newStore (new KeyStoreFile(_file, PASSWORD));
+        assertEquals ("access token", store.read("token", String.class));
+        store.delete("token");
+    }
+
+    @Test
+    @SmallTest
+    public void testGenerateInBackground() throws Exception {
+        //
+        final List<Runnable> tasks = new ArrayList<>();
+        final Executor heldExecutor = new Executor() {
+            @Override
+            public void execute(final Runnable task) {
+                tasks.add(task);
+            }
+        };
+        final EncryptionContext encryptionContext = EncryptionContext.generateInBackground(heldExecutor);
+        final SigningContext signingContext = SigningContext.generateInBackground(heldExecutor);
+        assertFalse (encryptionContext.isKeyAvailable());
+        assertFalse (signingContext.isKeyAvailable());
+        assertEquals (2, tasks.size());
+
+        for (final Runnable task : tasks) {
+            _executor.execute(task);
+        }
+        final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, encryptionContext, signingContext);
+        store.store("token", "access token");
+        assertEquals ("access token", store.read("token", String.class));
+        assertTrue (encryptionContext.isKeyAvailable());
+        assertTrue (signingContext.isKeyAvailable());
+        store.delete("token");
+    }
+
+    @Test
+    @SmallTest
+    public void testFailureIsReportedWhenKeyIsNeeded() throws Exception {
+        //
+        new KeyStoreFile(_file, PASSWORD).getSecretKey("encryption", "AES", 256, null);
+
+        final KeyStoreFile wrongPassword = new KeyStoreFile(_file, "wrong".toCharArray());
+        final EncryptionContext context = new EncryptionContext(
+                wrongPassword.secretKey("encryption", "AES", 256, null, _executor),
+                Cipher.getInstance(EncryptionContext.DEFAULT_CIPHER_TYPE));
+        try {
+            context.getSecretKey();
+            fail ("Should have thrown exception");
+        }
+        catch (final IllegalStateException e) {
+            // Ignored intentionally: Expected exception.
+        }
+    }
+
+
+    private FileBasedKeyValueStore newStore (final KeyStoreFile keyStoreFile) throws Exception {
+        //
+        return new FileBasedKeyValueStore(
+                _context,
+                new EncryptionContext(
+                        keyStoreFile.secretKey("encryption", "AES", 256, null, _executor),
+                        Cipher.getInstance(EncryptionContext.AUTHENTICATED_CIPHER_TYPE)),
+                new SigningContext(
+                        keyStoreFile.keyPair("signing", "RSA", 1024, null, _executor),
+                        Signature.getInstance("SHA256withRSA"))
+        );
+    }
+}
@@ -0,0 +1,245 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/** Tests for {@link LogStructuredKeyValueStore}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LogStructuredKeyValueStoreTest {
+
+    private static final String DIRECTORY = LogStructuredKeyValueStoreTest.class.getName();
+
+    private Context _context;
+    private EncryptionContext _encryptionContext;
+    private SigningContext _signingContext;
+    private LogStructuredKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        deleteDirectory();
+        _encryptionContext = new EncryptionContext();
+        _signingContext = new SigningContext();
+        _store = open();
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store.close();
+        deleteDirectory();
+    }
+
+    @Test
+    @SmallTest
+    public void testStoreReadAndDelete() throws Exception {
+        //
+        assertNull (_store.read("key", String.class));
+        _store.store("key", "value");
+        assertEquals ("value", _store.read("key", String.class));
+        _store.store("key", "value 2");
+        assertEquals ("value 2", _store.read("key", String.class));
+        _store.delete("key");
+        assertNull (_store.read("key", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testIndexIsRebuiltOnOpen() throws Exception {
+        //
+        _store.store("kept", "value");
+        _store.store("deleted", "value");
+        _store.delete("deleted");
+        _store.close();
+
+        _store = open();
+        assertEquals ("value", _store.read("kept", String.class));
+        assertNull (_store.read("deleted", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testPartialRecordIsDiscardedOnOpen() throws Exception {
+        //
+        _store.store("key", "value");
+        _store.close();
+
+        // Simulate a write interrupted by a crash:
+        final File[] segments = new File (_context.getFilesDir(), DIRECTORY).listFiles();
+        Arrays.sort(segments);
+        final RandomAccessFile file = new RandomAccessFile(segments[segments.length - 1], "rw");
+        try {
+            file.seek(file.length());
+            file.write(new byte[] {1, 2, 3, 4, 1, 0, 0});
+        }
+        finally {
+            file.close();
+        }
+
+        _store = open();
+        assertEquals ("value", _store.read("key", String.class));
+        _store.store("key 2", "value 2");
+        _store.close();
+
+        _store = open();
+        assertEquals ("value", _store.read("key", String.class));
+        assertEquals ("value 2", _store.read("key 2", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testCompaction() throws Exception {
+        //
+        _store.withMaxSegmentBytes(1024);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 10; i++) {
+                _store.store("key-" + i, "value " + round + " " + i);
+            }
+        }
+        _store.delete("key-3");
+        assertTrue (_store.getSegmentCount() > 2);
+        assertTrue (_store.getLiveBytes() < _store.getTotalBytes());
+
+        _store.compact();
+        assertTrue (_store.getSegmentCount() <= 2);
+        assertEquals ("value 9 5", _store.read("key-5", String.class));
+        assertNull (_store.read("key-3", String.class));
+        _store.close();
+
+        _store = open();
+        assertEquals ("value 9 5", _store.read("key-5", String.class));
+        assertNull (_store.read("key-3", String.class));
+    }
+
+
+    @Test
+    @SmallTest
+    public void testTransaction() throws Exception {
+        //
+        _store.store("profile", "old profile");
+        _store.begin()
+                .put("token", "token")
+                .put("id token", "id token")
+                .delete("profile")
+                .commit();
+        assertEquals ("token", _store.read("token", String.class));
+        assertNull (_store.read("profile", String.class));
+        _store.close();
+
+        _store = open();
+        assertEquals ("id token", _store.read("id token", String.class));
+        assertNull (_store.read("profile", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testPartialTransactionIsDiscardedOnOpen() throws Exception {
+        //
+        _store.store("token", "old token");
+        _store.begin()
+                .put("token", "new token")
+                .put("id token", "new id token")
+                .commit();
+        _store.close();
+
+        // Simulate a transaction interrupted by a crash, cutting its last record:
+        final File[] segments = new File (_context.getFilesDir(), DIRECTORY).listFiles();
+        Arrays.sort(segments);
+        final RandomAccessFile file = new RandomAccessFile(segments[segments.length - 1], "rw");
+        try {
+            file.setLength(file.length() - 3);
+        }
+        finally {
+            file.close();
+        }
+
+        _store = open();
+        assertEquals ("old token", _store.read("token", String.class));
+        assertNull (_store.read("id token", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testDamagedSegmentFailsOpen() throws Exception {
+        //
+        _store.withMaxSegmentBytes(1024);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                _store.store("key-" + i, "value " + round + " " + i);
+            }
+        }
+        assertTrue (_store.getSegmentCount() > 2);
+        _store.close();
+
+        // Damage a record in the middle of the first, sealed segment:
+        final File[] segments = new File (_context.getFilesDir(), DIRECTORY).listFiles();
+        Arrays.sort(segments);
+        final long length = segments[0].length();
+        final RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+        try {
+            file.seek(file.length() / 2);
+            final int b = file.read();
+            file.seek(file.length() / 2);
+            file.write(b ^ 0xff);
+        }
+        finally {
+            file.close();
+        }
+
+        try {
+            _store = open();
+            fail ("Should have thrown exception");
+        }
+        catch (final IOException e) {
+            // Ignored intentionally: Expected exception.
+        }
+        // The segment is kept as it is, for recovery:
+        assertEquals (length, segments[0].length());
+        assertTrue (segments[0].exists());
+
+        // Lets afterTest() close a store:
+        deleteDirectory();
+        _store = open();
+    }
+
+
+    private LogStructuredKeyValueStore open () throws Exception {
+        //
+        return new LogStructuredKeyValueStore(_context, _encryptionContext, _signingContext, DIRECTORY)
+                .withCompactionThreshold(2f);
+    }
+
+    private void deleteDirectory () {
+        //
+        final File directory = new File (_context.getFilesDir(), DIRECTORY);
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,153 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.storage.TestDoubles.QueueExecutor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/** Tests for {@link ObservableKeyValueStore}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ObservableKeyValueStoreTest {
+
+    private static final String DIRECTORY = ObservableKeyValueStoreTest.class.getName();
+
+    private FileBasedKeyValueStore _fileStore;
+    private QueueExecutor _executor;
+    private ObservableKeyValueStore _store;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        final Context context = InstrumentationRegistry.getTargetContext();
+        _fileStore = new FileBasedKeyValueStore(context, null, null, DIRECTORY);
+        _executor = new QueueExecutor();
+        _store = new ObservableKeyValueStore(_fileStore, _executor);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _fileStore.deleteAll(_fileStore.keys());
+    }
+
+    @Test
+    @SmallTest
+    public void testKeyListener() throws Exception {
+        //
+        final RecordingListener listener = new RecordingListener();
+        _store.addKeyListener("session", listener);
+
+        _store.store("session", "key 1");
+        _store.store("other", "value");
+        // Notified on the executor only:
+        assertTrue (listener._changes.isEmpty());
+
+        _executor.runAll();
+        _store.delete("session");
+        _executor.runAll();
+        assertEquals (Arrays.asList("session=key 1", "session=null"), listener._changes);
+    }
+
+    @Test
+    @SmallTest
+    public void testPrefixListenerAndBatches() throws Exception {
+        //
+        final RecordingListener listener = new RecordingListener();
+        _store.addPrefixListener("user.", listener);
+
+        final Map<String, String> objects = new LinkedHashMap<>();
+        objects.put("user.name", "name");
+        objects.put("device.id", "id");
+        objects.put("user.email", "email");
+        _store.storeAll(objects);
+        _store.deleteAll(Arrays.asList("user.name", "device.id"));
+        _executor.runAll();
+        assertEquals (Arrays.asList("user.name=name", "user.email=email", "user.name=null"), listener._changes);
+    }
+
+    @Test
+    @SmallTest
+    public void testFailedStoreIsNotNotified() throws Exception {
+        //
+        final RecordingListener listener = new RecordingListener();
+        _store.addPrefixListener("", listener);
+        try {
+            // Not Serializable:
+            _store.store("key", new ArrayList<Object>(Collections.singletonList(new Object())));
+        }
+        catch (final Exception e) {
+            // Ignored intentionally: Expected exception.
+        }
+        _executor.runAll();
+        assertTrue (listener._changes.isEmpty());
+    }
+
+    @Test
+    @SmallTest
+    public void testRemoveListener() throws Exception {
+        //
+        final RecordingListener listener = new RecordingListener();
+        _store.addKeyListener("session", listener);
+        _store.addPrefixListener("sess", listener);
+        _store.store("session", "key 1");
+        _store.removeListener(listener);
+        _store.store("session", "key 2");
+        _executor.runAll();
+
+        // Registered twice, notified twice of the first store only:
+        assertEquals (Arrays.asList("session=key 1", "session=key 1"), listener._changes);
+    }
+
+    @Test
+    @SmallTest
+    public void testListenerIsNotLeaked() throws Exception {
+        //
+        RecordingListener listener = new RecordingListener();
+        final WeakReference<RecordingListener> reference = new WeakReference<>(listener);
+        _store.addKeyListener("session", listener);
+        listener = null;
+
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull (reference.get());
+
+        _store.store("session", "key");
+        assertEquals (0, _executor.size());
+    }
+
+
+    private static class RecordingListener implements ObservableKeyValueStore.Listener {
+
+        private final List<String> _changes = new ArrayList<>();
+
+        @Override
+        public void onChanged(@NonNull final String key, @Nullable final Serializable object) {
+            _changes.add(key + "=" + object);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertTrue;
+
+/** Benchmarks {@link ReadMode#STREAM} against {@link ReadMode#MEMORY_MAPPED} with 1 KB, 100 KB and 5 MB values.
+ *
+ *  The results are printed, compare the elapsed time per read between the modes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ReadModeBenchmarkTest {
+
+    private static final String KEY = "ReadModeBenchmarkTest.key";
+    private static final int[] VALUE_SIZES = {1024, 100 * 1024, 5 * 1024 * 1024};
+    private static final int READ_BYTES_PER_SIZE = 20 * 1024 * 1024;
+
+    private Context _context;
+    private EncryptionContext _encryptionContext;
+    private SigningContext _signingContext;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+        _encryptionContext = new EncryptionContext();
+        _signingContext = new SigningContext();
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext).delete(KEY);
+        final LogStructuredKeyValueStore store = openLogStore(ReadMode.STREAM);
+        try {
+            store.delete(KEY);
+            store.compact();
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testFileBasedKeyValueStore() throws Exception {
+        //
+        for (final int size : VALUE_SIZES) {
+            final byte[] value = valueOf(size);
+            for (final ReadMode readMode : ReadMode.values()) {
+                final FileBasedKeyValueStore store = new FileBasedKeyValueStore(_context, _encryptionContext, _signingContext)
+                        .withReadMode(readMode);
+                store.store(KEY, value);
+                report ("FileBasedKeyValueStore", readMode, size, runReads(store, value));
+            }
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testLogStructuredKeyValueStore() throws Exception {
+        //
+        for (final int size : VALUE_SIZES) {
+            final byte[] value = valueOf(size);
+            for (final ReadMode readMode : ReadMode.values()) {
+                final LogStructuredKeyValueStore store = openLogStore(readMode);
+                try {
+                    store.store(KEY, value);
+                    report ("LogStructuredKeyValueStore", readMode, size, runReads(store, value));
+                }
+                finally {
+                    store.close();
+                }
+            }
+        }
+    }
+
+
+    private LogStructuredKeyValueStore openLogStore (final ReadMode readMode) throws Exception {
+        //
+        return new LogStructuredKeyValueStore(_context, _encryptionContext, _signingContext, ReadModeBenchmarkTest.class.getName())
+                .withReadMode(readMode);
+    }
+
+    private static long runReads (final KeyValueStore store, final byte[] value) throws Exception {
+        //
+        // Warm up:
+        assertTrue (Arrays.equals(value, store.read(KEY, byte[].class)));
+
+        final int reads = reads(value.length);
+        final long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            store.read(KEY, byte[].class);
+        }
+        return (System.nanoTime() - start) / reads;
+    }
+
+    private static int reads (final int size) {
+        return Math.max(3, READ_BYTES_PER_SIZE / size / 10);
+    }
+
+    private static byte[] valueOf (final int size) {
+        //
+        final byte[] value = new byte[size];
+        new Random(size).nextBytes(value);
+        return value;
+    }
+
+    private static void report (final String store, final ReadMode readMode, final int size, final long nanosPerRead) {
+        //
+        System.out.println (
+                store + " " + readMode + ": value = " + (size / 1024) + " KB"
+                + ", reads = " + reads(size)
+                + ", per read = " + (nanosPerRead / 1000L) + " us"
+        );
+    }
+}
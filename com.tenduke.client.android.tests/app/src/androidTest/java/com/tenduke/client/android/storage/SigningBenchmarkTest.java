@@ -0,0 +1,158 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.HmacSigningContext;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+
+import static junit.framework.Assert.assertTrue;
+
+/** Compares the cost of signing and verifying values with RSA ({@link SigningContext}) against
+ *  ECDSA ({@link SigningContext.Preset#EC_P256_SHA256}) and HMAC-SHA256 ({@link HmacSigningContext}),
+ *  for typical value sizes. The values are not encrypted,
+ *  so that only the signing is measured.
+ *
+ *  Also compares encrypting and signing in two passes against authenticated encryption in one pass.
+ *
+ *  The results are printed, no files are written.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SigningBenchmarkTest {
+
+    private static final int ROUNDS = 200;
+    private static final int[] SIZES = {1024, 4 * 1024, 10 * 1024};
+
+    private Context _context;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _context = InstrumentationRegistry.getTargetContext();
+    }
+
+    @Test
+    @LargeTest
+    public void testSigning() throws Exception {
+        //
+        final FileBasedKeyValueStore unsigned = new FileBasedKeyValueStore(_context, null, null);
+        final FileBasedKeyValueStore rsa = new FileBasedKeyValueStore(_context, null, new SigningContext());
+        final FileBasedKeyValueStore rsa2048 = new FileBasedKeyValueStore(_context, null, new SigningContext(SigningContext.Preset.RSA_2048_SHA256, null));
+        final FileBasedKeyValueStore ec = new FileBasedKeyValueStore(_context, null, new SigningContext(SigningContext.Preset.EC_P256_SHA256, null));
+        final FileBasedKeyValueStore hmac = new FileBasedKeyValueStore(_context, null, new HmacSigningContext());
+        final Random random = new Random(42);
+        for (final int size : SIZES) {
+            final byte[] value = new byte[size];
+            random.nextBytes(value);
+
+            // Warm up:
+            measure (unsigned, value);
+            measure (rsa, value);
+            measure (rsa2048, value);
+            measure (ec, value);
+            measure (hmac, value);
+
+            final long[] unsignedNanos = measure (unsigned, value);
+            final long[] rsaNanos = measure (rsa, value);
+            final long[] rsa2048Nanos = measure (rsa2048, value);
+            final long[] ecNanos = measure (ec, value);
+            final long[] hmacNanos = measure (hmac, value);
+            report ("none", size, unsignedNanos);
+            report ("SHA256withRSA 1024", size, rsaNanos);
+            report ("SHA256withRSA 2048", size, rsa2048Nanos);
+            report ("SHA256withECDSA P-256", size, ecNanos);
+            report ("HmacSHA256", size, hmacNanos);
+            assertTrue (hmacNanos[0] < rsaNanos[0]);
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testKeyGeneration() throws Exception {
+        //
+        for (final SigningContext.Preset preset : SigningContext.Preset.values()) {
+            // Warm up:
+            preset.generateKeyPair(null);
+
+            final int rounds = 5;
+            final long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                preset.generateKeyPair(null);
+            }
+            System.out.println ("Key generation " + preset + ": " + ((System.nanoTime() - start) / rounds / 1000L) + " us");
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testAuthenticatedEncryption() throws Exception {
+        //
+        final EncryptionContext ecb = new EncryptionContext();
+        final EncryptionContext gcm = new EncryptionContext("AES", 256, EncryptionContext.AUTHENTICATED_CIPHER_TYPE, null);
+        final FileBasedKeyValueStore ecbRsa = new FileBasedKeyValueStore(_context, ecb, new SigningContext());
+        final FileBasedKeyValueStore ecbHmac = new FileBasedKeyValueStore(_context, ecb, new HmacSigningContext());
+        final FileBasedKeyValueStore authenticated = new FileBasedKeyValueStore(_context, gcm, new SigningContext());
+        final Random random = new Random(42);
+        for (final int size : SIZES) {
+            final byte[] value = new byte[size];
+            random.nextBytes(value);
+
+            // Warm up:
+            measure (ecbRsa, value);
+            measure (ecbHmac, value);
+            measure (authenticated, value);
+
+            final long[] rsaNanos = measure (ecbRsa, value);
+            final long[] hmacNanos = measure (ecbHmac, value);
+            final long[] gcmNanos = measure (authenticated, value);
+            report ("AES/ECB + SHA256withRSA", size, rsaNanos);
+            report ("AES/ECB + HmacSHA256", size, hmacNanos);
+            report ("AES/GCM", size, gcmNanos);
+            assertTrue (gcmNanos[0] < rsaNanos[0]);
+        }
+    }
+
+
+    /** Encodes and decodes the value {@link #ROUNDS} times, encrypted if the store has an encryption context.
+     *
+     *  @return nanoseconds taken by encoding and decoding
+     */
+    private static long[] measure (final FileBasedKeyValueStore store, final byte[] value) throws Exception {
+        //
+        byte[] encoded = null;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            encoded = store.encodeValue(value, store.initThreadCipher(Cipher.ENCRYPT_MODE));
+        }
+        final long encodeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            assertTrue (Arrays.equals(value, (byte[]) store.decodeValue(ByteBuffer.wrap(encoded), store.initThreadCipher(Cipher.DECRYPT_MODE))));
+        }
+        return new long[] {encodeNanos, System.nanoTime() - start};
+    }
+
+
+    private static void report (final String algorithm, final int bytes, final long[] nanos) {
+        //
+        System.out.println (
+                algorithm + ": value = " + bytes + " bytes"
+                + ", encode = " + (nanos[0] / ROUNDS / 1000L) + " us"
+                + ", decode = " + (nanos[1] / ROUNDS / 1000L) + " us"
+        );
+    }
+}
@@ -0,0 +1,127 @@
+package com.tenduke.client.android.storage;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Test doubles shared by the tests of the store decorators.
+ */
+final class TestDoubles {
+
+    private TestDoubles () {
+    }
+
+
+    /** Executor, which queues the commands until {@link #runAll()} is called.
+     */
+    static class QueueExecutor implements Executor {
+
+        private final List<Runnable> _queue = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(@NonNull final Runnable command) {
+            _queue.add(command);
+        }
+
+        /** Returns the number of queued commands.
+         */
+        synchronized int size () {
+            return _queue.size();
+        }
+
+        /** Runs the queued commands, including the ones queued while running, on the calling thread.
+         */
+        void runAll () {
+            while (true) {
+                final Runnable next;
+                synchronized (this) {
+                    if (_queue.isEmpty()) {
+                        return;
+                    }
+                    next = _queue.remove(0);
+                }
+                next.run();
+            }
+        }
+    }
+
+
+    /** In-memory store, which counts the writes and the batches, and can be made to fail the writes.
+     */
+    static class CountingStore implements BatchKeyValueStore {
+
+        private final Map<String, Serializable> _objects = new HashMap<>();
+
+        /** Number of objects stored. */
+        final AtomicInteger _writes = new AtomicInteger();
+
+        /** Number of calls to {@link #storeAll(Map)}. */
+        final AtomicInteger _batches = new AtomicInteger();
+
+        /** Run by each write before the object is stored, without holding the lock of the store. */
+        volatile Runnable _duringWrite;
+
+        /** {@code true} to fail the writes with {@link IOException}. */
+        volatile boolean _failing = false;
+
+        @Override
+        public synchronized void delete(@NonNull final String key) {
+            _objects.remove(key);
+        }
+
+        @Override
+        public synchronized <T extends Serializable> T read(@NonNull final String key, @NonNull final Class<T> objectClass) {
+            return objectClass.cast(_objects.get(key));
+        }
+
+        @Override
+        public <T extends Serializable> void store(@NonNull final String key, @NonNull final T object) throws IOException {
+            if (_failing) {
+                throw new IOException ("Failing");
+            }
+            _writes.incrementAndGet();
+            final Runnable duringWrite = _duringWrite;
+            if (duringWrite != null) {
+                duringWrite.run();
+            }
+            synchronized (this) {
+                _objects.put(key, object);
+            }
+        }
+
+        @Override
+        public void deleteAll(@NonNull final Collection<String> keys) {
+            for (final String key : keys) {
+                delete(key);
+            }
+        }
+
+        @Override
+        public <T extends Serializable> Map<String, T> readAll(@NonNull final Collection<String> keys, @NonNull final Class<T> objectClass) {
+            final Map<String, T> objects = new HashMap<>();
+            for (final String key : keys) {
+                final T object = read(key, objectClass);
+                if (object != null) {
+                    objects.put(key, object);
+                }
+            }
+            return objects;
+        }
+
+        @Override
+        public void storeAll(@NonNull final Map<String, ? extends Serializable> objects) throws IOException {
+            _batches.incrementAndGet();
+            for (final Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+                store(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
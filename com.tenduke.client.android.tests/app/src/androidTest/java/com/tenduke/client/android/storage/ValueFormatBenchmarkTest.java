@@ -0,0 +1,102 @@
+package com.tenduke.client.android.storage;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.security.EncryptionContext;
+import com.tenduke.client.android.security.SigningContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+
+import static junit.framework.Assert.assertEquals;
+
+/** Compares the size and speed of the value formats: Java-serialized {@link java.security.SignedObject} /
+ *  {@link javax.crypto.SealedObject} wrappers (the format of earlier versions) against the raw value
+ *  format with {@link JavaSerializationCodec} and {@link BinaryCodec}.
+ *
+ *  The results are printed, no files are written.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ValueFormatBenchmarkTest {
+
+    private static final int ROUNDS = 50;
+
+    private FileBasedKeyValueStore _store;
+    private ArrayList<HashMap<String, Object>> _value;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        final Context context = InstrumentationRegistry.getTargetContext();
+        _store = new FileBasedKeyValueStore(context, new EncryptionContext(), new SigningContext());
+        _value = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final HashMap<String, Object> entitlement = new HashMap<>();
+            entitlement.put("id", "entitlement-" + i);
+            entitlement.put("product", "Product " + (i % 7));
+            entitlement.put("count", i);
+            entitlement.put("validUntil", 1500000000000L + i);
+            _value.add(entitlement);
+        }
+    }
+
+    @Test
+    @LargeTest
+    public void testWrappedObjects() throws Exception {
+        //
+        byte[] encoded = null;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            encoded = JavaSerializationCodec.INSTANCE.encode(_store.signObject(_store.sealObject(_value)));
+        }
+        final long encodeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            final Object wrapped = JavaSerializationCodec.INSTANCE.decode(ByteBuffer.wrap(encoded));
+            assertEquals (_value, _store.decryptSealedObject(_store.retrieveSignedObject(wrapped)));
+        }
+        report ("SignedObject(SealedObject)", encoded.length, encodeNanos, System.nanoTime() - start);
+    }
+
+    @Test
+    @LargeTest
+    public void testRawValues() throws Exception {
+        //
+        for (final Codec codec : new Codec[] {JavaSerializationCodec.INSTANCE, BinaryCodec.INSTANCE}) {
+            _store.withCodec(codec);
+            byte[] encoded = null;
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                encoded = _store.encodeValue(_value, _store.initThreadCipher(Cipher.ENCRYPT_MODE));
+            }
+            final long encodeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                assertEquals (_value, _store.decodeValue(ByteBuffer.wrap(encoded), _store.initThreadCipher(Cipher.DECRYPT_MODE)));
+            }
+            report ("raw " + codec.getClass().getSimpleName(), encoded.length, encodeNanos, System.nanoTime() - start);
+        }
+    }
+
+
+    private static void report (final String format, final int bytes, final long encodeNanos, final long decodeNanos) {
+        //
+        System.out.println (
+                "Value format " + format + ": size = " + bytes + " bytes"
+                + ", encode = " + (encodeNanos / ROUNDS / 1000L) + " us"
+                + ", decode = " + (decodeNanos / ROUNDS / 1000L) + " us"
+        );
+    }
+}
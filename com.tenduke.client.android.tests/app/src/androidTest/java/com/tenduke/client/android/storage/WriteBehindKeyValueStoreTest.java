@@ -0,0 +1,131 @@
+package com.tenduke.client.android.storage;
+
+import android.content.ComponentCallbacks2;
+import android.support.test.filters.MediumTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.tenduke.client.android.storage.TestDoubles.CountingStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/** Tests for {@link WriteBehindKeyValueStore}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WriteBehindKeyValueStoreTest {
+
+    private static final long INTERVAL_MILLIS = 100;
+
+    private CountingStore _store;
+    private WriteBehindKeyValueStore _writeBehindStore;
+
+    @Before
+    public void beforeTest () throws Exception {
+        //
+        _store = new CountingStore();
+        _writeBehindStore = new WriteBehindKeyValueStore(_store, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void afterTest () throws Exception {
+        //
+        _store._failing = false;
+        _writeBehindStore.close();
+    }
+
+    @Test
+    @SmallTest
+    public void testReadsSeeBufferedWrites() throws Exception {
+        //
+        for (int i = 0; i < 100; i++) {
+            _writeBehindStore.store("cursor", i);
+        }
+        assertEquals (Integer.valueOf(99), _writeBehindStore.read("cursor", Integer.class));
+        assertEquals (0, _store._writes.get());
+
+        _writeBehindStore.delete("cursor");
+        assertNull (_writeBehindStore.read("cursor", Integer.class));
+        _writeBehindStore.store("other", "value");
+        assertEquals (Arrays.asList("other"), Arrays.asList(_writeBehindStore.readAll(Arrays.asList("cursor", "other"), Serializable.class).keySet().toArray()));
+
+        Thread.sleep(3 * INTERVAL_MILLIS);
+        assertEquals (0, _writeBehindStore.getPendingCount());
+        assertNull (_store.read("cursor", Integer.class));
+        assertEquals ("value", _store.read("other", String.class));
+        assertEquals (1, _store._writes.get());
+    }
+
+    @Test
+    @MediumTest
+    public void testWritesAreDebounced() throws Exception {
+        //
+        final long end = System.currentTimeMillis() + 5 * INTERVAL_MILLIS;
+        int value = 0;
+        while (System.currentTimeMillis() < end) {
+            _writeBehindStore.store("cursor", value++);
+            Thread.sleep(1);
+        }
+        Thread.sleep(2 * INTERVAL_MILLIS);
+
+        assertTrue ("" + _store._writes.get(), _store._writes.get() <= 6);
+        assertEquals (Integer.valueOf(value - 1), _store.read("cursor", Integer.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testFlush() throws Exception {
+        //
+        _writeBehindStore.store("a", "value a");
+        _writeBehindStore.store("b", "value b");
+        _writeBehindStore.flush();
+        assertEquals (0, _writeBehindStore.getPendingCount());
+        assertEquals ("value a", _store.read("a", String.class));
+        // A single batch:
+        assertEquals (1, _store._batches.get());
+
+        _writeBehindStore.store("a", "new value a");
+        _writeBehindStore.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        // Runs after the flush triggered by onTrimMemory:
+        _writeBehindStore.flushAsync().get();
+        assertEquals ("new value a", _store.read("a", String.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testFailedWriteIsRetried() throws Exception {
+        //
+        _store._failing = true;
+        _writeBehindStore.store("cursor", 1);
+        Thread.sleep(2 * INTERVAL_MILLIS);
+        assertEquals (1, _writeBehindStore.getPendingCount());
+        assertEquals (Integer.valueOf(1), _writeBehindStore.read("cursor", Integer.class));
+
+        _store._failing = false;
+        Thread.sleep(2 * INTERVAL_MILLIS);
+        assertEquals (0, _writeBehindStore.getPendingCount());
+        assertEquals (Integer.valueOf(1), _store.read("cursor", Integer.class));
+    }
+
+    @Test
+    @SmallTest
+    public void testCloseFlushesAndWritesThrough() throws Exception {
+        //
+        _writeBehindStore.store("cursor", 1);
+        _writeBehindStore.close();
+        assertEquals (Integer.valueOf(1), _store.read("cursor", Integer.class));
+
+        _writeBehindStore.store("cursor", 2);
+        assertEquals (Integer.valueOf(2), _store.read("cursor", Integer.class));
+    }
+}